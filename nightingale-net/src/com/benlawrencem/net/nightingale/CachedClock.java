@@ -0,0 +1,90 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * A {@link Clock} that a ticker thread reads from another clock every few
+ * milliseconds, so reading it is as cheap as reading a field--for when
+ * packets arrive fast enough that reading the time for each one shows up.
+ * It is never more than a tick behind while it's running, and reads the
+ * other clock directly while it isn't.
+ *
+ * One cached clock can be shared by any number of servers and clients.
+ */
+public class CachedClock implements Clock {
+	public static final int DEFAULT_RESOLUTION = 5;
+	private final Clock clock;
+	private final int resolution;
+	private volatile long time;
+	private volatile TickerThread tickerThread;
+
+	public CachedClock() {
+		this(MonotonicClock.INSTANCE, CachedClock.DEFAULT_RESOLUTION);
+	}
+
+	/**
+	 * @param clock the clock to read the time from
+	 * @param resolutionInMilliseconds how long the ticker waits between readings
+	 */
+	public CachedClock(Clock clock, int resolutionInMilliseconds) {
+		if(clock == null)
+			throw new NullPointerException("Clock must not be null.");
+		this.clock = clock;
+		resolution = Math.max(1, resolutionInMilliseconds);
+		time = clock.currentTimeMillis();
+		tickerThread = null;
+	}
+
+	public long currentTimeMillis() {
+		return (tickerThread == null ? clock.currentTimeMillis() : time);
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	public synchronized void start() {
+		if(tickerThread != null)
+			return;
+		time = clock.currentTimeMillis();
+		tickerThread = new TickerThread(this);
+		tickerThread.start();
+	}
+
+	public synchronized void stop() {
+		if(tickerThread == null)
+			return;
+		tickerThread.stopTicking();
+		tickerThread = null;
+	}
+
+	public boolean isRunning() {
+		return tickerThread != null;
+	}
+
+	private static class TickerThread extends Thread {
+		private CachedClock cachedClock;
+		private volatile boolean isTicking;
+
+		public TickerThread(CachedClock cachedClock) {
+			super("CachedClock ticker");
+			this.cachedClock = cachedClock;
+			isTicking = false;
+			setDaemon(true);
+		}
+
+		public void run() {
+			isTicking = true;
+			while(isTicking) {
+				//the time only moves forward even if the clock it's read from doesn't
+				cachedClock.time = Math.max(cachedClock.time, cachedClock.clock.currentTimeMillis());
+				try {
+					Thread.sleep(cachedClock.resolution);
+				} catch (InterruptedException e) {}
+			}
+		}
+
+		public void stopTicking() {
+			isTicking = false;
+			interrupt();
+		}
+	}
+}
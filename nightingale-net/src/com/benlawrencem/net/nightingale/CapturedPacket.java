@@ -0,0 +1,52 @@
+package com.benlawrencem.net.nightingale;
+
+import java.net.InetAddress;
+
+/**
+ * One datagram read back from a {@link PacketCapture} trace file.
+ */
+public class CapturedPacket {
+	private long timestamp;
+	private byte direction;
+	private InetAddress address;
+	private int port;
+	private byte[] data;
+
+	public CapturedPacket(long timestamp, byte direction, InetAddress address, int port, byte[] data) {
+		this.timestamp = timestamp;
+		this.direction = direction;
+		this.address = address;
+		this.port = port;
+		this.data = data;
+	}
+
+	/**
+	 * @return nanoseconds since the capture started
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public byte getDirection() {
+		return direction;
+	}
+
+	public boolean isIncoming() {
+		return direction == PacketCapture.INCOMING;
+	}
+
+	/**
+	 * @return the address of the peer the datagram came from or went to
+	 */
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+}
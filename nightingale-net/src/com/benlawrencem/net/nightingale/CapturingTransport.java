@@ -0,0 +1,49 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Transport that records every datagram sent and received through another
+ * Transport to a {@link PacketCapture}.
+ */
+public class CapturingTransport implements Transport {
+	private static final Logger logger = Logger.getLogger(CapturingTransport.class.getName());
+	private Transport transport;
+	private PacketCapture capture;
+
+	public CapturingTransport(Transport transport, PacketCapture capture) {
+		this.transport = transport;
+		this.capture = capture;
+	}
+
+	public void send(DatagramPacket datagramPacket) throws IOException {
+		record(PacketCapture.OUTGOING, datagramPacket);
+		transport.send(datagramPacket);
+	}
+
+	public void receive(DatagramPacket datagramPacket) throws IOException {
+		transport.receive(datagramPacket);
+		record(PacketCapture.INCOMING, datagramPacket);
+	}
+
+	public int getLocalPort() {
+		return transport.getLocalPort();
+	}
+
+	public void close() {
+		transport.close();
+	}
+
+	private void record(byte direction, DatagramPacket datagramPacket) {
+		try {
+			capture.record(direction, datagramPacket);
+		} catch (IOException e) {
+			//a broken capture shouldn't break the connection
+			if(logger.isLoggable(Level.FINEST))
+				logger.finest("IOException while capturing packet: " + e.getMessage());
+		}
+	}
+}
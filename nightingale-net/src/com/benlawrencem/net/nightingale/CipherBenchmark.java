@@ -0,0 +1,139 @@
+package com.benlawrencem.net.nightingale;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures what encryption costs per packet: each packet is encoded, sent
+ * through a byte array instead of a socket and parsed again, in plaintext,
+ * sealed and opened by a {@link PacketCipher}, and sealed and opened by
+ * making a new Cipher and Mac for every packet, the way a naive wrapper
+ * would.
+ *
+ * Usage: CipherBenchmark [messageSize] [seconds]
+ */
+public class CipherBenchmark {
+	public static final int DEFAULT_MESSAGE_SIZE = 64;
+	public static final int DEFAULT_DURATION = 3;
+	private static final int BATCH_SIZE = 1000;
+	private static final byte[] KEY = "benchmark key, not a secret".getBytes();
+
+	private static interface Round {
+		public void run(Packet packet, byte[] datagram) throws Exception;
+	}
+
+	public static void main(String[] args) {
+		int messageSize = CipherBenchmark.DEFAULT_MESSAGE_SIZE;
+		int duration = CipherBenchmark.DEFAULT_DURATION;
+		try {
+			if(args != null && args.length > 0)
+				messageSize = Math.max(0, Math.min(Packet.MAXIMUM_PACKET_SIZE - Packet.MAXIMUM_HEADER_SIZE - PacketCipher.MAXIMUM_OVERHEAD, Integer.parseInt(args[0])));
+			if(args != null && args.length > 1)
+				duration = Math.max(1, Integer.parseInt(args[1]));
+		} catch(NumberFormatException e) {
+			System.out.println("Usage: CipherBenchmark [messageSize] [seconds]");
+			return;
+		}
+
+		try {
+			char[] message = new char[messageSize];
+			Arrays.fill(message, 'x');
+			final Packet packet = Packet.createApplicationPacket(1, new String(message));
+			packet.setSequenceNumber(Packet.MINIMUM_SEQUENCE_NUMBER);
+			final PacketCipher sealingCipher = PacketCipher.create(CipherBenchmark.KEY, "client", "server", true);
+			final PacketCipher openingCipher = PacketCipher.create(CipherBenchmark.KEY, "client", "server", true);
+			final SecretKeySpec encryptionKey = new SecretKeySpec(Arrays.copyOf(CipherBenchmark.KEY, 16), "AES");
+			final SecretKeySpec macKey = new SecretKeySpec(CipherBenchmark.KEY, "HmacSHA256");
+
+			System.out.println("Sending " + messageSize + " byte messages for " + duration + "s each");
+			double plaintextRate = measure("plaintext", packet, duration, new Round() {
+				public void run(Packet packet, byte[] datagram) throws Exception {
+					byte[] bytes = packet.toCompactByteArray();
+					System.arraycopy(bytes, 0, datagram, 0, bytes.length);
+					Packet.parsePacket(datagram, bytes.length);
+				}
+			});
+			double sealedRate = measure("PacketCipher", packet, duration, new Round() {
+				public void run(Packet packet, byte[] datagram) throws Exception {
+					//the opening cipher throws away a sequence number it has opened before
+					packet.setSequenceNumber(Packet.nextSequenceNumber(packet.getSequenceNumber()));
+					byte[] bytes = packet.encode(true, PacketCipher.MAXIMUM_OVERHEAD);
+					int length = sealingCipher.seal(bytes, bytes.length - PacketCipher.MAXIMUM_OVERHEAD);
+					System.arraycopy(bytes, 0, datagram, 0, length);
+					length = openingCipher.open(datagram, length);
+					if(length < 0)
+						throw new IllegalStateException("Packet did not open.");
+					Packet.parsePacket(datagram, length);
+				}
+			});
+			double naiveRate = measure("Cipher per packet", packet, duration, new Round() {
+				public void run(Packet packet, byte[] datagram) throws Exception {
+					byte[] bytes = packet.toCompactByteArray();
+					byte[] sealed = naiveSeal(bytes, encryptionKey, macKey);
+					byte[] opened = naiveOpen(sealed, encryptionKey, macKey);
+					Packet.parsePacket(opened, opened.length);
+				}
+			});
+			System.out.printf("PacketCipher costs %.2f us per packet, a new Cipher per packet %.2f us%n", 1e6 / sealedRate - 1e6 / plaintextRate, 1e6 / naiveRate - 1e6 / plaintextRate);
+		} catch (Exception e) {
+			System.out.println("Benchmark failed: " + e);
+		}
+	}
+
+	/**
+	 * Runs the round until the time is up, after the same again to warm up.
+	 *
+	 * @return packets per second
+	 */
+	private static double measure(String name, Packet packet, int duration, Round round) throws Exception {
+		byte[] datagram = new byte[Packet.MAXIMUM_DATAGRAM_SIZE];
+		runFor(packet, datagram, duration, round);
+		long startTime = System.nanoTime();
+		long numPackets = runFor(packet, datagram, duration, round);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		double rate = numPackets / seconds;
+		long numBytes = numPackets * packet.toCompactByteArray().length;
+		System.out.printf("%-18s %,12.0f packets/s %8.1f MB/s%n", name, rate, numBytes / seconds / 1e6);
+		return rate;
+	}
+
+	private static long runFor(Packet packet, byte[] datagram, int duration, Round round) throws Exception {
+		long endTime = System.nanoTime() + duration * 1000000000L;
+		long numPackets = 0;
+		while(System.nanoTime() < endTime) {
+			for(int i = 0; i < CipherBenchmark.BATCH_SIZE; i++)
+				round.run(packet, datagram);
+			numPackets += CipherBenchmark.BATCH_SIZE;
+		}
+		return numPackets;
+	}
+
+	private static byte[] naiveSeal(byte[] bytes, SecretKeySpec encryptionKey, SecretKeySpec macKey) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(new byte[16]));
+		byte[] sealed = new byte[bytes.length + PacketCipher.TAG_SIZE];
+		cipher.doFinal(bytes, 0, bytes.length, sealed, 0);
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(macKey);
+		mac.update(sealed, 0, bytes.length);
+		System.arraycopy(mac.doFinal(), 0, sealed, bytes.length, PacketCipher.TAG_SIZE);
+		return sealed;
+	}
+
+	private static byte[] naiveOpen(byte[] sealed, SecretKeySpec encryptionKey, SecretKeySpec macKey) throws GeneralSecurityException {
+		int length = sealed.length - PacketCipher.TAG_SIZE;
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(macKey);
+		mac.update(sealed, 0, length);
+		if(!Arrays.equals(Arrays.copyOf(mac.doFinal(), PacketCipher.TAG_SIZE), Arrays.copyOfRange(sealed, length, sealed.length)))
+			throw new IllegalStateException("Packet did not open.");
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(new byte[16]));
+		return cipher.doFinal(sealed, 0, length);
+	}
+}
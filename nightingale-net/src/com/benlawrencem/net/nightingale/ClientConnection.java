@@ -2,14 +2,20 @@ package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.benlawrencem.net.nightingale.NetworkEvents.DropReason;
+import com.benlawrencem.net.nightingale.Packet.CouldNotDecompressMessageException;
 import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
 import com.benlawrencem.net.nightingale.Packet.MessageType;
 import com.benlawrencem.net.nightingale.Packet.NullPacketException;
@@ -20,16 +26,23 @@ import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
 public abstract class ClientConnection implements PacketReceiver {
 	private static final Logger logger = Logger.getLogger(ClientConnection.class.getName());
 	private final Object CONNECTION_LOCK = new Object();
-	private static final int TIME_BETWEEN_PINGS = 1000;
+	public static final int DEFAULT_KEEP_ALIVE_INTERVAL = 1000;
 	private static final int CONNECT_REQUEST_TIMEOUT = 3000;
 	private static final int RECEIVE_PACKET_TIMEOUT = 3000;
+	private static final int MINIMUM_CONNECT_REQUEST_LENGTH = 64;
+	private static final int RESUME_TIMEOUT = 10000;
+	private static final int MAXIMUM_TIMEOUT_CHECK_INTERVAL = 250;
 	private static final String CONNECT_REQUEST_REFUSED = "Connection refused by server.";
+	private static final String ENCRYPTION_REFUSED = "Server would not encrypt the connection.";
 	private static final String CONNECT_REQUEST_TIMED_OUT = "Connect request timed out.";
 	private static final String CONNECTION_TIMED_OUT = "Connection timed out.";
+	private static final String SESSION_NOT_RESUMED = "Session could not be resumed.";
 	private static final String DISCONNECTED_BY_CLIENT = "Disconnect requested by client.";
-	private DatagramSocket socket;
+	private static final String CONNECTION_CLOSED = "Connection closed.";
+	private Transport transport;
 	private String serverAddress;
 	private InetAddress serverInetAddress;
+	private InetSocketAddress serverSocketAddress;
 	private int serverPort;
 	private boolean isConnected;
 	private boolean isAttemptingToConnect;
@@ -39,9 +52,62 @@ public abstract class ClientConnection implements PacketReceiver {
 	private TimeoutThread timeoutThread;
 	private ReceivePacketThread receivePacketThread;
 	private long latency;
+	private int keepAliveInterval;
+	private int acknowledgementThreshold;
+	private int acknowledgementDelay;
+	private volatile long timeOfLastSend;
+	private volatile long timeOfLastReceive;
+	private TransportFactory transportFactory;
+	private NetworkConditions networkConditions;
+	private PacketCapture packetCapture;
+	private PacketFilter packetFilter;
+	private Clock clock;
+	private volatile Clock activeClock;
+	private boolean isCompactHeadersEnabled;
+	private boolean usesCompactHeaders;
+	private boolean isChecksumEnabled;
+	private CRC32 checksum;
+	private boolean hasAnsweredChallenge;
+	private String challengeCookie;
+	private String sessionToken;
+	private boolean isResuming;
+	private boolean isCompressionEnabled;
+	private byte[] compressionDictionary;
+	private int compressionThreshold;
+	private PayloadCompressor compressor;
+	private boolean isForwardErrorCorrectionEnabled;
+	private int parityGroupSize;
+	private ForwardErrorCorrection forwardErrorCorrection;
+	private byte[] encryptionKey;
+	private String handshakeNonce;
+	private PacketCipher cipher;
+	private byte[] resumeKey;
+	private DeliveryTracker deliveryTracker;
+	private Queue<DeliveryFuture> resolvedDeliveries;
+	private MessagePublisher inboundMessages;
 
 	public ClientConnection() {
 		recorder = new PacketRecorder();
+		deliveryTracker = new DeliveryTracker();
+		resolvedDeliveries = new ConcurrentLinkedQueue<DeliveryFuture>();
+		inboundMessages = new MessagePublisher();
+		transportFactory = DatagramSocketTransport.FACTORY;
+		networkConditions = null;
+		packetCapture = null;
+		packetFilter = new PacketFilter(false);
+		clock = MonotonicClock.INSTANCE;
+		activeClock = clock;
+		isCompactHeadersEnabled = true;
+		isChecksumEnabled = false;
+		keepAliveInterval = ClientConnection.DEFAULT_KEEP_ALIVE_INTERVAL;
+		acknowledgementThreshold = PacketRecorder.DEFAULT_ACKNOWLEDGEMENT_THRESHOLD;
+		acknowledgementDelay = PacketRecorder.DEFAULT_ACKNOWLEDGEMENT_DELAY;
+		isCompressionEnabled = false;
+		compressionDictionary = null;
+		compressionThreshold = PayloadCompressor.DEFAULT_THRESHOLD;
+		isForwardErrorCorrectionEnabled = false;
+		parityGroupSize = ForwardErrorCorrection.ADAPTIVE_GROUP_SIZE;
+		encryptionKey = null;
 		resetVariables();
 	}
 
@@ -51,6 +117,21 @@ public abstract class ClientConnection implements PacketReceiver {
 	protected abstract void onReceive(String message);
 	protected abstract void onMessageNotDelivered(int messageId, int resendMessageId, String message);
 
+	/**
+	 * Called when the connection times out but the server handed out a
+	 * session to resume, instead of onDisconnected. The client keeps asking
+	 * the server to resume for a while, then calls either onConnectionResumed
+	 * or onDisconnected. Does nothing by default.
+	 */
+	protected void onConnectionInterrupted() {}
+
+	/**
+	 * Called when the server gives the client back its session after an
+	 * interruption. Messages the server sent while the client was gone and
+	 * never had acknowledged are sent again. Does nothing by default.
+	 */
+	protected void onConnectionResumed() {}
+
 	public void connect(String address, int port) throws CouldNotConnectException {
 		logger.fine("Connecting to " + address + ":" + port + "...");
 		boolean disconnected = false;
@@ -69,13 +150,21 @@ public abstract class ClientConnection implements PacketReceiver {
 				serverAddress = address;
 				serverInetAddress = InetAddress.getByName(serverAddress);
 				serverPort = port;
-				socket = new DatagramSocket();
-				receivePacketThread = new ReceivePacketThread(this, socket);
+				serverSocketAddress = new InetSocketAddress(serverInetAddress, serverPort);
+				activeClock = clock;
+				recorder.setClock(activeClock);
+				packetFilter.setClock(activeClock);
+				transport = transportFactory.openTransport(0);
+				if(networkConditions != null)
+					transport = new ImpairedTransport(transport, networkConditions);
+				if(packetCapture != null)
+					transport = new CapturingTransport(transport, packetCapture);
+				receivePacketThread = new ReceivePacketThread(this, transport, packetFilter);
 				receivePacketThread.start();
 				timeoutThread = new TimeoutThread(this, ClientConnection.CONNECT_REQUEST_TIMEOUT);
 				timeoutThread.start();
 				logger.finer("Sending connect request packet");
-				sendPacket(Packet.createConnectRequestPacket());
+				sendPacket(Packet.createConnectRequestPacket(getRequestedOptions(null)));
 			}
 		} catch (UnknownHostException e) {
 			closeConnection();
@@ -94,6 +183,8 @@ public abstract class ClientConnection implements PacketReceiver {
 			if(disconnected) {
 				onDisconnected(ClientConnection.DISCONNECTED_BY_CLIENT);
 			}
+			DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+			inboundMessages.deliver();
 		}
 	}
 
@@ -101,6 +192,236 @@ public abstract class ClientConnection implements PacketReceiver {
 		return isConnected;
 	}
 
+	/**
+	 * Chooses how datagrams are moved, e.g. over real sockets (the default)
+	 * or over an {@link InMemoryNetwork}. Only takes effect the next time the
+	 * client connects.
+	 */
+	public void setTransportFactory(TransportFactory factory) {
+		synchronized(CONNECTION_LOCK) {
+			transportFactory = (factory == null ? DatagramSocketTransport.FACTORY : factory);
+		}
+	}
+
+	/**
+	 * Simulates a bad network on the client's transport. Only takes effect the
+	 * next time the client connects. Pass null to use the transport as-is.
+	 */
+	public void setNetworkConditions(NetworkConditions conditions) {
+		synchronized(CONNECTION_LOCK) {
+			networkConditions = (conditions == null ? null : new NetworkConditions(conditions));
+		}
+	}
+
+	public NetworkConditions getNetworkConditions() {
+		synchronized(CONNECTION_LOCK) {
+			return (networkConditions == null ? null : new NetworkConditions(networkConditions));
+		}
+	}
+
+	/**
+	 * Records every datagram sent and received to the capture, e.g. for
+	 * replaying with {@link PacketReplayer}. Only takes effect the next time
+	 * the client connects, and the capture is left open when the connection closes.
+	 * Pass null to stop capturing.
+	 */
+	public void setPacketCapture(PacketCapture capture) {
+		synchronized(CONNECTION_LOCK) {
+			packetCapture = capture;
+		}
+	}
+
+	public PacketCapture getPacketCapture() {
+		return packetCapture;
+	}
+
+	/**
+	 * Chooses the clock timeouts, keepalives, acknowledgement delays and round
+	 * trip times are measured with, e.g. a {@link VirtualClock} in tests.
+	 * Only takes effect the next time the client connects. Pass null for the
+	 * {@link MonotonicClock}.
+	 */
+	public void setClock(Clock clock) {
+		synchronized(CONNECTION_LOCK) {
+			this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
+		}
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * The filter that throws away datagrams that aren't packets before they
+	 * are parsed, for reading its rejection counters.
+	 */
+	public PacketFilter getPacketFilter() {
+		return packetFilter;
+	}
+
+	/**
+	 * Whether to ask the server for compact packet headers. They are only
+	 * used if the server agrees. Only takes effect the next time the client
+	 * connects.
+	 */
+	public void setCompactHeadersEnabled(boolean isCompactHeadersEnabled) {
+		synchronized(CONNECTION_LOCK) {
+			this.isCompactHeadersEnabled = isCompactHeadersEnabled;
+		}
+	}
+
+	public boolean isCompactHeadersEnabled() {
+		return isCompactHeadersEnabled;
+	}
+
+	public boolean usesCompactHeaders() {
+		return usesCompactHeaders;
+	}
+
+	/**
+	 * Whether to ask the server for packets that end with a CRC-32
+	 * checksum, so a packet damaged in transit is thrown away before it's
+	 * parsed. Costs 4 bytes a packet. Only used if the server agrees, and
+	 * only takes effect the next time the client connects.
+	 */
+	public void setChecksumEnabled(boolean isChecksumEnabled) {
+		synchronized(CONNECTION_LOCK) {
+			this.isChecksumEnabled = isChecksumEnabled;
+		}
+	}
+
+	public boolean isChecksumEnabled() {
+		return isChecksumEnabled;
+	}
+
+	public boolean usesChecksum() {
+		return checksum != null;
+	}
+
+	/**
+	 * Whether to ask the server to compress messages. They are only
+	 * compressed if the server agrees, and the dictionary is only used if
+	 * the server has the same one. Only takes effect the next time the client
+	 * connects.
+	 *
+	 * @param dictionary bytes common in messages (see {@link DictionaryTrainer}), or null
+	 * @param threshold messages shorter than this many bytes are sent uncompressed
+	 */
+	public void setCompressionEnabled(boolean isCompressionEnabled, byte[] dictionary, int threshold) {
+		synchronized(CONNECTION_LOCK) {
+			this.isCompressionEnabled = isCompressionEnabled;
+			compressionDictionary = (dictionary == null ? null : dictionary.clone());
+			compressionThreshold = threshold;
+		}
+	}
+
+	public boolean isCompressionEnabled() {
+		return isCompressionEnabled;
+	}
+
+	public boolean usesCompression() {
+		return compressor != null;
+	}
+
+	/**
+	 * Whether to send a PARITY packet after every few messages, from which
+	 * the server can rebuild any one message of the group that's lost
+	 * without waiting for it to be reported lost and sent again. Costs one
+	 * packet per group. Only used if the server enables it too, and only
+	 * takes effect the next time the client connects.
+	 *
+	 * @param groupSize how many messages each parity packet covers, or 0 to size groups by the loss rate the server's acknowledgements show
+	 */
+	public void setForwardErrorCorrectionEnabled(boolean isForwardErrorCorrectionEnabled, int groupSize) {
+		synchronized(CONNECTION_LOCK) {
+			this.isForwardErrorCorrectionEnabled = isForwardErrorCorrectionEnabled;
+			parityGroupSize = Math.max(0, groupSize);
+		}
+	}
+
+	public boolean isForwardErrorCorrectionEnabled() {
+		return isForwardErrorCorrectionEnabled;
+	}
+
+	public boolean usesForwardErrorCorrection() {
+		return forwardErrorCorrection != null;
+	}
+
+	/**
+	 * Encrypts and authenticates every packet once connected, with keys
+	 * worked out from the secret and the handshake, so nobody without the
+	 * secret can read or forge them. The server needs the same secret, and
+	 * a server that won't encrypt the connection is left straight away with
+	 * onCouldNotConnect. Each packet grows by up to 20 bytes. Only takes
+	 * effect the next time the client connects.
+	 *
+	 * @param key a secret of at least 16 bytes shared with the server, or null not to encrypt
+	 */
+	public void setEncryptionKey(byte[] key) {
+		if(key != null && key.length < PacketCipher.MINIMUM_KEY_SIZE)
+			throw new IllegalArgumentException("Encryption keys must be at least " + PacketCipher.MINIMUM_KEY_SIZE + " bytes, not " + key.length + ".");
+		synchronized(CONNECTION_LOCK) {
+			encryptionKey = (key == null ? null : key.clone());
+		}
+	}
+
+	public boolean isEncryptionEnabled() {
+		return encryptionKey != null;
+	}
+
+	public boolean usesEncryption() {
+		return cipher != null;
+	}
+
+	/**
+	 * Pings only go out once nothing has been sent to or heard from the
+	 * server for the interval, since any packet keeps the connection alive
+	 * and acknowledgements of ordinary messages already measure latency.
+	 * Only takes effect the next time the client connects.
+	 *
+	 * @param keepAliveInterval in milliseconds--well under the server's timeout
+	 */
+	public void setKeepAliveInterval(int keepAliveInterval) {
+		this.keepAliveInterval = Math.max(1, keepAliveInterval);
+	}
+
+	public int getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	/**
+	 * Messages from the server are acknowledged by whatever the client sends
+	 * next, or by an ACKNOWLEDGEMENT once enough of them arrive or the oldest
+	 * has waited the delay. Either way the server hears about lost messages
+	 * within about a round trip plus the delay, even if the client hardly
+	 * sends anything. The delay only takes effect the next time the client
+	 * connects.
+	 *
+	 * @param threshold how many messages to receive before acknowledging them straight away
+	 * @param delay in milliseconds--longer gives replies more chance to carry the acknowledgement instead
+	 */
+	public void setAcknowledgementPolicy(int threshold, int delay) {
+		acknowledgementThreshold = Math.max(1, threshold);
+		acknowledgementDelay = Math.max(1, delay);
+	}
+
+	public int getAcknowledgementThreshold() {
+		return acknowledgementThreshold;
+	}
+
+	public int getAcknowledgementDelay() {
+		return acknowledgementDelay;
+	}
+
+	/**
+	 * Incoming messages for subscribers that want them at their own pace.
+	 * Subscribers are completed whenever the connection closes; subscribe
+	 * again for the next connection.
+	 */
+	public MessagePublisher getInboundMessages() {
+		return inboundMessages;
+	}
+
 	public void disconnect() {
 		boolean disconnected = false;
 		synchronized(CONNECTION_LOCK) {
@@ -109,6 +430,12 @@ public abstract class ClientConnection implements PacketReceiver {
 				disconnectQuietly();
 				disconnected = true;
 			}
+			else if(isResuming) {
+				//the server can't hear us--it lets the session expire on its own
+				logger.fine("Giving up on resuming session with " + serverAddress + ":" + serverPort);
+				closeConnection();
+				disconnected = true;
+			}
 			else if(isAttemptingToConnect) {
 				logger.fine("Cancelling connect request to " + serverAddress + ":" + serverPort);
 				closeConnection();
@@ -116,6 +443,8 @@ public abstract class ClientConnection implements PacketReceiver {
 		}
 		if(disconnected)
 			onDisconnected(ClientConnection.DISCONNECTED_BY_CLIENT);
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
 	}
 
 	public int send(String message) throws CouldNotSendPacketException {
@@ -134,19 +463,37 @@ public abstract class ClientConnection implements PacketReceiver {
 		}
 	}
 
-	public void receivePacket(Packet packet, String address, int port) {
+	/**
+	 * Sends a message and follows it until the server's acknowledgements show
+	 * whether it arrived, so any number of messages can be in flight while
+	 * still reacting to each one. The future fails if the message is lost,
+	 * if too many packets are sent before its fate is known, or if the
+	 * connection closes first.
+	 */
+	public DeliveryFuture sendAsync(String message) throws CouldNotSendPacketException {
+		synchronized(CONNECTION_LOCK) {
+			logger.fine("Sending message:   " + message);
+			Packet packet = Packet.createApplicationPacket(clientId, message);
+			sendPacket(packet);
+			return deliveryTracker.track(clientId, packet);
+		}
+	}
+
+	public void receivePacket(Packet packet, InetSocketAddress source) {
 		if(logger.isLoggable(Level.FINEST))
 			logger.finest("Incoming packet:" + (packet == null ? " null" : "\n  " + packet.toString().replaceAll("\n", "\n  ")));
 
 		//ignore null packets
 		if(packet == null) {
 			logger.finer("Ignoring null packet");
+			NetworkEvents.packetDropped(DropReason.MALFORMED, Packet.ANONYMOUS_CONNECTION_ID, source);
 			return;
 		}
 
 		//ignore packets with invalid protocol bytes
 		if(!packet.isValidProtocol()) {
 			logger.finer("Ignoring packet with invalid protocol");
+			NetworkEvents.packetDropped(DropReason.INVALID_PROTOCOL, packet.getConnectionId(), source);
 			return;
 		}
 
@@ -154,34 +501,63 @@ public abstract class ClientConnection implements PacketReceiver {
 		int listenerAction = -1;
 		List<Packet> undeliveredPackets = null;
 		String disconnectReason = null;
+		Packet recoveredPacket = null;
 
 		synchronized(CONNECTION_LOCK) {
 			//ignore all packets if the client isn't connected or isn't attempting to connect to any server
 			if(!isAttemptingToConnect && !isConnected) {
 				logger.finer("Ignoring packet because the client is not connected to any server");
+				NetworkEvents.packetDropped(DropReason.NOT_CONNECTED, packet.getConnectionId(), source);
 				return;
 			}
 
 			//ignore packets that don't match the server address and port we have on record
-			if((serverAddress == null && address != null) || (serverAddress != null && !serverAddress.equals(address)) || serverPort != port) {
-				logger.finer("Ignoring packet from " + address + ":" + port + " because it is not from the server at " + serverAddress + ":" + serverPort);
+			if(!source.equals(serverSocketAddress)) {
+				logger.finer("Ignoring packet from " + source + " because it is not from the server at " + serverAddress + ":" + serverPort);
+				NetworkEvents.packetDropped(DropReason.UNEXPECTED_ADDRESS, packet.getConnectionId(), source);
 				return;
 			}
 
+			//a server that wants proof of our address answers the first connect request with a cookie to send back
+			if(packet.getMessageType() == MessageType.CONNECT_CHALLENGE) {
+				answerChallenge(packet, source);
+				return;
+			}
+
+			//ignore compressed packets we can't decompress
+			if(packet.isCompressed()) {
+				try {
+					packet.decompressMessage(compressor);
+				} catch (CouldNotDecompressMessageException e) {
+					logger.finer("Ignoring packet: " + e.getMessage());
+					NetworkEvents.packetDropped(DropReason.NOT_DECOMPRESSIBLE, packet.getConnectionId(), source);
+					return;
+				}
+			}
+
 			synchronized(recorder) {
 				//ignore packets we've received before
 				if(recorder.hasRecordedIncomingPacket(packet)) {
 					logger.finer("Ignoring packet that has already been received before");
+					NetworkEvents.packetDropped(DropReason.ALREADY_RECEIVED, packet.getConnectionId(), source);
 					undeliveredPackets = recorder.getUndeliveredPackets();
 				}
 
 				//ignore duplicates of packets we've received before
 				else if(packet.isDuplicate() && recorder.hasRecordedDuplicateOfIncomingPacket(packet)) {
 					logger.finer("Ignoring duplicate of packet that has already been received before");
+					NetworkEvents.packetDropped(DropReason.ALREADY_RECEIVED, packet.getConnectionId(), source);
 					recorder.recordIncomingPacket(packet); //we still want to record having received it (must be run AFTER hasRecordedDuplicateOfIncomingPacket)
 					undeliveredPackets = recorder.getUndeliveredPackets();
 				}
 
+				//a subscriber with no room refuses the message before it's recorded, so the server sees it lost
+				else if(isConnected && packet.getMessageType() == MessageType.APPLICATION && !inboundMessages.offer(clientId, packet.getMessage())) {
+					logger.finer("Ignoring message because subscribers have fallen behind");
+					NetworkEvents.packetDropped(DropReason.QUEUE_FULL, packet.getConnectionId(), source);
+					return;
+				}
+
 				else {
 					//record the packet as having been received
 					recorder.recordIncomingPacket(packet);
@@ -191,16 +567,35 @@ public abstract class ClientConnection implements PacketReceiver {
 					if(isAttemptingToConnect) {
 						switch(packet.getMessageType()) {
 							case CONNECTION_ACCEPTED:
-								acceptConnection(packet);
-								listenerAction = 1; //onConnected
+								if(isResuming) {
+									//the messages the packet shows the server missed are sent again rather than reported
+									undeliveredPackets.removeAll(resumeConnection(packet));
+									listenerAction = 5; //onConnectionResumed
+								}
+								else if(acceptConnection(packet))
+									listenerAction = 1; //onConnected
+								else {
+									closeConnection();
+									disconnectReason = ClientConnection.ENCRYPTION_REFUSED;
+									listenerAction = 2; //onCouldNotConnect
+								}
 								break;
 							case CONNECTION_REFUSED:
-								logger.fine("Connection refused");
-								closeConnection();
-								listenerAction = 2; //onCouldNotConnect
+								if(isResuming) {
+									logger.fine("Server refused to resume session");
+									closeConnection();
+									disconnectReason = ClientConnection.SESSION_NOT_RESUMED;
+									listenerAction = 4; //onDisconnected
+								}
+								else {
+									logger.fine("Connection refused");
+									closeConnection();
+									listenerAction = 2; //onCouldNotConnect
+								}
 								break;
 							default:
 								logger.finer("Ignoring " + packet.getMessageType() + " packet because only CONNECTION_ACCEPTED and CONNECTION_REFUSED packets are expected");
+								NetworkEvents.packetDropped(DropReason.UNEXPECTED_MESSAGE_TYPE, packet.getConnectionId(), source);
 								return;
 						}
 					}
@@ -211,11 +606,15 @@ public abstract class ClientConnection implements PacketReceiver {
 							case APPLICATION:
 								logger.fine("Receiving message: " + packet.getMessage());
 								listenerAction = 3; //onReceive
-								timeoutThread.resetTimeout();
 								break;
 							case PING_RESPONSE:
-								handlePingResponse(packet);
-								timeoutThread.resetTimeout();
+								//nothing more to do--its acknowledgement of the ping was measured like any other
+								break;
+							case ACKNOWLEDGEMENT:
+								//nothing more to do--the recorder already took what it acknowledges
+								break;
+							case PARITY:
+								recoveredPacket = ForwardErrorCorrection.recover(packet, recorder);
 								break;
 							case FORCE_DISCONNECT:
 								logger.fine("Disconnected by server: " + packet.getMessage());
@@ -224,12 +623,27 @@ public abstract class ClientConnection implements PacketReceiver {
 								listenerAction = 4; //onDisconnected
 								break;
 							default:
-								logger.finer("Ignoring " + packet.getMessageType() + " packet because only APPLICATION, PING_RESPONSE and FORCE_DISCONNECT packets are expected");
+								logger.finer("Ignoring " + packet.getMessageType() + " packet because only APPLICATION, PING_RESPONSE, ACKNOWLEDGEMENT, PARITY and FORCE_DISCONNECT packets are expected");
+								NetworkEvents.packetDropped(DropReason.UNEXPECTED_MESSAGE_TYPE, packet.getConnectionId(), source);
 								return;
 						}
 					}
 				}
 			}
+
+			//the packet's acknowledgements may settle messages sent with sendAsync
+			if(undeliveredPackets != null)
+				deliveryTracker.update(recorder, undeliveredPackets, resolvedDeliveries);
+
+			//any packet from the server shows the connection is alive, and one acknowledging something new measures latency
+			if(isConnected) {
+				long now = activeClock.currentTimeMillis();
+				timeoutThread.resetTimeout(now);
+				timeOfLastReceive = now;
+				long roundTripTime = recorder.takeRoundTripTimeSample();
+				if(roundTripTime >= 0)
+					recordRoundTripTime(roundTripTime);
+			}
 		}
 
 		//execute listener callback--once again, ugly but shouldn't be synchronized
@@ -238,7 +652,7 @@ public abstract class ClientConnection implements PacketReceiver {
 				onConnected();
 				break;
 			case 2: //onCouldNotConnect
-				onCouldNotConnect(ClientConnection.CONNECT_REQUEST_REFUSED);
+				onCouldNotConnect(disconnectReason == null ? ClientConnection.CONNECT_REQUEST_REFUSED : disconnectReason);
 				break;
 			case 3: //onReceive
 				onReceive(packet.getMessage());
@@ -246,11 +660,15 @@ public abstract class ClientConnection implements PacketReceiver {
 			case 4: //onDisconnected
 				onDisconnected(disconnectReason);
 				break;
+			case 5: //onConnectionResumed
+				onConnectionResumed();
+				break;
 		}
 
 		//inform the listener of any undelivered application messages
 		if(undeliveredPackets != null) {
 			for(Packet undeliveredPacket : undeliveredPackets) {
+				NetworkEvents.packetLost(undeliveredPacket.getConnectionId(), undeliveredPacket.getSequenceNumber(), undeliveredPacket.getMessageType());
 				if(undeliveredPacket.getMessageType() == MessageType.APPLICATION) {
 					onMessageNotDelivered(
 							undeliveredPacket.getSequenceNumber(),
@@ -259,11 +677,24 @@ public abstract class ClientConnection implements PacketReceiver {
 				}
 			}
 		}
+
+		//if the listener didn't reply, acknowledge a pile of messages now rather than after the delay
+		acknowledge();
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
+
+		//a message rebuilt from parity is received like any other, so it's ignored if the original turns up later
+		if(recoveredPacket != null) {
+			logger.finer("Recovered lost packet " + recoveredPacket.getSequenceNumber() + " from parity");
+			receivePacket(recoveredPacket, source);
+		}
 	}
 
 	private void ping() {
 		synchronized(CONNECTION_LOCK) {
-			if(isConnected) {
+			long now = activeClock.currentTimeMillis();
+			boolean isIdle = (now - timeOfLastSend >= keepAliveInterval || now - timeOfLastReceive >= keepAliveInterval);
+			if(isConnected && isIdle) {
 				try {
 					long latency = getLatency();
 					sendPacket(Packet.createPingPacket(clientId, latency));
@@ -273,35 +704,273 @@ public abstract class ClientConnection implements PacketReceiver {
 					logger.finest("Could not ping server: " + e.getMessage());
 				}
 			}
+
+			//while the connection is interrupted the pings become requests to resume, since any of them could be lost
+			else if(isResuming && now - timeOfLastSend >= keepAliveInterval)
+				requestResume();
 		}
 	}
 
-	private void acceptConnection(Packet packet) {
+	/**
+	 * Sends an ACKNOWLEDGEMENT if messages from the server have waited too
+	 * long for something to carry their acknowledgement.
+	 */
+	private void acknowledge() {
+		synchronized(CONNECTION_LOCK) {
+			if(!isConnected)
+				return;
+			synchronized(recorder) {
+				if(!recorder.isAcknowledgementDue(acknowledgementThreshold, acknowledgementDelay))
+					return;
+				try {
+					sendUnsequencedPacket(Packet.createAcknowledgementPacket(clientId));
+				} catch (PacketEncodingException e) {
+					logger.finest("Could not acknowledge server: " + e.getMessage());
+				} catch (IOException e) {
+					//ignore--the next packet carries the same acknowledgements
+					logger.finest("Could not acknowledge server: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes the packet for the server, sealed if the connection is
+	 * encrypted and then checksummed if it uses checksums. Packets outside
+	 * of the connection, like CONNECT_REQUESTs, are sent as they are.
+	 */
+	private DatagramPacket createDatagram(Packet packet) throws PacketEncodingException {
+		PacketCipher packetCipher = (packet.isAnonymousConnection() ? null : cipher);
+		CRC32 packetChecksum = (packet.isAnonymousConnection() ? null : checksum);
+		int numSpareBytes = (packetCipher == null ? 0 : PacketCipher.MAXIMUM_OVERHEAD) + (packetChecksum == null ? 0 : Packet.CHECKSUM_SIZE);
+		byte[] bytes = packet.encode(usesCompactHeaders, numSpareBytes);
+		int length = bytes.length - numSpareBytes;
+		if(packetCipher != null)
+			length = packetCipher.seal(bytes, length);
+		if(packetChecksum != null)
+			length = Packet.putChecksum(packetChecksum, bytes, length);
+		return new DatagramPacket(bytes, length, serverInetAddress, serverPort);
+	}
+
+	/**
+	 * Sends a packet the recorder doesn't give a sequence number, like an
+	 * ACKNOWLEDGEMENT or PARITY packet. It still carries our packet history.
+	 */
+	private void sendUnsequencedPacket(Packet packet) throws PacketEncodingException, IOException {
+		synchronized(CONNECTION_LOCK) {
+			synchronized(recorder) {
+				recorder.addReceivedPacketHistoryToOutgoingPacket(packet);
+				DatagramPacket datagramPacket = createDatagram(packet);
+				transport.send(datagramPacket);
+				timeOfLastSend = activeClock.currentTimeMillis();
+				NetworkEvents.packetSent(clientId, Packet.SEQUENCE_NUMBER_NOT_APPLICABLE, serverAddress, serverPort, datagramPacket.getLength());
+				if(logger.isLoggable(Level.FINEST))
+					logger.finest("Outgoing packet:\n  " + packet.toString().replaceAll("\n", "\n  "));
+			}
+		}
+	}
+
+	private void requestResume() {
+		synchronized(CONNECTION_LOCK) {
+			try {
+				logger.finer("Sending resume request");
+				sendPacket(Packet.createConnectRequestPacket(getRequestedOptions(challengeCookie)));
+			} catch (CouldNotSendPacketException e) {
+				logger.finest("Could not send resume request: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Keeps everything about the connection--client id, sequence numbers,
+	 * options--while asking the server for the session back.
+	 */
+	private void startResuming() {
+		synchronized(CONNECTION_LOCK) {
+			isConnected = false;
+			isAttemptingToConnect = true;
+			isResuming = true;
+
+			//the server challenges every resume request, and the proof is made from the new cookie
+			hasAnsweredChallenge = false;
+			challengeCookie = null;
+			timeoutThread = new TimeoutThread(this, ClientConnection.RESUME_TIMEOUT);
+			timeoutThread.start();
+			requestResume();
+		}
+	}
+
+	/**
+	 * @return the messages sent again
+	 */
+	private List<Packet> resumeConnection(Packet packet) {
+		synchronized(CONNECTION_LOCK) {
+			logger.fine("Resumed session with " + serverAddress + ":" + serverPort + " as client " + clientId);
+
+			//each token is only good once, so the server hands out the next one
+			sessionToken = ConnectionOptions.parse(packet.getMessage()).get(ConnectionOptions.SESSION);
+			isResuming = false;
+			isAttemptingToConnect = false;
+			isConnected = true;
+			timeoutThread.stopTimeout();
+			timeoutThread = new TimeoutThread(this, ClientConnection.RECEIVE_PACKET_TIMEOUT);
+			timeoutThread.start();
+
+			//send again whatever the server didn't acknowledge before the interruption--as duplicates, so it can tell if it got them after all
+			List<Packet> unacknowledgedPackets = recorder.takeUnacknowledgedPackets(MessageType.APPLICATION);
+			for(Packet unacknowledgedPacket : unacknowledgedPackets) {
+				try {
+					Packet resentPacket = Packet.createApplicationPacket(clientId, unacknowledgedPacket.getMessage());
+					resentPacket.setDuplicateSequenceNumber(unacknowledgedPacket.getSequenceNumber());
+					deliveryTracker.resent(unacknowledgedPacket, resentPacket);
+					sendPacket(resentPacket);
+				} catch (CouldNotSendPacketException e) {
+					logger.finer("Could not resend message after resuming: " + e.getMessage());
+				}
+			}
+			return unacknowledgedPackets;
+		}
+	}
+
+	/**
+	 * @return false if the connection should be encrypted but the server wouldn't
+	 */
+	private boolean acceptConnection(Packet packet) {
 		synchronized(CONNECTION_LOCK) {
 			//the packet contains the client id we'll use for all future communications with the server
-			logger.fine("Connected to " + serverAddress + ":" + serverPort +" as client " + clientId + "!");
 			clientId = packet.getConnectionId();
+
+			//the packet also contains the options the server agreed to
+			ConnectionOptions acceptedOptions = ConnectionOptions.parse(packet.getMessage());
+			if(encryptionKey != null) {
+				String serverNonce = acceptedOptions.get(ConnectionOptions.ENCRYPTION);
+				if(serverNonce == null) {
+					logger.fine("Leaving " + serverAddress + ":" + serverPort + " because it would not encrypt the connection");
+					return false;
+				}
+				try {
+					cipher = PacketCipher.create(encryptionKey, handshakeNonce, serverNonce, true);
+					packetFilter.setCipher(clientId, PacketCipher.create(encryptionKey, handshakeNonce, serverNonce, false));
+					resumeKey = PacketCipher.createResumeKey(encryptionKey, handshakeNonce, serverNonce);
+				} catch (GeneralSecurityException e) {
+					logger.fine("Could not encrypt connection to " + serverAddress + ":" + serverPort + " due to GeneralSecurityException: " + e.getMessage());
+					return false;
+				}
+			}
+			logger.fine("Connected to " + serverAddress + ":" + serverPort +" as client " + clientId + "!");
+			usesCompactHeaders = isCompactHeadersEnabled && acceptedOptions.has(ConnectionOptions.COMPACT_HEADERS);
+			if(isChecksumEnabled && acceptedOptions.has(ConnectionOptions.CHECKSUM)) {
+				checksum = new CRC32();
+				packetFilter.setChecksummed(clientId, true);
+			}
+			sessionToken = acceptedOptions.get(ConnectionOptions.SESSION);
+			if(isCompressionEnabled && acceptedOptions.has(ConnectionOptions.COMPRESSION)) {
+				boolean sharesDictionary = PayloadCompressor.getDictionaryId(compressionDictionary).equals(acceptedOptions.get(ConnectionOptions.COMPRESSION));
+				compressor = new PayloadCompressor(sharesDictionary ? compressionDictionary : null, compressionThreshold);
+			}
+			if(isForwardErrorCorrectionEnabled && acceptedOptions.has(ConnectionOptions.PARITY))
+				forwardErrorCorrection = new ForwardErrorCorrection(parityGroupSize);
 			isAttemptingToConnect = false;
 			isConnected = true; //we are now officially connected!
+			NetworkEvents.clientConnected(clientId, serverAddress, serverPort);
 			timeoutThread.stopTimeout();
 			timeoutThread = new TimeoutThread(this, ClientConnection.RECEIVE_PACKET_TIMEOUT);
 			timeoutThread.start();
-			pingThread = new PingThread(this, ClientConnection.TIME_BETWEEN_PINGS);
+			timeOfLastReceive = activeClock.currentTimeMillis();
+
+			//check for idleness a few times per interval so the ping goes out soon after the connection goes quiet,
+			// and often enough that acknowledgements don't wait much past their delay
+			pingThread = new PingThread(this, Math.max(10, Math.min(keepAliveInterval / 4, acknowledgementDelay / 2)));
 			pingThread.start();
+			return true;
+		}
+	}
+
+	/**
+	 * @param cookie the cookie from the server's CONNECT_CHALLENGE, or null
+	 */
+	private ConnectionOptions getRequestedOptions(String cookie) {
+		ConnectionOptions requestedOptions = new ConnectionOptions();
+		if(isResuming) {
+			requestedOptions.set(ConnectionOptions.RESUME, sessionToken);
+
+			//an encrypted session is only given back to a client that shows it has the keys
+			if(resumeKey != null && cookie != null) {
+				try {
+					requestedOptions.set(ConnectionOptions.PROOF, PacketCipher.createResumeProof(resumeKey, sessionToken, cookie));
+				} catch (GeneralSecurityException e) {
+					logger.finer("Could not prove session is ours due to GeneralSecurityException: " + e.getMessage());
+				}
+			}
+		}
+		else {
+			if(isCompactHeadersEnabled)
+				requestedOptions.set(ConnectionOptions.COMPACT_HEADERS);
+			if(isChecksumEnabled)
+				requestedOptions.set(ConnectionOptions.CHECKSUM);
+			if(isCompressionEnabled)
+				requestedOptions.set(ConnectionOptions.COMPRESSION, PayloadCompressor.getDictionaryId(compressionDictionary));
+			if(isForwardErrorCorrectionEnabled)
+				requestedOptions.set(ConnectionOptions.PARITY);
+
+			//the same nonce goes in every request of the handshake, since any of them could be the one the server accepts
+			if(encryptionKey != null) {
+				if(handshakeNonce == null)
+					handshakeNonce = PacketCipher.createHandshakeNonce();
+				requestedOptions.set(ConnectionOptions.ENCRYPTION, handshakeNonce);
+			}
+		}
+		if(cookie != null)
+			requestedOptions.set(ConnectionOptions.COOKIE, cookie);
+
+		//servers only challenge requests at least as big as the challenge
+		requestedOptions.padTo(ClientConnection.MINIMUM_CONNECT_REQUEST_LENGTH);
+		return requestedOptions;
+	}
+
+	private void answerChallenge(Packet packet, InetSocketAddress source) {
+		synchronized(CONNECTION_LOCK) {
+			//a server that keeps rejecting our cookie is left to the connect request timeout
+			if(!isAttemptingToConnect || hasAnsweredChallenge) {
+				logger.finer("Ignoring CONNECT_CHALLENGE packet because " + (hasAnsweredChallenge ? "a challenge has already been answered" : "the client is not connecting"));
+				NetworkEvents.packetDropped(DropReason.UNEXPECTED_MESSAGE_TYPE, packet.getConnectionId(), source);
+				return;
+			}
+			hasAnsweredChallenge = true;
+			challengeCookie = packet.getMessage();
+			try {
+				logger.finer("Answering connect challenge");
+				sendPacket(Packet.createConnectRequestPacket(getRequestedOptions(packet.getMessage())));
+			} catch (CouldNotSendPacketException e) {
+				logger.fine("Could not answer connect challenge: " + e.getMessage());
+			}
 		}
 	}
 
 	private void timeOut() {
 		boolean timedOutBeforeConnecting = false;
 		boolean timedOutAfterConnecting = false;
+		boolean interrupted = false;
 		synchronized(CONNECTION_LOCK) {
-			if(isAttemptingToConnect) {
+			if(isResuming) {
+				logger.fine("Could not resume session with " + serverAddress + ":" + serverPort);
+				closeConnection();
+				timedOutAfterConnecting = true;
+			}
+			else if(isConnected && sessionToken != null) {
+				logger.fine("Connection to " + serverAddress + ":" + serverPort + " interrupted, trying to resume session");
+				NetworkEvents.clientTimedOut(clientId, ClientConnection.RECEIVE_PACKET_TIMEOUT);
+				startResuming();
+				interrupted = true;
+			}
+			else if(isAttemptingToConnect) {
 				logger.fine("Connection to " + serverAddress + ":" + serverPort + " timed out");
 				closeConnection();
 				timedOutBeforeConnecting = true;
 			}
 			else if(isConnected) {
 				logger.fine("Connect request to " + serverAddress + ":" + serverPort + " timed out");
+				NetworkEvents.clientTimedOut(clientId, ClientConnection.RECEIVE_PACKET_TIMEOUT);
 				disconnectQuietly();
 				timedOutAfterConnecting = true;
 			}
@@ -319,6 +988,11 @@ public abstract class ClientConnection implements PacketReceiver {
 		else if(timedOutAfterConnecting) {
 			onDisconnected(ClientConnection.CONNECTION_TIMED_OUT);
 		}
+		else if(interrupted) {
+			onConnectionInterrupted();
+		}
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
 	}
 
 	private void disconnectQuietly() {
@@ -344,17 +1018,22 @@ public abstract class ClientConnection implements PacketReceiver {
 				timeoutThread.stopTimeout();
 			if(pingThread != null)
 				pingThread.stopPinging();
-			if(socket != null)
-				socket.close();
+			if(compressor != null)
+				compressor.close();
+			if(transport != null)
+				transport.close();
+			deliveryTracker.failAll(ClientConnection.CONNECTION_CLOSED, resolvedDeliveries);
+			inboundMessages.close();
 			resetVariables();
 		}
 	}
 
 	private void resetVariables() {
 		synchronized(CONNECTION_LOCK) {
-			socket = null;
+			transport = null;
 			serverAddress = null;
 			serverInetAddress = null;
+			serverSocketAddress = null;
 			serverPort = -1;
 			isConnected = false;
 			isAttemptingToConnect = false;
@@ -364,6 +1043,19 @@ public abstract class ClientConnection implements PacketReceiver {
 			receivePacketThread = null;
 			recorder.reset();
 			latency = -1;
+			usesCompactHeaders = false;
+			hasAnsweredChallenge = false;
+			challengeCookie = null;
+			sessionToken = null;
+			isResuming = false;
+			compressor = null;
+			forwardErrorCorrection = null;
+			handshakeNonce = null;
+			cipher = null;
+			resumeKey = null;
+			packetFilter.clearCiphers();
+			checksum = null;
+			packetFilter.clearChecksummed();
 		}
 	}
 
@@ -391,11 +1083,15 @@ public abstract class ClientConnection implements PacketReceiver {
 
 				try {
 					//attempt to send the packet
-					byte[] bytes = packet.toByteArray();
-					DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length, serverInetAddress, serverPort);
-					socket.send(datagramPacket);
+					if(compressor != null)
+						packet.compressMessage(compressor);
+					DatagramPacket datagramPacket = createDatagram(packet);
+					transport.send(datagramPacket);
+					timeOfLastSend = activeClock.currentTimeMillis();
+					NetworkEvents.packetSent(packet.getConnectionId(), sequenceNumber, serverAddress, serverPort, datagramPacket.getLength());
 					if(logger.isLoggable(Level.FINEST))
 						logger.finest("Outgoing packet:\n  " + packet.toString().replaceAll("\n", "\n  "));
+					sendParity(packet);
 				} catch (PacketEncodingException e) {
 					//encoding issues result when the packet contains connection id or sequence numbers that are out of range.
 					// we would not expect these to occur if everything is functioning as normal
@@ -416,26 +1112,33 @@ public abstract class ClientConnection implements PacketReceiver {
 		return sequenceNumber;
 	}
 
-	private void handlePingResponse(Packet pingResponse) {
-		//ignore if the ping response is null
-		if(pingResponse == null)
-			return;
-
-		//if the ping response doesn't have a sequence number of the ping it's responding to then we can't do anything
-		if(pingResponse.getLastReceivedSequenceNumber() == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+	/**
+	 * Adds a message that was just sent to its parity group, sending the
+	 * group's PARITY packet if that completes it.
+	 */
+	private void sendParity(Packet packet) {
+		if(forwardErrorCorrection == null || packet.getMessageType() != MessageType.APPLICATION)
 			return;
-
-		synchronized(CONNECTION_LOCK) {
-			//if we have no record of when the ping was sent then we can't do anything
-			PacketReceipt pingReceipt = recorder.getSentPacketWithSequenceNumber(pingResponse.getLastReceivedSequenceNumber());
-			if(pingReceipt == null)
+		synchronized(recorder) {
+			Packet parityPacket = forwardErrorCorrection.addSentPacket(packet, recorder.getLossRate());
+			recorder.setLossReportThreshold(forwardErrorCorrection.getLossReportThreshold(recorder.getLossRate()));
+			if(parityPacket == null)
 				return;
+			try {
+				sendUnsequencedPacket(parityPacket);
+			} catch (PacketEncodingException e) {
+				logger.finest("Could not send parity: " + e.getMessage());
+			} catch (IOException e) {
+				//ignore--the group's messages are still reported lost and can be sent again as usual
+				logger.finest("Could not send parity: " + e.getMessage());
+			}
+		}
+	}
 
-			//record the latency
-			long timeOfPing = pingReceipt.getTime();
-			long now = System.currentTimeMillis();
-			long timeSincePing = now - timeOfPing;
-			latency = (latency == -1 ? timeSincePing : (latency + timeSincePing) / 2);
+	private void recordRoundTripTime(long roundTripTime) {
+		synchronized(CONNECTION_LOCK) {
+			latency = (latency == -1 ? roundTripTime : (latency + roundTripTime) / 2);
+			NetworkEvents.roundTripTime(clientId, roundTripTime);
 		}
 	}
 
@@ -508,6 +1211,7 @@ public abstract class ClientConnection implements PacketReceiver {
 	private static class TimeoutThread extends Thread {
 		private ClientConnection client;
 		private int timeout;
+		private Clock clock;
 		private boolean isWaitingToTimeOut;
 		private long timeOfLastReset;
 
@@ -515,6 +1219,7 @@ public abstract class ClientConnection implements PacketReceiver {
 			super();
 			this.client = client;
 			timeout = timeoutInMilliseconds;
+			clock = client.activeClock;
 			isWaitingToTimeOut = false;
 		}
 
@@ -523,22 +1228,26 @@ public abstract class ClientConnection implements PacketReceiver {
 			resetTimeout();
 			while(isWaitingToTimeOut) {
 				//if the thread was last reset over [timeout] milliseconds ago then the client has timed out
-				long now = System.currentTimeMillis();
+				long now = clock.currentTimeMillis();
 				if(now >= timeOfLastReset + timeout) {
 					isWaitingToTimeOut = false;
 					if(client != null)
 						client.timeOut();
 				}
 
-				//wait an amount of time until thread should have timed out
+				//wait until the thread should have timed out, checking often enough to notice a clock that jumps forward
 				try {
-					Thread.sleep(Math.max(50, timeout - now + timeOfLastReset));
+					Thread.sleep(Math.max(50, Math.min(ClientConnection.MAXIMUM_TIMEOUT_CHECK_INTERVAL, timeout - now + timeOfLastReset)));
 				} catch (InterruptedException e) {}
 			}
 		}
 
 		public void resetTimeout() {
-			timeOfLastReset = System.currentTimeMillis();
+			resetTimeout(clock.currentTimeMillis());
+		}
+
+		public void resetTimeout(long now) {
+			timeOfLastReset = now;
 		}
 
 		public void stopTimeout() {
@@ -561,6 +1270,7 @@ public abstract class ClientConnection implements PacketReceiver {
 			isPinging = true;
 			while(isPinging) {
 				client.ping();
+				client.acknowledge();
 				try {
 					Thread.sleep(timeout);
 				} catch (InterruptedException e) {}
@@ -1,24 +1,54 @@
 package com.benlawrencem.net.nightingale;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.zip.CRC32;
 
 public class ClientInfo {
 	private int connectionId;
-	private String clientAddress;
-	private int clientPort;
-	private InetAddress clientInetAddress;
+	private volatile InetSocketAddress clientSocketAddress;
 	private PacketRecorder recorder;
-	private long timeOfLastCommunication;
-	private long latency;
+	private volatile long timeOfLastCommunication;
+	private volatile long latency;
+	private boolean usesCompactHeaders;
+	private PayloadCompressor compressor;
+	private IntSet groupIds;
+	private String sessionToken;
+	private byte[] resumeKey;
+	private DeliveryTracker deliveryTracker;
+	private ForwardErrorCorrection forwardErrorCorrection;
+	private PacketCipher cipher;
+	private CRC32 checksum;
+	private Clock clock;
 
 	public ClientInfo(int connectionId, String address, int port, InetAddress inetAddress) {
+		this(connectionId, address, port, inetAddress, MonotonicClock.INSTANCE);
+	}
+
+	public ClientInfo(int connectionId, String address, int port, InetAddress inetAddress, Clock clock) {
+		this(connectionId, new InetSocketAddress(inetAddress, port), clock);
+	}
+
+	public ClientInfo(int connectionId, InetSocketAddress socketAddress) {
+		this(connectionId, socketAddress, MonotonicClock.INSTANCE);
+	}
+
+	public ClientInfo(int connectionId, InetSocketAddress socketAddress, Clock clock) {
+		this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
 		this.connectionId = connectionId;
-		clientAddress = address;
-		clientPort = port;
-		clientInetAddress = inetAddress;
-		recorder = new PacketRecorder();
-		timeOfLastCommunication = System.currentTimeMillis();
+		clientSocketAddress = socketAddress;
+		recorder = new PacketRecorder(this.clock);
+		timeOfLastCommunication = this.clock.currentTimeMillis();
 		latency = -1;
+		usesCompactHeaders = false;
+		compressor = null;
+		groupIds = new IntSet();
+		sessionToken = null;
+		resumeKey = null;
+		deliveryTracker = new DeliveryTracker();
+		forwardErrorCorrection = null;
+		cipher = null;
+		checksum = null;
 	}
 
 	public int getClientId() {
@@ -26,40 +56,159 @@ public class ClientInfo {
 	}
 
 	public String getAddress() {
-		return clientAddress;
+		return clientSocketAddress.getAddress().getHostAddress();
 	}
 
 	public InetAddress getInetAddress() {
-		return clientInetAddress;
+		return clientSocketAddress.getAddress();
 	}
 
 	public int getPort() {
-		return clientPort;
+		return clientSocketAddress.getPort();
 	}
 
-	public PacketRecorder getPacketRecorder() {
+	/**
+	 * The address is only ever replaced whole, so a reader that needs both
+	 * its parts while the client could be moving should take them from this.
+	 */
+	public InetSocketAddress getSocketAddress() {
+		return clientSocketAddress;
+	}
+
+	PacketRecorder getPacketRecorder() {
 		return recorder;
 	}
 
 	public boolean matchesAddress(String address, int port) {
-		if(address == null)
-			return (clientAddress == null && port == clientPort);
-		return (address.equals(clientAddress) && port == clientPort);
+		InetSocketAddress socketAddress = clientSocketAddress;
+		return (address != null && address.equals(socketAddress.getAddress().getHostAddress()) && port == socketAddress.getPort());
+	}
+
+	public boolean matchesAddress(InetSocketAddress socketAddress) {
+		return clientSocketAddress.equals(socketAddress);
+	}
+
+	/**
+	 * Moves the client to a new address, e.g. after its NAT picked a new port.
+	 */
+	void setSocketAddress(InetSocketAddress socketAddress) {
+		clientSocketAddress = socketAddress;
 	}
 
 	public long getTimeOfLastCommunication() {
 		return timeOfLastCommunication;
 	}
 
-	public void resetTimeout() {
-		timeOfLastCommunication = System.currentTimeMillis();
+	void resetTimeout() {
+		timeOfLastCommunication = clock.currentTimeMillis();
 	}
 
 	public long getLatency() {
 		return latency;
 	}
 
-	public void setLatency(long latency) {
+	void setLatency(long latency) {
 		this.latency = latency;
 	}
+
+	public boolean usesCompactHeaders() {
+		return usesCompactHeaders;
+	}
+
+	void setUsesCompactHeaders(boolean usesCompactHeaders) {
+		this.usesCompactHeaders = usesCompactHeaders;
+	}
+
+	public boolean usesCompression() {
+		return compressor != null;
+	}
+
+	/**
+	 * @return the compressor shared by every client using the same dictionary, or null if messages aren't compressed
+	 */
+	public PayloadCompressor getCompressor() {
+		return compressor;
+	}
+
+	void setCompressor(PayloadCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public boolean usesForwardErrorCorrection() {
+		return forwardErrorCorrection != null;
+	}
+
+	/**
+	 * @return the parity groups of messages sent to the client, or null if it didn't ask for parity
+	 */
+	ForwardErrorCorrection getForwardErrorCorrection() {
+		return forwardErrorCorrection;
+	}
+
+	void setForwardErrorCorrection(ForwardErrorCorrection forwardErrorCorrection) {
+		this.forwardErrorCorrection = forwardErrorCorrection;
+	}
+
+	public boolean usesEncryption() {
+		return cipher != null;
+	}
+
+	/**
+	 * @return the cipher sealing packets sent to the client, or null if the connection isn't encrypted
+	 */
+	PacketCipher getCipher() {
+		return cipher;
+	}
+
+	void setCipher(PacketCipher cipher) {
+		this.cipher = cipher;
+	}
+
+	public boolean usesChecksum() {
+		return checksum != null;
+	}
+
+	/**
+	 * @return the checksum appended to packets sent to the client, or null if they don't have one
+	 */
+	CRC32 getChecksum() {
+		return checksum;
+	}
+
+	void setChecksum(CRC32 checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @return the ids of the server groups the client is in, kept in step with the groups by the Server
+	 */
+	IntSet getGroupIds() {
+		return groupIds;
+	}
+
+	/**
+	 * @return the token the client presents to resume its session after timing out, or null if it can't
+	 */
+	String getSessionToken() {
+		return sessionToken;
+	}
+
+	void setSessionToken(String sessionToken) {
+		this.sessionToken = sessionToken;
+	}
+
+	/**
+	 * @return the key the client proves it holds to resume its session, or null if the connection isn't encrypted
+	 */
+	byte[] getResumeKey() {
+		return resumeKey;
+	}
+
+	void setResumeKey(byte[] resumeKey) {
+		this.resumeKey = resumeKey;
+	}
+
+	DeliveryTracker getDeliveryTracker() {
+		return deliveryTracker;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The server's connected clients, indexed by connection id, so finding the
+ * client a packet came from is one array read with no boxing or hashing.
+ *
+ * Any thread can read the table without locking. Changes are made with the
+ * server's connection lock held, so there is only ever one writer. Each
+ * change also replaces an array of every client in ascending id order,
+ * which readers iterate without allocating anything. Clients come and go
+ * far less often than packets arrive, so copying that array is cheap next
+ * to what it saves the readers. A client is fully built before it's put in
+ * the table, and the table's writes are volatile, so a thread that finds it
+ * also sees everything set on it before it was added.
+ */
+class ClientTable {
+	private static final ClientInfo[] NO_CLIENTS = new ClientInfo[0];
+	private final AtomicReferenceArray<ClientInfo> clientsById;
+	private volatile ClientInfo[] clients;
+
+	public ClientTable() {
+		clientsById = new AtomicReferenceArray<ClientInfo>(Packet.MAXIMUM_CONNECTION_ID + 1);
+		clients = ClientTable.NO_CLIENTS;
+	}
+
+	/**
+	 * @return the client with the connection id, or null if there is none
+	 */
+	public ClientInfo get(int clientId) {
+		if(clientId < 0 || clientId > Packet.MAXIMUM_CONNECTION_ID)
+			return null;
+		return clientsById.get(clientId);
+	}
+
+	public boolean contains(int clientId) {
+		return get(clientId) != null;
+	}
+
+	public int size() {
+		return clients.length;
+	}
+
+	/**
+	 * @return every client in ascending id order--shared by every caller, so it must not be changed
+	 */
+	public ClientInfo[] getClients() {
+		return clients;
+	}
+
+	/**
+	 * Adds the client, replacing any other client with its connection id.
+	 * Only call with the server's connection lock held.
+	 */
+	public void put(ClientInfo client) {
+		int clientId = client.getClientId();
+		ClientInfo[] oldClients = clients;
+		int index = indexOf(oldClients, clientId);
+		ClientInfo[] newClients;
+		if(index >= 0) {
+			newClients = oldClients.clone();
+			newClients[index] = client;
+		}
+		else {
+			index = -index - 1;
+			newClients = new ClientInfo[oldClients.length + 1];
+			System.arraycopy(oldClients, 0, newClients, 0, index);
+			newClients[index] = client;
+			System.arraycopy(oldClients, index, newClients, index + 1, oldClients.length - index);
+		}
+		clientsById.set(clientId, client);
+		clients = newClients;
+	}
+
+	/**
+	 * Only call with the server's connection lock held.
+	 *
+	 * @return the client that was removed, or null if there was none
+	 */
+	public ClientInfo remove(int clientId) {
+		ClientInfo client = get(clientId);
+		if(client == null)
+			return null;
+		ClientInfo[] oldClients = clients;
+		int index = indexOf(oldClients, clientId);
+		ClientInfo[] newClients = new ClientInfo[oldClients.length - 1];
+		System.arraycopy(oldClients, 0, newClients, 0, index);
+		System.arraycopy(oldClients, index + 1, newClients, index, oldClients.length - index - 1);
+		clientsById.set(clientId, null);
+		clients = newClients;
+		return client;
+	}
+
+	/**
+	 * Only call with the server's connection lock held.
+	 */
+	public void clear() {
+		for(ClientInfo client : clients)
+			clientsById.set(client.getClientId(), null);
+		clients = ClientTable.NO_CLIENTS;
+	}
+
+	/**
+	 * @return the index of the client with the id, or -(insertion point) - 1 if there is none, like Arrays.binarySearch
+	 */
+	private static int indexOf(ClientInfo[] clients, int clientId) {
+		int low = 0;
+		int high = clients.length - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleId = clients[middle].getClientId();
+			if(middleId < clientId)
+				low = middle + 1;
+			else if(middleId > clientId)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,19 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Where servers and clients get the time for timeouts, acknowledgement
+ * delays and round trip times. Only the difference between two readings
+ * means anything, so a clock can start anywhere, but it must never go
+ * backwards--unlike System.currentTimeMillis(), which jumps whenever the
+ * system's wall clock is set.
+ *
+ * @see MonotonicClock
+ * @see CachedClock
+ * @see VirtualClock
+ */
+public interface Clock {
+	/**
+	 * @return the time in milliseconds since some fixed but arbitrary point
+	 */
+	long currentTimeMillis();
+}
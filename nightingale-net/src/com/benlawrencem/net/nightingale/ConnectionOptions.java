@@ -0,0 +1,112 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Options a client asks for in its CONNECT_REQUEST and the server grants in
+ * its CONNECTION_ACCEPTED. Both travel as the packet's message in the form
+ * "name;name=value;...", so servers and clients that don't know about an
+ * option simply never grant or use it.
+ */
+public class ConnectionOptions {
+	public static final String COMPACT_HEADERS = "compact";
+	public static final String COMPRESSION = "deflate";
+	public static final String COOKIE = "cookie";
+	public static final String PADDING = "pad";
+	public static final String SESSION = "session";
+	public static final String RESUME = "resume";
+	public static final String PROOF = "proof";
+	public static final String PARITY = "parity";
+	public static final String ENCRYPTION = "aead";
+	public static final String CHECKSUM = "crc32";
+	private static final String OPTION_SEPARATOR = ";";
+	private static final String VALUE_SEPARATOR = "=";
+	private Map<String, String> options;
+
+	public ConnectionOptions() {
+		options = new LinkedHashMap<String, String>();
+	}
+
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	public String get(String name) {
+		return options.get(name);
+	}
+
+	public void set(String name) {
+		options.put(name, null);
+	}
+
+	public void set(String name, String value) {
+		options.put(name, value);
+	}
+
+	public void remove(String name) {
+		options.remove(name);
+	}
+
+	public boolean isEmpty() {
+		return options.isEmpty();
+	}
+
+	/**
+	 * @return the options encoded as a packet message, or null if there are none
+	 */
+	public String toMessage() {
+		if(options.isEmpty())
+			return null;
+		StringBuilder message = new StringBuilder();
+		for(Iterator<Map.Entry<String, String>> iter = options.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<String, String> option = iter.next();
+			message.append(option.getKey());
+			if(option.getValue() != null)
+				message.append(ConnectionOptions.VALUE_SEPARATOR).append(option.getValue());
+			if(iter.hasNext())
+				message.append(ConnectionOptions.OPTION_SEPARATOR);
+		}
+		return message.toString();
+	}
+
+	/**
+	 * Adds a padding option, if needed, so the encoded message is at least
+	 * the given number of characters long.
+	 */
+	public void padTo(int length) {
+		remove(ConnectionOptions.PADDING);
+		String message = toMessage();
+		int numMissing = length - (message == null ? 0 : message.length());
+		if(numMissing <= 0)
+			return;
+
+		//the padding option brings its own name and separators
+		numMissing -= ConnectionOptions.PADDING.length() + ConnectionOptions.VALUE_SEPARATOR.length() + (message == null ? 0 : ConnectionOptions.OPTION_SEPARATOR.length());
+		char[] padding = new char[Math.max(0, numMissing)];
+		Arrays.fill(padding, '0');
+		set(ConnectionOptions.PADDING, new String(padding));
+	}
+
+	public String toString() {
+		return "" + toMessage();
+	}
+
+	public static ConnectionOptions parse(String message) {
+		ConnectionOptions connectionOptions = new ConnectionOptions();
+		if(message == null)
+			return connectionOptions;
+		for(String option : message.split(ConnectionOptions.OPTION_SEPARATOR)) {
+			if(option.length() == 0)
+				continue;
+			int valueIndex = option.indexOf(ConnectionOptions.VALUE_SEPARATOR);
+			if(valueIndex < 0)
+				connectionOptions.set(option);
+			else
+				connectionOptions.set(option.substring(0, valueIndex), option.substring(valueIndex + 1));
+		}
+		return connectionOptions;
+	}
+}
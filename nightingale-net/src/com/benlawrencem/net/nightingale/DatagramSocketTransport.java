@@ -0,0 +1,39 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+public class DatagramSocketTransport implements Transport {
+	public static final TransportFactory FACTORY = new TransportFactory() {
+		public Transport openTransport(int port) throws SocketException {
+			return new DatagramSocketTransport(port == 0 ? new DatagramSocket() : new DatagramSocket(port));
+		}
+	};
+	private DatagramSocket socket;
+
+	public DatagramSocketTransport(DatagramSocket socket) {
+		this.socket = socket;
+	}
+
+	public DatagramSocket getSocket() {
+		return socket;
+	}
+
+	public void send(DatagramPacket datagramPacket) throws IOException {
+		socket.send(datagramPacket);
+	}
+
+	public void receive(DatagramPacket datagramPacket) throws IOException {
+		socket.receive(datagramPacket);
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	public void close() {
+		socket.close();
+	}
+}
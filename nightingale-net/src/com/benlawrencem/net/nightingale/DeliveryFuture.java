@@ -0,0 +1,206 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of a message sent with sendAsync. It completes once the other
+ * end's acknowledgements show the message arrived, or fails once they show
+ * it was lost, once it falls out of the recent history before anything says
+ * either way, or once the connection closes.
+ *
+ * Each message gets a 64-bit id that is never reused on the connection,
+ * unlike the 16-bit sequence numbers send() returns, which wrap around.
+ * {@link #get()} returns that id on success.
+ */
+public class DeliveryFuture implements Future<Long> {
+	private final long messageId;
+	private final String message;
+	private final int clientId;
+	private Packet packet;
+	private boolean isDone;
+	private String failureReason;
+	private String pendingFailureReason;
+	private List<Listener> listeners;
+
+	/**
+	 * Told how a message turned out, on whichever thread finds out--usually
+	 * the one receiving packets, and never while the connection is locked.
+	 */
+	public static interface Listener {
+		public void onDelivered(DeliveryFuture delivery);
+		public void onNotDelivered(DeliveryFuture delivery, String reason);
+	}
+
+	DeliveryFuture(long messageId, int clientId, Packet packet) {
+		this.messageId = messageId;
+		this.clientId = clientId;
+		this.packet = packet;
+		message = packet.getMessage();
+		isDone = false;
+		failureReason = null;
+		pendingFailureReason = null;
+		listeners = null;
+	}
+
+	public long getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return the sequence number the message was last sent with, as passed to onMessageNotDelivered
+	 */
+	public synchronized int getSequenceNumber() {
+		return packet.getSequenceNumber();
+	}
+
+	/**
+	 * @return the client the message was sent to, or the client's own id for messages sent to the server
+	 */
+	public int getClientId() {
+		return clientId;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Calls the listener once the outcome is known--straight away if it
+	 * already is.
+	 */
+	public void addListener(Listener listener) {
+		boolean isAlreadyDone;
+		synchronized(this) {
+			isAlreadyDone = isDone;
+			if(!isDone) {
+				if(listeners == null)
+					listeners = new ArrayList<Listener>(1);
+				listeners.add(listener);
+			}
+		}
+		if(isAlreadyDone)
+			notifyListener(listener);
+	}
+
+	/**
+	 * A sent message can't be called back, so this always fails.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return isDone;
+	}
+
+	public synchronized boolean isDelivered() {
+		return isDone && failureReason == null;
+	}
+
+	/**
+	 * @return why the message wasn't delivered, or null if it was or it isn't known yet
+	 */
+	public synchronized String getFailureReason() {
+		return failureReason;
+	}
+
+	/**
+	 * @return the message id once the message is delivered
+	 * @throws ExecutionException wrapping a {@link MessageNotDeliveredException} if it wasn't
+	 */
+	public synchronized Long get() throws InterruptedException, ExecutionException {
+		while(!isDone)
+			wait();
+		return getOutcome();
+	}
+
+	public synchronized Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!isDone) {
+			long remainingTime = deadline - System.nanoTime();
+			if(remainingTime <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remainingTime);
+		}
+		return getOutcome();
+	}
+
+	private Long getOutcome() throws ExecutionException {
+		if(failureReason != null)
+			throw new ExecutionException(new MessageNotDeliveredException(this, failureReason));
+		return messageId;
+	}
+
+	synchronized Packet getPacket() {
+		return packet;
+	}
+
+	/**
+	 * Follows the message when it's sent again as a new packet.
+	 */
+	synchronized void setPacket(Packet packet) {
+		this.packet = packet;
+	}
+
+	/**
+	 * Decides the outcome without telling anyone yet, for when the
+	 * connection is locked. {@link #complete()} tells them.
+	 *
+	 * @param failureReason why the message wasn't delivered, or null if it was
+	 */
+	synchronized void resolve(String failureReason) {
+		pendingFailureReason = failureReason;
+	}
+
+	void complete() {
+		List<Listener> listenersToNotify;
+		synchronized(this) {
+			if(isDone)
+				return;
+			isDone = true;
+			failureReason = pendingFailureReason;
+			listenersToNotify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		if(listenersToNotify != null) {
+			for(Listener listener : listenersToNotify)
+				notifyListener(listener);
+		}
+	}
+
+	private void notifyListener(Listener listener) {
+		String reason = getFailureReason();
+		if(reason == null)
+			listener.onDelivered(this);
+		else
+			listener.onNotDelivered(this, reason);
+	}
+
+	public String toString() {
+		return "DeliveryFuture[" + messageId + (isDone() ? (isDelivered() ? ", delivered" : ", not delivered: " + getFailureReason()) : ", pending") + "]";
+	}
+
+	public static class MessageNotDeliveredException extends Exception {
+		private static final long serialVersionUID = 2915467328790562713L;
+		private DeliveryFuture delivery;
+
+		public MessageNotDeliveredException(DeliveryFuture delivery, String reason) {
+			super("Message " + delivery.getMessageId() + " not delivered: " + reason);
+			this.delivery = delivery;
+		}
+
+		public DeliveryFuture getDelivery() {
+			return delivery;
+		}
+	}
+}
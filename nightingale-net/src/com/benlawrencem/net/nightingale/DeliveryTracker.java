@@ -0,0 +1,112 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Keeps the messages of one connection that were sent with sendAsync and
+ * whose outcome isn't known yet, in the order their packets were sent. A
+ * packet's outcome is known no later than a newer one's (give or take the
+ * loss report threshold), so settling them stops at the first one still
+ * waiting instead of checking them all. Outcomes are decided while the
+ * connection is locked and queued, and the futures are only completed once
+ * the lock is released, like every other callback.
+ */
+class DeliveryTracker {
+	static final String MESSAGE_LOST = "Message lost.";
+	static final String DELIVERY_NOT_CONFIRMED = "Too many packets were sent since to confirm delivery.";
+	private long lastMessageId;
+	private ArrayDeque<DeliveryFuture> pendingDeliveries;
+
+	public DeliveryTracker() {
+		lastMessageId = 0;
+		pendingDeliveries = new ArrayDeque<DeliveryFuture>();
+	}
+
+	/**
+	 * @param packet a packet that was just sent
+	 */
+	public synchronized DeliveryFuture track(int clientId, Packet packet) {
+		DeliveryFuture delivery = new DeliveryFuture(++lastMessageId, clientId, packet);
+		pendingDeliveries.add(delivery);
+		return delivery;
+	}
+
+	/**
+	 * Settles the oldest pending messages the recorder now knows the outcome of.
+	 *
+	 * @param undeliveredPackets what the recorder just reported lost, oldest first
+	 * @param resolvedDeliveries where the settled messages are queued to be completed
+	 */
+	public synchronized void update(PacketRecorder recorder, List<Packet> undeliveredPackets, Queue<DeliveryFuture> resolvedDeliveries) {
+		int numUndeliveredPackets = (undeliveredPackets == null ? 0 : undeliveredPackets.size());
+		int undeliveredIndex = 0;
+		DeliveryFuture delivery;
+		while((delivery = pendingDeliveries.peek()) != null) {
+			Packet packet = delivery.getPacket();
+			PacketReceipt receipt = recorder.getSentPacketWithSequenceNumber(packet.getSequenceNumber());
+
+			//the lost packets are in the same order as the queue, so they're walked alongside it
+			while(undeliveredIndex < numUndeliveredPackets && isSentBefore(undeliveredPackets.get(undeliveredIndex), packet))
+				undeliveredIndex++;
+			String failureReason;
+			if(receipt == null || receipt.getPacket() != packet)
+				failureReason = DeliveryTracker.DELIVERY_NOT_CONFIRMED; //the recorder has forgotten the packet
+			else if(receipt.isDelivered())
+				failureReason = null;
+			else if(undeliveredIndex < numUndeliveredPackets && undeliveredPackets.get(undeliveredIndex) == packet)
+				failureReason = DeliveryTracker.MESSAGE_LOST;
+			else
+				break;
+			pendingDeliveries.poll();
+			delivery.resolve(failureReason);
+			resolvedDeliveries.add(delivery);
+		}
+	}
+
+	/**
+	 * Keeps waiting on a message that was sent again in a new packet.
+	 */
+	public synchronized void resent(Packet originalPacket, Packet resentPacket) {
+		for(Iterator<DeliveryFuture> iter = pendingDeliveries.iterator(); iter.hasNext();) {
+			DeliveryFuture delivery = iter.next();
+			if(delivery.getPacket() == originalPacket) {
+				//the new packet is sent after every other, so the message moves to the back of the queue
+				iter.remove();
+				delivery.setPacket(resentPacket);
+				pendingDeliveries.add(delivery);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Fails every pending message, e.g. because the connection closed.
+	 */
+	public synchronized void failAll(String reason, Queue<DeliveryFuture> resolvedDeliveries) {
+		DeliveryFuture delivery;
+		while((delivery = pendingDeliveries.poll()) != null) {
+			delivery.resolve(reason);
+			resolvedDeliveries.add(delivery);
+		}
+	}
+
+	public synchronized int getNumPendingDeliveries() {
+		return pendingDeliveries.size();
+	}
+
+	/**
+	 * Completes the queued futures--never call while holding a connection lock.
+	 */
+	public static void completeResolvedDeliveries(Queue<DeliveryFuture> resolvedDeliveries) {
+		DeliveryFuture delivery;
+		while((delivery = resolvedDeliveries.poll()) != null)
+			delivery.complete();
+	}
+
+	private static boolean isSentBefore(Packet packet, Packet laterPacket) {
+		return Packet.deltaBetweenSequenceNumbers(packet.getSequenceNumber(), laterPacket.getSequenceNumber()) > 0;
+	}
+}
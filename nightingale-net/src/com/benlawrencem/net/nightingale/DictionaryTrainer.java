@@ -0,0 +1,136 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a preset dictionary for {@link PayloadCompressor} from sample
+ * messages, e.g. application traffic captured from a running server.
+ * Substrings that show up in many different messages are scored by how many
+ * bytes they would save and the best ones are packed into the dictionary,
+ * with the most valuable last so deflate can reach them with the shortest
+ * distances.
+ *
+ * Usage: DictionaryTrainer samples.txt dictionary.bin [size]
+ * where samples.txt contains one message per line.
+ */
+public class DictionaryTrainer {
+	public static final int DEFAULT_DICTIONARY_SIZE = 4096;
+	public static final int MAXIMUM_NUM_SAMPLES = 2000;
+	private static final int[] SUBSTRING_LENGTHS = { 4, 6, 8, 12, 16, 24, 32 };
+	private static final int MATCH_COST = 3;
+	private static final int MAXIMUM_NUM_CANDIDATES = 100000;
+
+	public static void main(String[] args) {
+		if(args == null || args.length < 2) {
+			System.out.println("Usage: DictionaryTrainer samples.txt dictionary.bin [size]");
+			return;
+		}
+		int dictionarySize = DictionaryTrainer.DEFAULT_DICTIONARY_SIZE;
+		if(args.length > 2) {
+			try {
+				dictionarySize = Integer.parseInt(args[2]);
+			} catch(NumberFormatException e) {
+				dictionarySize = DictionaryTrainer.DEFAULT_DICTIONARY_SIZE;
+			}
+		}
+
+		try {
+			List<String> samples = readSamples(args[0]);
+			byte[] dictionary = train(samples, dictionarySize);
+			FileOutputStream out = new FileOutputStream(args[1]);
+			try {
+				out.write(dictionary);
+			} finally {
+				out.close();
+			}
+			System.out.println("Trained " + dictionary.length + " byte dictionary from " + Math.min(samples.size(), DictionaryTrainer.MAXIMUM_NUM_SAMPLES) + " samples");
+			System.out.println("Dictionary id: " + PayloadCompressor.getDictionaryId(dictionary));
+		} catch (IOException e) {
+			System.out.println("Could not train dictionary: " + e.getMessage());
+		}
+	}
+
+	public static List<String> readSamples(String fileName) throws IOException {
+		List<String> samples = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.length() > 0)
+					samples.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return samples;
+	}
+
+	public static byte[] train(List<String> samples, int dictionarySize) {
+		//count how many samples each substring appears in--counting once per sample keeps one long message from dominating
+		final Map<String, Integer> sampleCounts = new HashMap<String, Integer>();
+		int numSamples = Math.min(samples.size(), DictionaryTrainer.MAXIMUM_NUM_SAMPLES);
+		for(int i = 0; i < numSamples; i++) {
+			String sample = samples.get(i);
+			if(sample == null)
+				continue;
+			Set<String> substrings = new HashSet<String>();
+			for(int length : DictionaryTrainer.SUBSTRING_LENGTHS) {
+				for(int start = 0; start + length <= sample.length(); start++)
+					substrings.add(sample.substring(start, start + length));
+			}
+			for(String substring : substrings) {
+				Integer count = sampleCounts.get(substring);
+				sampleCounts.put(substring, (count == null ? 1 : count + 1));
+			}
+		}
+
+		//a substring is only worth including if it appears more than once and is longer than a match
+		List<String> candidates = new ArrayList<String>();
+		for(Map.Entry<String, Integer> entry : sampleCounts.entrySet()) {
+			if(entry.getValue() > 1)
+				candidates.add(entry.getKey());
+		}
+		Collections.sort(candidates, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long delta = score(b, sampleCounts.get(b)) - score(a, sampleCounts.get(a));
+				return (delta < 0 ? -1 : (delta > 0 ? 1 : a.compareTo(b)));
+			}
+		});
+
+		//greedily take the best substrings that aren't already covered by what we've taken
+		List<String> chosen = new ArrayList<String>();
+		StringBuilder chosenText = new StringBuilder();
+		for(int i = 0; i < candidates.size() && i < DictionaryTrainer.MAXIMUM_NUM_CANDIDATES; i++) {
+			String candidate = candidates.get(i);
+			if(chosenText.length() + candidate.length() > dictionarySize)
+				continue;
+			if(chosenText.indexOf(candidate) < 0) {
+				chosen.add(candidate);
+				chosenText.append(candidate);
+			}
+			if(chosenText.length() >= dictionarySize)
+				break;
+		}
+
+		//put the most valuable substrings at the end of the dictionary
+		StringBuilder dictionary = new StringBuilder(chosenText.length());
+		for(int i = chosen.size() - 1; i >= 0; i--)
+			dictionary.append(chosen.get(i));
+		return dictionary.toString().getBytes();
+	}
+
+	private static long score(String substring, int sampleCount) {
+		return (long) (sampleCount - 1) * (substring.length() - DictionaryTrainer.MATCH_COST);
+	}
+}
@@ -0,0 +1,180 @@
+package com.benlawrencem.net.nightingale;
+
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+
+/**
+ * Lets the receiving end rebuild a lost message itself instead of waiting
+ * a round trip to hear it was lost and another for it to be sent again.
+ * After every group of messages the sender sends a PARITY packet holding
+ * the group's sequence numbers and the XOR of their contents. If exactly
+ * one message of the group doesn't arrive, XORing the parity with the
+ * others gives it back.
+ *
+ * Parity packets have no sequence number, like ACKNOWLEDGEMENTs, so they
+ * never take up room in a PacketRecorder or get reported lost. A group of
+ * n messages costs one packet in n extra and survives one loss, so unless
+ * the group size is fixed, groups shrink as the loss rate the sender's
+ * PacketRecorder measures grows.
+ *
+ * Not thread safe--the sender calls it with the connection's PacketRecorder
+ * locked.
+ */
+class ForwardErrorCorrection {
+	static final int ADAPTIVE_GROUP_SIZE = 0;
+	static final int MINIMUM_GROUP_SIZE = 2;
+	static final int MAXIMUM_GROUP_SIZE = 16;
+
+	//each message's share of the parity is its duplicate sequence number and length, then the message itself
+	private static final int BLOCK_HEADER_SIZE = 4;
+	private static final int MAXIMUM_BLOCK_SIZE = Packet.MAXIMUM_PACKET_SIZE - Packet.MAXIMUM_HEADER_SIZE - 1 - 2 * ForwardErrorCorrection.MAXIMUM_GROUP_SIZE;
+
+	/* Parity structure (the message of a PARITY packet):
+	 	byte	1 byte		number of messages in the group
+	 	short	2n bytes	sequence number of each message
+	 	bytes	m bytes		XOR of each message's block, padded with 0s to the longest:
+	 		short	2 bytes	duplicate sequence number
+	 		short	2 bytes	length of the message in bytes
+	 		bytes	n bytes	the message, uncompressed
+	 */
+
+	private final int groupSize;
+	private int currentGroupSize;
+	private int[] sequenceNumbers;
+	private int numPackets;
+	private byte[] parity;
+	private int parityLength;
+
+	/**
+	 * @param groupSize how many messages each parity packet covers, or ADAPTIVE_GROUP_SIZE to pick from the loss rate
+	 */
+	public ForwardErrorCorrection(int groupSize) {
+		this.groupSize = (groupSize == ForwardErrorCorrection.ADAPTIVE_GROUP_SIZE ? groupSize : clampGroupSize(groupSize));
+		sequenceNumbers = new int[ForwardErrorCorrection.MAXIMUM_GROUP_SIZE];
+		parity = new byte[ForwardErrorCorrection.MAXIMUM_BLOCK_SIZE];
+		numPackets = 0;
+		parityLength = 0;
+	}
+
+	/**
+	 * Adds a message that was just sent to the current group. Messages too
+	 * long for their block to fit in a parity packet aren't covered.
+	 *
+	 * @param packet an APPLICATION packet with its sequence number
+	 * @param lossRate the sender's recent loss rate, see {@link PacketRecorder#getLossRate()}
+	 * @return the PARITY packet to send if the message completes the group, otherwise null
+	 */
+	public Packet addSentPacket(Packet packet, double lossRate) {
+		byte[] messageBytes = (packet.getMessage() == null ? new byte[0] : packet.getMessage().getBytes());
+		int blockLength = ForwardErrorCorrection.BLOCK_HEADER_SIZE + messageBytes.length;
+		if(blockLength > ForwardErrorCorrection.MAXIMUM_BLOCK_SIZE || !packet.hasSequenceNumber())
+			return null;
+
+		//the size of a group is settled when it starts
+		if(numPackets == 0) {
+			currentGroupSize = (groupSize == ForwardErrorCorrection.ADAPTIVE_GROUP_SIZE ? getAdaptiveGroupSize(lossRate) : groupSize);
+			for(int i = 0; i < parityLength; i++)
+				parity[i] = 0;
+			parityLength = 0;
+		}
+		sequenceNumbers[numPackets++] = packet.getSequenceNumber();
+		xorBlock(parity, packet.getDuplicateSequenceNumber(), messageBytes);
+		parityLength = Math.max(parityLength, blockLength);
+		if(numPackets < currentGroupSize)
+			return null;
+
+		//the group is complete
+		byte[] bytes = new byte[1 + 2 * numPackets + parityLength];
+		bytes[0] = (byte) numPackets;
+		for(int i = 0; i < numPackets; i++) {
+			bytes[1 + 2 * i] = (byte) (sequenceNumbers[i] >>> 8);
+			bytes[2 + 2 * i] = (byte) sequenceNumbers[i];
+		}
+		System.arraycopy(parity, 0, bytes, 1 + 2 * numPackets, parityLength);
+		numPackets = 0;
+		return Packet.createParityPacket(packet.getConnectionId(), bytes);
+	}
+
+	/**
+	 * A message isn't worth reporting lost until the other end has had the
+	 * rest of its group and the parity--see {@link PacketRecorder#setLossReportThreshold(int)}.
+	 *
+	 * @return the size of the current group, or of the next one if none is under way
+	 */
+	public int getLossReportThreshold(double lossRate) {
+		if(numPackets > 0)
+			return currentGroupSize;
+		return (groupSize == ForwardErrorCorrection.ADAPTIVE_GROUP_SIZE ? getAdaptiveGroupSize(lossRate) : groupSize);
+	}
+
+	/**
+	 * Rebuilds the one message of a parity packet's group that hasn't
+	 * arrived, if it's the only one. The rebuilt packet should be handled
+	 * like any other incoming packet, so it's suppressed if the original
+	 * turns up after all, and vice versa.
+	 *
+	 * @return the rebuilt APPLICATION packet, or null if none of the group is missing or more than one is
+	 */
+	public static Packet recover(Packet parityPacket, PacketRecorder recorder) {
+		byte[] bytes = parityPacket.getParity();
+		if(bytes == null || bytes.length < 1)
+			return null;
+		int numPackets = bytes[0] & 0xFF;
+		int parityStart = 1 + 2 * numPackets;
+		if(numPackets == 0 || bytes.length < parityStart + ForwardErrorCorrection.BLOCK_HEADER_SIZE)
+			return null;
+
+		//XOR out every message that did arrive, leaving the one that didn't
+		byte[] block = new byte[bytes.length - parityStart];
+		System.arraycopy(bytes, parityStart, block, 0, block.length);
+		int missingSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		for(int i = 0; i < numPackets; i++) {
+			int sequenceNumber = ((bytes[1 + 2 * i] & 0xFF) << 8) | (bytes[2 + 2 * i] & 0xFF);
+			PacketReceipt receipt = recorder.getReceivedPacketWithSequenceNumber(sequenceNumber);
+			Packet packet = (receipt == null ? null : receipt.getPacket());
+			if(packet == null || packet.getSequenceNumber() != sequenceNumber) {
+				if(missingSequenceNumber != Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+					return null;
+				missingSequenceNumber = sequenceNumber;
+				continue;
+			}
+			if(packet.getMessageType() != MessageType.APPLICATION)
+				return null;
+			byte[] messageBytes = (packet.getMessage() == null ? new byte[0] : packet.getMessage().getBytes());
+			if(ForwardErrorCorrection.BLOCK_HEADER_SIZE + messageBytes.length > block.length)
+				return null;
+			xorBlock(block, packet.getDuplicateSequenceNumber(), messageBytes);
+		}
+		if(missingSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return null;
+
+		int messageLength = ((block[2] & 0xFF) << 8) | (block[3] & 0xFF);
+		if(ForwardErrorCorrection.BLOCK_HEADER_SIZE + messageLength > block.length)
+			return null;
+		Packet packet = Packet.createApplicationPacket(parityPacket.getConnectionId(), new String(block, ForwardErrorCorrection.BLOCK_HEADER_SIZE, messageLength));
+		packet.setSequenceNumber(missingSequenceNumber);
+		packet.setDuplicateSequenceNumber(((block[0] & 0xFF) << 8) | (block[1] & 0xFF));
+		return packet;
+	}
+
+	/**
+	 * Picks a group small enough that it rarely loses more than one message.
+	 */
+	static int getAdaptiveGroupSize(double lossRate) {
+		if(lossRate <= 0)
+			return ForwardErrorCorrection.MAXIMUM_GROUP_SIZE;
+		return clampGroupSize((int) Math.round(0.5 / lossRate) - 1);
+	}
+
+	private static void xorBlock(byte[] parity, int duplicateSequenceNumber, byte[] messageBytes) {
+		parity[0] ^= (byte) (duplicateSequenceNumber >>> 8);
+		parity[1] ^= (byte) duplicateSequenceNumber;
+		parity[2] ^= (byte) (messageBytes.length >>> 8);
+		parity[3] ^= (byte) messageBytes.length;
+		for(int i = 0; i < messageBytes.length; i++)
+			parity[ForwardErrorCorrection.BLOCK_HEADER_SIZE + i] ^= messageBytes[i];
+	}
+
+	private static int clampGroupSize(int groupSize) {
+		return Math.max(ForwardErrorCorrection.MINIMUM_GROUP_SIZE, Math.min(ForwardErrorCorrection.MAXIMUM_GROUP_SIZE, groupSize));
+	}
+}
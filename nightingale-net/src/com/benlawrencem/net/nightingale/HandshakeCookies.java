@@ -0,0 +1,121 @@
+package com.benlawrencem.net.nightingale;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Makes and checks the cookies a Server hands out in CONNECT_CHALLENGE
+ * packets. A cookie is the time it was made plus an HMAC of that time and
+ * the client's address and port under a secret only the server knows, so
+ * the server can tell a genuine echo from a forgery without remembering
+ * anything about the clients it challenged. Times are counted in seconds
+ * from when the HandshakeCookies was made, so they always fit a cookie.
+ */
+public class HandshakeCookies {
+	public static final int DEFAULT_LIFETIME = 10;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int SECRET_SIZE = 32;
+	private static final int MAC_SIZE = 8;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	public static final int COOKIE_LENGTH = 2 * (4 + HandshakeCookies.MAC_SIZE);
+	private Mac mac;
+	private int lifetime;
+	private Clock clock;
+	private long creationTime;
+
+	/**
+	 * @param lifetime how many seconds a cookie can be echoed back after it is made
+	 */
+	public HandshakeCookies(int lifetime) throws GeneralSecurityException {
+		this(lifetime, MonotonicClock.INSTANCE);
+	}
+
+	/**
+	 * @param lifetime how many seconds a cookie can be echoed back after it is made
+	 * @param clock what the cookies' ages are measured with
+	 */
+	public HandshakeCookies(int lifetime, Clock clock) throws GeneralSecurityException {
+		byte[] secret = new byte[HandshakeCookies.SECRET_SIZE];
+		new SecureRandom().nextBytes(secret);
+		mac = Mac.getInstance(HandshakeCookies.ALGORITHM);
+		mac.init(new SecretKeySpec(secret, HandshakeCookies.ALGORITHM));
+		this.lifetime = Math.max(1, lifetime);
+		this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
+		creationTime = this.clock.currentTimeMillis();
+	}
+
+	public String createCookie(byte[] address, int port) {
+		int time = getCurrentTime();
+		char[] cookie = new char[HandshakeCookies.COOKIE_LENGTH];
+		putHex(cookie, 0, time, 4);
+		byte[] macBytes = computeMac(time, address, port);
+		for(int i = 0; i < HandshakeCookies.MAC_SIZE; i++)
+			putHex(cookie, 8 + 2 * i, macBytes[i], 1);
+		return new String(cookie);
+	}
+
+	/**
+	 * @return whether this server made the cookie for this address and port recently enough
+	 */
+	public boolean isValidCookie(String cookie, byte[] address, int port) {
+		if(cookie == null || cookie.length() != HandshakeCookies.COOKIE_LENGTH)
+			return false;
+
+		//a time that doesn't parse comes back as -1, and no cookie is made before the HandshakeCookies
+		int time = (int) getHex(cookie, 0, 4);
+		int age = getCurrentTime() - time;
+		if(time < 0 || age < 0 || age > lifetime)
+			return false;
+		byte[] macBytes = computeMac(time, address, port);
+
+		//compare every byte so how long the check takes says nothing about how close a forgery came
+		int difference = 0;
+		for(int i = 0; i < HandshakeCookies.MAC_SIZE; i++) {
+			long b = getHex(cookie, 8 + 2 * i, 1);
+			difference |= (b < 0 ? 0x100 : (int) b ^ (macBytes[i] & 0xFF));
+		}
+		return difference == 0;
+	}
+
+	private byte[] computeMac(int time, byte[] address, int port) {
+		synchronized(mac) {
+			mac.update((byte) (time >>> 24));
+			mac.update((byte) (time >>> 16));
+			mac.update((byte) (time >>> 8));
+			mac.update((byte) time);
+			mac.update(address);
+			mac.update((byte) (port >>> 8));
+			mac.update((byte) port);
+			return mac.doFinal();
+		}
+	}
+
+	private int getCurrentTime() {
+		return (int) ((clock.currentTimeMillis() - creationTime) / 1000);
+	}
+
+	private static void putHex(char[] chars, int index, int value, int numBytes) {
+		for(int i = 2 * numBytes - 1; i >= 0; i--) {
+			chars[index + i] = HandshakeCookies.HEX_DIGITS[value & 0x0F];
+			value >>>= 4;
+		}
+	}
+
+	/**
+	 * @return the value, or -1 if the characters aren't lowercase hex digits
+	 */
+	private static long getHex(String s, int index, int numBytes) {
+		long value = 0;
+		for(int i = 0; i < 2 * numBytes; i++) {
+			char c = s.charAt(index + i);
+			int digit = (c >= '0' && c <= '9' ? c - '0' : (c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1));
+			if(digit < 0)
+				return -1;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,248 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Transport that simulates a bad network on top of another Transport,
+ * whether that's a real socket or an {@link InMemoryNetwork}. Outgoing
+ * packets may be lost (randomly or in bursts), delayed, jittered, reordered,
+ * duplicated and corrupted according to the transport's {@link NetworkConditions}, and
+ * incoming packets may be lost. Delayed packets are held by a DelayedSendThread and sent once
+ * their delay has passed.
+ */
+public class ImpairedTransport implements Transport {
+	private static final Logger logger = Logger.getLogger(ImpairedTransport.class.getName());
+	private final Object RANDOM_LOCK = new Object();
+	private Transport transport;
+	private NetworkConditions conditions;
+	private Random random;
+	private boolean isInBurst;
+	private DelayQueue<DelayedDatagram> delayedDatagrams;
+	private DelayedSendThread delayedSendThread;
+	private long numPacketsSent;
+	private long numPacketsDropped;
+	private long numPacketsDuplicated;
+	private long numPacketsReordered;
+	private long numPacketsCorrupted;
+	private long numPacketsReceived;
+	private long numIncomingPacketsDropped;
+
+	public ImpairedTransport(Transport transport, NetworkConditions conditions) {
+		this.transport = transport;
+		this.conditions = new NetworkConditions(conditions == null ? new NetworkConditions() : conditions);
+		random = new Random(this.conditions.getSeed());
+		isInBurst = false;
+		delayedDatagrams = new DelayQueue<DelayedDatagram>();
+		delayedSendThread = null;
+		if(this.conditions.isDelayed()) {
+			delayedSendThread = new DelayedSendThread(this);
+			delayedSendThread.setDaemon(true);
+			delayedSendThread.start();
+		}
+	}
+
+	public NetworkConditions getNetworkConditions() {
+		return new NetworkConditions(conditions);
+	}
+
+	public void send(DatagramPacket datagramPacket) throws IOException {
+		int numCopies;
+		long[] delays;
+		int corruptedBit = -1;
+		synchronized(RANDOM_LOCK) {
+			numPacketsSent++;
+
+			//decide whether the packet gets lost, either as part of a burst or on its own
+			if(isInBurst) {
+				if(random.nextDouble() < conditions.getBurstEndRate())
+					isInBurst = false;
+			}
+			else if(random.nextDouble() < conditions.getBurstStartRate())
+				isInBurst = true;
+			double lossRate = (isInBurst ? conditions.getBurstLossRate() : conditions.getLossRate());
+			if(random.nextDouble() < lossRate) {
+				numPacketsDropped++;
+				if(logger.isLoggable(Level.FINEST))
+					logger.finest("Simulating loss of outgoing packet" + (isInBurst ? " in burst" : ""));
+				return;
+			}
+
+			//decide whether the packet is duplicated and how long each copy is delayed
+			numCopies = 1;
+			if(random.nextDouble() < conditions.getDuplicateRate()) {
+				numPacketsDuplicated++;
+				numCopies = 2;
+			}
+			delays = new long[numCopies];
+			for(int i = 0; i < numCopies; i++) {
+				long delay = conditions.getLatency();
+				if(conditions.getJitter() > 0)
+					delay += random.nextInt(2 * conditions.getJitter() + 1) - conditions.getJitter();
+				if(random.nextDouble() < conditions.getReorderRate()) {
+					numPacketsReordered++;
+					delay += conditions.getReorderDelay();
+				}
+				delays[i] = Math.max(0, delay);
+			}
+
+			//decide whether a bit of the packet gets flipped on the way
+			if(datagramPacket.getLength() > 0 && random.nextDouble() < conditions.getCorruptionRate()) {
+				numPacketsCorrupted++;
+				corruptedBit = random.nextInt(8 * datagramPacket.getLength());
+			}
+		}
+
+		//the caller may reuse its buffer, so only a copy is damaged
+		if(corruptedBit >= 0) {
+			datagramPacket = copy(datagramPacket);
+			datagramPacket.getData()[corruptedBit / 8] ^= (byte) (1 << (corruptedBit % 8));
+		}
+
+		for(int i = 0; i < numCopies; i++) {
+			if(delays[i] <= 0 || delayedSendThread == null)
+				transport.send(datagramPacket);
+			else
+				delayedDatagrams.put(new DelayedDatagram(copy(datagramPacket), delays[i]));
+		}
+	}
+
+	public void receive(DatagramPacket datagramPacket) throws IOException {
+		while(true) {
+			transport.receive(datagramPacket);
+			synchronized(RANDOM_LOCK) {
+				numPacketsReceived++;
+				if(conditions.getIncomingLossRate() <= 0.0 || random.nextDouble() >= conditions.getIncomingLossRate())
+					return;
+				numIncomingPacketsDropped++;
+			}
+			logger.finest("Simulating loss of incoming packet");
+
+			//receive() shrinks the packet's length to the size of what was received, so restore it before trying again
+			datagramPacket.setLength(datagramPacket.getData().length - datagramPacket.getOffset());
+		}
+	}
+
+	public void close() {
+		if(delayedSendThread != null)
+			delayedSendThread.stopSending();
+		delayedDatagrams.clear();
+		transport.close();
+	}
+
+	public long getNumPacketsSent() {
+		synchronized(RANDOM_LOCK) {
+			return numPacketsSent;
+		}
+	}
+
+	public long getNumPacketsDropped() {
+		synchronized(RANDOM_LOCK) {
+			return numPacketsDropped;
+		}
+	}
+
+	public long getNumPacketsDuplicated() {
+		synchronized(RANDOM_LOCK) {
+			return numPacketsDuplicated;
+		}
+	}
+
+	public long getNumPacketsReordered() {
+		synchronized(RANDOM_LOCK) {
+			return numPacketsReordered;
+		}
+	}
+
+	public long getNumPacketsCorrupted() {
+		synchronized(RANDOM_LOCK) {
+			return numPacketsCorrupted;
+		}
+	}
+
+	public long getNumPacketsReceived() {
+		synchronized(RANDOM_LOCK) {
+			return numPacketsReceived;
+		}
+	}
+
+	public long getNumIncomingPacketsDropped() {
+		synchronized(RANDOM_LOCK) {
+			return numIncomingPacketsDropped;
+		}
+	}
+
+	public int getLocalPort() {
+		return transport.getLocalPort();
+	}
+
+	private void sendNow(DatagramPacket datagramPacket) throws IOException {
+		transport.send(datagramPacket);
+	}
+
+	private static DatagramPacket copy(DatagramPacket datagramPacket) {
+		byte[] bytes = new byte[datagramPacket.getLength()];
+		System.arraycopy(datagramPacket.getData(), datagramPacket.getOffset(), bytes, 0, bytes.length);
+		return new DatagramPacket(bytes, bytes.length, datagramPacket.getAddress(), datagramPacket.getPort());
+	}
+
+	private static class DelayedDatagram implements Delayed {
+		private DatagramPacket datagramPacket;
+		private long timeToSend;
+
+		public DelayedDatagram(DatagramPacket datagramPacket, long delayInMilliseconds) {
+			this.datagramPacket = datagramPacket;
+			timeToSend = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMilliseconds);
+		}
+
+		public DatagramPacket getDatagramPacket() {
+			return datagramPacket;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(timeToSend - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long delta = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+			return (delta < 0 ? -1 : (delta > 0 ? 1 : 0));
+		}
+	}
+
+	private static class DelayedSendThread extends Thread {
+		private ImpairedTransport transport;
+		private boolean isSending;
+
+		public DelayedSendThread(ImpairedTransport transport) {
+			super();
+			this.transport = transport;
+			isSending = true;
+		}
+
+		public void run() {
+			while(isSending) {
+				try {
+					DelayedDatagram delayedDatagram = transport.delayedDatagrams.take();
+					if(isSending)
+						transport.sendNow(delayedDatagram.getDatagramPacket());
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+					//a delayed packet that can't be sent is just another lost packet
+					if(logger.isLoggable(Level.FINEST))
+						logger.finest("IOException while sending delayed packet: " + e.getMessage());
+				}
+			}
+		}
+
+		public void stopSending() {
+			isSending = false;
+			interrupt();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A network that only exists inside the JVM. Every transport opened on it
+ * lives at {@link #ADDRESS} on its own port, and datagrams sent between them
+ * are copied into the receiver's lock-free queue instead of going through the
+ * kernel. Pass the network to {@link Server#setTransportFactory} and
+ * {@link ClientConnection#setTransportFactory} to run both ends in one
+ * process.
+ */
+public class InMemoryNetwork implements TransportFactory {
+	private static final Logger logger = Logger.getLogger(InMemoryNetwork.class.getName());
+	public static final InetAddress ADDRESS = createAddress();
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	private static final int MINIMUM_EPHEMERAL_PORT = 49152;
+	private static final int MAXIMUM_PORT = 65535;
+	private ConcurrentHashMap<Integer, InMemoryTransport> transports;
+	private AtomicInteger nextEphemeralPort;
+	private int queueCapacity;
+	private AtomicLong numPacketsDelivered;
+	private AtomicLong numPacketsDropped;
+
+	public InMemoryNetwork() {
+		this(InMemoryNetwork.DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param queueCapacity number of undelivered datagrams a transport holds before dropping new ones, like a full socket buffer
+	 */
+	public InMemoryNetwork(int queueCapacity) {
+		transports = new ConcurrentHashMap<Integer, InMemoryTransport>();
+		nextEphemeralPort = new AtomicInteger(0);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		numPacketsDelivered = new AtomicLong();
+		numPacketsDropped = new AtomicLong();
+	}
+
+	public Transport openTransport(int port) throws SocketException {
+		if(port < 0 || port > InMemoryNetwork.MAXIMUM_PORT)
+			throw new SocketException("Port out of range: " + port);
+		if(port != 0) {
+			InMemoryTransport transport = new InMemoryTransport(this, port);
+			if(transports.putIfAbsent(port, transport) != null)
+				throw new BindException("Port " + port + " is already in use.");
+			return transport;
+		}
+
+		//find the next free ephemeral port, giving up once every one has been tried
+		int numEphemeralPorts = InMemoryNetwork.MAXIMUM_PORT - InMemoryNetwork.MINIMUM_EPHEMERAL_PORT + 1;
+		for(int i = 0; i < numEphemeralPorts; i++) {
+			int ephemeralPort = InMemoryNetwork.MINIMUM_EPHEMERAL_PORT + (nextEphemeralPort.getAndIncrement() & Integer.MAX_VALUE) % numEphemeralPorts;
+			InMemoryTransport transport = new InMemoryTransport(this, ephemeralPort);
+			if(transports.putIfAbsent(ephemeralPort, transport) == null)
+				return transport;
+		}
+		throw new BindException("No ephemeral ports available.");
+	}
+
+	public int getNumTransports() {
+		return transports.size();
+	}
+
+	public long getNumPacketsDelivered() {
+		return numPacketsDelivered.get();
+	}
+
+	public long getNumPacketsDropped() {
+		return numPacketsDropped.get();
+	}
+
+	private void deliver(DatagramPacket datagramPacket, int sourcePort) {
+		InMemoryTransport destination = null;
+		if(InMemoryNetwork.ADDRESS.equals(datagramPacket.getAddress()))
+			destination = transports.get(datagramPacket.getPort());
+
+		//just like UDP, sending to nobody or to a full queue silently loses the packet
+		if(destination == null || !destination.enqueue(datagramPacket, sourcePort)) {
+			numPacketsDropped.incrementAndGet();
+			logger.finest("Dropping in-memory packet to port " + datagramPacket.getPort());
+			return;
+		}
+		numPacketsDelivered.incrementAndGet();
+	}
+
+	private void release(InMemoryTransport transport) {
+		transports.remove(transport.getLocalPort(), transport);
+	}
+
+	private static InetAddress createAddress() {
+		try {
+			return InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		} catch (UnknownHostException e) {
+			//only thrown for addresses of an illegal length
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class InMemoryTransport implements Transport {
+		private InMemoryNetwork network;
+		private int port;
+		private ConcurrentLinkedQueue<QueuedDatagram> queue;
+		private AtomicInteger queueSize;
+		private volatile Thread receivingThread;
+		private volatile boolean isClosed;
+
+		public InMemoryTransport(InMemoryNetwork network, int port) {
+			this.network = network;
+			this.port = port;
+			queue = new ConcurrentLinkedQueue<QueuedDatagram>();
+			queueSize = new AtomicInteger();
+			receivingThread = null;
+			isClosed = false;
+		}
+
+		public void send(DatagramPacket datagramPacket) throws IOException {
+			if(isClosed)
+				throw new SocketException("Socket is closed");
+			network.deliver(datagramPacket, port);
+		}
+
+		public void receive(DatagramPacket datagramPacket) throws IOException {
+			QueuedDatagram queuedDatagram;
+			while((queuedDatagram = queue.poll()) == null) {
+				if(isClosed)
+					throw new SocketException("Socket is closed");
+
+				//publish ourselves before re-checking the queue so a sender either sees us or we see its packet
+				receivingThread = Thread.currentThread();
+				if(queue.isEmpty() && !isClosed)
+					LockSupport.park(this);
+				receivingThread = null;
+			}
+			queueSize.decrementAndGet();
+
+			int length = Math.min(queuedDatagram.bytes.length, datagramPacket.getData().length - datagramPacket.getOffset());
+			System.arraycopy(queuedDatagram.bytes, 0, datagramPacket.getData(), datagramPacket.getOffset(), length);
+			datagramPacket.setLength(length);
+			datagramPacket.setAddress(InMemoryNetwork.ADDRESS);
+			datagramPacket.setPort(queuedDatagram.sourcePort);
+		}
+
+		public int getLocalPort() {
+			return port;
+		}
+
+		public void close() {
+			isClosed = true;
+			network.release(this);
+			wakeReceiver();
+		}
+
+		private boolean enqueue(DatagramPacket datagramPacket, int sourcePort) {
+			if(isClosed)
+				return false;
+			if(queueSize.incrementAndGet() > network.queueCapacity) {
+				queueSize.decrementAndGet();
+				return false;
+			}
+			byte[] bytes = new byte[datagramPacket.getLength()];
+			System.arraycopy(datagramPacket.getData(), datagramPacket.getOffset(), bytes, 0, bytes.length);
+			queue.offer(new QueuedDatagram(bytes, sourcePort));
+			wakeReceiver();
+			return true;
+		}
+
+		private void wakeReceiver() {
+			Thread thread = receivingThread;
+			if(thread != null)
+				LockSupport.unpark(thread);
+		}
+	}
+
+	private static class QueuedDatagram {
+		private final byte[] bytes;
+		private final int sourcePort;
+
+		public QueuedDatagram(byte[] bytes, int sourcePort) {
+			this.bytes = bytes;
+			this.sourcePort = sourcePort;
+		}
+	}
+}
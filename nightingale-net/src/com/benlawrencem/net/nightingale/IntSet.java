@@ -0,0 +1,107 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * A set of ints kept as a sorted array, without boxing. Meant for small
+ * sets like the members of a group or the groups a client belongs to, where
+ * a binary search is as fast as hashing and iterating is just walking an
+ * array. Not thread-safe.
+ */
+public class IntSet {
+	private static final int DEFAULT_CAPACITY = 8;
+	private int[] elements;
+	private int size;
+
+	public IntSet() {
+		this(IntSet.DEFAULT_CAPACITY);
+	}
+
+	public IntSet(int capacity) {
+		elements = new int[Math.max(1, capacity)];
+		size = 0;
+	}
+
+	/**
+	 * @return whether the value was added, i.e. it wasn't already in the set
+	 */
+	public boolean add(int value) {
+		int index = indexOf(value);
+		if(index >= 0)
+			return false;
+		index = -(index + 1);
+		if(size == elements.length) {
+			int[] newElements = new int[2 * elements.length];
+			System.arraycopy(elements, 0, newElements, 0, size);
+			elements = newElements;
+		}
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		elements[index] = value;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return whether the value was removed, i.e. it was in the set
+	 */
+	public boolean remove(int value) {
+		int index = indexOf(value);
+		if(index < 0)
+			return false;
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		size--;
+		return true;
+	}
+
+	public boolean contains(int value) {
+		return indexOf(value) >= 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the value at the index, in ascending order
+	 */
+	public int get(int index) {
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + " is out of range for set of size " + size + ".");
+		return elements[index];
+	}
+
+	public int[] toArray() {
+		int[] array = new int[size];
+		System.arraycopy(elements, 0, array, 0, size);
+		return array;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * The backing array, valid up to {@link #size()}, for callers that
+	 * promise not to change it.
+	 */
+	int[] getElements() {
+		return elements;
+	}
+
+	private int indexOf(int value) {
+		int low = 0;
+		int high = size - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(elements[middle] < value)
+				low = middle + 1;
+			else if(elements[middle] > value)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,404 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads the clients connecting to one public port across several Server
+ * processes, each using a {@link ProxiedTransport}. Only the first bytes of
+ * each datagram are looked at: anonymous CONNECT_REQUESTs from a new client
+ * pick a backend, and from then on everything from that client's address is
+ * pinned to the same backend. Datagrams are never decoded or re-encoded,
+ * and each is forwarded from the buffer it was received into, with the proxy
+ * header written into the space left in front of it.
+ *
+ * One thread forwards everything arriving at the public port, and each
+ * backend has a thread forwarding its replies back to the clients.
+ */
+public class LoadBalancer {
+	private static final Logger logger = Logger.getLogger(LoadBalancer.class.getName());
+	public static enum Policy {
+		/** new clients go to the backend with the fewest clients pinned to it */
+		LEAST_CLIENTS,
+		/** new clients go to the backend their address hashes to, so a restarted load balancer sends established clients back where they were */
+		CONSISTENT_HASHING
+	};
+	public static final int DEFAULT_PIN_TIMEOUT = 60000;
+	private static final int VIRTUAL_NODES_PER_BACKEND = 64;
+	private static final int TIME_BETWEEN_SWEEPS = 1000;
+	private int port;
+	private Backend[] backends;
+	private TreeMap<Integer, Backend> hashRing;
+	private TransportFactory transportFactory;
+	private Policy policy;
+	private int pinTimeout;
+	private Clock clock;
+	private volatile Clock activeClock;
+	private ConcurrentHashMap<InetSocketAddress, Pin> pins;
+	private Transport publicTransport;
+	private ForwardingThread forwardingThread;
+	private SweepThread sweepThread;
+	private volatile long now;
+	private volatile boolean isRunning;
+	private AtomicLong numPacketsForwarded;
+	private AtomicLong numPacketsDropped;
+
+	/**
+	 * @param port the public port clients connect to
+	 * @param backendAddresses where the backend servers are listening
+	 */
+	public LoadBalancer(int port, List<InetSocketAddress> backendAddresses) {
+		if(backendAddresses == null || backendAddresses.isEmpty())
+			throw new IllegalArgumentException("A load balancer needs at least one backend.");
+		this.port = port;
+		backends = new Backend[backendAddresses.size()];
+		hashRing = new TreeMap<Integer, Backend>();
+		for(int i = 0; i < backends.length; i++) {
+			backends[i] = new Backend(backendAddresses.get(i));
+			for(int j = 0; j < LoadBalancer.VIRTUAL_NODES_PER_BACKEND; j++)
+				hashRing.put(mix(backendAddresses.get(i).hashCode() * 31 + j), backends[i]);
+		}
+		transportFactory = DatagramSocketTransport.FACTORY;
+		policy = Policy.LEAST_CLIENTS;
+		pinTimeout = LoadBalancer.DEFAULT_PIN_TIMEOUT;
+		clock = MonotonicClock.INSTANCE;
+		activeClock = clock;
+		pins = new ConcurrentHashMap<InetSocketAddress, Pin>();
+		isRunning = false;
+		numPacketsForwarded = new AtomicLong();
+		numPacketsDropped = new AtomicLong();
+	}
+
+	/**
+	 * Only takes effect the next time the load balancer is started.
+	 */
+	public void setTransportFactory(TransportFactory factory) {
+		transportFactory = (factory == null ? DatagramSocketTransport.FACTORY : factory);
+	}
+
+	public void setPolicy(Policy policy) {
+		this.policy = (policy == null ? Policy.LEAST_CLIENTS : policy);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param pinTimeout how many milliseconds a client can be silent before it is unpinned from its backend--longer than the servers' timeouts and session grace periods
+	 */
+	public void setPinTimeout(int pinTimeout) {
+		this.pinTimeout = Math.max(1, pinTimeout);
+	}
+
+	public int getPinTimeout() {
+		return pinTimeout;
+	}
+
+	/**
+	 * Chooses the clock pins' idle times are measured with. Only takes effect
+	 * the next time the load balancer is started. Pass null for the
+	 * {@link MonotonicClock}.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public synchronized void start() throws SocketException {
+		if(isRunning)
+			return;
+		try {
+			publicTransport = transportFactory.openTransport(port);
+			for(Backend backend : backends)
+				backend.transport = transportFactory.openTransport(0);
+		} catch (SocketException e) {
+			closeTransports();
+			throw e;
+		}
+		activeClock = clock;
+		now = activeClock.currentTimeMillis();
+		isRunning = true;
+		forwardingThread = new ForwardingThread(this);
+		forwardingThread.start();
+		for(Backend backend : backends) {
+			backend.replyThread = new ReplyThread(this, backend);
+			backend.replyThread.start();
+		}
+		sweepThread = new SweepThread(this);
+		sweepThread.start();
+		logger.fine("Load balancing port " + port + " across " + backends.length + " backends");
+	}
+
+	public synchronized void stop() {
+		if(!isRunning)
+			return;
+		isRunning = false;
+		closeTransports();
+		sweepThread.interrupt();
+		pins.clear();
+		for(Backend backend : backends)
+			backend.numClients.set(0);
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	public int getNumBackends() {
+		return backends.length;
+	}
+
+	/**
+	 * @return how many clients are pinned to the backend, indexed in the order the backends were given
+	 */
+	public int getNumClients(int backendIndex) {
+		return backends[backendIndex].numClients.get();
+	}
+
+	public long getNumPacketsForwarded() {
+		return numPacketsForwarded.get();
+	}
+
+	/**
+	 * @return datagrams that weren't packets, or weren't from a client of any backend
+	 */
+	public long getNumPacketsDropped() {
+		return numPacketsDropped.get();
+	}
+
+	private void closeTransports() {
+		if(publicTransport != null)
+			publicTransport.close();
+		publicTransport = null;
+		for(Backend backend : backends) {
+			if(backend.transport != null)
+				backend.transport.close();
+			backend.transport = null;
+		}
+	}
+
+	/**
+	 * Sends a datagram from a client on to its backend. The datagram sits at
+	 * {@link ProxiedTransport#MAXIMUM_HEADER_SIZE} in the buffer so the proxy
+	 * header fits in front of it.
+	 */
+	private void forwardToBackend(DatagramPacket datagramPacket) throws IOException {
+		byte[] buffer = datagramPacket.getData();
+		int start = datagramPacket.getOffset();
+		int length = datagramPacket.getLength();
+		InetAddress clientAddress = datagramPacket.getAddress();
+		int clientPort = datagramPacket.getPort();
+		Pin pin = pins.get(new InetSocketAddress(clientAddress, clientPort));
+
+		//peek at just enough of the header to tell a new client from one we've lost track of
+		if(pin == null) {
+			byte[] packetBytes = buffer;
+			if(start != 0) {
+				packetBytes = new byte[Math.min(length, Packet.MAXIMUM_HEADER_SIZE)];
+				System.arraycopy(buffer, start, packetBytes, 0, packetBytes.length);
+			}
+			if(!Packet.peekIsValidProtocol(packetBytes, Math.min(length, packetBytes.length)) || Packet.peekHeaderSize(packetBytes, Math.min(length, packetBytes.length)) < 0) {
+				numPacketsDropped.incrementAndGet();
+				return;
+			}
+			boolean isNewClient = (Packet.peekConnectionId(packetBytes) == Packet.ANONYMOUS_CONNECTION_ID);
+			if(!isNewClient && policy != Policy.CONSISTENT_HASHING) {
+				logger.finest("Dropping packet from " + clientAddress + ":" + clientPort + " because it isn't pinned to any backend");
+				numPacketsDropped.incrementAndGet();
+				return;
+			}
+			pin = pinClient(new InetSocketAddress(clientAddress, clientPort));
+		}
+		pin.lastActiveTime = now;
+
+		int headerStart = ProxiedTransport.putHeader(buffer, start, clientAddress, clientPort);
+		datagramPacket.setData(buffer, headerStart, start - headerStart + length);
+		datagramPacket.setAddress(pin.backend.address.getAddress());
+		datagramPacket.setPort(pin.backend.address.getPort());
+		Transport backendTransport = pin.backend.transport;
+		if(backendTransport != null) {
+			backendTransport.send(datagramPacket);
+			numPacketsForwarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends a backend's reply on to the client named in its proxy header,
+	 * straight from the buffer it was received into.
+	 */
+	private void forwardToClient(Backend backend, DatagramPacket datagramPacket) throws IOException {
+		byte[] buffer = datagramPacket.getData();
+		int headerSize = ProxiedTransport.getHeaderSize(buffer, 0, datagramPacket.getLength());
+		if(headerSize < 0 || !backend.address.getAddress().equals(datagramPacket.getAddress()) || backend.address.getPort() != datagramPacket.getPort()) {
+			numPacketsDropped.incrementAndGet();
+			return;
+		}
+		InetAddress clientAddress = ProxiedTransport.getAddress(buffer, 0);
+		if(clientAddress == null) {
+			numPacketsDropped.incrementAndGet();
+			return;
+		}
+		int clientPort = ProxiedTransport.getPort(buffer, headerSize);
+		datagramPacket.setData(buffer, headerSize, datagramPacket.getLength() - headerSize);
+		datagramPacket.setAddress(clientAddress);
+		datagramPacket.setPort(clientPort);
+		Transport transport = publicTransport;
+		if(transport != null) {
+			transport.send(datagramPacket);
+			numPacketsForwarded.incrementAndGet();
+		}
+	}
+
+	private Pin pinClient(InetSocketAddress client) {
+		Backend backend;
+		if(policy == Policy.CONSISTENT_HASHING) {
+			Map.Entry<Integer, Backend> entry = hashRing.ceilingEntry(mix(client.hashCode()));
+			backend = (entry == null ? hashRing.firstEntry() : entry).getValue();
+		}
+		else {
+			backend = backends[0];
+			for(int i = 1; i < backends.length; i++) {
+				if(backends[i].numClients.get() < backend.numClients.get())
+					backend = backends[i];
+			}
+		}
+		Pin pin = new Pin(backend, now);
+		Pin existingPin = pins.putIfAbsent(client, pin);
+		if(existingPin != null)
+			return existingPin;
+		backend.numClients.incrementAndGet();
+		logger.finer("Pinned " + client + " to backend " + backend.address);
+		return pin;
+	}
+
+	private void unpinIdleClients() {
+		now = activeClock.currentTimeMillis();
+		for(Iterator<Pin> iter = pins.values().iterator(); iter.hasNext();) {
+			Pin pin = iter.next();
+			if(pin.lastActiveTime + pinTimeout <= now) {
+				iter.remove();
+				pin.backend.numClients.decrementAndGet();
+			}
+		}
+	}
+
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static class Backend {
+		private final InetSocketAddress address;
+		private final AtomicInteger numClients;
+		private volatile Transport transport;
+		private ReplyThread replyThread;
+
+		public Backend(InetSocketAddress address) {
+			this.address = address;
+			numClients = new AtomicInteger();
+			transport = null;
+			replyThread = null;
+		}
+	}
+
+	private static class Pin {
+		private final Backend backend;
+		private volatile long lastActiveTime;
+
+		public Pin(Backend backend, long lastActiveTime) {
+			this.backend = backend;
+			this.lastActiveTime = lastActiveTime;
+		}
+	}
+
+	private static class ForwardingThread extends Thread {
+		private LoadBalancer loadBalancer;
+
+		public ForwardingThread(LoadBalancer loadBalancer) {
+			this.loadBalancer = loadBalancer;
+			setDaemon(true);
+		}
+
+		public void run() {
+			byte[] buffer = new byte[ProxiedTransport.MAXIMUM_HEADER_SIZE + Packet.MAXIMUM_DATAGRAM_SIZE];
+			DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
+			Transport transport = loadBalancer.publicTransport;
+			while(loadBalancer.isRunning) {
+				try {
+					//leave room in front for the proxy header
+					datagramPacket.setData(buffer, ProxiedTransport.MAXIMUM_HEADER_SIZE, Packet.MAXIMUM_DATAGRAM_SIZE);
+					transport.receive(datagramPacket);
+					loadBalancer.forwardToBackend(datagramPacket);
+				} catch (IOException e) {
+					//keep going--a backend that can't be reached looks like packet loss to its clients
+					if(logger.isLoggable(Level.FINEST))
+						logger.finest("IOException while forwarding to backend: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static class ReplyThread extends Thread {
+		private LoadBalancer loadBalancer;
+		private Backend backend;
+
+		public ReplyThread(LoadBalancer loadBalancer, Backend backend) {
+			this.loadBalancer = loadBalancer;
+			this.backend = backend;
+			setDaemon(true);
+		}
+
+		public void run() {
+			byte[] buffer = new byte[ProxiedTransport.MAXIMUM_HEADER_SIZE + Packet.MAXIMUM_DATAGRAM_SIZE];
+			DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
+			Transport transport = backend.transport;
+			while(loadBalancer.isRunning) {
+				try {
+					datagramPacket.setData(buffer, 0, buffer.length);
+					transport.receive(datagramPacket);
+					loadBalancer.forwardToClient(backend, datagramPacket);
+				} catch (IOException e) {
+					if(logger.isLoggable(Level.FINEST))
+						logger.finest("IOException while forwarding to client: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static class SweepThread extends Thread {
+		private LoadBalancer loadBalancer;
+
+		public SweepThread(LoadBalancer loadBalancer) {
+			this.loadBalancer = loadBalancer;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while(loadBalancer.isRunning) {
+				loadBalancer.unpinIdleClients();
+				try {
+					Thread.sleep(LoadBalancer.TIME_BETWEEN_SWEEPS);
+				} catch (InterruptedException e) {}
+			}
+		}
+	}
+}
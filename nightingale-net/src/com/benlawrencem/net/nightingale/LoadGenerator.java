@@ -0,0 +1,624 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
+
+/**
+ * Simulates many clients from one process to load test a server. Unlike
+ * that many ClientConnections, the simulated clients share a few sockets
+ * and threads: each socket carries up to {@link #getClientsPerSocket()}
+ * clients, told apart by their connection ids, with one thread receiving on
+ * each socket and one more driving every client's sends, pings and
+ * timeouts. Each client still has its own PacketRecorder, so the server
+ * sees ordinary clients.
+ *
+ * A server hands out at most 255 connection ids, and a {@link LoadBalancer}
+ * sends everything from one address to the same backend, so reaching
+ * thousands of clients takes a load balancer in front of enough servers.
+ * Clients on a socket connect one at a time, since until it's accepted
+ * nothing tells their replies apart--{@link #setConnectInterval} keeps that
+ * under the server's connect rate limit.
+ *
+ * Usage: LoadGenerator host port clients [messages/s] [size] [burst] [seconds]
+ */
+public class LoadGenerator {
+	private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+	public static final int DEFAULT_CLIENTS_PER_SOCKET = 64;
+	public static final int DEFAULT_CONNECT_INTERVAL = 50;
+	private static final int CONNECT_REQUEST_TIMEOUT = 3000;
+	private static final int RECEIVE_PACKET_TIMEOUT = 3000;
+	private static final int KEEP_ALIVE_INTERVAL = ClientConnection.DEFAULT_KEEP_ALIVE_INTERVAL;
+	private static final int TIME_BETWEEN_UPDATES = 2;
+	private static final int MINIMUM_CONNECT_REQUEST_LENGTH = 64;
+	private static final int MAXIMUM_MESSAGE_SIZE = Packet.MAXIMUM_PACKET_SIZE - Packet.MAXIMUM_HEADER_SIZE;
+	private static final int NUM_LATENCY_BUCKETS = 2000;
+	private int numClients;
+	private int clientsPerSocket;
+	private int connectInterval;
+	private volatile SendPattern sendPattern;
+	private TransportFactory transportFactory;
+	private Clock clock;
+	private volatile Clock activeClock;
+	private SharedSocket[] sockets;
+	private SimulatedClient[] clients;
+	private DriverThread driverThread;
+	private volatile boolean isRunning;
+	private AtomicLong numConnected;
+	private AtomicLong numConnectFailures;
+	private AtomicLong numDisconnects;
+	private AtomicLong numMessagesSent;
+	private AtomicLong numBytesSent;
+	private AtomicLong numMessagesLost;
+	private AtomicLong numMessagesReceived;
+	private AtomicLongArray latencies;
+
+	/**
+	 * How each connected client sends messages: bursts of burstSize messages
+	 * spaced so each client averages messagesPerSecond.
+	 */
+	public static class SendPattern {
+		private final double messagesPerSecond;
+		private final int messageSize;
+		private final int burstSize;
+
+		/**
+		 * @param messagesPerSecond messages each client sends per second on average, or 0 to only ping
+		 * @param messageSize characters per message
+		 * @param burstSize messages sent back to back each time
+		 */
+		public SendPattern(double messagesPerSecond, int messageSize, int burstSize) {
+			this.messagesPerSecond = Math.max(0.0, messagesPerSecond);
+			this.messageSize = Math.max(0, Math.min(LoadGenerator.MAXIMUM_MESSAGE_SIZE, messageSize));
+			this.burstSize = Math.max(1, burstSize);
+		}
+
+		public double getMessagesPerSecond() {
+			return messagesPerSecond;
+		}
+
+		public int getMessageSize() {
+			return messageSize;
+		}
+
+		public int getBurstSize() {
+			return burstSize;
+		}
+
+		/**
+		 * @return milliseconds between bursts, or -1 if nothing is sent
+		 */
+		long getTimeBetweenBursts() {
+			return (messagesPerSecond <= 0.0 ? -1 : Math.max(1, (long) (1000.0 * burstSize / messagesPerSecond)));
+		}
+	}
+
+	public LoadGenerator(int numClients) {
+		this.numClients = Math.max(1, numClients);
+		clientsPerSocket = LoadGenerator.DEFAULT_CLIENTS_PER_SOCKET;
+		connectInterval = LoadGenerator.DEFAULT_CONNECT_INTERVAL;
+		sendPattern = new SendPattern(10.0, 32, 1);
+		transportFactory = DatagramSocketTransport.FACTORY;
+		clock = MonotonicClock.INSTANCE;
+		activeClock = clock;
+		isRunning = false;
+		numConnected = new AtomicLong();
+		numConnectFailures = new AtomicLong();
+		numDisconnects = new AtomicLong();
+		numMessagesSent = new AtomicLong();
+		numBytesSent = new AtomicLong();
+		numMessagesLost = new AtomicLong();
+		numMessagesReceived = new AtomicLong();
+		latencies = new AtomicLongArray(LoadGenerator.NUM_LATENCY_BUCKETS + 1);
+	}
+
+	public static void main(String[] args) {
+		if(args == null || args.length < 3) {
+			System.out.println("Usage: LoadGenerator host port clients [messages/s] [size] [burst] [seconds]");
+			return;
+		}
+		try {
+			LoadGenerator generator = new LoadGenerator(Integer.parseInt(args[2]));
+			generator.setSendPattern(new SendPattern(
+					(args.length > 3 ? Double.parseDouble(args[3]) : 10.0),
+					(args.length > 4 ? Integer.parseInt(args[4]) : 32),
+					(args.length > 5 ? Integer.parseInt(args[5]) : 1)));
+			int seconds = (args.length > 6 ? Integer.parseInt(args[6]) : 30);
+			generator.start(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
+			for(int i = 0; i < seconds; i++) {
+				Thread.sleep(1000);
+				System.out.println(generator.getSummary());
+			}
+			generator.stop();
+		} catch (NumberFormatException e) {
+			System.out.println("Could not generate load: " + e.getMessage() + " is not a number");
+		} catch (IOException e) {
+			System.out.println("Could not generate load: " + e.getMessage());
+		} catch (InterruptedException e) {
+			//stop early
+		}
+	}
+
+	public void setTransportFactory(TransportFactory factory) {
+		transportFactory = (factory == null ? DatagramSocketTransport.FACTORY : factory);
+	}
+
+	/**
+	 * Only takes effect the next time the generator is started.
+	 */
+	public void setClientsPerSocket(int clientsPerSocket) {
+		this.clientsPerSocket = Math.max(1, Math.min(Packet.MAXIMUM_CONNECTION_ID, clientsPerSocket));
+	}
+
+	public int getClientsPerSocket() {
+		return clientsPerSocket;
+	}
+
+	/**
+	 * @param connectInterval the fewest milliseconds between connect requests from one socket
+	 */
+	public void setConnectInterval(int connectInterval) {
+		this.connectInterval = Math.max(0, connectInterval);
+	}
+
+	public int getConnectInterval() {
+		return connectInterval;
+	}
+
+	/**
+	 * Can be changed while running--clients pick it up after their next burst.
+	 */
+	public void setSendPattern(SendPattern sendPattern) {
+		if(sendPattern != null)
+			this.sendPattern = sendPattern;
+	}
+
+	public SendPattern getSendPattern() {
+		return sendPattern;
+	}
+
+	/**
+	 * Chooses the clock sends, timeouts and round trip times are measured
+	 * with. Only takes effect the next time the generator is started. Pass
+	 * null for the {@link MonotonicClock}.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Opens the sockets and starts connecting every client.
+	 */
+	public synchronized void start(InetAddress serverAddress, int serverPort) throws SocketException {
+		if(isRunning)
+			return;
+		InetSocketAddress server = new InetSocketAddress(serverAddress, serverPort);
+		int numSockets = (numClients + clientsPerSocket - 1) / clientsPerSocket;
+		sockets = new SharedSocket[numSockets];
+		clients = new SimulatedClient[numClients];
+		try {
+			for(int i = 0; i < numSockets; i++)
+				sockets[i] = new SharedSocket(this, transportFactory.openTransport(0), server);
+		} catch (SocketException e) {
+			for(SharedSocket socket : sockets) {
+				if(socket != null)
+					socket.transport.close();
+			}
+			throw e;
+		}
+		Random random = new Random();
+		activeClock = clock;
+		long now = activeClock.currentTimeMillis();
+		for(int i = 0; i < numClients; i++) {
+			clients[i] = new SimulatedClient(this, sockets[i / clientsPerSocket]);
+
+			//start the clients' bursts at different times so they don't all send at once
+			long timeBetweenBursts = sendPattern.getTimeBetweenBursts();
+			clients[i].nextSendTime = now + (timeBetweenBursts > 0 ? (long) (random.nextDouble() * timeBetweenBursts) : 0);
+			sockets[i / clientsPerSocket].waitingClients.add(clients[i]);
+		}
+		isRunning = true;
+		for(SharedSocket socket : sockets) {
+			socket.receivePacketThread = new ReceivePacketThread(socket, socket.transport);
+			socket.receivePacketThread.setDaemon(true);
+			socket.receivePacketThread.start();
+		}
+		driverThread = new DriverThread(this);
+		driverThread.start();
+		logger.fine("Simulating " + numClients + " clients of " + server + " over " + numSockets + " sockets");
+	}
+
+	/**
+	 * Disconnects every client and closes the sockets.
+	 */
+	public synchronized void stop() {
+		if(!isRunning)
+			return;
+		isRunning = false;
+		for(SimulatedClient client : clients)
+			client.disconnect();
+		for(SharedSocket socket : sockets) {
+			socket.receivePacketThread.stopReceiving();
+			socket.transport.close();
+		}
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	public int getNumClients() {
+		return numClients;
+	}
+
+	public long getNumConnected() {
+		return numConnected.get();
+	}
+
+	/**
+	 * @return connect requests that were refused or timed out--those clients try again
+	 */
+	public long getNumConnectFailures() {
+		return numConnectFailures.get();
+	}
+
+	/**
+	 * @return clients that timed out or were disconnected by the server
+	 */
+	public long getNumDisconnects() {
+		return numDisconnects.get();
+	}
+
+	public long getNumMessagesSent() {
+		return numMessagesSent.get();
+	}
+
+	public long getNumBytesSent() {
+		return numBytesSent.get();
+	}
+
+	/**
+	 * @return sent messages the server's acknowledgements showed were lost
+	 */
+	public long getNumMessagesLost() {
+		return numMessagesLost.get();
+	}
+
+	public long getNumMessagesReceived() {
+		return numMessagesReceived.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the round trip time, in milliseconds, that the percentile of samples came back within, or -1 if none have
+	 */
+	public long getLatencyPercentile(double percentile) {
+		long total = 0;
+		for(int i = 0; i < latencies.length(); i++)
+			total += latencies.get(i);
+		if(total == 0)
+			return -1;
+		long threshold = (long) Math.ceil(total * Math.max(0.0, Math.min(100.0, percentile)) / 100.0);
+		long count = 0;
+		for(int i = 0; i < latencies.length(); i++) {
+			count += latencies.get(i);
+			if(count >= threshold && count > 0)
+				return i;
+		}
+		return latencies.length() - 1;
+	}
+
+	public void resetStatistics() {
+		numConnectFailures.set(0);
+		numDisconnects.set(0);
+		numMessagesSent.set(0);
+		numBytesSent.set(0);
+		numMessagesLost.set(0);
+		numMessagesReceived.set(0);
+		for(int i = 0; i < latencies.length(); i++)
+			latencies.set(i, 0);
+	}
+
+	public String getSummary() {
+		long numSent = getNumMessagesSent();
+		return getNumConnected() + "/" + numClients + " connected, "
+				+ numSent + " sent (" + getNumBytesSent() + " bytes), "
+				+ getNumMessagesReceived() + " received, "
+				+ getNumMessagesLost() + " lost" + (numSent > 0 ? String.format(" (%.2f%%)", 100.0 * getNumMessagesLost() / numSent) : "") + ", "
+				+ "rtt p50 " + getLatencyPercentile(50) + "ms p99 " + getLatencyPercentile(99) + "ms, "
+				+ getNumConnectFailures() + " connect failures, " + getNumDisconnects() + " disconnects";
+	}
+
+	private void recordLatency(long latency) {
+		latencies.incrementAndGet((int) Math.max(0, Math.min(LoadGenerator.NUM_LATENCY_BUCKETS, latency)));
+	}
+
+	private void update() {
+		long now = activeClock.currentTimeMillis();
+		for(SharedSocket socket : sockets)
+			socket.connectNextClient(now);
+		SendPattern pattern = sendPattern;
+		for(SimulatedClient client : clients)
+			client.update(now, pattern);
+	}
+
+	/**
+	 * One socket and the clients using it. Replies to connect requests carry
+	 * no connection id yet, so they belong to whichever client is connecting.
+	 */
+	private static class SharedSocket implements PacketReceiver {
+		private final LoadGenerator generator;
+		private final Transport transport;
+		private final InetSocketAddress server;
+		private final SimulatedClient[] clientsById;
+		private final ArrayDeque<SimulatedClient> waitingClients;
+		private ReceivePacketThread receivePacketThread;
+		private SimulatedClient connectingClient;
+		private long lastConnectTime;
+
+		public SharedSocket(LoadGenerator generator, Transport transport, InetSocketAddress server) {
+			this.generator = generator;
+			this.transport = transport;
+			this.server = server;
+			clientsById = new SimulatedClient[Packet.MAXIMUM_CONNECTION_ID + 1];
+			waitingClients = new ArrayDeque<SimulatedClient>();
+			connectingClient = null;
+			lastConnectTime = 0;
+		}
+
+		public void connectNextClient(long now) {
+			SimulatedClient client;
+			synchronized(this) {
+				if(connectingClient != null || waitingClients.isEmpty() || now - lastConnectTime < generator.connectInterval)
+					return;
+				client = connectingClient = waitingClients.poll();
+				lastConnectTime = now;
+			}
+
+			//clients lock themselves before their socket, never the other way around
+			client.connect(now);
+		}
+
+		/**
+		 * Lets the next client connect, and puts the client back in line if it has to try again.
+		 */
+		public synchronized void finishConnecting(SimulatedClient client, boolean isConnected) {
+			if(connectingClient == client)
+				connectingClient = null;
+			if(isConnected)
+				clientsById[client.clientId] = client;
+			else if(generator.isRunning)
+				waitingClients.add(client);
+		}
+
+		public synchronized void removeClient(SimulatedClient client) {
+			if(client.clientId != Packet.ANONYMOUS_CONNECTION_ID && clientsById[client.clientId] == client)
+				clientsById[client.clientId] = null;
+			if(generator.isRunning)
+				waitingClients.add(client);
+		}
+
+		public void receivePacket(Packet packet, InetSocketAddress source) {
+			if(packet == null || !packet.isValidProtocol() || !server.equals(source))
+				return;
+			SimulatedClient client;
+			synchronized(this) {
+				if(packet.isAnonymousConnection() || packet.getMessageType() == MessageType.CONNECTION_ACCEPTED)
+					client = connectingClient;
+				else
+					client = clientsById[packet.getConnectionId()];
+			}
+			if(client != null)
+				client.receivePacket(packet);
+		}
+
+		public void send(Packet packet, boolean isApplicationMessage) throws PacketEncodingException, IOException {
+			byte[] bytes = packet.toByteArray();
+			transport.send(new DatagramPacket(bytes, bytes.length, server.getAddress(), server.getPort()));
+			if(isApplicationMessage) {
+				generator.numMessagesSent.incrementAndGet();
+				generator.numBytesSent.addAndGet(bytes.length);
+			}
+		}
+	}
+
+	private static class SimulatedClient {
+		private static final int WAITING = 0;
+		private static final int CONNECTING = 1;
+		private static final int CONNECTED = 2;
+		private final LoadGenerator generator;
+		private final SharedSocket socket;
+		private final PacketRecorder recorder;
+		private int state;
+		private int clientId;
+		private boolean hasAnsweredChallenge;
+		private long connectTime;
+		private long lastReceiveTime;
+		private long lastSendTime;
+		private long nextSendTime;
+		private long latency;
+		private String message;
+
+		public SimulatedClient(LoadGenerator generator, SharedSocket socket) {
+			this.generator = generator;
+			this.socket = socket;
+			recorder = new PacketRecorder(generator.activeClock);
+			state = SimulatedClient.WAITING;
+			clientId = Packet.ANONYMOUS_CONNECTION_ID;
+			message = "";
+		}
+
+		public synchronized void connect(long now) {
+			recorder.reset();
+			clientId = Packet.ANONYMOUS_CONNECTION_ID;
+			hasAnsweredChallenge = false;
+			latency = -1;
+			state = SimulatedClient.CONNECTING;
+			connectTime = now;
+			sendConnectRequest(null);
+		}
+
+		public synchronized void disconnect() {
+			if(state == SimulatedClient.CONNECTED) {
+				send(Packet.createClientDisconnectPacket(clientId));
+				generator.numConnected.decrementAndGet();
+			}
+			state = SimulatedClient.WAITING;
+		}
+
+		public synchronized void update(long now, SendPattern pattern) {
+			if(state == SimulatedClient.CONNECTING) {
+				if(now - connectTime >= LoadGenerator.CONNECT_REQUEST_TIMEOUT) {
+					state = SimulatedClient.WAITING;
+					generator.numConnectFailures.incrementAndGet();
+					socket.finishConnecting(this, false);
+				}
+				return;
+			}
+			if(state != SimulatedClient.CONNECTED)
+				return;
+			if(now - lastReceiveTime >= LoadGenerator.RECEIVE_PACKET_TIMEOUT) {
+				logger.finer("Simulated client " + clientId + " timed out");
+				drop();
+				return;
+			}
+			if(now - lastSendTime >= LoadGenerator.KEEP_ALIVE_INTERVAL || now - lastReceiveTime >= LoadGenerator.KEEP_ALIVE_INTERVAL)
+				send(Packet.createPingPacket(clientId, latency));
+			long timeBetweenBursts = pattern.getTimeBetweenBursts();
+			if(timeBetweenBursts > 0 && now >= nextSendTime) {
+				if(message.length() != pattern.getMessageSize())
+					message = createMessage(pattern.getMessageSize());
+				for(int i = 0; i < pattern.getBurstSize(); i++)
+					send(Packet.createApplicationPacket(clientId, message));
+
+				//keep to the schedule, but don't try to catch up on bursts missed while the driver fell behind
+				nextSendTime = Math.max(nextSendTime + timeBetweenBursts, now);
+			}
+
+			//like a real client, acknowledge messages nothing else has carried an acknowledgement for
+			if(recorder.isAcknowledgementDue(PacketRecorder.DEFAULT_ACKNOWLEDGEMENT_THRESHOLD, PacketRecorder.DEFAULT_ACKNOWLEDGEMENT_DELAY))
+				send(Packet.createAcknowledgementPacket(clientId));
+		}
+
+		public synchronized void receivePacket(Packet packet) {
+			if(state == SimulatedClient.CONNECTING && packet.getMessageType() == MessageType.CONNECT_CHALLENGE) {
+				if(!hasAnsweredChallenge) {
+					hasAnsweredChallenge = true;
+					sendConnectRequest(packet.getMessage());
+				}
+				return;
+			}
+			if(state == SimulatedClient.WAITING || recorder.hasRecordedIncomingPacket(packet))
+				return;
+			recorder.recordIncomingPacket(packet);
+			for(Packet undeliveredPacket : recorder.getUndeliveredPackets()) {
+				if(undeliveredPacket.getMessageType() == MessageType.APPLICATION)
+					generator.numMessagesLost.incrementAndGet();
+			}
+			lastReceiveTime = generator.activeClock.currentTimeMillis();
+			long roundTripTime = recorder.takeRoundTripTimeSample();
+			if(roundTripTime >= 0) {
+				latency = roundTripTime;
+				generator.recordLatency(roundTripTime);
+			}
+
+			switch(packet.getMessageType()) {
+				case CONNECTION_ACCEPTED:
+					if(state == SimulatedClient.CONNECTING) {
+						clientId = packet.getConnectionId();
+						state = SimulatedClient.CONNECTED;
+						nextSendTime = Math.max(nextSendTime, lastReceiveTime);
+						generator.numConnected.incrementAndGet();
+						socket.finishConnecting(this, true);
+					}
+					break;
+				case CONNECTION_REFUSED:
+					if(state == SimulatedClient.CONNECTING) {
+						state = SimulatedClient.WAITING;
+						generator.numConnectFailures.incrementAndGet();
+						socket.finishConnecting(this, false);
+					}
+					break;
+				case APPLICATION:
+					generator.numMessagesReceived.incrementAndGet();
+					break;
+				case FORCE_DISCONNECT:
+					logger.finer("Simulated client " + clientId + " disconnected by server: " + packet.getMessage());
+					drop();
+					break;
+				default:
+					break;
+			}
+		}
+
+		private void drop() {
+			state = SimulatedClient.WAITING;
+			generator.numConnected.decrementAndGet();
+			generator.numDisconnects.incrementAndGet();
+			socket.removeClient(this);
+		}
+
+		private void sendConnectRequest(String cookie) {
+			ConnectionOptions requestedOptions = new ConnectionOptions();
+			if(cookie != null)
+				requestedOptions.set(ConnectionOptions.COOKIE, cookie);
+			requestedOptions.padTo(LoadGenerator.MINIMUM_CONNECT_REQUEST_LENGTH);
+			send(Packet.createConnectRequestPacket(requestedOptions));
+		}
+
+		private void send(Packet packet) {
+			if(packet.getMessageType() != MessageType.ACKNOWLEDGEMENT)
+				recorder.recordAndAddSequenceNumberToOutgoingPacket(packet);
+			recorder.addReceivedPacketHistoryToOutgoingPacket(packet);
+			try {
+				socket.send(packet, packet.getMessageType() == MessageType.APPLICATION);
+				lastSendTime = generator.activeClock.currentTimeMillis();
+			} catch (PacketEncodingException e) {
+				logger.finest("Simulated client could not encode packet: " + e.getMessage());
+			} catch (IOException e) {
+				if(logger.isLoggable(Level.FINEST))
+					logger.finest("Simulated client could not send packet: " + e.getMessage());
+			}
+		}
+
+		private static String createMessage(int size) {
+			char[] chars = new char[size];
+			for(int i = 0; i < size; i++)
+				chars[i] = (char) ('a' + i % 26);
+			return new String(chars);
+		}
+	}
+
+	private static class DriverThread extends Thread {
+		private LoadGenerator generator;
+
+		public DriverThread(LoadGenerator generator) {
+			this.generator = generator;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while(generator.isRunning) {
+				generator.update();
+				try {
+					Thread.sleep(LoadGenerator.TIME_BETWEEN_UPDATES);
+				} catch (InterruptedException e) {}
+			}
+		}
+	}
+}
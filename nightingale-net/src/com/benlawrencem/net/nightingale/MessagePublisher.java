@@ -0,0 +1,295 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands incoming application messages to subscribers only as fast as they
+ * ask for them, following the Reactive Streams rules: a subscriber is sent
+ * at most as many messages as it has requested, one at a time, and nothing
+ * after it cancels.
+ *
+ * Each subscriber has a bounded buffer for messages it hasn't asked for
+ * yet. When a buffer is full the {@link DropPolicy} decides what gives.
+ * With DROP_NEWEST the incoming packet is refused before it is recorded as
+ * received, so the sender's acknowledgements show it lost--the same
+ * onMessageNotDelivered or failed {@link DeliveryFuture} as any other lost
+ * message, which is its cue to slow down or send again later.
+ *
+ * Messages that arrive while nobody is subscribed are only passed to
+ * onReceive, which is called for every message either way.
+ */
+public class MessagePublisher {
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+	public static enum DropPolicy {
+		/** refuse new messages while a subscriber's buffer is full, so the sender sees them as lost */
+		DROP_NEWEST,
+		/** make room by throwing away the oldest buffered message, for streams where only the latest matters */
+		DROP_OLDEST
+	};
+	private CopyOnWriteArrayList<MessageSubscription> subscriptions;
+	private volatile int bufferSize;
+	private volatile DropPolicy dropPolicy;
+	private AtomicLong numDropped;
+
+	public static interface Subscriber {
+		/**
+		 * Called before anything else--nothing is sent until the subscriber requests it.
+		 */
+		public void onSubscribe(Subscription subscription);
+		public void onNext(InboundMessage message);
+		public void onError(Throwable throwable);
+
+		/**
+		 * Called once the connection closes or the server stops and every buffered message has been sent.
+		 */
+		public void onComplete();
+	}
+
+	public static interface Subscription {
+		/**
+		 * Asks for up to n more messages; Long.MAX_VALUE asks for all of them.
+		 */
+		public void request(long n);
+		public void cancel();
+	}
+
+	public static class InboundMessage {
+		private final int clientId;
+		private final String message;
+
+		public InboundMessage(int clientId, String message) {
+			this.clientId = clientId;
+			this.message = message;
+		}
+
+		/**
+		 * @return the client that sent the message, or on a client the id the server gave it
+		 */
+		public int getClientId() {
+			return clientId;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public String toString() {
+			return clientId + ": " + message;
+		}
+	}
+
+	MessagePublisher() {
+		subscriptions = new CopyOnWriteArrayList<MessageSubscription>();
+		bufferSize = MessagePublisher.DEFAULT_BUFFER_SIZE;
+		dropPolicy = DropPolicy.DROP_NEWEST;
+		numDropped = new AtomicLong();
+	}
+
+	public void subscribe(Subscriber subscriber) {
+		if(subscriber == null)
+			throw new NullPointerException("Subscriber must not be null.");
+		MessageSubscription subscription = new MessageSubscription(this, subscriber);
+		subscriber.onSubscribe(subscription);
+		subscriptions.add(subscription);
+	}
+
+	/**
+	 * @param bufferSize how many messages each subscriber can fall behind by before messages are dropped
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = Math.max(1, bufferSize);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setDropPolicy(DropPolicy dropPolicy) {
+		this.dropPolicy = (dropPolicy == null ? DropPolicy.DROP_NEWEST : dropPolicy);
+	}
+
+	public DropPolicy getDropPolicy() {
+		return dropPolicy;
+	}
+
+	public int getNumSubscribers() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return how many messages were refused or thrown away because a subscriber fell behind
+	 */
+	public long getNumDropped() {
+		return numDropped.get();
+	}
+
+	/**
+	 * Buffers the message for every subscriber without calling any of them,
+	 * so it can be called with the connection locked. {@link #deliver()}
+	 * passes it on.
+	 *
+	 * @return false if the message was refused under DROP_NEWEST and shouldn't be recorded as received
+	 */
+	boolean offer(int clientId, String message) {
+		if(subscriptions.isEmpty())
+			return true;
+		int size = bufferSize;
+		boolean dropsNewest = (dropPolicy == DropPolicy.DROP_NEWEST);
+		if(dropsNewest) {
+			for(MessageSubscription subscription : subscriptions) {
+				if(subscription.isFull(size)) {
+					numDropped.incrementAndGet();
+					return false;
+				}
+			}
+		}
+		InboundMessage inboundMessage = new InboundMessage(clientId, message);
+		for(MessageSubscription subscription : subscriptions) {
+			if(subscription.add(inboundMessage, size))
+				numDropped.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Completes every current subscription once its buffer is empty. Like
+	 * offer(), only {@link #deliver()} calls the subscribers.
+	 */
+	void close() {
+		for(MessageSubscription subscription : subscriptions)
+			subscription.close();
+	}
+
+	/**
+	 * Sends subscribers whatever they've asked for--never call while holding
+	 * a connection lock.
+	 */
+	void deliver() {
+		if(subscriptions.isEmpty())
+			return;
+		for(MessageSubscription subscription : subscriptions) {
+			subscription.drain();
+			if(subscription.isTerminated())
+				subscriptions.remove(subscription);
+		}
+	}
+
+	private static class MessageSubscription implements Subscription {
+		private final MessagePublisher publisher;
+		private final Subscriber subscriber;
+		private final ArrayDeque<InboundMessage> buffer;
+		private final AtomicInteger numDrainsRequested;
+		private long demand;
+		private boolean isClosing;
+		private boolean isTerminated;
+		private Throwable error;
+
+		public MessageSubscription(MessagePublisher publisher, Subscriber subscriber) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+			buffer = new ArrayDeque<InboundMessage>();
+			numDrainsRequested = new AtomicInteger();
+			demand = 0;
+			isClosing = false;
+			isTerminated = false;
+			error = null;
+		}
+
+		public void request(long n) {
+			synchronized(this) {
+				if(isTerminated)
+					return;
+				if(n <= 0)
+					error = new IllegalArgumentException("Must request a positive number of messages, not " + n + ".");
+				else
+					demand = (demand + n < 0 ? Long.MAX_VALUE : demand + n);
+			}
+			drain();
+		}
+
+		public void cancel() {
+			synchronized(this) {
+				isTerminated = true;
+				buffer.clear();
+			}
+			publisher.subscriptions.remove(this);
+		}
+
+		public synchronized boolean isFull(int bufferSize) {
+			return !isTerminated && !isClosing && buffer.size() >= bufferSize;
+		}
+
+		/**
+		 * @return whether the oldest message was thrown away to make room
+		 */
+		public synchronized boolean add(InboundMessage message, int bufferSize) {
+			if(isTerminated || isClosing)
+				return false;
+			boolean droppedOldest = false;
+			while(buffer.size() >= bufferSize) {
+				buffer.poll();
+				droppedOldest = true;
+			}
+			buffer.add(message);
+			return droppedOldest;
+		}
+
+		public synchronized void close() {
+			isClosing = true;
+		}
+
+		public synchronized boolean isTerminated() {
+			return isTerminated;
+		}
+
+		/**
+		 * Sends as much as has been asked for. Whichever thread gets here first
+		 * does the sending, picking up anything other threads add meanwhile,
+		 * so the subscriber is only ever called by one thread at a time.
+		 */
+		public void drain() {
+			if(numDrainsRequested.getAndIncrement() != 0)
+				return;
+			int numMissed = 1;
+			do {
+				while(true) {
+					InboundMessage message = null;
+					Throwable errorToSignal = null;
+					boolean isComplete = false;
+					synchronized(this) {
+						if(isTerminated)
+							break;
+						if(error != null) {
+							errorToSignal = error;
+							isTerminated = true;
+							buffer.clear();
+						}
+						else if(demand > 0 && !buffer.isEmpty()) {
+							message = buffer.poll();
+							if(demand != Long.MAX_VALUE)
+								demand--;
+						}
+						else if(isClosing && buffer.isEmpty()) {
+							isComplete = true;
+							isTerminated = true;
+						}
+						else
+							break;
+					}
+
+					//the subscriber is called outside the lock so it can request more from within onNext
+					if(message != null)
+						subscriber.onNext(message);
+					else if(errorToSignal != null)
+						subscriber.onError(errorToSignal);
+					else if(isComplete)
+						subscriber.onComplete();
+				}
+				numMissed = numDrainsRequested.addAndGet(-numMissed);
+			} while(numMissed != 0);
+		}
+	}
+}
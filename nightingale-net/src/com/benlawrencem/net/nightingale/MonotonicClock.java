@@ -0,0 +1,15 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * The default {@link Clock}, read from System.nanoTime(), which only ever
+ * moves forward however the system's wall clock is set.
+ */
+public class MonotonicClock implements Clock {
+	public static final MonotonicClock INSTANCE = new MonotonicClock();
+
+	private MonotonicClock() {}
+
+	public long currentTimeMillis() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,181 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Describes the network impairments an {@link ImpairedTransport} should
+ * simulate. Loss is modelled with a two-state (Gilbert-Elliott) model: while
+ * in the "good" state packets are lost with probability lossRate, and while in
+ * a burst they are lost with probability burstLossRate. All randomness comes
+ * from a single seeded generator so a run can be reproduced exactly.
+ */
+public class NetworkConditions {
+	private double lossRate;
+	private double burstStartRate;
+	private double burstEndRate;
+	private double burstLossRate;
+	private double incomingLossRate;
+	private int latency;
+	private int jitter;
+	private double reorderRate;
+	private int reorderDelay;
+	private double duplicateRate;
+	private double corruptionRate;
+	private long seed;
+
+	public NetworkConditions() {
+		lossRate = 0.0;
+		burstStartRate = 0.0;
+		burstEndRate = 1.0;
+		burstLossRate = 1.0;
+		incomingLossRate = 0.0;
+		latency = 0;
+		jitter = 0;
+		reorderRate = 0.0;
+		reorderDelay = 0;
+		duplicateRate = 0.0;
+		corruptionRate = 0.0;
+		seed = 0;
+	}
+
+	public NetworkConditions(NetworkConditions conditions) {
+		lossRate = conditions.lossRate;
+		burstStartRate = conditions.burstStartRate;
+		burstEndRate = conditions.burstEndRate;
+		burstLossRate = conditions.burstLossRate;
+		incomingLossRate = conditions.incomingLossRate;
+		latency = conditions.latency;
+		jitter = conditions.jitter;
+		reorderRate = conditions.reorderRate;
+		reorderDelay = conditions.reorderDelay;
+		duplicateRate = conditions.duplicateRate;
+		corruptionRate = conditions.corruptionRate;
+		seed = conditions.seed;
+	}
+
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	public void setLossRate(double lossRate) {
+		this.lossRate = clampProbability(lossRate);
+	}
+
+	public double getBurstStartRate() {
+		return burstStartRate;
+	}
+
+	/**
+	 * @param burstStartRate probability that an outgoing packet not in a burst starts one
+	 */
+	public void setBurstStartRate(double burstStartRate) {
+		this.burstStartRate = clampProbability(burstStartRate);
+	}
+
+	public double getBurstEndRate() {
+		return burstEndRate;
+	}
+
+	/**
+	 * @param burstEndRate probability that an outgoing packet in a burst ends it
+	 */
+	public void setBurstEndRate(double burstEndRate) {
+		this.burstEndRate = clampProbability(burstEndRate);
+	}
+
+	public double getBurstLossRate() {
+		return burstLossRate;
+	}
+
+	public void setBurstLossRate(double burstLossRate) {
+		this.burstLossRate = clampProbability(burstLossRate);
+	}
+
+	public double getIncomingLossRate() {
+		return incomingLossRate;
+	}
+
+	public void setIncomingLossRate(double incomingLossRate) {
+		this.incomingLossRate = clampProbability(incomingLossRate);
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	public void setLatency(int latencyInMilliseconds) {
+		latency = Math.max(0, latencyInMilliseconds);
+	}
+
+	public int getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @param jitterInMilliseconds maximum amount added to or subtracted from the latency of each packet
+	 */
+	public void setJitter(int jitterInMilliseconds) {
+		jitter = Math.max(0, jitterInMilliseconds);
+	}
+
+	public double getReorderRate() {
+		return reorderRate;
+	}
+
+	public void setReorderRate(double reorderRate) {
+		this.reorderRate = clampProbability(reorderRate);
+	}
+
+	public int getReorderDelay() {
+		return reorderDelay;
+	}
+
+	/**
+	 * @param reorderDelayInMilliseconds extra delay given to reordered packets so later packets overtake them
+	 */
+	public void setReorderDelay(int reorderDelayInMilliseconds) {
+		reorderDelay = Math.max(0, reorderDelayInMilliseconds);
+	}
+
+	public double getDuplicateRate() {
+		return duplicateRate;
+	}
+
+	public void setDuplicateRate(double duplicateRate) {
+		this.duplicateRate = clampProbability(duplicateRate);
+	}
+
+	public double getCorruptionRate() {
+		return corruptionRate;
+	}
+
+	/**
+	 * @param corruptionRate the chance an outgoing packet has one of its bits flipped
+	 */
+	public void setCorruptionRate(double corruptionRate) {
+		this.corruptionRate = clampProbability(corruptionRate);
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public boolean isDelayed() {
+		return latency > 0 || jitter > 0 || (reorderRate > 0.0 && reorderDelay > 0);
+	}
+
+	public String toString() {
+		return "loss=" + lossRate + " burst=" + burstStartRate + "/" + burstEndRate + "/" + burstLossRate + " incomingLoss=" + incomingLossRate
+				+ " latency=" + latency + "ms jitter=" + jitter + "ms reorder=" + reorderRate + "/" + reorderDelay + "ms duplicate=" + duplicateRate + " corruption=" + corruptionRate + " seed=" + seed;
+	}
+
+	private static double clampProbability(double probability) {
+		if(probability < 0.0 || Double.isNaN(probability))
+			return 0.0;
+		if(probability > 1.0)
+			return 1.0;
+		return probability;
+	}
+}
@@ -0,0 +1,18 @@
+package com.benlawrencem.net.nightingale;
+
+import com.benlawrencem.net.nightingale.NetworkEvents.DropReason;
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+
+/**
+ * A NetworkEventListener that ignores every event, to extend when only a
+ * few events are of interest.
+ */
+public class NetworkEventAdapter implements NetworkEventListener {
+	public void onPacketReceived(int connectionId, int sequenceNumber, String address, int port, int numBytes) {}
+	public void onPacketSent(int connectionId, int sequenceNumber, String address, int port, int numBytes) {}
+	public void onPacketDropped(DropReason reason, int connectionId, String address, int port) {}
+	public void onPacketLost(int connectionId, int sequenceNumber, MessageType messageType) {}
+	public void onClientConnected(int connectionId, String address, int port) {}
+	public void onClientTimedOut(int connectionId, long timeSinceLastCommunication) {}
+	public void onRoundTripTime(int connectionId, long roundTripTime) {}
+}
@@ -0,0 +1,21 @@
+package com.benlawrencem.net.nightingale;
+
+import com.benlawrencem.net.nightingale.NetworkEvents.DropReason;
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+
+/**
+ * Receives transport events once registered with
+ * {@link NetworkEvents#enable(NetworkEventListener, int)}, e.g. to feed a
+ * profiler or metrics system. Methods are called on the networking threads
+ * in the middle of handling packets, so they should return quickly and must
+ * not call back into the Server or ClientConnection.
+ */
+public interface NetworkEventListener {
+	void onPacketReceived(int connectionId, int sequenceNumber, String address, int port, int numBytes);
+	void onPacketSent(int connectionId, int sequenceNumber, String address, int port, int numBytes);
+	void onPacketDropped(DropReason reason, int connectionId, String address, int port);
+	void onPacketLost(int connectionId, int sequenceNumber, MessageType messageType);
+	void onClientConnected(int connectionId, String address, int port);
+	void onClientTimedOut(int connectionId, long timeSinceLastCommunication);
+	void onRoundTripTime(int connectionId, long roundTripTime);
+}
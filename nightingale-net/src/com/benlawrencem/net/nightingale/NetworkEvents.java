@@ -0,0 +1,139 @@
+package com.benlawrencem.net.nightingale;
+
+import java.net.InetSocketAddress;
+
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+
+/**
+ * Reports what the transport is doing--packets received, sent, dropped and
+ * lost, clients connecting and timing out, and round trip times--to a
+ * single {@link NetworkEventListener}, so the transport shows up next to
+ * GC pauses and the like in whatever the listener records to. Every event
+ * type is off until enabled, and while off an event costs one volatile read.
+ *
+ * Applications running on a JVM with Flight Recorder can register a
+ * listener that commits their own jdk.jfr.Event subclasses.
+ */
+public class NetworkEvents {
+	public static final int PACKET_RECEIVED = 0x01;
+	public static final int PACKET_SENT = 0x02;
+	public static final int PACKET_DROPPED = 0x04;
+	public static final int PACKET_LOST = 0x08;
+	public static final int CLIENT_CONNECTED = 0x10;
+	public static final int CLIENT_TIMED_OUT = 0x20;
+	public static final int ROUND_TRIP_TIME = 0x40;
+	public static final int ALL = 0x7F;
+
+	public static enum DropReason {
+		MALFORMED, INVALID_PROTOCOL, NOT_CONNECTED, UNKNOWN_CONNECTION,
+		UNEXPECTED_ADDRESS, NOT_DECOMPRESSIBLE, ALREADY_RECEIVED,
+		UNEXPECTED_MESSAGE_TYPE, QUEUE_FULL, RATE_LIMITED, NOT_AUTHENTIC,
+		CORRUPTED
+	};
+
+	private static volatile int enabledEvents = 0;
+	private static volatile NetworkEventListener listener = null;
+	private static volatile long roundTripTimeThreshold = 0;
+
+	private NetworkEvents() {}
+
+	/**
+	 * @param events the event types to report, e.g. PACKET_DROPPED | CLIENT_TIMED_OUT, or ALL
+	 */
+	public static synchronized void enable(NetworkEventListener listener, int events) {
+		if(listener == null) {
+			disable();
+			return;
+		}
+		NetworkEvents.listener = listener;
+		NetworkEvents.enabledEvents = events & NetworkEvents.ALL;
+	}
+
+	public static synchronized void disable() {
+		NetworkEvents.enabledEvents = 0;
+		NetworkEvents.listener = null;
+	}
+
+	public static boolean isEnabled(int event) {
+		return (enabledEvents & event) != 0;
+	}
+
+	/**
+	 * Only reports round trip times of at least this many milliseconds. 0 (the
+	 * default) reports every sample.
+	 */
+	public static void setRoundTripTimeThreshold(long thresholdInMilliseconds) {
+		roundTripTimeThreshold = Math.max(0, thresholdInMilliseconds);
+	}
+
+	public static long getRoundTripTimeThreshold() {
+		return roundTripTimeThreshold;
+	}
+
+	static void packetReceived(int connectionId, int sequenceNumber, InetSocketAddress source, int numBytes) {
+		if((enabledEvents & NetworkEvents.PACKET_RECEIVED) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onPacketReceived(connectionId, sequenceNumber, source.getAddress().getHostAddress(), source.getPort(), numBytes);
+		}
+	}
+
+	static void packetSent(int connectionId, int sequenceNumber, String address, int port, int numBytes) {
+		if((enabledEvents & NetworkEvents.PACKET_SENT) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onPacketSent(connectionId, sequenceNumber, address, port, numBytes);
+		}
+	}
+
+	/**
+	 * Only turns the destination into a String when someone is listening.
+	 */
+	static void packetSent(int connectionId, int sequenceNumber, InetSocketAddress destination, int numBytes) {
+		if((enabledEvents & NetworkEvents.PACKET_SENT) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onPacketSent(connectionId, sequenceNumber, destination.getAddress().getHostAddress(), destination.getPort(), numBytes);
+		}
+	}
+
+	static void packetDropped(DropReason reason, int connectionId, InetSocketAddress source) {
+		if((enabledEvents & NetworkEvents.PACKET_DROPPED) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onPacketDropped(reason, connectionId, source.getAddress().getHostAddress(), source.getPort());
+		}
+	}
+
+	static void packetLost(int connectionId, int sequenceNumber, MessageType messageType) {
+		if((enabledEvents & NetworkEvents.PACKET_LOST) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onPacketLost(connectionId, sequenceNumber, messageType);
+		}
+	}
+
+	static void clientConnected(int connectionId, String address, int port) {
+		if((enabledEvents & NetworkEvents.CLIENT_CONNECTED) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onClientConnected(connectionId, address, port);
+		}
+	}
+
+	static void clientTimedOut(int connectionId, long timeSinceLastCommunication) {
+		if((enabledEvents & NetworkEvents.CLIENT_TIMED_OUT) != 0) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onClientTimedOut(connectionId, timeSinceLastCommunication);
+		}
+	}
+
+	static void roundTripTime(int connectionId, long roundTripTime) {
+		if((enabledEvents & NetworkEvents.ROUND_TRIP_TIME) != 0 && roundTripTime >= roundTripTimeThreshold) {
+			NetworkEventListener listener = NetworkEvents.listener;
+			if(listener != null)
+				listener.onRoundTripTime(connectionId, roundTripTime);
+		}
+	}
+}
@@ -2,10 +2,24 @@ package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 
 public class Packet {
 	private static final int HEADER_SIZE = 17;
 	private static final int PROTOCOL_ID = 103675707;
+	private static final int COMPACT_HEADER_MINIMUM_SIZE = 3;
+	private static final byte COMPACT_PROTOCOL_TAG = (byte) 0xA0;
+	private static final byte COMPACT_PROTOCOL_TAG_MASK = (byte) 0xF0;
+	private static final byte COMPACT_EXTENSION_HISTORY_FULL = 0x01;
+	private static final byte COMPACT_EXTENSION_COMPRESSED = 0x02;
+	private static final byte PACKET_FLAG_IMMEDIATE = Byte.MIN_VALUE;
+	private static final byte PACKET_FLAG_COMPRESSED = 0x40;
+	private static final byte COMPACT_FLAG_IMMEDIATE = (byte) 0x80;
+	private static final byte COMPACT_FLAG_HAS_SEQUENCE_NUMBER = 0x40;
+	private static final byte COMPACT_FLAG_HAS_DUPLICATE_SEQUENCE_NUMBER = 0x20;
+	private static final byte COMPACT_FLAG_HAS_HISTORY = 0x10;
+	private static final byte COMPACT_MESSAGE_TYPE_MASK = 0x0F;
 	public static final int ANONYMOUS_CONNECTION_ID = 0;
 	public static final int MINIMUM_CONNECTION_ID = 1;
 	public static final int MAXIMUM_CONNECTION_ID = 255;
@@ -13,11 +27,15 @@ public class Packet {
 	public static final int MINIMUM_SEQUENCE_NUMBER = 1;
 	public static final int MAXIMUM_SEQUENCE_NUMBER = 65535;
 	public static final int MAXIMUM_PACKET_SIZE = 512;
+	static final int MAXIMUM_HEADER_SIZE = Packet.HEADER_SIZE;
+	static final int CHECKSUM_SIZE = 4;
+	/** The most a packet can take on the wire once it is sealed and checksummed--what receive buffers need to hold. */
+	public static final int MAXIMUM_DATAGRAM_SIZE = Packet.MAXIMUM_PACKET_SIZE + PacketCipher.MAXIMUM_OVERHEAD + Packet.CHECKSUM_SIZE;
 
 	public static enum MessageType {
 		INVALID, APPLICATION, PING, PING_RESPONSE, CONNECT_REQUEST,
 		CONNECTION_ACCEPTED, CONNECTION_REFUSED, FORCE_DISCONNECT,
-		CLIENT_DISCONNECT
+		CLIENT_DISCONNECT, CONNECT_CHALLENGE, ACKNOWLEDGEMENT, PARITY
 	};
 	private static final byte MESSAGE_TYPE_INVALID = 0;
 	private static final byte MESSAGE_TYPE_APPLICATION = -128;
@@ -28,6 +46,9 @@ public class Packet {
 	private static final byte MESSAGE_TYPE_CONNECTION_REFUSED = -123;
 	private static final byte MESSAGE_TYPE_FORCE_DISCONNECT = -122;
 	private static final byte MESSAGE_TYPE_CLIENT_DISCONNECT = -121;
+	private static final byte MESSAGE_TYPE_CONNECT_CHALLENGE = -120;
+	private static final byte MESSAGE_TYPE_ACKNOWLEDGEMENT = -119;
+	private static final byte MESSAGE_TYPE_PARITY = -118;
 
 	private int protocolId;
 	private int connectionId;
@@ -38,6 +59,8 @@ public class Packet {
 	private boolean isImmediateResponse;
 	private MessageType messageType;
 	private String message;
+	private byte[] compressedMessage;
+	private byte[] parity;
 
 	/* Packet structure:
 	 	int		4 bytes	protocol id
@@ -47,8 +70,29 @@ public class Packet {
 	 	short	2 bytes	last received sequence number
 	 	int		4 bytes	received packet history
 	 	byte	1 byte	packet flags
+	 					0x80: immediate response
+	 					0x40: message is compressed
 	 	byte	1 byte	message type
 	 	String	n bytes	message
+
+	   Compact packet structure (negotiated per connection, see ConnectionOptions.COMPACT_HEADERS):
+	 	byte	1 byte	protocol tag (high nibble 1010) + extension flags (low nibble)
+	 					0x01: packet history omitted because every packet in it was received
+	 					0x02: message is compressed
+	 	byte	1 byte	connection id
+	 	byte	1 byte	packet flags (high nibble) + message type (low nibble)
+	 					0x80: immediate response
+	 					0x40: has sequence number
+	 					0x20: has duplicate sequence number
+	 					0x10: has last received sequence number and packet history
+	 	short	2 bytes	sequence number					(only if present)
+	 	short	2 bytes	duplicate sequence number		(only if present)
+	 	short	2 bytes	last received sequence number	(only if present)
+	 	int		4 bytes	received packet history			(only if present and not full)
+	 	String	n bytes	message
+
+	   Either structure can be followed by a checksum (negotiated per connection, see ConnectionOptions.CHECKSUM):
+	 	int		4 bytes	CRC-32 of everything before it
 	 */
 
 	private Packet() {
@@ -61,6 +105,8 @@ public class Packet {
 		isImmediateResponse = false;
 		messageType = MessageType.INVALID;
 		message = null;
+		compressedMessage = null;
+		parity = null;
 	}
 
 	private Packet(int connectionId, MessageType messageType, String message) {
@@ -156,21 +202,176 @@ public class Packet {
 		this.message = message;
 		if(this.message != null && this.message.equals(""))
 			this.message = null;
+		compressedMessage = null;
+	}
+
+	public boolean isCompressed() {
+		return compressedMessage != null;
+	}
+
+	/**
+	 * Compresses the message so it is sent compressed. The uncompressed
+	 * message is still available from {@link #getMessage()}. Does nothing if
+	 * compressing wouldn't make the message any smaller.
+	 *
+	 * @return whether the message was compressed
+	 */
+	public boolean compressMessage(PayloadCompressor compressor) {
+		if(compressor == null || message == null || compressedMessage != null)
+			return false;
+		compressedMessage = compressor.compress(message.getBytes());
+		return compressedMessage != null;
+	}
+
+	/**
+	 * Restores the message of a packet that was received compressed.
+	 */
+	public void decompressMessage(PayloadCompressor compressor) throws CouldNotDecompressMessageException {
+		if(compressedMessage == null)
+			return;
+		if(compressor == null)
+			throw new CouldNotDecompressMessageException(null);
+		try {
+			setMessage(compressor.decompressToString(compressedMessage, 0, compressedMessage.length));
+		} catch (DataFormatException e) {
+			throw new CouldNotDecompressMessageException(e);
+		}
+	}
+
+	/**
+	 * Uses message bytes that were already compressed elsewhere, e.g. once
+	 * for every recipient of a broadcast. The bytes are shared, not copied.
+	 */
+	void setCompressedMessage(byte[] compressedMessage) {
+		this.compressedMessage = compressedMessage;
+	}
+
+	/**
+	 * @return the binary message of a PARITY packet, see {@link ForwardErrorCorrection}
+	 */
+	byte[] getParity() {
+		return parity;
+	}
+
+	private byte[] getMessageBytes() {
+		if(parity != null)
+			return parity;
+		if(compressedMessage != null)
+			return compressedMessage;
+		return (message == null ? null : message.getBytes());
 	}
 
 	public byte[] toByteArray() throws PacketEncodingException {
-		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (message == null ? 0 : message.length()));
-		buffer.putInt(protocolId);
-		buffer.put(Packet.encodeConnectionId(connectionId));
-		buffer.putShort(Packet.encodeSequenceNumber(sequenceNumber));
-		buffer.putShort(Packet.encodeSequenceNumber(duplicateSequenceNumber));
-		buffer.putShort(Packet.encodeSequenceNumber(lastReceivedSequenceNumber));
-		buffer.putInt(receivedPacketHistory);
-		buffer.put((isImmediateResponse ? Byte.MIN_VALUE : 0));
-		buffer.put(Packet.encodeMessageType(messageType));
-		if(message != null)
-			buffer.put(message.getBytes());
-		return buffer.array();
+		return encode(false, 0);
+	}
+
+	/**
+	 * Encodes the packet with the compact header, which leaves out the fields
+	 * that don't apply to this packet. Always encodes a valid protocol tag.
+	 * The packet history is only meaningful alongside a last received
+	 * sequence number, so it is dropped if there is none.
+	 */
+	public byte[] toCompactByteArray() throws PacketEncodingException {
+		return encode(true, 0);
+	}
+
+	/**
+	 * Encodes the packet with room left over at the end of the array, e.g.
+	 * for a {@link PacketCipher} to seal it in place.
+	 */
+	byte[] encode(boolean isCompact, int numSpareBytes) throws PacketEncodingException {
+		byte[] messageBytes = getMessageBytes();
+		int headerSize = (isCompact ? getCompactHeaderSize() : Packet.HEADER_SIZE);
+		byte[] bytes = new byte[headerSize + (messageBytes == null ? 0 : messageBytes.length) + numSpareBytes];
+		if(isCompact)
+			putCompactHeader(bytes, 0);
+		else
+			putHeader(bytes, 0);
+		if(messageBytes != null)
+			System.arraycopy(messageBytes, 0, bytes, headerSize, messageBytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Encodes only the header, placed so that it ends right where the message
+	 * bytes already in the array begin. This lets one copy of a message be
+	 * sent to many connections with just the header rewritten for each.
+	 *
+	 * @param messageOffset where the message starts--must be at least {@link #MAXIMUM_HEADER_SIZE}
+	 * @return where the header starts, i.e. the offset of the encoded packet
+	 */
+	int putHeaderBefore(byte[] bytes, int messageOffset, boolean isCompact) throws PacketEncodingException {
+		if(isCompact) {
+			int offset = messageOffset - getCompactHeaderSize();
+			putCompactHeader(bytes, offset);
+			return offset;
+		}
+		int offset = messageOffset - Packet.HEADER_SIZE;
+		putHeader(bytes, offset);
+		return offset;
+	}
+
+	private void putHeader(byte[] bytes, int index) throws PacketEncodingException {
+		index = putInt(bytes, index, protocolId);
+		bytes[index++] = Packet.encodeConnectionId(connectionId);
+		index = putShort(bytes, index, Packet.encodeSequenceNumber(sequenceNumber));
+		index = putShort(bytes, index, Packet.encodeSequenceNumber(duplicateSequenceNumber));
+		index = putShort(bytes, index, Packet.encodeSequenceNumber(lastReceivedSequenceNumber));
+		index = putInt(bytes, index, receivedPacketHistory);
+		bytes[index++] = (byte) ((isImmediateResponse ? Packet.PACKET_FLAG_IMMEDIATE : 0) | (compressedMessage != null ? Packet.PACKET_FLAG_COMPRESSED : 0));
+		bytes[index] = Packet.encodeMessageType(messageType);
+	}
+
+	private void putCompactHeader(byte[] bytes, int start) throws PacketEncodingException {
+		byte extensionFlags = (compressedMessage != null ? Packet.COMPACT_EXTENSION_COMPRESSED : 0);
+		byte packetFlags = Packet.encodeCompactMessageType(messageType);
+		if(isImmediateResponse)
+			packetFlags |= Packet.COMPACT_FLAG_IMMEDIATE;
+		int index = start + Packet.COMPACT_HEADER_MINIMUM_SIZE;
+		if(hasSequenceNumber()) {
+			packetFlags |= Packet.COMPACT_FLAG_HAS_SEQUENCE_NUMBER;
+			index = putShort(bytes, index, Packet.encodeSequenceNumber(sequenceNumber));
+		}
+		if(isDuplicate()) {
+			packetFlags |= Packet.COMPACT_FLAG_HAS_DUPLICATE_SEQUENCE_NUMBER;
+			index = putShort(bytes, index, Packet.encodeSequenceNumber(duplicateSequenceNumber));
+		}
+		if(hasReceivedPacketHistory()) {
+			packetFlags |= Packet.COMPACT_FLAG_HAS_HISTORY;
+			index = putShort(bytes, index, Packet.encodeSequenceNumber(lastReceivedSequenceNumber));
+			if(receivedPacketHistory == -1)
+				extensionFlags |= Packet.COMPACT_EXTENSION_HISTORY_FULL;
+			else
+				index = putInt(bytes, index, receivedPacketHistory);
+		}
+		bytes[start] = (byte) (Packet.COMPACT_PROTOCOL_TAG | extensionFlags);
+		bytes[start + 1] = Packet.encodeConnectionId(connectionId);
+		bytes[start + 2] = packetFlags;
+	}
+
+	private int getCompactHeaderSize() {
+		int size = Packet.COMPACT_HEADER_MINIMUM_SIZE;
+		if(hasSequenceNumber())
+			size += 2;
+		if(isDuplicate())
+			size += 2;
+		if(hasReceivedPacketHistory())
+			size += (receivedPacketHistory == -1 ? 2 : 6);
+		return size;
+	}
+
+	private static int putShort(byte[] bytes, int index, short value) {
+		bytes[index] = (byte) (value >> 8);
+		bytes[index + 1] = (byte) value;
+		return index + 2;
+	}
+
+	private static int putInt(byte[] bytes, int index, int value) {
+		bytes[index] = (byte) (value >>> 24);
+		bytes[index + 1] = (byte) (value >>> 16);
+		bytes[index + 2] = (byte) (value >>> 8);
+		bytes[index + 3] = (byte) value;
+		return index + 4;
 	}
 
 	public String toString() {
@@ -283,6 +484,12 @@ public class Packet {
 				return Packet.MESSAGE_TYPE_FORCE_DISCONNECT;
 			case CLIENT_DISCONNECT:
 				return Packet.MESSAGE_TYPE_CLIENT_DISCONNECT;
+			case CONNECT_CHALLENGE:
+				return Packet.MESSAGE_TYPE_CONNECT_CHALLENGE;
+			case ACKNOWLEDGEMENT:
+				return Packet.MESSAGE_TYPE_ACKNOWLEDGEMENT;
+			case PARITY:
+				return Packet.MESSAGE_TYPE_PARITY;
 			default:
 				return Packet.MESSAGE_TYPE_INVALID;
 		}
@@ -306,11 +513,31 @@ public class Packet {
 				return MessageType.FORCE_DISCONNECT;
 			case Packet.MESSAGE_TYPE_CLIENT_DISCONNECT:
 				return MessageType.CLIENT_DISCONNECT;
+			case Packet.MESSAGE_TYPE_CONNECT_CHALLENGE:
+				return MessageType.CONNECT_CHALLENGE;
+			case Packet.MESSAGE_TYPE_ACKNOWLEDGEMENT:
+				return MessageType.ACKNOWLEDGEMENT;
+			case Packet.MESSAGE_TYPE_PARITY:
+				return MessageType.PARITY;
 			default:
 				return MessageType.INVALID;
 		}
 	}
 
+	private static byte encodeCompactMessageType(MessageType messageType) {
+		byte encodedMessageType = Packet.encodeMessageType(messageType);
+		if(encodedMessageType == Packet.MESSAGE_TYPE_INVALID)
+			return 0;
+		return (byte) (encodedMessageType - Packet.MESSAGE_TYPE_APPLICATION + 1);
+	}
+
+	private static MessageType decodeCompactMessageType(byte packetFlags) {
+		int compactMessageType = packetFlags & Packet.COMPACT_MESSAGE_TYPE_MASK;
+		if(compactMessageType == 0)
+			return MessageType.INVALID;
+		return Packet.decodeMessageType((byte) (compactMessageType - 1 + Packet.MESSAGE_TYPE_APPLICATION));
+	}
+
 	public static int nextConnectionId(int connectionId) {
 		if(connectionId == Packet.ANONYMOUS_CONNECTION_ID || connectionId == Packet.MAXIMUM_CONNECTION_ID)
 			return Packet.MINIMUM_CONNECTION_ID;
@@ -341,12 +568,12 @@ public class Packet {
 			throw new NullByteArrayException();
 		if(length > bytes.length)
 			length = bytes.length;
+		if(length > 0 && (bytes[0] & Packet.COMPACT_PROTOCOL_TAG_MASK) == Packet.COMPACT_PROTOCOL_TAG)
+			return parseCompactPacket(bytes, length);
 		if(length < Packet.HEADER_SIZE)
 			throw new NotEnoughBytesException(length);
 
-		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
-		buffer.put(bytes);
-		buffer.flip();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
 		Packet packet = new Packet();
 		packet.protocolId = buffer.getInt();
 		packet.connectionId = decodeConnectionId(buffer.get());
@@ -355,15 +582,165 @@ public class Packet {
 		packet.lastReceivedSequenceNumber = decodeSequenceNumber(buffer.getShort());
 		packet.receivedPacketHistory = buffer.getInt();
 		byte packetFlagsByte = buffer.get();
-		if((packetFlagsByte & Byte.MIN_VALUE) != 0)
+		if((packetFlagsByte & Packet.PACKET_FLAG_IMMEDIATE) != 0)
 			packet.isImmediateResponse = true;
 		packet.messageType = decodeMessageType(buffer.get());
-		packet.message = new String(bytes).substring(Packet.HEADER_SIZE, length);
-		if(packet.message != null && packet.message.equals(""))
-			packet.message = null;
+		packet.setMessageBytes(bytes, Packet.HEADER_SIZE, length, (packetFlagsByte & Packet.PACKET_FLAG_COMPRESSED) != 0);
 		return packet;
 	}
 
+	private static Packet parseCompactPacket(byte[] bytes, int length) throws MalformedPacketException {
+		if(length < Packet.COMPACT_HEADER_MINIMUM_SIZE)
+			throw new NotEnoughBytesException(length, Packet.COMPACT_HEADER_MINIMUM_SIZE);
+		byte extensionFlags = bytes[0];
+		byte packetFlags = bytes[2];
+
+		//work out how long the header is before reading any of it
+		int headerSize = Packet.COMPACT_HEADER_MINIMUM_SIZE;
+		if((packetFlags & Packet.COMPACT_FLAG_HAS_SEQUENCE_NUMBER) != 0)
+			headerSize += 2;
+		if((packetFlags & Packet.COMPACT_FLAG_HAS_DUPLICATE_SEQUENCE_NUMBER) != 0)
+			headerSize += 2;
+		if((packetFlags & Packet.COMPACT_FLAG_HAS_HISTORY) != 0)
+			headerSize += ((extensionFlags & Packet.COMPACT_EXTENSION_HISTORY_FULL) != 0 ? 2 : 6);
+		if(length < headerSize)
+			throw new NotEnoughBytesException(length, headerSize);
+
+		Packet packet = new Packet();
+		packet.connectionId = decodeConnectionId(bytes[1]);
+		packet.isImmediateResponse = (packetFlags & Packet.COMPACT_FLAG_IMMEDIATE) != 0;
+		packet.messageType = decodeCompactMessageType(packetFlags);
+		int index = Packet.COMPACT_HEADER_MINIMUM_SIZE;
+		if((packetFlags & Packet.COMPACT_FLAG_HAS_SEQUENCE_NUMBER) != 0) {
+			packet.sequenceNumber = getUnsignedShort(bytes, index);
+			index += 2;
+		}
+		if((packetFlags & Packet.COMPACT_FLAG_HAS_DUPLICATE_SEQUENCE_NUMBER) != 0) {
+			packet.duplicateSequenceNumber = getUnsignedShort(bytes, index);
+			index += 2;
+		}
+		if((packetFlags & Packet.COMPACT_FLAG_HAS_HISTORY) != 0) {
+			packet.lastReceivedSequenceNumber = getUnsignedShort(bytes, index);
+			index += 2;
+			if((extensionFlags & Packet.COMPACT_EXTENSION_HISTORY_FULL) != 0)
+				packet.receivedPacketHistory = -1;
+			else {
+				packet.receivedPacketHistory = ((bytes[index] & 0xFF) << 24) | ((bytes[index + 1] & 0xFF) << 16) | ((bytes[index + 2] & 0xFF) << 8) | (bytes[index + 3] & 0xFF);
+				index += 4;
+			}
+		}
+		packet.setMessageBytes(bytes, index, length, (extensionFlags & Packet.COMPACT_EXTENSION_COMPRESSED) != 0);
+		return packet;
+	}
+
+	/**
+	 * @return whether the raw datagram starts like a packet of this protocol, in either header format
+	 */
+	static boolean peekIsValidProtocol(byte[] bytes, int length) {
+		if(length > 0 && (bytes[0] & Packet.COMPACT_PROTOCOL_TAG_MASK) == Packet.COMPACT_PROTOCOL_TAG)
+			return true;
+		return length >= 4 && ((bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF)) == Packet.PROTOCOL_ID;
+	}
+
+	/**
+	 * Works out how long the header of a raw datagram is without parsing it.
+	 * The datagram must have passed {@link #peekIsValidProtocol}.
+	 *
+	 * @return the size of the header, or -1 if the datagram is too short to hold it
+	 */
+	static int peekHeaderSize(byte[] bytes, int length) {
+		if((bytes[0] & Packet.COMPACT_PROTOCOL_TAG_MASK) != Packet.COMPACT_PROTOCOL_TAG)
+			return (length < Packet.HEADER_SIZE ? -1 : Packet.HEADER_SIZE);
+		if(length < Packet.COMPACT_HEADER_MINIMUM_SIZE)
+			return -1;
+		int headerSize = Packet.COMPACT_HEADER_MINIMUM_SIZE;
+		if((bytes[2] & Packet.COMPACT_FLAG_HAS_SEQUENCE_NUMBER) != 0)
+			headerSize += 2;
+		if((bytes[2] & Packet.COMPACT_FLAG_HAS_DUPLICATE_SEQUENCE_NUMBER) != 0)
+			headerSize += 2;
+		if((bytes[2] & Packet.COMPACT_FLAG_HAS_HISTORY) != 0)
+			headerSize += ((bytes[0] & Packet.COMPACT_EXTENSION_HISTORY_FULL) != 0 ? 2 : 6);
+		return (length < headerSize ? -1 : headerSize);
+	}
+
+	/**
+	 * The datagram must have a complete header (see {@link #peekHeaderSize}).
+	 */
+	static int peekConnectionId(byte[] bytes) {
+		boolean isCompact = (bytes[0] & Packet.COMPACT_PROTOCOL_TAG_MASK) == Packet.COMPACT_PROTOCOL_TAG;
+		return decodeConnectionId(bytes[isCompact ? 1 : 4]);
+	}
+
+	/**
+	 * Appends the checksum of the encoded packet, which needs room for it.
+	 *
+	 * @param checksum reused for every packet--only one thread may use it at a time
+	 * @return the length of the packet with its checksum
+	 */
+	static int putChecksum(CRC32 checksum, byte[] bytes, int length) {
+		checksum.reset();
+		checksum.update(bytes, 0, length);
+		int value = (int) checksum.getValue();
+		bytes[length] = (byte) (value >>> 24);
+		bytes[length + 1] = (byte) (value >>> 16);
+		bytes[length + 2] = (byte) (value >>> 8);
+		bytes[length + 3] = (byte) value;
+		return length + Packet.CHECKSUM_SIZE;
+	}
+
+	/**
+	 * @return the length of the datagram without its checksum, or -1 if the checksum doesn't match
+	 */
+	static int peekChecksum(CRC32 checksum, byte[] bytes, int length) {
+		int end = length - Packet.CHECKSUM_SIZE;
+		if(end < 0)
+			return -1;
+		checksum.reset();
+		checksum.update(bytes, 0, end);
+		int value = ((bytes[end] & 0xFF) << 24) | ((bytes[end + 1] & 0xFF) << 16) | ((bytes[end + 2] & 0xFF) << 8) | (bytes[end + 3] & 0xFF);
+		return (value == (int) checksum.getValue() ? end : -1);
+	}
+
+	/**
+	 * The datagram must have a complete header (see {@link #peekHeaderSize}).
+	 */
+	static int peekSequenceNumber(byte[] bytes) {
+		if((bytes[0] & Packet.COMPACT_PROTOCOL_TAG_MASK) != Packet.COMPACT_PROTOCOL_TAG)
+			return getUnsignedShort(bytes, 5);
+		if((bytes[2] & Packet.COMPACT_FLAG_HAS_SEQUENCE_NUMBER) == 0)
+			return Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		return getUnsignedShort(bytes, Packet.COMPACT_HEADER_MINIMUM_SIZE);
+	}
+
+	/**
+	 * The datagram must have a complete header (see {@link #peekHeaderSize}).
+	 */
+	static MessageType peekMessageType(byte[] bytes) {
+		if((bytes[0] & Packet.COMPACT_PROTOCOL_TAG_MASK) == Packet.COMPACT_PROTOCOL_TAG)
+			return decodeCompactMessageType(bytes[2]);
+		return decodeMessageType(bytes[Packet.HEADER_SIZE - 1]);
+	}
+
+	private void setMessageBytes(byte[] bytes, int start, int end, boolean isCompressed) {
+		if(end <= start)
+			return;
+		if(messageType == MessageType.PARITY) {
+			parity = new byte[end - start];
+			System.arraycopy(bytes, start, parity, 0, parity.length);
+		}
+		else if(isCompressed) {
+			//the message can only be decompressed once we know which connection it came from
+			compressedMessage = new byte[end - start];
+			System.arraycopy(bytes, start, compressedMessage, 0, compressedMessage.length);
+		}
+		else
+			message = new String(bytes, start, end - start);
+	}
+
+	private static int getUnsignedShort(byte[] bytes, int index) {
+		return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+	}
+
 	public static Packet createApplicationPacket(int connectionId, String message) {
 		return new Packet(connectionId, MessageType.APPLICATION, message);
 	}
@@ -382,10 +759,26 @@ public class Packet {
 		return new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECT_REQUEST, null);
 	}
 
+	public static Packet createConnectRequestPacket(ConnectionOptions requestedOptions) {
+		return new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECT_REQUEST, (requestedOptions == null ? null : requestedOptions.toMessage()));
+	}
+
+	/**
+	 * The server's answer to a CONNECT_REQUEST without a valid cookie. The
+	 * client has to send its request again with the cookie.
+	 */
+	public static Packet createConnectChallengePacket(String cookie) {
+		return new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECT_CHALLENGE, cookie);
+	}
+
 	public static Packet createConnectionAcceptedPacket(int connectionId) {
 		return new Packet(connectionId, MessageType.CONNECTION_ACCEPTED, null);
 	}
 
+	public static Packet createConnectionAcceptedPacket(int connectionId, ConnectionOptions acceptedOptions) {
+		return new Packet(connectionId, MessageType.CONNECTION_ACCEPTED, (acceptedOptions == null ? null : acceptedOptions.toMessage()));
+	}
+
 	public static Packet createConnectionRefusedPacket() {
 		return new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECTION_REFUSED, null);
 	}
@@ -398,6 +791,24 @@ public class Packet {
 		return new Packet(connectionId, MessageType.CLIENT_DISCONNECT, null);
 	}
 
+	/**
+	 * Carries nothing but the last received sequence number and packet
+	 * history, for when there's nothing else to send them with. It has no
+	 * sequence number of its own, so it is never acknowledged in turn.
+	 */
+	public static Packet createAcknowledgementPacket(int connectionId) {
+		return new Packet(connectionId, MessageType.ACKNOWLEDGEMENT, null);
+	}
+
+	/**
+	 * Like an ACKNOWLEDGEMENT, it has no sequence number of its own.
+	 */
+	static Packet createParityPacket(int connectionId, byte[] parity) {
+		Packet packet = new Packet(connectionId, MessageType.PARITY, null);
+		packet.parity = parity;
+		return packet;
+	}
+
 	public static abstract class MalformedPacketException extends Exception {
 		private static final long serialVersionUID = 2230088823308942874L;
 
@@ -418,7 +829,19 @@ public class Packet {
 		private static final long serialVersionUID = 4729357764475446835L;
 
 		public NotEnoughBytesException(int numBytes) {
-			super("Packet construction requires minimum of " + Packet.HEADER_SIZE + " bytes. Only " + numBytes + (numBytes == 1 ? " byte" : " bytes") + " given.");
+			this(numBytes, Packet.HEADER_SIZE);
+		}
+
+		public NotEnoughBytesException(int numBytes, int numBytesRequired) {
+			super("Packet construction requires minimum of " + numBytesRequired + " bytes. Only " + numBytes + (numBytes == 1 ? " byte" : " bytes") + " given.");
+		}
+	}
+
+	public static class CouldNotDecompressMessageException extends MalformedPacketException {
+		private static final long serialVersionUID = -1622406512480512436L;
+
+		public CouldNotDecompressMessageException(DataFormatException e) {
+			super("Could not decompress message" + (e == null ? "." : "--" + e.getMessage()));
 		}
 	}
 
@@ -0,0 +1,128 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends raw datagrams to a trace file for replaying later with
+ * {@link PacketReplayer}. The file is written through memory-mapped regions
+ * so recording a packet is just a few puts into memory, and the operating
+ * system writes it out in the background. Pass a capture to
+ * {@link Server#setPacketCapture} or {@link ClientConnection#setPacketCapture}
+ * to record everything they send and receive.
+ *
+ * File structure:
+ 	int		4 bytes	magic number
+ 	int		4 bytes	version
+ 	long	8 bytes	wall clock time the capture started, in milliseconds
+ 	then one record per datagram:
+ 	int		4 bytes	datagram length
+ 	long	8 bytes	nanoseconds since the capture started
+ 	byte	1 byte	direction (INCOMING or OUTGOING)
+ 	byte	1 byte	peer address length (4 or 16)
+ 	byte[]	n bytes	peer address
+ 	short	2 bytes	peer port
+ 	byte[]	n bytes	datagram
+ */
+public class PacketCapture {
+	static final int MAGIC_NUMBER = 0x4E475452;
+	static final int VERSION = 1;
+	static final int FILE_HEADER_SIZE = 16;
+	static final int RECORD_HEADER_SIZE = 16;
+	public static final byte INCOMING = 0;
+	public static final byte OUTGOING = 1;
+	public static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private int regionSize;
+	private long startTime;
+	private long numPacketsCaptured;
+	private boolean isClosed;
+
+	public PacketCapture(String fileName) throws IOException {
+		this(fileName, PacketCapture.DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * @param regionSize how many bytes of the file to map at a time
+	 */
+	public PacketCapture(String fileName, int regionSize) throws IOException {
+		file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		this.regionSize = Math.max(regionSize, PacketCapture.FILE_HEADER_SIZE + PacketCapture.RECORD_HEADER_SIZE + 16 + Packet.MAXIMUM_DATAGRAM_SIZE);
+		regionStart = 0;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, this.regionSize);
+		region.putInt(PacketCapture.MAGIC_NUMBER);
+		region.putInt(PacketCapture.VERSION);
+		region.putLong(System.currentTimeMillis());
+		startTime = System.nanoTime();
+		numPacketsCaptured = 0;
+		isClosed = false;
+	}
+
+	/**
+	 * @param direction INCOMING or OUTGOING
+	 * @param datagramPacket the datagram, addressed to or from the peer
+	 */
+	public void record(byte direction, DatagramPacket datagramPacket) throws IOException {
+		long timestamp = System.nanoTime() - startTime;
+		InetAddress address = datagramPacket.getAddress();
+		byte[] addressBytes = (address == null ? new byte[0] : address.getAddress());
+		int length = datagramPacket.getLength();
+		synchronized(this) {
+			if(isClosed)
+				return;
+			int recordSize = PacketCapture.RECORD_HEADER_SIZE + addressBytes.length + length;
+			if(region.remaining() < recordSize)
+				mapNextRegion(recordSize);
+			region.putInt(length);
+			region.putLong(timestamp);
+			region.put(direction);
+			region.put((byte) addressBytes.length);
+			region.put(addressBytes);
+			region.putShort((short) datagramPacket.getPort());
+			region.put(datagramPacket.getData(), datagramPacket.getOffset(), length);
+			numPacketsCaptured++;
+		}
+	}
+
+	public synchronized long getNumPacketsCaptured() {
+		return numPacketsCaptured;
+	}
+
+	public synchronized long getNumBytesCaptured() {
+		return regionStart + region.position();
+	}
+
+	/**
+	 * Stops capturing and trims the file to what was recorded.
+	 */
+	public synchronized void close() throws IOException {
+		if(isClosed)
+			return;
+		isClosed = true;
+		long size = regionStart + region.position();
+		region.force();
+		region = null;
+		try {
+			file.setLength(size);
+		} catch (IOException e) {
+			//some platforms won't shrink a file that is still mapped--the reader stops at the zero-length padding instead
+		}
+		channel.close();
+		file.close();
+	}
+
+	private void mapNextRegion(int recordSize) throws IOException {
+		regionStart += region.position();
+		region.force();
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(regionSize, recordSize));
+	}
+}
@@ -0,0 +1,98 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the datagrams in a {@link PacketCapture} trace file in the order
+ * they were captured, mapping the file into memory a region at a time.
+ */
+public class PacketCaptureReader {
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long fileSize;
+	private int regionSize;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long startTime;
+
+	public PacketCaptureReader(String fileName) throws IOException {
+		this(fileName, PacketCapture.DEFAULT_REGION_SIZE);
+	}
+
+	public PacketCaptureReader(String fileName, int regionSize) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		channel = file.getChannel();
+		fileSize = channel.size();
+		this.regionSize = Math.max(regionSize, PacketCapture.FILE_HEADER_SIZE);
+		if(fileSize < PacketCapture.FILE_HEADER_SIZE) {
+			close();
+			throw new IOException(fileName + " is too short to be a packet capture.");
+		}
+		mapRegion(0, PacketCapture.FILE_HEADER_SIZE);
+		int magicNumber = region.getInt();
+		int version = region.getInt();
+		startTime = region.getLong();
+		if(magicNumber != PacketCapture.MAGIC_NUMBER || version != PacketCapture.VERSION) {
+			close();
+			throw new IOException(fileName + " is not a version " + PacketCapture.VERSION + " packet capture.");
+		}
+	}
+
+	/**
+	 * @return the wall clock time the capture started, in milliseconds
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return the next datagram, or null at the end of the capture
+	 */
+	public CapturedPacket next() throws IOException {
+		long position = regionStart + region.position();
+		if(region.remaining() < PacketCapture.RECORD_HEADER_SIZE) {
+			if(fileSize - position < PacketCapture.RECORD_HEADER_SIZE)
+				return null;
+			mapRegion(position, PacketCapture.RECORD_HEADER_SIZE);
+		}
+
+		//peek at the header to find out how big the whole record is
+		int length = region.getInt(region.position());
+		int addressLength = region.get(region.position() + 13);
+		if(length < 0 || (addressLength != 4 && addressLength != 16)) {
+			//a zeroed record is the unused end of the last mapped region
+			return null;
+		}
+		int recordSize = PacketCapture.RECORD_HEADER_SIZE + addressLength + length;
+		if(fileSize - position < recordSize)
+			return null;
+		if(region.remaining() < recordSize)
+			mapRegion(position, recordSize);
+
+		region.getInt();
+		long timestamp = region.getLong();
+		byte direction = region.get();
+		region.get();
+		byte[] addressBytes = new byte[addressLength];
+		region.get(addressBytes);
+		int port = region.getShort() & 0xFFFF;
+		byte[] data = new byte[length];
+		region.get(data);
+		return new CapturedPacket(timestamp, direction, InetAddress.getByAddress(addressBytes), port, data);
+	}
+
+	public void close() throws IOException {
+		region = null;
+		channel.close();
+		file.close();
+	}
+
+	private void mapRegion(long start, int minimumSize) throws IOException {
+		regionStart = start;
+		region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(fileSize - start, Math.max(regionSize, minimumSize)));
+	}
+}
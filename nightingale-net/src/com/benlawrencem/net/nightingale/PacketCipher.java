@@ -0,0 +1,347 @@
+package com.benlawrencem.net.nightingale;
+
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption for one direction of one connection. The message
+ * is encrypted with AES in counter mode and the whole datagram--header
+ * included, so it can't be altered either--is authenticated with an
+ * HMAC-SHA256 tag, encrypt-then-MAC.
+ *
+ * The nonce is the packet's sequence number, extended to 64 bits by
+ * counting how many times it has wrapped around so no two packets ever
+ * share one. Packets without a sequence number (ACKNOWLEDGEMENT and PARITY)
+ * carry a counter of their own in front of the tag instead. Whoever opens
+ * the packets keeps a sliding window of the latest numbers of each kind it
+ * has opened, so a copy of a packet, or one too old to tell, is thrown away
+ * before it gets anywhere near a PacketRecorder.
+ *
+ * Keys come from a secret the server and its clients share plus a random
+ * nonce from each side of the handshake, so every connection--and each
+ * direction of it--has keys of its own. The handshake itself travels in
+ * the clear. A third key, for resuming the session, comes from the same
+ * secret and nonces.
+ *
+ * The AES cipher, the digests and every buffer are made once, so sealing
+ * and opening a packet allocates nothing. Not thread safe--a connection
+ * seals with its PacketRecorder locked and opens on the thread receiving
+ * packets.
+ */
+class PacketCipher {
+	static final int NOT_AUTHENTIC = -1;
+	static final int REPLAYED = -2;
+	static final int TAG_SIZE = 16;
+	static final int COUNTER_SIZE = 4;
+	static final int MAXIMUM_OVERHEAD = PacketCipher.COUNTER_SIZE + PacketCipher.TAG_SIZE;
+	static final int MINIMUM_KEY_SIZE = 16;
+	private static final int HANDSHAKE_NONCE_SIZE = 16;
+	private static final int BLOCK_SIZE = 16;
+	private static final int NONCE_SIZE = 12;
+	private static final int ENCRYPTION_KEY_SIZE = 16;
+	private static final int MAC_KEY_SIZE = 32;
+	private static final int DIGEST_SIZE = 32;
+	private static final int HMAC_BLOCK_SIZE = 64;
+	private static final int REPLAY_WINDOW_SIZE = 64;
+	private static final int NUM_SEQUENCE_NUMBERS = Packet.MAXIMUM_SEQUENCE_NUMBER - Packet.MINIMUM_SEQUENCE_NUMBER + 1;
+	private static final int MAXIMUM_NUM_BLOCKS = (Packet.MAXIMUM_PACKET_SIZE + PacketCipher.BLOCK_SIZE - 1) / PacketCipher.BLOCK_SIZE;
+	private static final String KEY_LABEL = "nightingale packet keys";
+	private static final String RESUME_KEY_LABEL = "nightingale resume key";
+	private static SecureRandom random = null;
+	private final Cipher blockCipher;
+	private final MessageDigest innerDigest;
+	private final MessageDigest outerDigest;
+	private final byte[] innerPad;
+	private final byte[] outerPad;
+	private final byte[] nonce;
+	private final byte[] counterBlocks;
+	private final byte[] keyStream;
+	private final byte[] digest;
+	private long lastPacketNumber;
+	private long lastSealedPacketNumber;
+	private long lastUnsequencedPacketNumber;
+	private final ReplayWindow openedPacketNumbers;
+	private final ReplayWindow openedUnsequencedPacketNumbers;
+
+	/* Sealed packet structure:
+	 	bytes	n bytes		header, as sent
+	 	bytes	m bytes		message, encrypted
+	 	int		4 bytes		counter, only if the packet has no sequence number
+	 	bytes	16 bytes	first half of HMAC-SHA256(nonce + header + encrypted message)
+
+	   Nonce structure, also the first 12 bytes of each AES-CTR counter block:
+	 	byte	1 byte		1 if the number is the counter, otherwise 0
+	 	bytes	3 bytes		0
+	 	long	8 bytes		extended sequence number or counter
+	 */
+
+	private PacketCipher(byte[] encryptionKey, byte[] macKey) throws GeneralSecurityException {
+		blockCipher = Cipher.getInstance("AES/ECB/NoPadding");
+		blockCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encryptionKey, "AES"));
+		innerDigest = MessageDigest.getInstance("SHA-256");
+		outerDigest = MessageDigest.getInstance("SHA-256");
+		innerPad = new byte[PacketCipher.HMAC_BLOCK_SIZE];
+		outerPad = new byte[PacketCipher.HMAC_BLOCK_SIZE];
+		for(int i = 0; i < PacketCipher.HMAC_BLOCK_SIZE; i++) {
+			byte b = (i < macKey.length ? macKey[i] : 0);
+			innerPad[i] = (byte) (b ^ 0x36);
+			outerPad[i] = (byte) (b ^ 0x5C);
+		}
+		nonce = new byte[PacketCipher.NONCE_SIZE];
+		counterBlocks = new byte[PacketCipher.MAXIMUM_NUM_BLOCKS * PacketCipher.BLOCK_SIZE];
+		keyStream = new byte[counterBlocks.length];
+		digest = new byte[PacketCipher.DIGEST_SIZE];
+
+		//sequence numbers are counted from a whole cycle in, so one from just before the first still has a positive number
+		lastPacketNumber = PacketCipher.NUM_SEQUENCE_NUMBERS;
+		lastSealedPacketNumber = lastPacketNumber - 1;
+		lastUnsequencedPacketNumber = 0;
+		openedPacketNumbers = new ReplayWindow(lastPacketNumber);
+		openedUnsequencedPacketNumbers = new ReplayWindow(lastUnsequencedPacketNumber);
+	}
+
+	/**
+	 * Works out the keys for one direction of a connection.
+	 *
+	 * @param key the secret the server and its clients share
+	 * @param isClientToServer whether the cipher is for packets the client sends, rather than the server
+	 */
+	public static PacketCipher create(byte[] key, String clientNonce, String serverNonce, boolean isClientToServer) throws GeneralSecurityException {
+		//expand the secret into an encryption key and a MAC key for each direction, HKDF-style
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		byte[] keyMaterial = new byte[2 * (PacketCipher.ENCRYPTION_KEY_SIZE + PacketCipher.MAC_KEY_SIZE)];
+		byte[] block = new byte[0];
+		for(int i = 0; i * PacketCipher.DIGEST_SIZE < keyMaterial.length; i++) {
+			mac.update(block);
+			mac.update(PacketCipher.KEY_LABEL.getBytes());
+			mac.update(clientNonce.getBytes());
+			mac.update(serverNonce.getBytes());
+			mac.update((byte) (i + 1));
+			block = mac.doFinal();
+			System.arraycopy(block, 0, keyMaterial, i * PacketCipher.DIGEST_SIZE, Math.min(block.length, keyMaterial.length - i * PacketCipher.DIGEST_SIZE));
+		}
+		int offset = (isClientToServer ? 0 : PacketCipher.ENCRYPTION_KEY_SIZE + PacketCipher.MAC_KEY_SIZE);
+		byte[] encryptionKey = new byte[PacketCipher.ENCRYPTION_KEY_SIZE];
+		byte[] macKey = new byte[PacketCipher.MAC_KEY_SIZE];
+		System.arraycopy(keyMaterial, offset, encryptionKey, 0, encryptionKey.length);
+		System.arraycopy(keyMaterial, offset + encryptionKey.length, macKey, 0, macKey.length);
+		return new PacketCipher(encryptionKey, macKey);
+	}
+
+	/**
+	 * Works out the key a client proves it holds when resuming its session.
+	 * It's kept apart from the packet keys so a proof says nothing about them.
+	 */
+	public static byte[] createResumeKey(byte[] key, String clientNonce, String serverNonce) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		mac.update(PacketCipher.RESUME_KEY_LABEL.getBytes());
+		mac.update(clientNonce.getBytes());
+		mac.update(serverNonce.getBytes());
+		return mac.doFinal();
+	}
+
+	/**
+	 * @param cookie the cookie the server challenged the resume request with, so an old proof can't be sent again
+	 * @return HMAC-SHA256 of the session token and the cookie, as hex
+	 */
+	public static String createResumeProof(byte[] resumeKey, String sessionToken, String cookie) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(resumeKey, "HmacSHA256"));
+		mac.update(sessionToken.getBytes());
+		mac.update(cookie.getBytes());
+		return PacketCipher.toHex(mac.doFinal());
+	}
+
+	/**
+	 * @return a fresh random nonce for one side of a handshake, as hex
+	 */
+	public static synchronized String createHandshakeNonce() {
+		if(random == null)
+			random = new SecureRandom();
+		byte[] nonceBytes = new byte[PacketCipher.HANDSHAKE_NONCE_SIZE];
+		random.nextBytes(nonceBytes);
+		return PacketCipher.toHex(nonceBytes);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for(byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+		return hex.toString();
+	}
+
+	/**
+	 * Encrypts and authenticates an encoded packet in place.
+	 *
+	 * @param bytes the packet, starting at 0, with at least MAXIMUM_OVERHEAD bytes to spare after it
+	 * @return the length of the sealed packet
+	 */
+	public int seal(byte[] bytes, int length) {
+		int headerSize = Packet.peekHeaderSize(bytes, length);
+		int sequenceNumber = Packet.peekSequenceNumber(bytes);
+		int end = length;
+		if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE) {
+			lastUnsequencedPacketNumber = (lastUnsequencedPacketNumber + 1) & 0xFFFFFFFFL;
+			putNonce(true, lastUnsequencedPacketNumber);
+			putInt(bytes, end, (int) lastUnsequencedPacketNumber);
+			end += PacketCipher.COUNTER_SIZE;
+		}
+		else {
+			//a sequence number is the packet's nonce, so one that's been sealed before must never be sealed again--
+			// packets are sealed in order under their PacketRecorder's lock, so anything not newer is a reuse
+			long packetNumber = extendSequenceNumber(sequenceNumber);
+			if(packetNumber <= lastSealedPacketNumber)
+				throw new IllegalStateException("Sequence number " + sequenceNumber + " has already been sealed");
+			lastSealedPacketNumber = packetNumber;
+			lastPacketNumber = Math.max(lastPacketNumber, packetNumber);
+			putNonce(false, packetNumber);
+		}
+		applyKeyStream(bytes, headerSize, length - headerSize);
+		computeDigest(bytes, length);
+		System.arraycopy(digest, 0, bytes, end, PacketCipher.TAG_SIZE);
+		return end + PacketCipher.TAG_SIZE;
+	}
+
+	/**
+	 * Checks and decrypts a sealed packet in place.
+	 *
+	 * @return the length of the packet once its counter and tag are stripped, NOT_AUTHENTIC if it wasn't sealed with the matching key, or REPLAYED if it has been opened before or is too old to tell
+	 */
+	public int open(byte[] bytes, int length) {
+		int headerSize = Packet.peekHeaderSize(bytes, length);
+		if(headerSize < 0)
+			return PacketCipher.NOT_AUTHENTIC;
+		int sequenceNumber = Packet.peekSequenceNumber(bytes);
+		boolean isUnsequenced = (sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE);
+		int end = length - PacketCipher.TAG_SIZE - (isUnsequenced ? PacketCipher.COUNTER_SIZE : 0);
+		if(end < headerSize)
+			return PacketCipher.NOT_AUTHENTIC;
+		long packetNumber = (isUnsequenced ? getInt(bytes, end) & 0xFFFFFFFFL : extendSequenceNumber(sequenceNumber));
+		ReplayWindow openedNumbers = (isUnsequenced ? openedUnsequencedPacketNumbers : openedPacketNumbers);
+		if(!openedNumbers.isNew(packetNumber))
+			return PacketCipher.REPLAYED;
+		putNonce(isUnsequenced, packetNumber);
+		computeDigest(bytes, end);
+
+		//compare every byte so how long the check takes says nothing about how close a forgery came
+		int difference = 0;
+		for(int i = 0; i < PacketCipher.TAG_SIZE; i++)
+			difference |= digest[i] ^ bytes[length - PacketCipher.TAG_SIZE + i];
+		if(difference != 0)
+			return PacketCipher.NOT_AUTHENTIC;
+		applyKeyStream(bytes, headerSize, end - headerSize);
+
+		//only a packet that proved itself moves the window, or a forgery could push the real ones out of it
+		openedNumbers.add(packetNumber);
+		if(!isUnsequenced)
+			lastPacketNumber = Math.max(lastPacketNumber, packetNumber);
+		return end;
+	}
+
+	/**
+	 * @return the sequence number counted from the start of the connection, taking it to be the closest to the latest one that wraps to it
+	 */
+	private long extendSequenceNumber(int sequenceNumber) {
+		int lastSequenceNumber = (int) (lastPacketNumber % PacketCipher.NUM_SEQUENCE_NUMBERS) + Packet.MINIMUM_SEQUENCE_NUMBER;
+		return lastPacketNumber + Packet.deltaBetweenSequenceNumbers(lastSequenceNumber, sequenceNumber);
+	}
+
+	private void putNonce(boolean isUnsequenced, long packetNumber) {
+		nonce[0] = (byte) (isUnsequenced ? 1 : 0);
+		for(int i = 0; i < 8; i++)
+			nonce[4 + i] = (byte) (packetNumber >>> (56 - 8 * i));
+	}
+
+	/**
+	 * Encrypts or decrypts--in counter mode they're the same XOR.
+	 */
+	private void applyKeyStream(byte[] bytes, int start, int length) {
+		//a packet longer than the buffers, which shouldn't be sent anyway, takes more than one pass
+		int block = 0;
+		for(int done = 0; done < length; done += keyStream.length) {
+			int chunkLength = Math.min(keyStream.length, length - done);
+			int numBlocks = (chunkLength + PacketCipher.BLOCK_SIZE - 1) / PacketCipher.BLOCK_SIZE;
+			for(int i = 0; i < numBlocks; i++) {
+				System.arraycopy(nonce, 0, counterBlocks, i * PacketCipher.BLOCK_SIZE, PacketCipher.NONCE_SIZE);
+				putInt(counterBlocks, i * PacketCipher.BLOCK_SIZE + PacketCipher.NONCE_SIZE, block++);
+			}
+			try {
+				blockCipher.update(counterBlocks, 0, numBlocks * PacketCipher.BLOCK_SIZE, keyStream, 0);
+			} catch (GeneralSecurityException e) {
+				//the key stream buffer is always as big as the counter blocks
+				throw new IllegalStateException(e);
+			}
+			for(int i = 0; i < chunkLength; i++)
+				bytes[start + done + i] ^= keyStream[i];
+		}
+	}
+
+	/**
+	 * HMAC-SHA256 of the nonce and the first length bytes, into digest.
+	 * Done by hand because Mac allocates its result.
+	 */
+	private void computeDigest(byte[] bytes, int length) {
+		try {
+			innerDigest.update(innerPad);
+			innerDigest.update(nonce);
+			innerDigest.update(bytes, 0, length);
+			innerDigest.digest(digest, 0, PacketCipher.DIGEST_SIZE);
+			outerDigest.update(outerPad);
+			outerDigest.update(digest);
+			outerDigest.digest(digest, 0, PacketCipher.DIGEST_SIZE);
+		} catch (DigestException e) {
+			//the digest buffer is always big enough
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void putInt(byte[] bytes, int index, int value) {
+		bytes[index] = (byte) (value >>> 24);
+		bytes[index + 1] = (byte) (value >>> 16);
+		bytes[index + 2] = (byte) (value >>> 8);
+		bytes[index + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] bytes, int index) {
+		return ((bytes[index] & 0xFF) << 24) | ((bytes[index + 1] & 0xFF) << 16) | ((bytes[index + 2] & 0xFF) << 8) | (bytes[index + 3] & 0xFF);
+	}
+
+	/**
+	 * The latest number opened, and which of the ones just before it have
+	 * been too--bit i of the mask stands for the latest minus i.
+	 */
+	private static class ReplayWindow {
+		private long latest;
+		private long opened;
+
+		public ReplayWindow(long start) {
+			latest = start;
+			opened = 0;
+		}
+
+		public boolean isNew(long number) {
+			if(number > latest)
+				return true;
+			long age = latest - number;
+			return age < PacketCipher.REPLAY_WINDOW_SIZE && (opened & (1L << age)) == 0;
+		}
+
+		public void add(long number) {
+			if(number > latest) {
+				long shift = number - latest;
+				opened = (shift < PacketCipher.REPLAY_WINDOW_SIZE ? opened << shift : 0) | 1L;
+				latest = number;
+			}
+			else
+				opened |= 1L << (latest - number);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.benlawrencem.net.nightingale;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+import com.benlawrencem.net.nightingale.NetworkEvents.DropReason;
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+
+/**
+ * Throws away unwanted datagrams before they are parsed. The header is
+ * checked in place--protocol, length, and on a server the connection id and
+ * message type--so scanners and floods cost a few byte comparisons instead
+ * of a Packet, a message String and a trip through the connection lock.
+ *
+ * Connect requests and rejected datagrams are also charged to the IP address
+ * they come from, whatever the port, in a count-min sketch, a fixed-size
+ * table of counters that can only overestimate how much an address has sent.
+ * An address over the limit for the current window has its connect requests
+ * dropped until the window ends, however many addresses there are. Datagrams
+ * from connected clients are never rate limited.
+ *
+ * Datagrams of connections that use checksums then have theirs checked, so
+ * one damaged on the way is thrown away before a bogus header can reach a
+ * PacketRecorder. Datagrams of encrypted connections are opened in place by
+ * the connection's {@link PacketCipher}, and thrown away if they weren't
+ * sealed with its key or have been opened before. Once any connection is encrypted, only datagrams
+ * outside of a connection (e.g. CONNECT_REQUEST) may be sent in the clear.
+ *
+ * The filter is only ever run by the one thread receiving packets, but its
+ * counters can be read from any thread.
+ */
+public class PacketFilter {
+	public static final int DEFAULT_RATE_LIMIT = 20;
+	public static final int DEFAULT_RATE_LIMIT_WINDOW = 1000;
+	private static final int SKETCH_DEPTH = 4;
+	private static final int SKETCH_WIDTH = 1024;
+	private static final int[] SKETCH_SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+	private final boolean isServerSide;
+	private final int[][] sketch;
+	private final AtomicIntegerArray knownConnectionIds;
+	private final AtomicLongArray numRejected;
+	private final AtomicReferenceArray<PacketCipher> ciphers;
+	private volatile boolean isEncrypted;
+	private final AtomicIntegerArray checksummedConnectionIds;
+	private volatile boolean isChecksummed;
+	private final CRC32 checksum;
+	private volatile int rateLimit;
+	private volatile int rateLimitWindow;
+	private long windowStartTime;
+	private volatile Clock clock;
+
+	/**
+	 * @param isServerSide whether the filter guards a server, which knows its clients' connection ids and only expects CONNECT_REQUEST packets from anyone else
+	 */
+	PacketFilter(boolean isServerSide) {
+		this.isServerSide = isServerSide;
+		sketch = new int[PacketFilter.SKETCH_DEPTH][PacketFilter.SKETCH_WIDTH];
+		knownConnectionIds = new AtomicIntegerArray((Packet.MAXIMUM_CONNECTION_ID + 1) / 32);
+		numRejected = new AtomicLongArray(DropReason.values().length);
+		ciphers = new AtomicReferenceArray<PacketCipher>(Packet.MAXIMUM_CONNECTION_ID + 1);
+		isEncrypted = false;
+		checksummedConnectionIds = new AtomicIntegerArray((Packet.MAXIMUM_CONNECTION_ID + 1) / 32);
+		isChecksummed = false;
+		checksum = new CRC32();
+		rateLimit = PacketFilter.DEFAULT_RATE_LIMIT;
+		rateLimitWindow = PacketFilter.DEFAULT_RATE_LIMIT_WINDOW;
+		windowStartTime = 0;
+		clock = MonotonicClock.INSTANCE;
+	}
+
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * @param limit how many connect requests and rejected datagrams an IP address can send per window, or 0 for no limit
+	 * @param window the length of a window, in milliseconds
+	 */
+	public void setRateLimit(int limit, int window) {
+		rateLimit = Math.max(0, limit);
+		rateLimitWindow = Math.max(1, window);
+	}
+
+	public int getRateLimit() {
+		return rateLimit;
+	}
+
+	public int getRateLimitWindow() {
+		return rateLimitWindow;
+	}
+
+	/**
+	 * @return how many datagrams the filter has thrown away for the reason
+	 */
+	public long getNumRejected(DropReason reason) {
+		return numRejected.get(reason.ordinal());
+	}
+
+	/**
+	 * @return how many datagrams the filter has thrown away for any reason
+	 */
+	public long getNumRejected() {
+		long total = 0;
+		for(int i = 0; i < numRejected.length(); i++)
+			total += numRejected.get(i);
+		return total;
+	}
+
+	public void resetCounters() {
+		for(int i = 0; i < numRejected.length(); i++)
+			numRejected.set(i, 0);
+	}
+
+	void addConnectionId(int connectionId) {
+		int index = connectionId >>> 5;
+		knownConnectionIds.set(index, knownConnectionIds.get(index) | (1 << (connectionId & 31)));
+	}
+
+	void removeConnectionId(int connectionId) {
+		int index = connectionId >>> 5;
+		knownConnectionIds.set(index, knownConnectionIds.get(index) & ~(1 << (connectionId & 31)));
+	}
+
+	void clearConnectionIds() {
+		for(int i = 0; i < knownConnectionIds.length(); i++)
+			knownConnectionIds.set(i, 0);
+	}
+
+	/**
+	 * @param cipher opens the connection's packets, or null if they aren't encrypted
+	 */
+	void setCipher(int connectionId, PacketCipher cipher) {
+		ciphers.set(connectionId, cipher);
+		if(cipher != null)
+			isEncrypted = true;
+	}
+
+	void clearCiphers() {
+		isEncrypted = false;
+		for(int i = 0; i < ciphers.length(); i++)
+			ciphers.set(i, null);
+	}
+
+	/**
+	 * @param isChecksummed whether the connection's datagrams end with a checksum
+	 */
+	void setChecksummed(int connectionId, boolean isChecksummed) {
+		int index = connectionId >>> 5;
+		if(isChecksummed) {
+			checksummedConnectionIds.set(index, checksummedConnectionIds.get(index) | (1 << (connectionId & 31)));
+			this.isChecksummed = true;
+		}
+		else
+			checksummedConnectionIds.set(index, checksummedConnectionIds.get(index) & ~(1 << (connectionId & 31)));
+	}
+
+	void clearChecksummed() {
+		isChecksummed = false;
+		for(int i = 0; i < checksummedConnectionIds.length(); i++)
+			checksummedConnectionIds.set(i, 0);
+	}
+
+	/**
+	 * Checks and strips the datagram's checksum if its connection uses one,
+	 * then decrypts it in place if the connection is encrypted. It must have
+	 * passed {@link #accept}.
+	 *
+	 * @return the length of the datagram to parse, or -1 if it should be thrown away
+	 */
+	int open(byte[] bytes, int length, InetSocketAddress source) {
+		int connectionId = Packet.peekConnectionId(bytes);
+		if((checksummedConnectionIds.get(connectionId >>> 5) & (1 << (connectionId & 31))) != 0) {
+			length = Packet.peekChecksum(checksum, bytes, length);
+			if(length < 0) {
+				reject(DropReason.CORRUPTED, connectionId, source);
+				return -1;
+			}
+		}
+
+		//a client only has the one connection, so a datagram for any other must have been damaged
+		else if(!isServerSide && isChecksummed && connectionId != Packet.ANONYMOUS_CONNECTION_ID) {
+			reject(DropReason.CORRUPTED, connectionId, source);
+			return -1;
+		}
+		PacketCipher cipher = ciphers.get(connectionId);
+		if(cipher == null) {
+			if(isEncrypted && connectionId != Packet.ANONYMOUS_CONNECTION_ID) {
+				reject(DropReason.NOT_AUTHENTIC, connectionId, source);
+				return -1;
+			}
+			return length;
+		}
+		int openedLength = cipher.open(bytes, length);
+		if(openedLength == PacketCipher.REPLAYED) {
+			reject(DropReason.ALREADY_RECEIVED, connectionId, source);
+			return -1;
+		}
+		if(openedLength < 0)
+			reject(DropReason.NOT_AUTHENTIC, connectionId, source);
+		return openedLength;
+	}
+
+	/**
+	 * @return whether the datagram should be parsed and handed to the receiver
+	 */
+	boolean accept(byte[] bytes, int length, InetSocketAddress source) {
+		if(!Packet.peekIsValidProtocol(bytes, length))
+			return reject(DropReason.INVALID_PROTOCOL, Packet.ANONYMOUS_CONNECTION_ID, source);
+		if(Packet.peekHeaderSize(bytes, length) < 0)
+			return reject(DropReason.MALFORMED, Packet.ANONYMOUS_CONNECTION_ID, source);
+		MessageType messageType = Packet.peekMessageType(bytes);
+		int connectionId = Packet.peekConnectionId(bytes);
+		if(messageType == MessageType.INVALID)
+			return reject(DropReason.MALFORMED, connectionId, source);
+		if(!isServerSide)
+			return true;
+
+		if(connectionId != Packet.ANONYMOUS_CONNECTION_ID) {
+			if((knownConnectionIds.get(connectionId >>> 5) & (1 << (connectionId & 31))) == 0)
+				return reject(DropReason.UNKNOWN_CONNECTION, connectionId, source);
+			return true;
+		}
+		if(messageType != MessageType.CONNECT_REQUEST)
+			return reject(DropReason.UNEXPECTED_MESSAGE_TYPE, connectionId, source);
+		if(!chargeSource(source))
+			return reject(DropReason.RATE_LIMITED, connectionId, source);
+		return true;
+	}
+
+	private boolean reject(DropReason reason, int connectionId, InetSocketAddress source) {
+		numRejected.incrementAndGet(reason.ordinal());
+		NetworkEvents.packetDropped(reason, connectionId, source);
+		if(reason != DropReason.RATE_LIMITED)
+			chargeSource(source);
+		return false;
+	}
+
+	/**
+	 * Counts a datagram against its source's IP address.
+	 *
+	 * @return whether the source is still within its limit
+	 */
+	private boolean chargeSource(InetSocketAddress source) {
+		int limit = rateLimit;
+		if(limit <= 0)
+			return true;
+		long time = clock.currentTimeMillis();
+		if(time - windowStartTime >= rateLimitWindow) {
+			for(int[] row : sketch)
+				Arrays.fill(row, 0);
+			windowStartTime = time;
+		}
+
+		//the port is left out, or a flood could get past the limit by sending each request from a new one.
+		// the estimate is the smallest of the address's counters, since other addresses can only have added to them
+		int hash = source.getAddress().hashCode();
+		int estimate = Integer.MAX_VALUE;
+		for(int i = 0; i < PacketFilter.SKETCH_DEPTH; i++) {
+			int index = mix(hash ^ PacketFilter.SKETCH_SEEDS[i]) & (PacketFilter.SKETCH_WIDTH - 1);
+			if(sketch[i][index] < Integer.MAX_VALUE)
+				sketch[i][index]++;
+			estimate = Math.min(estimate, sketch[i][index]);
+		}
+		return estimate <= limit;
+	}
+
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,185 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
+
+import junit.framework.TestCase;
+
+public class PacketInternalsTest extends TestCase {
+	private Packet applicationPacketHelloWorld;
+
+	@Before
+	public void setUp() throws Exception {
+		applicationPacketHelloWorld = Packet.parsePacket(new byte[] {
+				6, 45, -9, 59,		//Protocol Id:     103675707
+				0,					//Connection Id:   ANONYMOUS
+				0, 81,				//Sequence Number: 81
+				-1, -1,				//Duplicate Of:    65535
+				0, 27,				//Last Received:   27
+				2, 16, -121, 124,	//Packet History:  34637692
+				0,					//Packet Flags:    NOT IMMEDIATE
+				-128,				//Message Type:    APPLICATION
+									//Message:         "Hello world!"
+				72, 101, 108, 108, 111, 32, 119, 111, 114, 108, 100, 33
+		});
+	}
+
+	@Test
+	public void testCreateParityPacket() {
+		byte[] parity = new byte[] { 2, 0, 7, 0, 8, 1, -1 };
+		assertNotNull(Packet.createParityPacket(1, parity));
+		assertEquals(100, Packet.createParityPacket(100, parity).getConnectionId());
+		assertEquals(MessageType.PARITY, Packet.createParityPacket(100, parity).getMessageType());
+		assertFalse(Packet.createParityPacket(100, parity).hasSequenceNumber());
+		assertNull(Packet.createParityPacket(100, parity).getMessage());
+		Assert.assertArrayEquals(parity, Packet.createParityPacket(100, parity).getParity());
+	}
+
+	@Test
+	public void testParityPacket() {
+		byte[] parity = new byte[] { 2, 0, 7, 0, 8, 1, -1 };
+		Packet packet = Packet.createParityPacket(3, parity);
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				6, 45, -9, 59,		//Protocol Id:     103675707
+				3,					//Connection Id:   3
+				0, 0,				//Sequence Number: N/A
+				0, 0,				//Duplicate Of:    N/A
+				0, 0,				//Last Received:   N/A
+				0, 0, 0, 0,			//Packet History:  0
+				0,					//Packet Flags:    NOT IMMEDIATE
+				-118,				//Message Type:    PARITY
+									//Parity:          { 2, 0, 7, 0, 8, 1, -1 }
+				2, 0, 7, 0, 8, 1, -1
+			}, packet.toByteArray());
+			Assert.assertArrayEquals(new byte[] {
+				-96,				//Protocol Tag:    COMPACT
+				3,					//Connection Id:   3
+				11,					//Packet Flags:    Message Type: PARITY
+									//Parity:          { 2, 0, 7, 0, 8, 1, -1 }
+				2, 0, 7, 0, 8, 1, -1
+			}, packet.toCompactByteArray());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		//the parity is binary, so it never comes back as a message
+		try {
+			Packet parsedPacket = Packet.parsePacket(packet.toByteArray());
+			assertPacketsEqual(packet, parsedPacket);
+			Assert.assertArrayEquals(parity, parsedPacket.getParity());
+			parsedPacket = Packet.parsePacket(packet.toCompactByteArray());
+			assertPacketsEqual(packet, parsedPacket);
+			assertFalse(parsedPacket.hasSequenceNumber());
+			Assert.assertArrayEquals(parity, parsedPacket.getParity());
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		try {
+			Packet parsedPacket = Packet.parsePacket(new byte[] { -96, 3, 11 });
+			assertEquals(MessageType.PARITY, parsedPacket.getMessageType());
+			assertNull(parsedPacket.getParity());
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		}
+
+		try {
+			Packet.parsePacket(new byte[] { -96, 3 });
+			fail("Compact parity packet with too few bytes was parsed");
+		} catch (MalformedPacketException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testPutChecksum() {
+		try {
+			byte[] packetBytes = applicationPacketHelloWorld.toCompactByteArray();
+			byte[] bytes = Arrays.copyOf(packetBytes, packetBytes.length + Packet.CHECKSUM_SIZE);
+			CRC32 checksum = new CRC32();
+			assertEquals(bytes.length, Packet.putChecksum(checksum, bytes, packetBytes.length));
+
+			//the packet is left alone and the CRC-32 of it follows, most significant byte first
+			Assert.assertArrayEquals(packetBytes, Arrays.copyOf(bytes, packetBytes.length));
+			CRC32 expectedChecksum = new CRC32();
+			expectedChecksum.update(packetBytes);
+			int expectedValue = (int) expectedChecksum.getValue();
+			Assert.assertArrayEquals(new byte[] { (byte) (expectedValue >>> 24), (byte) (expectedValue >>> 16), (byte) (expectedValue >>> 8), (byte) expectedValue },
+					Arrays.copyOfRange(bytes, packetBytes.length, bytes.length));
+
+			//the same CRC32 can be reused for the next packet
+			byte[] otherBytes = Arrays.copyOf(packetBytes, packetBytes.length + Packet.CHECKSUM_SIZE);
+			Packet.putChecksum(checksum, otherBytes, packetBytes.length);
+			Assert.assertArrayEquals(bytes, otherBytes);
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testPeekChecksum() {
+		CRC32 checksum = new CRC32();
+		try {
+			byte[] packetBytes = applicationPacketHelloWorld.toByteArray();
+			byte[] bytes = Arrays.copyOf(packetBytes, packetBytes.length + Packet.CHECKSUM_SIZE);
+			int length = Packet.putChecksum(checksum, bytes, packetBytes.length);
+			assertEquals(packetBytes.length, Packet.peekChecksum(checksum, bytes, length));
+			assertPacketsEqual(applicationPacketHelloWorld, Packet.parsePacket(bytes, Packet.peekChecksum(checksum, bytes, length)));
+
+			//a single flipped bit anywhere, checksum included, gives the datagram away
+			for(int i = 0; i < length; i++) {
+				byte[] damagedBytes = bytes.clone();
+				damagedBytes[i] ^= 0x10;
+				assertEquals("Damaged byte " + i + " was not noticed", -1, Packet.peekChecksum(checksum, damagedBytes, length));
+			}
+
+			//so does a datagram cut short
+			assertEquals(-1, Packet.peekChecksum(checksum, bytes, length - 1));
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		//too short to hold a checksum at all
+		assertEquals(-1, Packet.peekChecksum(checksum, new byte[] { 0, 0, 0 }, 3));
+		assertEquals(-1, Packet.peekChecksum(checksum, new byte[0], 0));
+
+		//the CRC-32 of nothing is 0
+		assertEquals(0, Packet.peekChecksum(checksum, new byte[] { 0, 0, 0, 0 }, 4));
+	}
+
+	private void assertPacketsEqual(Packet packet1, Packet packet2) {
+		if(packet1 == null)
+			assertNull(packet2);
+		else {
+			assertNotNull(packet2);
+			assertEquals(packet1.isValidProtocol(), packet2.isValidProtocol());
+			assertEquals(packet1.getConnectionId(), packet2.getConnectionId());
+			assertEquals(packet1.getSequenceNumber(), packet2.getSequenceNumber());
+			assertEquals(packet1.getDuplicateSequenceNumber(), packet2.getDuplicateSequenceNumber());
+			assertEquals(packet1.getLastReceivedSequenceNumber(), packet2.getLastReceivedSequenceNumber());
+			assertEquals(packet1.getReceivedPacketHistory(), packet2.getReceivedPacketHistory());
+			assertEquals(packet1.isImmediateResponse(), packet2.isImmediateResponse());
+			assertEquals(packet1.getMessageType(), packet2.getMessageType());
+			if(packet1.getMessage() == null)
+				assertNull(packet2.getMessage());
+			else {
+				assertNotNull(packet2.getMessage());
+				assertEquals(packet1.getMessage(), packet2.getMessage());
+			}
+			
+		}
+	}
+}
\ No newline at end of file
@@ -3,15 +3,12 @@ package com.benlawrencem.net.nightingale;
 public class PacketReceipt {
 	private Packet packet;
 	private long time;
-
-	public PacketReceipt(Packet packet) {
-		this.packet = packet;
-		time = System.currentTimeMillis();
-	}
+	private boolean isDelivered;
 
 	public PacketReceipt(Packet packet, long time) {
 		this.packet = packet;
 		this.time = time;
+		isDelivered = false;
 	}
 
 	public Packet getPacket() {
@@ -21,4 +18,12 @@ public class PacketReceipt {
 	public long getTime() {
 		return time;
 	}
+
+	public boolean isDelivered() {
+		return isDelivered;
+	}
+
+	public void setDelivered(boolean isDelivered) {
+		this.isDelivered = isDelivered;
+	}
 }
\ No newline at end of file
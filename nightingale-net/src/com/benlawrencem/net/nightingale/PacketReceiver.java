@@ -1,5 +1,7 @@
 package com.benlawrencem.net.nightingale;
 
+import java.net.InetSocketAddress;
+
 public interface PacketReceiver {
-	void receivePacket(Packet packet, String address, int port);
+	void receivePacket(Packet packet, InetSocketAddress source);
 }
\ No newline at end of file
@@ -3,7 +3,12 @@ package com.benlawrencem.net.nightingale;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.benlawrencem.net.nightingale.Packet.MessageType;
+
 public class PacketRecorder {
+	public static final int DEFAULT_ACKNOWLEDGEMENT_THRESHOLD = 4;
+	public static final int DEFAULT_ACKNOWLEDGEMENT_DELAY = 25;
+	private static final double LOSS_RATE_WEIGHT = 1.0 / 32;
 	private static final int NUM_RECEIVED_PACKETS_STORED = 64;
 	private PacketReceipt[] receivedPackets;
 	private int receivedPacketHistoryInt;
@@ -16,13 +21,37 @@ public class PacketRecorder {
 	private int lastSentPacketSequenceNumber;
 
 	private int lastSentPacketCheckedForDelivery;
+	private int lastAcknowledgedSequenceNumber;
+	private int acknowledgedPacketHistory;
+	private long roundTripTimeSample;
+	private double lossRate;
+	private int lossReportThreshold;
+
+	private int numPacketsNotAcknowledged;
+	private long timeOfFirstPacketNotAcknowledged;
+	private Clock clock;
 
 	public PacketRecorder() {
+		this(MonotonicClock.INSTANCE);
+	}
+
+	/**
+	 * @param clock what receipts are timestamped and round trip times measured with
+	 */
+	public PacketRecorder(Clock clock) {
+		this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
 		receivedPackets = new PacketReceipt[PacketRecorder.NUM_RECEIVED_PACKETS_STORED];
 		sentPackets = new PacketReceipt[PacketRecorder.NUM_SENT_PACKETS_STORED];
 		reset();
 	}
 
+	/**
+	 * Only safe to change between connections--times already recorded came from the old clock.
+	 */
+	synchronized void setClock(Clock clock) {
+		this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
+	}
+
 	public synchronized boolean hasRecordedIncomingPacket(Packet packet) {
 		return (packet == null ? false : hasReceivedPacketWithSequenceNumber(packet.getSequenceNumber()));
 	}
@@ -32,13 +61,30 @@ public class PacketRecorder {
 	}
 
 	public synchronized void recordIncomingPacket(Packet packet) {
-		//if the packet is null or if it doesn't have a sequence number, we can't record it
-		if(packet == null || !packet.hasSequenceNumber())
+		//if the packet is null, we can't record it
+		if(packet == null)
 			return;
 
+		//whatever order it arrived in, the packet tells us which of our packets were delivered
+		long now = clock.currentTimeMillis();
+		sampleRoundTripTime(packet, now);
+		recordDeliveredPackets(packet);
+		recordAcknowledgement(packet);
+
+		//if it doesn't have a sequence number (e.g. it's an ACKNOWLEDGEMENT), there's nothing more to record
+		if(!packet.hasSequenceNumber())
+			return;
+
+		//messages are owed an acknowledgement--everything else is answered straight away or doesn't need one
+		if(packet.getMessageType() == MessageType.APPLICATION) {
+			if(numPacketsNotAcknowledged == 0)
+				timeOfFirstPacketNotAcknowledged = now;
+			numPacketsNotAcknowledged++;
+		}
+
 		//if we've never received a packet before, our job is easy
 		if(lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE) {
-			receivedPackets[0] = new PacketReceipt(packet);
+			receivedPackets[0] = new PacketReceipt(packet, now);
 			receivedPacketHistoryInt = 0;
 			lastReceivedPacketIndex = 0;
 			lastReceivedPacketSequenceNumber = packet.getSequenceNumber();
@@ -47,7 +93,7 @@ public class PacketRecorder {
 			//if our last received packet is really old, our job is almost exactly the same as receiving our first packet
 			int delta = Packet.deltaBetweenSequenceNumbers(lastReceivedPacketSequenceNumber, packet.getSequenceNumber());
 			if(delta >= PacketRecorder.NUM_RECEIVED_PACKETS_STORED) {
-				receivedPackets[0] = new PacketReceipt(packet);
+				receivedPackets[0] = new PacketReceipt(packet, now);
 				for(int i = 1; i < receivedPackets.length; i++)
 					receivedPackets[i] = null;
 				receivedPacketHistoryInt = 0;
@@ -68,7 +114,7 @@ public class PacketRecorder {
 
 				//add the packet
 				lastReceivedPacketIndex = (lastReceivedPacketIndex + delta) % PacketRecorder.NUM_RECEIVED_PACKETS_STORED;
-				receivedPackets[lastReceivedPacketIndex] = new PacketReceipt(packet);
+				receivedPackets[lastReceivedPacketIndex] = new PacketReceipt(packet, now);
 				lastReceivedPacketSequenceNumber = packet.getSequenceNumber();
 			}
 
@@ -77,14 +123,14 @@ public class PacketRecorder {
 				int index = lastReceivedPacketIndex + delta;
 				if(index < 0)
 					index += PacketRecorder.NUM_RECEIVED_PACKETS_STORED;
-				receivedPackets[index] = new PacketReceipt(packet);
+				receivedPackets[index] = new PacketReceipt(packet, now);
 
 				//add a 1 to the correct position in the history int
 				if(delta >= -32) {
 					//ex: delta = -1  -->  leftmost bit needs to be a 1  -->  mask with 2^31  -->  mask with Integer.MIN_VALUE
 					//ex: delta = -32 -->  rightmost bit needs to be a 1 -->  mask with 2^0
 					int mask = (delta == -1 ? Integer.MIN_VALUE : (int) Math.pow(2, 32 + delta));
-					receivedPacketHistoryInt = receivedPacketHistoryInt & mask;
+					receivedPacketHistoryInt = receivedPacketHistoryInt | mask;
 				}
 			}
 
@@ -92,65 +138,95 @@ public class PacketRecorder {
 		}
 	}
 
+	/**
+	 * Whether an incoming packet carries on where the connection left off:
+	 * it is newer than anything received so far, and it acknowledges a
+	 * packet we recently sent. This says the packet is fresh, not who sent
+	 * it--anyone who has seen the conversation can write one--so it only
+	 * means something for a packet a PacketCipher has already authenticated.
+	 */
+	public synchronized boolean isContinuationOfConnection(Packet packet) {
+		if(packet == null || !packet.hasSequenceNumber() || !packet.hasReceivedPacketHistory() || lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return false;
+		int delta = Packet.deltaBetweenSequenceNumbers(lastReceivedPacketSequenceNumber, packet.getSequenceNumber());
+		if(delta <= 0 || delta >= PacketRecorder.NUM_RECEIVED_PACKETS_STORED)
+			return false;
+		PacketReceipt receipt = getSentPacketWithSequenceNumber(packet.getLastReceivedSequenceNumber());
+		return receipt != null && receipt.getPacket() != null && receipt.getPacket().getSequenceNumber() == packet.getLastReceivedSequenceNumber();
+	}
+
 	public synchronized List<Packet> getUndeliveredPackets() {
 		List<Packet> undeliveredPackets = new ArrayList<Packet>();
 
-		//if we've never received a packet then we have no way to tell if the packets we've sent have been delivered
-		if(lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
-			return undeliveredPackets;
-
-		//if we received null packets (shouldn't be possible) then once again there's no way to tell which packets have been delivered
-		if(receivedPackets[lastReceivedPacketIndex] == null)
-			return undeliveredPackets;
-		Packet packet = receivedPackets[lastReceivedPacketIndex].getPacket();
-		if(packet == null)
-			return undeliveredPackets;
-
-		//if the last received packet doesn't have history information then there's no information on which packets were delivered
-		if(!packet.hasReceivedPacketHistory())
-			return undeliveredPackets;
-
-		//if the the last received packet has older history information than when we last checked then we gain no new information
-		int packetVerifiedAsDelivered = packet.getLastReceivedSequenceNumber();
-		if(lastSentPacketCheckedForDelivery != Packet.SEQUENCE_NUMBER_NOT_APPLICABLE
-				&& Packet.deltaBetweenSequenceNumbers(lastSentPacketCheckedForDelivery, packetVerifiedAsDelivered) <= 0)
+		//if we've never received any history information then we have no way to tell if the packets we've sent have been delivered
+		if(lastAcknowledgedSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
 			return undeliveredPackets;
 
 		//if we've never checked packet history before then we set an anchor here and don't do any checking yet
+		int packetVerifiedAsDelivered = lastAcknowledgedSequenceNumber;
 		if(lastSentPacketCheckedForDelivery == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE) {
 			lastSentPacketCheckedForDelivery = packetVerifiedAsDelivered;
 			return undeliveredPackets;
 		}
 
-		//check each packet between the last packet checked for delivery and the new packet verified as delivered
-		lastSentPacketCheckedForDelivery = Packet.nextSequenceNumber(lastSentPacketCheckedForDelivery);
-		while(lastSentPacketCheckedForDelivery != packetVerifiedAsDelivered) {
+		//check each packet after the last packet checked for delivery that's at least the threshold behind the packet verified as
+		// delivered--with a threshold of 1, every packet before it. If the newest history information is older than when we
+		// last checked then we gain no new information and nothing is checked
+		while(Packet.deltaBetweenSequenceNumbers(lastSentPacketCheckedForDelivery, packetVerifiedAsDelivered) > lossReportThreshold) {
+			lastSentPacketCheckedForDelivery = Packet.nextSequenceNumber(lastSentPacketCheckedForDelivery);
 			int delta = Packet.deltaBetweenSequenceNumbers(lastSentPacketCheckedForDelivery, packetVerifiedAsDelivered);
 			if(delta <= 32) {
 				//if the most recent packet has 0s in it that means packet weren't delivered
 				//ex: delta = 32 --> rightmost bit represents delivery --> mask with 2^0
 				//ex: delta = 1  --> leftmost bit represents delivery  --> mask with 2^31 --> mask with Integer.MIN_VALUE
 				int mask = (delta == 1 ? Integer.MIN_VALUE : (int) Math.pow(2, 32 - delta));
-				if((packet.getReceivedPacketHistory() & mask) == 0) {
-					int index = lastSentPacketIndex - delta;
-					if(index < 0)
-						index += PacketRecorder.NUM_SENT_PACKETS_STORED;
-					if(sentPackets[index] != null && sentPackets[index].getPacket() != null)
-						undeliveredPackets.add(sentPackets[index].getPacket());
+				if((acknowledgedPacketHistory & mask) == 0) {
+					PacketReceipt receipt = getSentPacketWithSequenceNumber(lastSentPacketCheckedForDelivery);
+					if(receipt != null && receipt.getPacket() != null && !receipt.isDelivered()) {
+						undeliveredPackets.add(receipt.getPacket());
+						sampleLoss(true);
+					}
 				}
+				else
+					sampleLoss(false);
 			}
-			lastSentPacketCheckedForDelivery = Packet.nextSequenceNumber(lastSentPacketCheckedForDelivery);
 		}
 		return undeliveredPackets;
 	}
+
+	/**
+	 * Holds back reporting a packet undelivered until the other end has
+	 * acknowledged a packet sent this many after it, e.g. so it has had the
+	 * chance to rebuild the packet from parity first.
+	 *
+	 * @param numPackets 1 (the default) to report a packet as soon as a later one is acknowledged without it
+	 */
+	public synchronized void setLossReportThreshold(int numPackets) {
+		lossReportThreshold = Math.max(1, Math.min(32, numPackets));
+	}
 	
 	public synchronized void addReceivedPacketHistoryToOutgoingPacket(Packet packet) {
 		if(packet != null) {
 			packet.setLastReceivedSequenceNumber(lastReceivedPacketSequenceNumber);
 			packet.setReceivedPacketHistory(receivedPacketHistoryInt);
+			numPacketsNotAcknowledged = 0;
 		}
 	}
 
+	/**
+	 * Whether an ACKNOWLEDGEMENT should go out because nothing else has
+	 * carried our packet history back in a while. Any outgoing packet
+	 * carries it, so one only comes due when there's nothing else to send.
+	 *
+	 * @param threshold how many messages can be received without acknowledging them
+	 * @param delay how long in milliseconds the oldest of them can wait
+	 */
+	public synchronized boolean isAcknowledgementDue(int threshold, int delay) {
+		if(numPacketsNotAcknowledged == 0)
+			return false;
+		return numPacketsNotAcknowledged >= threshold || clock.currentTimeMillis() - timeOfFirstPacketNotAcknowledged >= delay;
+	}
+
 	public synchronized void recordAndAddSequenceNumberToOutgoingPacket(Packet packet) {
 		//ignore null packets
 		if(packet == null)
@@ -164,11 +240,13 @@ public class PacketRecorder {
 		lastSentPacketIndex++;
 		if(lastSentPacketIndex == PacketRecorder.NUM_SENT_PACKETS_STORED)
 			lastSentPacketIndex = 0;
-		sentPackets[lastSentPacketIndex] = new PacketReceipt(packet);
+		sentPackets[lastSentPacketIndex] = new PacketReceipt(packet, clock.currentTimeMillis());
 	}
 
 	public synchronized void recordPreviousOutgoingPacketNotSent() {
-		//no-op--the receiving party will recognize the packet has not been received and request a duplicate
+		//no-op--the packet stays recorded as sent and is lost like any other, so the receiving party will recognize it
+		// has not been received and request a duplicate. its sequence number is never handed back: on an encrypted
+		// connection it's the packet's nonce, and sealing a second packet with it would reuse the key stream
 	}
 
 	public synchronized PacketReceipt getSentPacketWithSequenceNumber(int sequenceNumber) {
@@ -186,12 +264,81 @@ public class PacketRecorder {
 			return null;
 
 		//return the sent packet
-		int index = (lastSentPacketSequenceNumber - delta) % PacketRecorder.NUM_SENT_PACKETS_STORED;
+		int index = lastSentPacketIndex - delta;
 		if(index < 0)
 			index += PacketRecorder.NUM_SENT_PACKETS_STORED;
 		return sentPackets[index];
 	}
 
+	/**
+	 * @return the receipt of a recently received packet, or null if it hasn't been received or is too old to know
+	 */
+	public synchronized PacketReceipt getReceivedPacketWithSequenceNumber(int sequenceNumber) {
+		if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE || lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return null;
+		int delta = Packet.deltaBetweenSequenceNumbers(lastReceivedPacketSequenceNumber, sequenceNumber);
+		if(delta > 0 || delta <= -PacketRecorder.NUM_RECEIVED_PACKETS_STORED)
+			return null;
+		int index = lastReceivedPacketIndex + delta;
+		if(index < 0)
+			index += PacketRecorder.NUM_RECEIVED_PACKETS_STORED;
+		return receivedPackets[index];
+	}
+
+	/**
+	 * @return whether the other end has acknowledged receiving the packet--false if it hasn't yet or if the packet is too old to know
+	 */
+	public synchronized boolean isSentPacketDelivered(int sequenceNumber) {
+		PacketReceipt receipt = getSentPacketWithSequenceNumber(sequenceNumber);
+		return receipt != null && receipt.isDelivered();
+	}
+
+	/**
+	 * Gathers the sent packets of a type that the other end hasn't
+	 * acknowledged yet, oldest first, for sending again. They count as
+	 * delivered from then on, so they aren't also reported as undelivered.
+	 */
+	public synchronized List<Packet> takeUnacknowledgedPackets(MessageType messageType) {
+		List<Packet> unacknowledgedPackets = new ArrayList<Packet>();
+		if(lastSentPacketIndex < 0)
+			return unacknowledgedPackets;
+		for(int i = 1; i <= PacketRecorder.NUM_SENT_PACKETS_STORED; i++) {
+			PacketReceipt receipt = sentPackets[(lastSentPacketIndex + i) % PacketRecorder.NUM_SENT_PACKETS_STORED];
+			if(receipt != null && !receipt.isDelivered() && receipt.getPacket() != null && receipt.getPacket().getMessageType() == messageType) {
+				receipt.setDelivered(true);
+				unacknowledgedPackets.add(receipt.getPacket());
+			}
+		}
+		return unacknowledgedPackets;
+	}
+
+	/**
+	 * The time between sending a packet and first hearing it acknowledged,
+	 * from the last incoming packet that acknowledged something new. It
+	 * includes however long the other end waited to send that packet, so
+	 * it runs high when the other end rarely sends anything--except for
+	 * replies like PING_RESPONSE, which are sent straight away. PINGs are
+	 * only sent once a connection goes quiet, so theirs are never sampled.
+	 *
+	 * @return the round trip time in milliseconds, or -1 if there's no new sample since the last call
+	 */
+	public synchronized long takeRoundTripTimeSample() {
+		long sample = roundTripTimeSample;
+		roundTripTimeSample = -1;
+		return sample;
+	}
+
+	/**
+	 * The share of our packets the other end's acknowledgements have shown
+	 * lost lately, as a moving average over roughly the last 32 packets
+	 * {@link #getUndeliveredPackets()} checked.
+	 *
+	 * @return between 0 and 1
+	 */
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+
 	public synchronized void reset() {
 		for(int i = 0; i < receivedPackets.length; i++)
 			receivedPackets[i] = null;
@@ -205,6 +352,67 @@ public class PacketRecorder {
 		lastSentPacketSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
 
 		lastSentPacketCheckedForDelivery = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		lastAcknowledgedSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		acknowledgedPacketHistory = 0;
+		roundTripTimeSample = -1;
+		lossRate = 0;
+		lossReportThreshold = 1;
+
+		numPacketsNotAcknowledged = 0;
+		timeOfFirstPacketNotAcknowledged = 0;
+	}
+
+	private void sampleRoundTripTime(Packet packet, long now) {
+		if(!packet.hasReceivedPacketHistory() || packet.getMessageType() == MessageType.PING)
+			return;
+		PacketReceipt receipt = getSentPacketWithSequenceNumber(packet.getLastReceivedSequenceNumber());
+		if(receipt != null && !receipt.isDelivered() && receipt.getPacket() != null && receipt.getPacket().getSequenceNumber() == packet.getLastReceivedSequenceNumber())
+			roundTripTimeSample = Math.max(0, now - receipt.getTime());
+	}
+
+	private void sampleLoss(boolean isLost) {
+		lossRate += ((isLost ? 1 : 0) - lossRate) * PacketRecorder.LOSS_RATE_WEIGHT;
+	}
+
+	private void recordDeliveredPackets(Packet packet) {
+		if(!packet.hasReceivedPacketHistory() || lastSentPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return;
+
+		//the last received sequence number was obviously delivered, and each 1 in the history is a packet before it that was delivered
+		int sequenceNumber = packet.getLastReceivedSequenceNumber();
+		int history = packet.getReceivedPacketHistory();
+		markSentPacketDelivered(sequenceNumber);
+		for(int delta = 1; delta <= 32 && history != 0; delta++) {
+			sequenceNumber = (sequenceNumber == Packet.MINIMUM_SEQUENCE_NUMBER ? Packet.MAXIMUM_SEQUENCE_NUMBER : sequenceNumber - 1);
+			if((history & Integer.MIN_VALUE) != 0)
+				markSentPacketDelivered(sequenceNumber);
+			history <<= 1;
+		}
+	}
+
+	/**
+	 * Keeps the newest history information received, wherever it came from,
+	 * for {@link #getUndeliveredPackets()}.
+	 */
+	private void recordAcknowledgement(Packet packet) {
+		if(!packet.hasReceivedPacketHistory())
+			return;
+		int sequenceNumber = packet.getLastReceivedSequenceNumber();
+		int delta = (lastAcknowledgedSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE ? 1 : Packet.deltaBetweenSequenceNumbers(lastAcknowledgedSequenceNumber, sequenceNumber));
+		if(delta > 0) {
+			lastAcknowledgedSequenceNumber = sequenceNumber;
+			acknowledgedPacketHistory = packet.getReceivedPacketHistory();
+		}
+
+		//packets acknowledging the same packet may still differ in which packets before it arrived
+		else if(delta == 0)
+			acknowledgedPacketHistory |= packet.getReceivedPacketHistory();
+	}
+
+	private void markSentPacketDelivered(int sequenceNumber) {
+		PacketReceipt receipt = getSentPacketWithSequenceNumber(sequenceNumber);
+		if(receipt != null && receipt.getPacket() != null && receipt.getPacket().getSequenceNumber() == sequenceNumber)
+			receipt.setDelivered(true);
 	}
 
 	private synchronized boolean hasReceivedPacketWithSequenceNumber(int sequenceNumber) {
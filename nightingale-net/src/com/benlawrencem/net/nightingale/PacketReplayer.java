@@ -0,0 +1,206 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the incoming datagrams of a {@link PacketCapture} trace file to a
+ * server again, e.g. to benchmark a new build on real traffic. Each peer in
+ * the capture is assigned one of several simulated sources--transports with
+ * their own port--so the server sees traffic from many addresses. For the
+ * server to accept the replayed connections it should be freshly started,
+ * so that it hands out the same client ids it did when the capture was made.
+ *
+ * Usage: PacketReplayer capture.trace host port [speed] [sources]
+ * where a speed of 1 replays in real time, 2 twice as fast, and 0 as fast as possible.
+ */
+public class PacketReplayer {
+	public static final double AS_FAST_AS_POSSIBLE = 0.0;
+	public static final int DEFAULT_NUM_SOURCES = 16;
+	private static final long MINIMUM_SLEEP_TIME = TimeUnit.MILLISECONDS.toNanos(2);
+	private String fileName;
+	private TransportFactory transportFactory;
+	private int numSources;
+	private double speed;
+	private long numPacketsReplayed;
+	private long numBytesReplayed;
+	private long elapsedTime;
+
+	public PacketReplayer(String fileName) {
+		this.fileName = fileName;
+		transportFactory = DatagramSocketTransport.FACTORY;
+		numSources = PacketReplayer.DEFAULT_NUM_SOURCES;
+		speed = 1.0;
+		numPacketsReplayed = 0;
+		numBytesReplayed = 0;
+		elapsedTime = 0;
+	}
+
+	public static void main(String[] args) {
+		if(args == null || args.length < 3) {
+			System.out.println("Usage: PacketReplayer capture.trace host port [speed] [sources]");
+			return;
+		}
+		try {
+			PacketReplayer replayer = new PacketReplayer(args[0]);
+			if(args.length > 3)
+				replayer.setSpeed(Double.parseDouble(args[3]));
+			if(args.length > 4)
+				replayer.setNumSources(Integer.parseInt(args[4]));
+			replayer.replay(InetAddress.getByName(args[1]), Integer.parseInt(args[2]));
+			double seconds = replayer.getElapsedTime() / (double) TimeUnit.SECONDS.toNanos(1);
+			System.out.println("Replayed " + replayer.getNumPacketsReplayed() + " packets (" + replayer.getNumBytesReplayed() + " bytes) in " + seconds + "s");
+			if(seconds > 0)
+				System.out.println((long) (replayer.getNumPacketsReplayed() / seconds) + " packets/s");
+		} catch (NumberFormatException e) {
+			System.out.println("Could not replay capture: " + e.getMessage() + " is not a number");
+		} catch (IOException e) {
+			System.out.println("Could not replay capture: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Chooses how the simulated sources send, e.g. over real sockets (the
+	 * default) or over an {@link InMemoryNetwork} shared with the server.
+	 */
+	public void setTransportFactory(TransportFactory factory) {
+		transportFactory = (factory == null ? DatagramSocketTransport.FACTORY : factory);
+	}
+
+	public void setNumSources(int numSources) {
+		this.numSources = Math.max(1, numSources);
+	}
+
+	public int getNumSources() {
+		return numSources;
+	}
+
+	/**
+	 * @param speed 1 for the original timing, 2 for twice as fast and so on, or {@link #AS_FAST_AS_POSSIBLE}
+	 */
+	public void setSpeed(double speed) {
+		this.speed = Math.max(0.0, speed);
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Replays every incoming datagram in the capture to the server, blocking
+	 * until the last one is sent.
+	 */
+	public void replay(InetAddress serverAddress, int serverPort) throws IOException {
+		numPacketsReplayed = 0;
+		numBytesReplayed = 0;
+		PacketCaptureReader reader = new PacketCaptureReader(fileName);
+		Transport[] sources = new Transport[numSources];
+		SourceDrainThread[] drainThreads = new SourceDrainThread[numSources];
+		try {
+			for(int i = 0; i < numSources; i++) {
+				sources[i] = transportFactory.openTransport(0);
+
+				//the server will answer, so keep reading the replies to stop them backing up
+				drainThreads[i] = new SourceDrainThread(sources[i]);
+				drainThreads[i].setDaemon(true);
+				drainThreads[i].start();
+			}
+
+			Map<InetSocketAddress, Transport> sourcesByPeer = new HashMap<InetSocketAddress, Transport>();
+			DatagramPacket datagramPacket = new DatagramPacket(new byte[0], 0, serverAddress, serverPort);
+			long replayStartTime = System.nanoTime();
+			long firstTimestamp = -1;
+			CapturedPacket capturedPacket;
+			while((capturedPacket = reader.next()) != null) {
+				if(!capturedPacket.isIncoming())
+					continue;
+
+				//spread the captured peers across the sources in the order they first show up
+				InetSocketAddress peer = new InetSocketAddress(capturedPacket.getAddress(), capturedPacket.getPort());
+				Transport source = sourcesByPeer.get(peer);
+				if(source == null) {
+					source = sources[sourcesByPeer.size() % numSources];
+					sourcesByPeer.put(peer, source);
+				}
+
+				if(speed > 0.0) {
+					if(firstTimestamp < 0)
+						firstTimestamp = capturedPacket.getTimestamp();
+					waitUntil(replayStartTime + (long) ((capturedPacket.getTimestamp() - firstTimestamp) / speed));
+				}
+				datagramPacket.setData(capturedPacket.getData());
+				source.send(datagramPacket);
+				numPacketsReplayed++;
+				numBytesReplayed += capturedPacket.getData().length;
+			}
+			elapsedTime = System.nanoTime() - replayStartTime;
+		} finally {
+			reader.close();
+			for(int i = 0; i < numSources; i++) {
+				if(drainThreads[i] != null)
+					drainThreads[i].stopDraining();
+				if(sources[i] != null)
+					sources[i].close();
+			}
+		}
+	}
+
+	public long getNumPacketsReplayed() {
+		return numPacketsReplayed;
+	}
+
+	public long getNumBytesReplayed() {
+		return numBytesReplayed;
+	}
+
+	/**
+	 * @return how long the last replay took, in nanoseconds
+	 */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+
+	private static void waitUntil(long time) {
+		long remainingTime;
+		while((remainingTime = time - System.nanoTime()) > 0) {
+			//sleeping is too coarse for the last couple of milliseconds, so spin through them
+			if(remainingTime > PacketReplayer.MINIMUM_SLEEP_TIME)
+				LockSupport.parkNanos(remainingTime - PacketReplayer.MINIMUM_SLEEP_TIME);
+			else
+				Thread.yield();
+		}
+	}
+
+	private static class SourceDrainThread extends Thread {
+		private Transport transport;
+		private volatile boolean isDraining;
+
+		public SourceDrainThread(Transport transport) {
+			this.transport = transport;
+			isDraining = true;
+		}
+
+		public void run() {
+			byte[] bytes = new byte[Packet.MAXIMUM_DATAGRAM_SIZE];
+			DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
+			while(isDraining) {
+				try {
+					datagramPacket.setLength(bytes.length);
+					transport.receive(datagramPacket);
+				} catch (IOException e) {
+					//the transport is closed once the replay is over
+				}
+			}
+		}
+
+		public void stopDraining() {
+			isDraining = false;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses packet messages with raw deflate, optionally
+ * primed with a preset dictionary that both ends share. Every message is
+ * compressed on its own so a lost packet never affects the next one. The
+ * Deflater, Inflater and their buffers are created once and reset for each
+ * message, so a single instance can serve every connection of a Server.
+ */
+public class PayloadCompressor {
+	public static final int DEFAULT_THRESHOLD = 32;
+	public static final String NO_DICTIONARY_ID = "0";
+	private static final int MAXIMUM_DECOMPRESSED_SIZE = 16 * Packet.MAXIMUM_PACKET_SIZE;
+	private final Object COMPRESS_LOCK = new Object();
+	private final Object DECOMPRESS_LOCK = new Object();
+	private byte[] dictionary;
+	private String dictionaryId;
+	private int threshold;
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] compressBuffer;
+	private byte[] decompressBuffer;
+	private long numBytesBeforeCompression;
+	private long numBytesAfterCompression;
+	private long numMessagesSkipped;
+
+	public PayloadCompressor() {
+		this(null, PayloadCompressor.DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param dictionary bytes likely to appear in messages, most common last, or null for no dictionary
+	 * @param threshold messages shorter than this many bytes are never compressed
+	 */
+	public PayloadCompressor(byte[] dictionary, int threshold) {
+		this.dictionary = (dictionary == null || dictionary.length == 0 ? null : dictionary.clone());
+		dictionaryId = PayloadCompressor.getDictionaryId(this.dictionary);
+		this.threshold = Math.max(1, threshold);
+		deflater = new Deflater(Deflater.BEST_SPEED, true);
+		inflater = new Inflater(true);
+		compressBuffer = new byte[Packet.MAXIMUM_PACKET_SIZE];
+		decompressBuffer = new byte[PayloadCompressor.MAXIMUM_DECOMPRESSED_SIZE];
+		numBytesBeforeCompression = 0;
+		numBytesAfterCompression = 0;
+		numMessagesSkipped = 0;
+	}
+
+	public String getDictionaryId() {
+		return dictionaryId;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the compressed bytes, or null if the message is too short or wouldn't get any smaller
+	 */
+	public byte[] compress(byte[] bytes) {
+		if(bytes == null)
+			return null;
+		synchronized(COMPRESS_LOCK) {
+			if(bytes.length < threshold) {
+				numMessagesSkipped++;
+				return null;
+			}
+			if(compressBuffer.length < bytes.length)
+				compressBuffer = new byte[bytes.length];
+
+			deflater.reset();
+			if(dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(bytes);
+			deflater.finish();
+
+			//only take as many bytes as the uncompressed message--if deflate needs more than that it isn't worth it
+			int length = deflater.deflate(compressBuffer, 0, bytes.length - 1);
+			if(!deflater.finished()) {
+				numMessagesSkipped++;
+				return null;
+			}
+			numBytesBeforeCompression += bytes.length;
+			numBytesAfterCompression += length;
+			byte[] compressedBytes = new byte[length];
+			System.arraycopy(compressBuffer, 0, compressedBytes, 0, length);
+			return compressedBytes;
+		}
+	}
+
+	public String decompressToString(byte[] bytes, int offset, int length) throws DataFormatException {
+		synchronized(DECOMPRESS_LOCK) {
+			inflater.reset();
+			if(dictionary != null)
+				inflater.setDictionary(dictionary);
+			inflater.setInput(bytes, offset, length);
+			int decompressedLength = inflater.inflate(decompressBuffer);
+			if(!inflater.finished())
+				throw new DataFormatException("Compressed message is truncated or decompresses to more than " + PayloadCompressor.MAXIMUM_DECOMPRESSED_SIZE + " bytes.");
+			return new String(decompressBuffer, 0, decompressedLength);
+		}
+	}
+
+	public long getNumBytesBeforeCompression() {
+		synchronized(COMPRESS_LOCK) {
+			return numBytesBeforeCompression;
+		}
+	}
+
+	public long getNumBytesAfterCompression() {
+		synchronized(COMPRESS_LOCK) {
+			return numBytesAfterCompression;
+		}
+	}
+
+	public long getNumMessagesSkipped() {
+		synchronized(COMPRESS_LOCK) {
+			return numMessagesSkipped;
+		}
+	}
+
+	/**
+	 * Releases the native memory held by the Deflater and Inflater. The
+	 * compressor can't be used afterwards.
+	 */
+	public void close() {
+		synchronized(COMPRESS_LOCK) {
+			deflater.end();
+		}
+		synchronized(DECOMPRESS_LOCK) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @return an id both ends can compare to check they have the same dictionary
+	 */
+	public static String getDictionaryId(byte[] dictionary) {
+		if(dictionary == null || dictionary.length == 0)
+			return PayloadCompressor.NO_DICTIONARY_ID;
+		Adler32 adler32 = new Adler32();
+		adler32.update(dictionary);
+		return Long.toHexString(adler32.getValue()) + "-" + Integer.toHexString(dictionary.length);
+	}
+}
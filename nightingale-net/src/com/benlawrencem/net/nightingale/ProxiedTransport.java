@@ -0,0 +1,177 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+/**
+ * The backend end of a {@link LoadBalancer}. Every datagram between the
+ * load balancer and a backend starts with a small proxy header naming the
+ * client it came from or is going to, so a Server using this transport sees
+ * its clients' real addresses--for cookies, rate limiting and NAT
+ * migration--even though every datagram actually travels through the load
+ * balancer. Datagrams that don't come from the load balancer are ignored,
+ * so nobody else can claim to be forwarding for a client.
+ *
+ * Proxy header structure:
+ 	short	2 bytes	magic number
+ 	byte	1 byte	client address length (4 or 16)
+ 	byte[]	n bytes	client address
+ 	short	2 bytes	client port
+ */
+public class ProxiedTransport implements Transport {
+	static final short MAGIC_NUMBER = 0x4E50;
+	static final int MAXIMUM_HEADER_SIZE = 2 + 1 + 16 + 2;
+	private Transport transport;
+	private InetAddress loadBalancerAddress;
+	private volatile InetAddress replyAddress;
+	private volatile int replyPort;
+	private byte[] receiveBuffer;
+	private DatagramPacket receivePacket;
+	private ThreadLocal<DatagramPacket> sendPackets;
+
+	/**
+	 * @param transport the transport the load balancer's datagrams arrive on
+	 * @param loadBalancerAddress the only address datagrams are accepted from
+	 */
+	public ProxiedTransport(Transport transport, InetAddress loadBalancerAddress) {
+		this.transport = transport;
+		this.loadBalancerAddress = loadBalancerAddress;
+		replyAddress = null;
+		replyPort = -1;
+		receiveBuffer = new byte[ProxiedTransport.MAXIMUM_HEADER_SIZE + Packet.MAXIMUM_DATAGRAM_SIZE];
+		receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+		sendPackets = new ThreadLocal<DatagramPacket>() {
+			protected DatagramPacket initialValue() {
+				byte[] buffer = new byte[ProxiedTransport.MAXIMUM_HEADER_SIZE + Packet.MAXIMUM_DATAGRAM_SIZE];
+				return new DatagramPacket(buffer, buffer.length);
+			}
+		};
+	}
+
+	/**
+	 * For {@link Server#setTransportFactory}: opens transports with the factory
+	 * and wraps them to talk through the load balancer.
+	 */
+	public static TransportFactory createFactory(final TransportFactory factory, final InetAddress loadBalancerAddress) {
+		return new TransportFactory() {
+			public Transport openTransport(int port) throws SocketException {
+				return new ProxiedTransport(factory.openTransport(port), loadBalancerAddress);
+			}
+		};
+	}
+
+	/**
+	 * Sends the datagram to the load balancer, which passes it on to the
+	 * client it is addressed to.
+	 */
+	public void send(DatagramPacket datagramPacket) throws IOException {
+		InetAddress loadBalancer = replyAddress;
+		if(loadBalancer == null)
+			throw new SocketException("Nothing has arrived from the load balancer yet.");
+
+		//the caller's buffer has no room for the header, so each sending thread builds the datagram in its own
+		DatagramPacket proxiedPacket = sendPackets.get();
+		byte[] buffer = proxiedPacket.getData();
+		int length = Math.min(datagramPacket.getLength(), Packet.MAXIMUM_DATAGRAM_SIZE);
+		int headerStart = ProxiedTransport.putHeader(buffer, ProxiedTransport.MAXIMUM_HEADER_SIZE, datagramPacket.getAddress(), datagramPacket.getPort());
+		System.arraycopy(datagramPacket.getData(), datagramPacket.getOffset(), buffer, ProxiedTransport.MAXIMUM_HEADER_SIZE, length);
+		proxiedPacket.setData(buffer, headerStart, ProxiedTransport.MAXIMUM_HEADER_SIZE - headerStart + length);
+		proxiedPacket.setAddress(loadBalancer);
+		proxiedPacket.setPort(replyPort);
+		transport.send(proxiedPacket);
+	}
+
+	/**
+	 * Receives the next datagram forwarded by the load balancer, addressed as
+	 * though it came straight from the client.
+	 */
+	public synchronized void receive(DatagramPacket datagramPacket) throws IOException {
+		while(true) {
+			receivePacket.setData(receiveBuffer, 0, receiveBuffer.length);
+			transport.receive(receivePacket);
+			if(!loadBalancerAddress.equals(receivePacket.getAddress()))
+				continue;
+			int headerSize = ProxiedTransport.getHeaderSize(receiveBuffer, 0, receivePacket.getLength());
+			if(headerSize < 0)
+				continue;
+			InetAddress clientAddress = ProxiedTransport.getAddress(receiveBuffer, 0);
+			if(clientAddress == null)
+				continue;
+
+			//replies go back to whichever of the load balancer's sockets is forwarding to us
+			replyAddress = receivePacket.getAddress();
+			replyPort = receivePacket.getPort();
+
+			int length = Math.min(receivePacket.getLength() - headerSize, datagramPacket.getData().length - datagramPacket.getOffset());
+			System.arraycopy(receiveBuffer, headerSize, datagramPacket.getData(), datagramPacket.getOffset(), length);
+			datagramPacket.setLength(length);
+			datagramPacket.setAddress(clientAddress);
+			datagramPacket.setPort(ProxiedTransport.getPort(receiveBuffer, headerSize));
+			return;
+		}
+	}
+
+	public int getLocalPort() {
+		return transport.getLocalPort();
+	}
+
+	public void close() {
+		transport.close();
+	}
+
+	/**
+	 * Writes a proxy header so that it ends right where the datagram starts.
+	 *
+	 * @return where the header starts
+	 */
+	static int putHeader(byte[] buffer, int datagramStart, InetAddress address, int port) {
+		byte[] addressBytes = address.getAddress();
+		int headerStart = datagramStart - (2 + 1 + addressBytes.length + 2);
+		int index = headerStart;
+		buffer[index++] = (byte) (ProxiedTransport.MAGIC_NUMBER >>> 8);
+		buffer[index++] = (byte) ProxiedTransport.MAGIC_NUMBER;
+		buffer[index++] = (byte) addressBytes.length;
+		System.arraycopy(addressBytes, 0, buffer, index, addressBytes.length);
+		index += addressBytes.length;
+		buffer[index++] = (byte) (port >>> 8);
+		buffer[index] = (byte) port;
+		return headerStart;
+	}
+
+	/**
+	 * @return the size of the proxy header at the start, or -1 if there isn't a valid one
+	 */
+	static int getHeaderSize(byte[] buffer, int start, int length) {
+		if(length < 3 || buffer[start] != (byte) (ProxiedTransport.MAGIC_NUMBER >>> 8) || buffer[start + 1] != (byte) ProxiedTransport.MAGIC_NUMBER)
+			return -1;
+		int addressLength = buffer[start + 2];
+		if(addressLength != 4 && addressLength != 16)
+			return -1;
+		int headerSize = 2 + 1 + addressLength + 2;
+		return (length < headerSize ? -1 : headerSize);
+	}
+
+	/**
+	 * The header must be valid (see {@link #getHeaderSize}).
+	 */
+	static InetAddress getAddress(byte[] buffer, int start) {
+		byte[] addressBytes = new byte[buffer[start + 2]];
+		System.arraycopy(buffer, start + 3, addressBytes, 0, addressBytes.length);
+		try {
+			return InetAddress.getByAddress(addressBytes);
+		} catch (UnknownHostException e) {
+			//only thrown for addresses of an illegal length
+			return null;
+		}
+	}
+
+	/**
+	 * @param headerEnd where the header ends, i.e. its start plus its size
+	 */
+	static int getPort(byte[] buffer, int headerEnd) {
+		return ((buffer[headerEnd - 2] & 0xFF) << 8) | (buffer[headerEnd - 1] & 0xFF);
+	}
+}
@@ -2,7 +2,7 @@ package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -11,12 +11,21 @@ import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
 public class ReceivePacketThread extends Thread {
 	private static final Logger logger = Logger.getLogger(ReceivePacketThread.class.getName());
 	private PacketReceiver receiver;
-	private DatagramSocket socket;
+	private Transport transport;
+	private PacketFilter filter;
 	private boolean isReceiving;
 
-	public ReceivePacketThread(PacketReceiver receiver, DatagramSocket socket) {
+	public ReceivePacketThread(PacketReceiver receiver, Transport transport) {
+		this(receiver, transport, null);
+	}
+
+	/**
+	 * @param filter checks datagrams before they are parsed, or null to parse everything
+	 */
+	public ReceivePacketThread(PacketReceiver receiver, Transport transport, PacketFilter filter) {
 		this.receiver = receiver;
-		this.socket = socket;
+		this.transport = transport;
+		this.filter = filter;
 		isReceiving = false;
 	}
 
@@ -24,17 +33,30 @@ public class ReceivePacketThread extends Thread {
 		logger.finer("Receiving packets...");
 		isReceiving = true;
 		while(isReceiving) {
-			byte[] bytes = new byte[Packet.MAXIMUM_PACKET_SIZE];
+			byte[] bytes = new byte[Packet.MAXIMUM_DATAGRAM_SIZE];
 			DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
 			try {
-				socket.receive(datagramPacket);
+				transport.receive(datagramPacket);
+				//the source stays binary--receivers only turn it into a String when they need one
+				InetSocketAddress source = (InetSocketAddress) datagramPacket.getSocketAddress();
+				int length = datagramPacket.getLength();
+				if(filter != null) {
+					if(!filter.accept(datagramPacket.getData(), length, source))
+						continue;
+
+					//encrypted connections' packets are checked and decrypted in place
+					length = filter.open(datagramPacket.getData(), length, source);
+					if(length < 0)
+						continue;
+				}
 				try {
-					Packet packet = Packet.parsePacket(datagramPacket.getData(), datagramPacket.getLength());
+					Packet packet = Packet.parsePacket(datagramPacket.getData(), length);
 					logger.finest("Received packet");
-					receiver.receivePacket(packet, datagramPacket.getAddress().getHostAddress(), datagramPacket.getPort());
+					NetworkEvents.packetReceived(packet.getConnectionId(), packet.getSequenceNumber(), source, datagramPacket.getLength());
+					receiver.receivePacket(packet, source);
 				} catch (MalformedPacketException e) {
 					//it might be valuable to inform the server that it's receiving invalid packets from a client
-					receiver.receivePacket(null, datagramPacket.getAddress().getHostAddress(), datagramPacket.getPort());
+					receiver.receivePacket(null, source);
 				}
 			} catch (IOException e) {
 				//if the packet is having trouble receiving, the best thing to
@@ -2,20 +2,34 @@ package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
+import com.benlawrencem.net.nightingale.NetworkEvents.DropReason;
+import com.benlawrencem.net.nightingale.Packet.CouldNotDecompressMessageException;
 import com.benlawrencem.net.nightingale.Packet.CouldNotEncodePacketException;
 import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
 import com.benlawrencem.net.nightingale.Packet.MessageType;
@@ -26,20 +40,98 @@ import com.benlawrencem.net.nightingale.Packet.PacketIOException;
 public abstract class Server implements PacketReceiver {
 	private static final Logger logger = Logger.getLogger(Server.class.getName());
 	private final Object CONNECTION_LOCK = new Object();
+	private final Object TICK_LOCK = new Object();
 	private static final int CLIENT_TIMEOUT = 3000;
+	private static final int MAXIMUM_TIMEOUT_CHECK_INTERVAL = 250;
 	private static final String SERVER_STOPPING = "Server stopping.";
 	private static final String DISCONNECT_BY_CLIENT = "Disconnect requested by client.";
 	private static final String DROPPED_BY_SERVER = "Client cropped by server.";
 	private static final String CLIENT_COULD_NOT_CONNECT = "Could not accept client connection.";
 	private static final String CLIENT_TIMED_OUT = "Client timed out.";
-	private DatagramSocket socket;
+	private static final String CLIENT_DISCONNECTED = "Client disconnected.";
+	private static final int SESSION_TOKEN_SIZE = 16;
+	private static final int MINIMUM_CLIENTS_PER_BROADCAST_TASK = 32;
+	private static final int MAXIMUM_QUEUED_INCOMING_PACKETS = 4096;
+	private static final int UNCOMPRESSED = 0;
+	private static final int COMPRESSED = 1;
+	private static final int COMPRESSED_WITHOUT_DICTIONARY = 2;
+	private Transport transport;
 	private boolean isRunning;
 	private ServerTimeoutThread timeoutThread;
+	private ServerAcknowledgementThread acknowledgementThread;
 	private ReceivePacketThread receivePacketThread;
-	private Map<Integer, ClientInfo> clients;
+	private final ClientTable clients;
 	private int lastConnectedClientId;
+	private Map<Integer, IntSet> groups;
+	private int lastCreatedGroupId;
+	private TransportFactory transportFactory;
+	private NetworkConditions networkConditions;
+	private PacketCapture packetCapture;
+	private PacketFilter packetFilter;
+	private Clock clock;
+	private volatile Clock activeClock;
+	private boolean isCompactHeadersEnabled;
+	private boolean isChecksumEnabled;
+	private boolean isCompressionEnabled;
+	private byte[] compressionDictionary;
+	private int compressionThreshold;
+	private PayloadCompressor compressor;
+	private PayloadCompressor dictionarylessCompressor;
+	private boolean isForwardErrorCorrectionEnabled;
+	private int parityGroupSize;
+	private byte[] encryptionKey;
+	private boolean isCookieHandshakeEnabled;
+	private boolean isMigrationEnabled;
+	private HandshakeCookies handshakeCookies;
+	private HandshakeCookies resumeCookies;
+	private int sessionGracePeriod;
+	private int acknowledgementThreshold;
+	private int acknowledgementDelay;
+	private SecureRandom sessionTokenRandom;
+	private Map<Integer, ClientInfo> suspendedClients;
+	private ExecutorService broadcastExecutor;
+	private int tickRate;
+	private boolean isTickMode;
+	private ConcurrentLinkedQueue<QueuedPacket> incomingPackets;
+	private AtomicInteger numIncomingPacketsQueued;
+	private ConcurrentLinkedQueue<DatagramPacket> outgoingDatagrams;
+	private ConcurrentLinkedQueue<ClientTimeout> clientTimeouts;
+	private long tickNumber;
+	private long tickStartTime;
+	private long tickDuration;
+	private long drainTime;
+	private int numPacketsDrained;
+	private TickTiming lastTickTiming;
+	private Queue<DeliveryFuture> resolvedDeliveries;
+	private MessagePublisher inboundMessages;
 
 	public Server() {
+		clients = new ClientTable();
+		transportFactory = DatagramSocketTransport.FACTORY;
+		networkConditions = null;
+		packetCapture = null;
+		packetFilter = new PacketFilter(true);
+		clock = MonotonicClock.INSTANCE;
+		activeClock = clock;
+		isCompactHeadersEnabled = true;
+		isChecksumEnabled = true;
+		isCompressionEnabled = false;
+		isCookieHandshakeEnabled = false;
+		isMigrationEnabled = true;
+		handshakeCookies = null;
+		resumeCookies = null;
+		sessionGracePeriod = 0;
+		acknowledgementThreshold = PacketRecorder.DEFAULT_ACKNOWLEDGEMENT_THRESHOLD;
+		acknowledgementDelay = PacketRecorder.DEFAULT_ACKNOWLEDGEMENT_DELAY;
+		sessionTokenRandom = null;
+		tickRate = 0;
+		compressionDictionary = null;
+		compressionThreshold = PayloadCompressor.DEFAULT_THRESHOLD;
+		isForwardErrorCorrectionEnabled = false;
+		parityGroupSize = ForwardErrorCorrection.ADAPTIVE_GROUP_SIZE;
+		encryptionKey = null;
+		resolvedDeliveries = new ConcurrentLinkedQueue<DeliveryFuture>();
+		inboundMessages = new MessagePublisher();
 		resetParameters();
 	}
 
@@ -49,6 +141,27 @@ public abstract class Server implements PacketReceiver {
 	protected abstract void onReceive(int clientId, String message);
 	protected abstract void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, String message);
 
+	/**
+	 * Called when a connected client starts sending from a new address or
+	 * port, e.g. because its NAT rebound, and its packets were authenticated
+	 * by the connection's cipher--see {@link #setMigrationEnabled(boolean)}.
+	 * The session carries on as before. Does nothing by default.
+	 */
+	protected void onClientAddressChanged(int clientId, String address, int port) {}
+
+	/**
+	 * Called instead of onClientDisconnected when a client with a session
+	 * times out (see {@link #setSessionGracePeriod}). Nothing can be sent to
+	 * it until it resumes. Does nothing by default.
+	 */
+	protected void onClientSuspended(int clientId) {}
+
+	/**
+	 * Called when a client that timed out resumes its session. Does nothing
+	 * by default.
+	 */
+	protected void onClientResumed(int clientId) {}
+
 	public void startServer(int port) throws CouldNotStartServerException {
 		logger.fine("Starting server on port " + port + "...");
 		synchronized(CONNECTION_LOCK) {
@@ -57,11 +170,40 @@ public abstract class Server implements PacketReceiver {
 				throw new ServerAlreadyStartedException();
 			}
 			try {
-				socket = new DatagramSocket(port);
-				receivePacketThread = new ReceivePacketThread(this, socket);
+				transport = transportFactory.openTransport(port);
+				if(networkConditions != null)
+					transport = new ImpairedTransport(transport, networkConditions);
+				if(packetCapture != null)
+					transport = new CapturingTransport(transport, packetCapture);
+				compressor = new PayloadCompressor(compressionDictionary, compressionThreshold);
+				dictionarylessCompressor = (compressionDictionary == null ? compressor : new PayloadCompressor(null, compressionThreshold));
+				activeClock = clock;
+				packetFilter.setClock(activeClock);
+				handshakeCookies = null;
+				if(isCookieHandshakeEnabled) {
+					try {
+						handshakeCookies = new HandshakeCookies(HandshakeCookies.DEFAULT_LIFETIME, activeClock);
+					} catch (GeneralSecurityException e) {
+						logger.fine("Accepting connect requests without cookies because cookies could not be set up: " + e.getMessage());
+					}
+				}
+
+				//resume requests are always challenged, since the cookie is what proves the client holds the session
+				resumeCookies = handshakeCookies;
+				if(resumeCookies == null) {
+					try {
+						resumeCookies = new HandshakeCookies(HandshakeCookies.DEFAULT_LIFETIME, activeClock);
+					} catch (GeneralSecurityException e) {
+						logger.fine("Refusing to resume sessions because cookies could not be set up: " + e.getMessage());
+					}
+				}
+				isTickMode = (tickRate > 0);
+				receivePacketThread = new ReceivePacketThread(this, transport, packetFilter);
 				receivePacketThread.start();
 				timeoutThread = new ServerTimeoutThread(this, Server.CLIENT_TIMEOUT);
 				timeoutThread.start();
+				acknowledgementThread = new ServerAcknowledgementThread(this, Math.max(10, acknowledgementDelay / 2));
+				acknowledgementThread.start();
 				isRunning = true;
 				logger.fine("Server is open and receiving connections!");
 			} catch (SocketException e) {
@@ -76,6 +218,81 @@ public abstract class Server implements PacketReceiver {
 		return isRunning;
 	}
 
+	/**
+	 * Chooses how datagrams are moved, e.g. over real sockets (the default)
+	 * or over an {@link InMemoryNetwork}. Only takes effect the next time the
+	 * server is started.
+	 */
+	public void setTransportFactory(TransportFactory factory) {
+		synchronized(CONNECTION_LOCK) {
+			transportFactory = (factory == null ? DatagramSocketTransport.FACTORY : factory);
+		}
+	}
+
+	/**
+	 * Simulates a bad network on the server's transport. Only takes effect the
+	 * next time the server is started. Pass null to use the transport as-is.
+	 */
+	public void setNetworkConditions(NetworkConditions conditions) {
+		synchronized(CONNECTION_LOCK) {
+			networkConditions = (conditions == null ? null : new NetworkConditions(conditions));
+		}
+	}
+
+	public NetworkConditions getNetworkConditions() {
+		synchronized(CONNECTION_LOCK) {
+			return (networkConditions == null ? null : new NetworkConditions(networkConditions));
+		}
+	}
+
+	/**
+	 * Records every datagram sent and received to the capture, e.g. for
+	 * replaying with {@link PacketReplayer}. Only takes effect the next time
+	 * the server is started, and the capture is left open when the server stops.
+	 * Pass null to stop capturing.
+	 */
+	public void setPacketCapture(PacketCapture capture) {
+		synchronized(CONNECTION_LOCK) {
+			packetCapture = capture;
+		}
+	}
+
+	public PacketCapture getPacketCapture() {
+		return packetCapture;
+	}
+
+	/**
+	 * Chooses the clock client timeouts, acknowledgement delays and round
+	 * trip times are measured with, e.g. a {@link CachedClock} under heavy
+	 * load or a {@link VirtualClock} in tests. Only takes effect the next
+	 * time the server is started. Pass null for the {@link MonotonicClock}.
+	 */
+	public void setClock(Clock clock) {
+		synchronized(CONNECTION_LOCK) {
+			this.clock = (clock == null ? MonotonicClock.INSTANCE : clock);
+		}
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * The filter that throws away unwanted datagrams before they are parsed,
+	 * for reading its rejection counters or changing its rate limit.
+	 */
+	public PacketFilter getPacketFilter() {
+		return packetFilter;
+	}
+
+	/**
+	 * Incoming messages from every client, for subscribers that want them at
+	 * their own pace. Subscribers are completed when the server stops.
+	 */
+	public MessagePublisher getInboundMessages() {
+		return inboundMessages;
+	}
+
 	public void stopServer() {
 		logger.fine("Stopping server...");
 		boolean wasRunning = false;
@@ -83,10 +300,9 @@ public abstract class Server implements PacketReceiver {
 			wasRunning = isRunning;
 			if(isRunning) {
 				logger.finer("Sending disconnect packets to all clients");
-				for(Integer clientId : clients.keySet()) {
-					ClientInfo client = clients.get(clientId);
+				for(ClientInfo client : clients.getClients()) {
 					try {
-						sendPacket(Packet.createForceDisconnectPacket(clientId, Server.SERVER_STOPPING), client);
+						sendPacket(Packet.createForceDisconnectPacket(client.getClientId(), Server.SERVER_STOPPING), client);
 					} catch (CouldNotSendPacketException e) {
 						//no need to report that we couldn't ask the client to disconnect--the server is stopping regardless
 					}
@@ -97,26 +313,445 @@ public abstract class Server implements PacketReceiver {
 		}
 		if(wasRunning)
 			onServerStopped();
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
 		logger.fine("Server stopped");
 	}
 
-	public List<Integer> getClientIds() {
+	/**
+	 * Whether clients that ask for compact packet headers are allowed to use
+	 * them. Only affects clients that connect after it's changed.
+	 */
+	public void setCompactHeadersEnabled(boolean isCompactHeadersEnabled) {
+		synchronized(CONNECTION_LOCK) {
+			this.isCompactHeadersEnabled = isCompactHeadersEnabled;
+		}
+	}
+
+	public boolean isCompactHeadersEnabled() {
+		return isCompactHeadersEnabled;
+	}
+
+	/**
+	 * Whether clients that ask for packets to end with a CRC-32 checksum are
+	 * allowed to use them. A damaged packet is thrown away by the
+	 * PacketFilter before it's parsed, so a header with a bit flipped in
+	 * transit can't mislead a PacketRecorder. Only affects clients that
+	 * connect after it's changed.
+	 */
+	public void setChecksumEnabled(boolean isChecksumEnabled) {
+		synchronized(CONNECTION_LOCK) {
+			this.isChecksumEnabled = isChecksumEnabled;
+		}
+	}
+
+	public boolean isChecksumEnabled() {
+		return isChecksumEnabled;
+	}
+
+	/**
+	 * Whether clients that ask for compressed messages are allowed to use
+	 * them. Only takes effect the next time the server is started.
+	 *
+	 * @param dictionary bytes common in messages (see {@link DictionaryTrainer}) which clients must also have to use it, or null
+	 * @param threshold messages shorter than this many bytes are sent uncompressed
+	 */
+	public void setCompressionEnabled(boolean isCompressionEnabled, byte[] dictionary, int threshold) {
 		synchronized(CONNECTION_LOCK) {
-			List<Integer> clientIds = new ArrayList<Integer>();
-			for(Integer clientId: clients.keySet()) {
-				if(clients.get(clientId) != null)
-					clientIds.add(clientId);
+			this.isCompressionEnabled = isCompressionEnabled;
+			compressionDictionary = (dictionary == null ? null : dictionary.clone());
+			compressionThreshold = threshold;
+		}
+	}
+
+	public boolean isCompressionEnabled() {
+		return isCompressionEnabled;
+	}
+
+	/**
+	 * Whether to trade PARITY packets with clients that ask for them. After
+	 * every few messages the sender sends the group's parity, from which the
+	 * other end can rebuild any one message of the group that's lost without
+	 * waiting for it to be reported lost and sent again. Costs one packet
+	 * per group. Only applies to clients that connect afterwards.
+	 *
+	 * @param groupSize how many messages each parity packet to a client covers, or 0 to size groups by the loss rate the client's acknowledgements show
+	 */
+	public void setForwardErrorCorrectionEnabled(boolean isForwardErrorCorrectionEnabled, int groupSize) {
+		synchronized(CONNECTION_LOCK) {
+			this.isForwardErrorCorrectionEnabled = isForwardErrorCorrectionEnabled;
+			parityGroupSize = Math.max(0, groupSize);
+		}
+	}
+
+	public boolean isForwardErrorCorrectionEnabled() {
+		return isForwardErrorCorrectionEnabled;
+	}
+
+	/**
+	 * Encrypts and authenticates every packet of every connection, with
+	 * keys worked out from the secret and each client's handshake, so
+	 * nobody without the secret can read or forge them. Clients need the
+	 * same secret, and clients that don't ask for encryption are refused.
+	 * Each packet grows by up to 20 bytes. Only applies to clients that
+	 * connect afterwards.
+	 *
+	 * @param key a secret of at least 16 bytes shared with the clients, or null not to encrypt
+	 */
+	public void setEncryptionKey(byte[] key) {
+		if(key != null && key.length < PacketCipher.MINIMUM_KEY_SIZE)
+			throw new IllegalArgumentException("Encryption keys must be at least " + PacketCipher.MINIMUM_KEY_SIZE + " bytes, not " + key.length + ".");
+		synchronized(CONNECTION_LOCK) {
+			encryptionKey = (key == null ? null : key.clone());
+		}
+	}
+
+	public boolean isEncryptionEnabled() {
+		return encryptionKey != null;
+	}
+
+	/**
+	 * Whether a client has to prove it can receive packets at its address
+	 * before the server sets anything up for it. A CONNECT_REQUEST without a
+	 * valid cookie is answered with a CONNECT_CHALLENGE carrying one, and only
+	 * a request echoing that cookie reaches onClientConnected, so spoofed
+	 * requests cost the server nothing but the challenge. Clients older than
+	 * the challenge can't connect to a server with this enabled. Only takes
+	 * effect the next time the server is started.
+	 */
+	public void setCookieHandshakeEnabled(boolean isCookieHandshakeEnabled) {
+		synchronized(CONNECTION_LOCK) {
+			this.isCookieHandshakeEnabled = isCookieHandshakeEnabled;
+		}
+	}
+
+	public boolean isCookieHandshakeEnabled() {
+		return isCookieHandshakeEnabled;
+	}
+
+	/**
+	 * Whether a connected client keeps its session when its packets start
+	 * arriving from a new address or port, e.g. after its NAT rebinds. Only
+	 * encrypted connections (see {@link #setEncryptionKey(byte[])}) can
+	 * move. Their packets are opened by the connection's own cipher before
+	 * they're parsed, so a packet that opens came from the client, wherever
+	 * it came from. An unencrypted packet proves nothing--anyone who has seen
+	 * the connection's sequence numbers could write one--so packets for
+	 * unencrypted connections are only accepted from the address the client
+	 * connected from, whether or not this is enabled. Enabled by default.
+	 */
+	public void setMigrationEnabled(boolean isMigrationEnabled) {
+		synchronized(CONNECTION_LOCK) {
+			this.isMigrationEnabled = isMigrationEnabled;
+		}
+	}
+
+	public boolean isMigrationEnabled() {
+		return isMigrationEnabled;
+	}
+
+	/**
+	 * Lets clients that time out, e.g. during a Wi-Fi handover, come back
+	 * with the same client id and sequence numbers instead of connecting
+	 * again. Each client is handed a session token when it connects. When it
+	 * times out its state is kept for the grace period, and a client that
+	 * presents the token in that time picks up where it left off, with the
+	 * reliable messages it never acknowledged sent again. onClientDisconnected
+	 * is only called once the grace period is over. Only applies to clients
+	 * that connect after it is set.
+	 *
+	 * A token is good for one resume--the client is handed a new one each
+	 * time--and only while the session is suspended, never to take over a
+	 * client that's still connected. Resume requests are always answered
+	 * with a cookie first. On an encrypted connection the client also has to
+	 * prove it holds the connection's keys, with a MAC over the cookie; an
+	 * unencrypted one can only be resumed from the address it left from.
+	 *
+	 * @param gracePeriod how many milliseconds to keep the session of a client that timed out, or 0 to drop it straight away
+	 */
+	public void setSessionGracePeriod(int gracePeriod) {
+		synchronized(CONNECTION_LOCK) {
+			sessionGracePeriod = Math.max(0, gracePeriod);
+		}
+	}
+
+	public int getSessionGracePeriod() {
+		return sessionGracePeriod;
+	}
+
+	/**
+	 * Messages from a client are acknowledged by whatever the server sends it
+	 * next, or by an ACKNOWLEDGEMENT once enough of them arrive or the oldest
+	 * has waited the delay, so clients that stream to a quiet server hear
+	 * about lost messages within about a round trip plus the delay. The delay
+	 * only takes effect the next time the server is started.
+	 *
+	 * @param threshold how many messages to receive from a client before acknowledging them straight away
+	 * @param delay in milliseconds--longer gives replies more chance to carry the acknowledgement instead
+	 */
+	public void setAcknowledgementPolicy(int threshold, int delay) {
+		synchronized(CONNECTION_LOCK) {
+			acknowledgementThreshold = Math.max(1, threshold);
+			acknowledgementDelay = Math.max(1, delay);
+		}
+	}
+
+	public int getAcknowledgementThreshold() {
+		return acknowledgementThreshold;
+	}
+
+	public int getAcknowledgementDelay() {
+		return acknowledgementDelay;
+	}
+
+	/**
+	 * Switches the server to tick mode, for servers whose simulation runs at
+	 * a fixed rate. Instead of handling each packet as soon as it arrives,
+	 * incoming packets are queued until the simulation thread calls
+	 * {@link #beginTick()}, so every callback for them (onClientConnected,
+	 * onReceive and so on) runs on that thread in one batch. Clients that
+	 * time out are reported there too, through onClientSuspended and
+	 * onClientDisconnected, before the tick's packets are handled. Application
+	 * messages sent during the tick are buffered and sent together by
+	 * {@link #endTick()}, while replies the protocol makes itself (accepting
+	 * connections, ping responses, disconnects) go out as soon as they're
+	 * made. Since pings wait for a tick too, measured latency includes up to
+	 * one tick. Only takes effect the next time the server is started.
+	 *
+	 * @param ticksPerSecond the simulation rate, used to measure overruns--0 handles every packet immediately (the default)
+	 */
+	public void setTickRate(int ticksPerSecond) {
+		synchronized(CONNECTION_LOCK) {
+			tickRate = Math.max(0, ticksPerSecond);
+		}
+	}
+
+	public int getTickRate() {
+		return tickRate;
+	}
+
+	public boolean isTickMode() {
+		return isTickMode;
+	}
+
+	/**
+	 * Starts a tick in tick mode by reporting clients that timed out and
+	 * handling every packet that arrived since the last tick. Callbacks such
+	 * as onReceive are called from this method.
+	 *
+	 * @return the number of packets handled
+	 */
+	public int beginTick() {
+		synchronized(TICK_LOCK) {
+			tickStartTime = System.nanoTime();
+
+			//the rate can be changed at any time, so the tick keeps the duration it started with
+			tickDuration = getTickDuration();
+			numPacketsDrained = 0;
+			if(isTickMode) {
+				ClientTimeout clientTimeout;
+				while((clientTimeout = clientTimeouts.poll()) != null)
+					reportClientTimeout(clientTimeout.clientId, clientTimeout.isSuspended);
+
+				//only drain what was already queued so a flood can't keep the tick from ever starting
+				int numQueued = numIncomingPacketsQueued.get();
+				QueuedPacket queuedPacket;
+				while(numPacketsDrained < numQueued && (queuedPacket = incomingPackets.poll()) != null) {
+					numIncomingPacketsQueued.decrementAndGet();
+					processPacket(queuedPacket.packet, queuedPacket.source);
+					numPacketsDrained++;
+				}
 			}
-			return clientIds;
+			drainTime = System.nanoTime() - tickStartTime;
+			return numPacketsDrained;
+		}
+	}
+
+	/**
+	 * Ends a tick in tick mode by sending every message buffered since the
+	 * last flush.
+	 *
+	 * @return how long the tick spent draining, flushing and overall
+	 */
+	public TickTiming endTick() {
+		synchronized(TICK_LOCK) {
+			long flushStartTime = System.nanoTime();
+			int numPacketsFlushed = 0;
+			Transport transport = this.transport;
+			if(isTickMode && transport != null) {
+				DatagramPacket datagramPacket;
+				while((datagramPacket = outgoingDatagrams.poll()) != null) {
+					try {
+						transport.send(datagramPacket);
+						numPacketsFlushed++;
+					} catch (IOException e) {
+						//the message was already recorded as sent, so it will be reported through onMessageNotDelivered
+						logger.finest("Outgoing packet: could not flush due to IOException \"" + e.getMessage() + "\"");
+					}
+				}
+			}
+			long endTime = System.nanoTime();
+			lastTickTiming = new TickTiming(tickNumber++, drainTime, numPacketsDrained, endTime - flushStartTime, numPacketsFlushed, endTime - tickStartTime, tickDuration);
+			if(lastTickTiming.isOverrun() && logger.isLoggable(Level.FINE))
+				logger.fine(lastTickTiming.toString());
+			return lastTickTiming;
+		}
+	}
+
+	public TickTiming getLastTickTiming() {
+		synchronized(TICK_LOCK) {
+			return lastTickTiming;
+		}
+	}
+
+	/**
+	 * Sleeps until the current tick's time budget is used up, i.e. until the
+	 * next tick should begin. Returns immediately if the tick overran.
+	 */
+	public void waitForNextTick() throws InterruptedException {
+		long remainingTime;
+		synchronized(TICK_LOCK) {
+			remainingTime = tickStartTime + tickDuration - System.nanoTime();
 		}
+		if(remainingTime > 0)
+			TimeUnit.NANOSECONDS.sleep(remainingTime);
+	}
+
+	private long getTickDuration() {
+		return (tickRate > 0 ? TimeUnit.SECONDS.toNanos(1) / tickRate : Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the connected clients without waiting for packets being
+	 * processed, as do getNumClients(), getLatency() and forEachClient().
+	 *
+	 * @return the ids of the connected clients in ascending order
+	 */
+	public List<Integer> getClientIds() {
+		ClientInfo[] connectedClients = clients.getClients();
+		List<Integer> clientIds = new ArrayList<Integer>(connectedClients.length);
+		for(ClientInfo client : connectedClients)
+			clientIds.add(client.getClientId());
+		return clientIds;
+	}
+
+	public int getNumClients() {
+		return clients.size();
+	}
+
+	/**
+	 * Calls the visitor with every connected client in ascending id order,
+	 * without locking or allocating anything, e.g. for a monitoring thread
+	 * polling latencies and loss rates. Clients that connect or disconnect
+	 * meanwhile may or may not be visited. The ClientInfo is the server's
+	 * own, but only the members that read it are public.
+	 */
+	public void forEachClient(ClientVisitor visitor) {
+		for(ClientInfo client : clients.getClients())
+			visitor.visitClient(client);
 	}
 
 	public long getLatency(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getLatency();
+		return -1;
+	}
+
+	/**
+	 * @return whether the client has acknowledged receiving the message--false if it hasn't yet or if the message is too old to know
+	 */
+	public boolean isMessageDelivered(int clientId, int messageId) {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getPacketRecorder().isSentPacketDelivered(messageId);
+		return false;
+	}
+
+	/**
+	 * Creates an empty group of clients, e.g. for one match, which messages
+	 * can be sent to with {@link #sendToGroup(int, String)}. Clients leave
+	 * every group automatically when they disconnect or time out.
+	 *
+	 * @return the new group's id
+	 */
+	public int createGroup() {
 		synchronized(CONNECTION_LOCK) {
+			do {
+				lastCreatedGroupId = (lastCreatedGroupId == Integer.MAX_VALUE ? 1 : lastCreatedGroupId + 1);
+			} while(groups.containsKey(lastCreatedGroupId));
+			groups.put(lastCreatedGroupId, new IntSet());
+			logger.finer("Created group " + lastCreatedGroupId);
+			return lastCreatedGroupId;
+		}
+	}
+
+	public void removeGroup(int groupId) {
+		synchronized(CONNECTION_LOCK) {
+			IntSet group = groups.remove(groupId);
+			if(group == null)
+				return;
+			for(int i = 0; i < group.size(); i++) {
+				ClientInfo client = clients.get(group.get(i));
+				if(client != null)
+					client.getGroupIds().remove(groupId);
+			}
+			logger.finer("Removed group " + groupId);
+		}
+	}
+
+	/**
+	 * @return whether the client is in the group afterwards--false if either the group or the client doesn't exist
+	 */
+	public boolean joinGroup(int groupId, int clientId) {
+		synchronized(CONNECTION_LOCK) {
+			IntSet group = groups.get(groupId);
+			ClientInfo client = clients.get(clientId);
+			if(group == null || client == null) {
+				logger.finer("Client " + clientId + " could not join group " + groupId + ": " + (group == null ? "Group does not exist." : "Client not connected."));
+				return false;
+			}
+			group.add(clientId);
+			client.getGroupIds().add(groupId);
+			return true;
+		}
+	}
+
+	public void leaveGroup(int groupId, int clientId) {
+		synchronized(CONNECTION_LOCK) {
+			IntSet group = groups.get(groupId);
+			if(group != null)
+				group.remove(clientId);
 			ClientInfo client = clients.get(clientId);
 			if(client != null)
-				return client.getLatency();
-			return -1;
+				client.getGroupIds().remove(groupId);
+		}
+	}
+
+	public boolean isInGroup(int groupId, int clientId) {
+		synchronized(CONNECTION_LOCK) {
+			IntSet group = groups.get(groupId);
+			return group != null && group.contains(clientId);
+		}
+	}
+
+	/**
+	 * @return the ids of the clients in the group in ascending order, or null if the group doesn't exist
+	 */
+	public int[] getGroupMembers(int groupId) {
+		synchronized(CONNECTION_LOCK) {
+			IntSet group = groups.get(groupId);
+			return (group == null ? null : group.toArray());
+		}
+	}
+
+	/**
+	 * @return the ids of the groups the client is in, or an empty array if the client isn't connected
+	 */
+	public int[] getGroupsOfClient(int clientId) {
+		synchronized(CONNECTION_LOCK) {
+			ClientInfo client = clients.get(clientId);
+			return (client == null ? new int[0] : client.getGroupIds().toArray());
 		}
 	}
 
@@ -124,14 +759,14 @@ public abstract class Server implements PacketReceiver {
 		logger.finer("Dropping client " + clientId + ": " + reason);
 		boolean clientDropped = false;
 		synchronized(CONNECTION_LOCK) {
-			if(clients.containsKey(clientId)) {
-				ClientInfo client = clients.get(clientId);
+			ClientInfo client = clients.get(clientId);
+			if(client != null) {
 				try {
 					sendPacket(Packet.createForceDisconnectPacket(clientId, reason), client);
 				} catch (CouldNotSendPacketException e) {
 					//no need to report that we couldn't ask the client to disconnect--we're dropping the client regardless
 				}
-				clients.remove(clientId);
+				removeClient(clientId);
 				clientDropped = true;
 			}
 			else {
@@ -140,6 +775,8 @@ public abstract class Server implements PacketReceiver {
 		}
 		if(clientDropped)
 			onClientDisconnected(clientId, Server.DROPPED_BY_SERVER);
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
 	}
 
 	public int send(int clientId, String message) throws CouldNotSendPacketException {
@@ -147,84 +784,282 @@ public abstract class Server implements PacketReceiver {
 			Packet packet = Packet.createApplicationPacket(clientId, message);
 
 			//if the client isn't connected then throw an exception
-			if(!clients.containsKey(clientId)) {
+			ClientInfo client = clients.get(clientId);
+			if(client == null) {
 				logger.fine("Could not send message to client " + clientId + ": Client not connected.");
 				throw new ClientNotConnectedException(clientId, packet);
 			}
 
 			logger.fine("Sending message to client " + clientId + ": " + message);
-			ClientInfo client = clients.get(clientId);
 			return sendPacket(packet, client);
 		}
 	}
 
+	/**
+	 * Sends a message and follows it until the client's acknowledgements show
+	 * whether it arrived, so any number of messages can be in flight while
+	 * still reacting to each one. The future fails if the message is lost,
+	 * if too many packets are sent to the client before its fate is known,
+	 * or if the client disconnects first. A client whose session is
+	 * suspended keeps its pending messages until it resumes or expires.
+	 */
+	public DeliveryFuture sendAsync(int clientId, String message) throws CouldNotSendPacketException {
+		synchronized(CONNECTION_LOCK) {
+			Packet packet = Packet.createApplicationPacket(clientId, message);
+			ClientInfo client = clients.get(clientId);
+			if(client == null) {
+				logger.fine("Could not send message to client " + clientId + ": Client not connected.");
+				throw new ClientNotConnectedException(clientId, packet);
+			}
+
+			logger.fine("Sending message to client " + clientId + ": " + message);
+			sendPacket(packet, client);
+			return client.getDeliveryTracker().track(clientId, packet);
+		}
+	}
+
+	/**
+	 * Sends the same message to every connected client. See
+	 * {@link #sendToMany(int[], String)}.
+	 *
+	 * @return the message id sent to each client, in ascending client id order like getClientIds()--{@link Packet#SEQUENCE_NUMBER_NOT_APPLICABLE} for clients that didn't get it
+	 */
+	public int[] broadcast(String message) throws ServerNotStartedException {
+		synchronized(CONNECTION_LOCK) {
+			ClientInfo[] connectedClients = clients.getClients();
+			int[] clientIds = new int[connectedClients.length];
+			int numClients = 0;
+			for(ClientInfo client : connectedClients)
+				clientIds[numClients++] = client.getClientId();
+			return sendToMany(clientIds, numClients, message);
+		}
+	}
+
+	/**
+	 * Sends the same message to several clients. The message is encoded (and
+	 * compressed) once and only each client's header is written separately.
+	 * Large fan-outs are split across one thread per core. A client that isn't
+	 * connected or can't be sent to is skipped rather than failing the rest.
+	 *
+	 * @return the message id sent to each client, in the same order as clientIds--{@link Packet#SEQUENCE_NUMBER_NOT_APPLICABLE} for clients that didn't get it
+	 */
+	public int[] sendToMany(int[] clientIds, String message) throws ServerNotStartedException {
+		return sendToMany(clientIds, clientIds.length, message);
+	}
+
+	/**
+	 * Sends the same message to every client in a group. See
+	 * {@link #sendToMany(int[], String)}.
+	 *
+	 * @return the message id sent to each client, in ascending client id order like getGroupMembers()--{@link Packet#SEQUENCE_NUMBER_NOT_APPLICABLE} for clients that didn't get it
+	 */
+	public int[] sendToGroup(int groupId, String message) throws CouldNotSendPacketException {
+		synchronized(CONNECTION_LOCK) {
+			IntSet group = groups.get(groupId);
+			if(group == null) {
+				logger.fine("Could not send message to group " + groupId + ": Group does not exist.");
+				throw new GroupNotFoundException(groupId, Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message));
+			}
+
+			//members only change under CONNECTION_LOCK, so the group's own array can be sent to without copying it
+			return sendToMany(group.getElements(), group.size(), message);
+		}
+	}
+
+	private int[] sendToMany(int[] clientIds, int numClients, String message) throws ServerNotStartedException {
+		synchronized(CONNECTION_LOCK) {
+			if(!isRunning) {
+				logger.fine("Could not send message to many clients: Server is not started.");
+				throw new ServerNotStartedException(Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message));
+			}
+			if(message != null && message.equals(""))
+				message = null;
+			logger.fine("Sending message to " + numClients + " clients: " + message);
+
+			//look up every recipient and work out which encodings of the message we'll need
+			int[] messageIds = new int[numClients];
+			ClientInfo[] recipients = new ClientInfo[numClients];
+			byte[][] messageBytes = new byte[3][];
+			messageBytes[Server.UNCOMPRESSED] = (message == null ? null : message.getBytes());
+			for(int i = 0; i < numClients; i++) {
+				recipients[i] = clients.get(clientIds[i]);
+				if(recipients[i] == null)
+					logger.fine("Could not send message to client " + clientIds[i] + ": Client not connected.");
+				else if(recipients[i].usesCompression() && messageBytes[Server.UNCOMPRESSED] != null) {
+					int encoding = getBroadcastEncoding(recipients[i]);
+					if(messageBytes[encoding] == null)
+						messageBytes[encoding] = recipients[i].getCompressor().compress(messageBytes[Server.UNCOMPRESSED]);
+				}
+			}
+
+			//split big fan-outs between the cores, with this thread taking the first share
+			int numTasks = Math.min(Runtime.getRuntime().availableProcessors(), numClients / Server.MINIMUM_CLIENTS_PER_BROADCAST_TASK);
+			if(numTasks <= 1) {
+				new BroadcastTask(this, message, messageBytes, recipients, 0, numClients, messageIds).call();
+				return messageIds;
+			}
+			if(broadcastExecutor == null)
+				broadcastExecutor = createBroadcastExecutor();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			int numClientsPerTask = (numClients + numTasks - 1) / numTasks;
+			for(int start = numClientsPerTask; start < numClients; start += numClientsPerTask)
+				futures.add(broadcastExecutor.submit(new BroadcastTask(this, message, messageBytes, recipients, start, Math.min(numClients, start + numClientsPerTask), messageIds)));
+			new BroadcastTask(this, message, messageBytes, recipients, 0, numClientsPerTask, messageIds).call();
+			boolean wasInterrupted = false;
+			for(Future<Void> future : futures) {
+				while(true) {
+					try {
+						future.get();
+						break;
+					} catch (InterruptedException e) {
+						//the message ids aren't complete until every task is done, so keep waiting
+						wasInterrupted = true;
+					} catch (ExecutionException e) {
+						logger.fine("Could not send message to some clients due to " + e.getCause());
+						break;
+					}
+				}
+			}
+			if(wasInterrupted)
+				Thread.currentThread().interrupt();
+			return messageIds;
+		}
+	}
+
 	public int resend(int clientId, int originalMessageId, String message) throws CouldNotSendPacketException {
 		synchronized(CONNECTION_LOCK) {
 			Packet packet = Packet.createApplicationPacket(clientId, message);
 			packet.setDuplicateSequenceNumber(originalMessageId);
 
 			//if the client isn't connected then throw an exception
-			if(!clients.containsKey(clientId)) {
+			ClientInfo client = clients.get(clientId);
+			if(client == null) {
 				logger.fine("Could not resend message to client " + clientId + ": Client not connected.");
 				throw new ClientNotConnectedException(clientId, packet);
 			}
 
 			logger.fine("Resending message to client " + clientId + ": " + message);
-			ClientInfo client = clients.get(clientId);
 			return sendPacket(packet, client);
 		}
 	}
 
-	public void receivePacket(Packet packet, String address, int port) {
+	public void receivePacket(Packet packet, InetSocketAddress source) {
+		//in tick mode the simulation thread handles the packet in its next beginTick
+		if(isTickMode && packet != null) {
+			if(numIncomingPacketsQueued.incrementAndGet() > Server.MAXIMUM_QUEUED_INCOMING_PACKETS) {
+				numIncomingPacketsQueued.decrementAndGet();
+				logger.finer("Ignoring packet from " + source + " because too many packets are waiting for the next tick");
+				NetworkEvents.packetDropped(DropReason.QUEUE_FULL, packet.getConnectionId(), source);
+				return;
+			}
+			incomingPackets.offer(new QueuedPacket(packet, source));
+			return;
+		}
+		processPacket(packet, source);
+	}
+
+	private void processPacket(Packet packet, InetSocketAddress source) {
 		if(logger.isLoggable(Level.FINEST))
-			logger.finest("Incoming packet from " + address + ":" + port + ":" + (packet == null ? " null" : "\n  " + packet.toString().replaceAll("\n", "\n  ")));
+			logger.finest("Incoming packet from " + source + ":" + (packet == null ? " null" : "\n  " + packet.toString().replaceAll("\n", "\n  ")));
 
 		//ignore null packets
 		if(packet == null) {
 			logger.finer("Ignoring null packet");
+			NetworkEvents.packetDropped(DropReason.MALFORMED, Packet.ANONYMOUS_CONNECTION_ID, source);
 			return;
 		}
 
 		//ignore packets with invalid protocol bytes
 		if(!packet.isValidProtocol()) {
 			logger.finer("Ignoring packet with invalid protocol");
+			NetworkEvents.packetDropped(DropReason.INVALID_PROTOCOL, packet.getConnectionId(), source);
 			return;
 		}
 
 		//ugly, but I don't want the listener callbacks to be in a synchronized block
 		int listenerAction = -1;
+		int resumedClientId = Packet.ANONYMOUS_CONNECTION_ID;
+		boolean hasClientMoved = false;
 		List<Packet> undeliveredPackets = null;
+		Packet recoveredPacket = null;
 
 		synchronized(CONNECTION_LOCK) {
 			//ignore all packets if the server isn't running
 			if(!isRunning) {
 				logger.finer("Ignoring packet because the server is not running");
+				NetworkEvents.packetDropped(DropReason.NOT_CONNECTED, packet.getConnectionId(), source);
 				return;
 			}
 
 			if(packet.isAnonymousConnection()) {
 				if(packet.getMessageType() == MessageType.CONNECT_REQUEST) {
-					logger.finest("Client is requesting connection");
-					listenerAction = 1; //accept/reject connection
+					//a client coming back after timing out presents its session token instead of asking to connect again
+					ConnectionOptions requestedOptions = ConnectionOptions.parse(packet.getMessage());
+					boolean isResumeRequest = requestedOptions.has(ConnectionOptions.RESUME);
+					HandshakeCookies cookies = (isResumeRequest ? resumeCookies : handshakeCookies);
+					if(isResumeRequest && cookies == null) {
+						logger.finer("Ignoring resume request from " + source + " because sessions can't be resumed");
+						NetworkEvents.packetDropped(DropReason.UNKNOWN_CONNECTION, packet.getConnectionId(), source);
+						return;
+					}
+					if(cookies != null && !hasValidCookie(cookies, requestedOptions, source)) {
+						challengeClient(cookies, packet, source);
+						return;
+					}
+
+					if(isResumeRequest) {
+						resumedClientId = resumeClient(packet, source, requestedOptions);
+						if(resumedClientId == Packet.ANONYMOUS_CONNECTION_ID)
+							return;
+						listenerAction = 4; //onClientResumed
+					}
+					else if(encryptionKey != null && requestedOptions.get(ConnectionOptions.ENCRYPTION) == null) {
+						logger.finer("Refusing connect request from " + source + " because it did not ask for encryption");
+						rejectClient(Packet.ANONYMOUS_CONNECTION_ID, source);
+						return;
+					}
+					else {
+						logger.finest("Client is requesting connection");
+						listenerAction = 1; //accept/reject connection
+					}
 				}
 				else {
 					logger.finer("Ignoring " + packet.getMessageType() + " packet because only CONNECT_REQUEST packets are expected");
+					NetworkEvents.packetDropped(DropReason.UNEXPECTED_MESSAGE_TYPE, packet.getConnectionId(), source);
 					return;
 				}
 			}
 			else {
 				//ignore packets from clients that aren't connected
 				int clientId = packet.getConnectionId();
-				if(!clients.containsKey(clientId) || clients.get(clientId) == null) {
+				ClientInfo client = clients.get(clientId);
+				if(client == null) {
 					logger.finer("Ignoring packet from client " + clientId + " because client " + clientId + " is not connected");
+					NetworkEvents.packetDropped(DropReason.UNKNOWN_CONNECTION, clientId, source);
 					return;
 				}
 
-				//ignore packets from unexpected sources
-				ClientInfo client = clients.get(clientId);
-				if(!client.matchesAddress(address, port)) {
-					logger.finer("Ignoring packet from client " + clientId + " because packet came from " + address + ":" + port + " which does not match the expected " + client.getAddress() + ":" + client.getPort());
-					return;
+				//ignore packets from unexpected sources, unless the connection's cipher proved the packet is the client's after its NAT picked a new port
+				if(!client.matchesAddress(source)) {
+					if(!isMigrationEnabled || !client.usesEncryption() || !client.getPacketRecorder().isContinuationOfConnection(packet)) {
+						logger.finer("Ignoring packet from client " + clientId + " because packet came from " + source + " which does not match the expected " + client.getAddress() + ":" + client.getPort());
+						NetworkEvents.packetDropped(DropReason.UNEXPECTED_ADDRESS, clientId, source);
+						return;
+					}
+					logger.fine("Client " + clientId + " moved from " + client.getAddress() + ":" + client.getPort() + " to " + source);
+					client.setSocketAddress(source);
+					hasClientMoved = true;
+				}
+
+				//ignore compressed packets we can't decompress
+				if(packet.isCompressed()) {
+					try {
+						packet.decompressMessage(client.getCompressor());
+					} catch (CouldNotDecompressMessageException e) {
+						logger.finer("Ignoring packet from client " + clientId + ": " + e.getMessage());
+						NetworkEvents.packetDropped(DropReason.NOT_DECOMPRESSIBLE, clientId, source);
+						return;
+					}
 				}
 
 				synchronized(client.getPacketRecorder()) {
@@ -232,16 +1067,25 @@ public abstract class Server implements PacketReceiver {
 					//ignore packets we've received from the client before
 					if(client.getPacketRecorder().hasRecordedIncomingPacket(packet)) {
 						logger.finer("Ignoring packet that has already been received from client " + clientId + " before");
+						NetworkEvents.packetDropped(DropReason.ALREADY_RECEIVED, clientId, source);
 						undeliveredPackets = client.getPacketRecorder().getUndeliveredPackets();
 					}
 
 					//ignore duplicates of packets we've received from the client before
 					else if(packet.isDuplicate() && client.getPacketRecorder().hasRecordedDuplicateOfIncomingPacket(packet)) {
 						logger.finer("Ignoring duplicate of packet that has already been received from client " + clientId + " before");
+						NetworkEvents.packetDropped(DropReason.ALREADY_RECEIVED, clientId, source);
 						client.getPacketRecorder().recordIncomingPacket(packet); //we still want to record having received it (must be run AFTER hasRecordedDuplicateOfIncomingPacket)
 						undeliveredPackets = client.getPacketRecorder().getUndeliveredPackets();
 					}
 
+					//a subscriber with no room refuses the message before it's recorded, so the client sees it lost
+					else if(packet.getMessageType() == MessageType.APPLICATION && !inboundMessages.offer(clientId, packet.getMessage())) {
+						logger.finer("Ignoring message from client " + clientId + " because subscribers have fallen behind");
+						NetworkEvents.packetDropped(DropReason.QUEUE_FULL, clientId, source);
+						return;
+					}
+
 					else {
 						//record the packet as having been received
 						client.getPacketRecorder().recordIncomingPacket(packet);
@@ -252,13 +1096,13 @@ public abstract class Server implements PacketReceiver {
 							case APPLICATION:
 								logger.fine("Receiving message from client " + clientId +": " + packet.getMessage());
 								listenerAction = 2; //onReceive
-								client.resetTimeout();
 								break;
 							case PING:
 								try {
 									if(packet.getMessage() != null) {
 										try {
 											client.setLatency(Long.parseLong(packet.getMessage()));
+											NetworkEvents.roundTripTime(clientId, client.getLatency());
 										}
 										catch(NumberFormatException e) {
 											//ignore--just don't modify latency
@@ -268,34 +1112,53 @@ public abstract class Server implements PacketReceiver {
 								} catch (CouldNotSendPacketException e) {
 									//ignore all exceptions--we don't need to report that we had trouble responding to a ping
 								}
-								client.resetTimeout();
+								break;
+							case ACKNOWLEDGEMENT:
+								//nothing more to do--the recorder already took what it acknowledges
+								break;
+							case PARITY:
+								recoveredPacket = ForwardErrorCorrection.recover(packet, client.getPacketRecorder());
 								break;
 							case CLIENT_DISCONNECT:
 								logger.fine("Client " + clientId + " disconnected");
-								clients.remove(client.getClientId());
+								removeClient(client.getClientId());
 								listenerAction = 3; //onClientDisconnected
 								break;
 							default:
-								logger.finer("Ignoring " + packet.getMessageType() + " packet from client " + clientId + " because only APPLICATION, PING and CLIENT_DISCONNECT packets are expected");
+								logger.finer("Ignoring " + packet.getMessageType() + " packet from client " + clientId + " because only APPLICATION, PING, ACKNOWLEDGEMENT, PARITY and CLIENT_DISCONNECT packets are expected");
+								NetworkEvents.packetDropped(DropReason.UNEXPECTED_MESSAGE_TYPE, clientId, source);
 								return;
 						}
 					}
 				}
+
+				//the packet's acknowledgements may settle messages sent with sendAsync
+				client.getDeliveryTracker().update(client.getPacketRecorder(), undeliveredPackets, resolvedDeliveries);
+
+				//any packet from the client shows it's alive, and one acknowledging something new measures latency
+				client.resetTimeout();
+				long roundTripTime = client.getPacketRecorder().takeRoundTripTimeSample();
+				if(roundTripTime >= 0) {
+					client.setLatency(client.getLatency() == -1 ? roundTripTime : (client.getLatency() + roundTripTime) / 2);
+					NetworkEvents.roundTripTime(clientId, roundTripTime);
+				}
 			}
 		}
 
 		//execute listener callback--once again, ugly but shouldn't be synchronized
+		if(hasClientMoved)
+			onClientAddressChanged(packet.getConnectionId(), source.getAddress().getHostAddress(), source.getPort());
 		switch(listenerAction) {
 			case 1: //onClientConnected
 				int clientId = getNextClientId();
 				logger.finest("Client " + clientId + " asking for permission to connect to server");
-				if(onClientConnected(clientId, address ,port)) {
+				if(onClientConnected(clientId, source.getAddress().getHostAddress(), source.getPort())) {
 					logger.finest("Permission to connect granted to client " + clientId);
-					acceptClient(clientId, address, port);
+					acceptClient(clientId, source, ConnectionOptions.parse(packet.getMessage()));
 				}
 				else {
 					logger.finest("Permission to connect refused for client " + clientId);
-					rejectClient(clientId, address, port);
+					rejectClient(clientId, source);
 				}
 				break;
 			case 2: //onReceive
@@ -304,11 +1167,15 @@ public abstract class Server implements PacketReceiver {
 			case 3: //onClientDisconnected
 				onClientDisconnected(packet.getConnectionId(), Server.DISCONNECT_BY_CLIENT);
 				break;
+			case 4: //onClientResumed
+				onClientResumed(resumedClientId);
+				break;
 		}
 
 		//inform the listener of any undelivered application messages
 		if(undeliveredPackets != null) {
 			for(Packet undeliveredPacket : undeliveredPackets) {
+				NetworkEvents.packetLost(undeliveredPacket.getConnectionId(), undeliveredPacket.getSequenceNumber(), undeliveredPacket.getMessageType());
 				if(undeliveredPacket.getMessageType() == MessageType.APPLICATION) {
 					onMessageNotDelivered(
 							undeliveredPacket.getSequenceNumber(),
@@ -318,6 +1185,19 @@ public abstract class Server implements PacketReceiver {
 				}
 			}
 		}
+
+		//if the listener didn't reply, acknowledge a pile of messages now rather than after the delay--in
+		// tick mode whatever the tick sends carries the acknowledgement, and the acknowledgement thread catches the rest
+		if(!isTickMode && !packet.isAnonymousConnection())
+			acknowledge(packet.getConnectionId());
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
+
+		//a message rebuilt from parity is received like any other, so it's ignored if the original turns up later
+		if(recoveredPacket != null) {
+			logger.finer("Recovered lost packet " + recoveredPacket.getSequenceNumber() + " from client " + recoveredPacket.getConnectionId() + " from parity");
+			processPacket(recoveredPacket, source);
+		}
 	}
 
 	private void closeConnection() {
@@ -327,51 +1207,249 @@ public abstract class Server implements PacketReceiver {
 				receivePacketThread.stopReceiving();
 			if(timeoutThread != null)
 				timeoutThread.stopCheckingForTimeouts();
-			if(socket != null)
-				socket.close();
+			if(acknowledgementThread != null)
+				acknowledgementThread.stopAcknowledging();
+			if(compressor != null)
+				compressor.close();
+			if(dictionarylessCompressor != null && dictionarylessCompressor != compressor)
+				dictionarylessCompressor.close();
+			if(broadcastExecutor != null)
+				broadcastExecutor.shutdown();
+			if(transport != null)
+				transport.close();
+			for(ClientInfo client : clients.getClients())
+				client.getDeliveryTracker().failAll(Server.SERVER_STOPPING, resolvedDeliveries);
+			for(ClientInfo client : suspendedClients.values())
+				client.getDeliveryTracker().failAll(Server.SERVER_STOPPING, resolvedDeliveries);
+			inboundMessages.close();
 			resetParameters();
 		}
 	}
 
 	private void resetParameters() {
 		synchronized(CONNECTION_LOCK) {
-			socket = null;
+			transport = null;
 			isRunning = false;
 			timeoutThread = null;
+			acknowledgementThread = null;
 			receivePacketThread = null;
-			clients = new HashMap<Integer, ClientInfo>();
+			compressor = null;
+			dictionarylessCompressor = null;
+			broadcastExecutor = null;
+			isTickMode = false;
+			incomingPackets = new ConcurrentLinkedQueue<QueuedPacket>();
+			numIncomingPacketsQueued = new AtomicInteger();
+			outgoingDatagrams = new ConcurrentLinkedQueue<DatagramPacket>();
+			clientTimeouts = new ConcurrentLinkedQueue<ClientTimeout>();
+			clients.clear();
+			suspendedClients = new HashMap<Integer, ClientInfo>();
+			packetFilter.clearConnectionIds();
+			packetFilter.clearCiphers();
+			packetFilter.clearChecksummed();
 			lastConnectedClientId = Packet.ANONYMOUS_CONNECTION_ID;
+			groups = new HashMap<Integer, IntSet>();
+			lastCreatedGroupId = 0;
 		}
 	}
 
-	private void acceptClient(int clientId, String address, int port) {
+	private void acceptClient(int clientId, InetSocketAddress source, ConnectionOptions requestedOptions) {
 		boolean clientAccepted = false;
 		synchronized(CONNECTION_LOCK) {
 			try {
-				ClientInfo client = new ClientInfo(clientId, address, port, InetAddress.getByName(address));
-				sendPacket(Packet.createConnectionAcceptedPacket(clientId), client);
+				ClientInfo client = new ClientInfo(clientId, source, activeClock);
+				ConnectionOptions acceptedOptions = negotiateOptions(requestedOptions);
+				if(sessionGracePeriod > 0) {
+					client.setSessionToken(createSessionToken());
+					acceptedOptions.set(ConnectionOptions.SESSION, client.getSessionToken());
+				}
+				PacketCipher cipher = null;
+				PacketCipher clientCipher = null;
+				if(acceptedOptions.has(ConnectionOptions.ENCRYPTION)) {
+					String clientNonce = requestedOptions.get(ConnectionOptions.ENCRYPTION);
+					String serverNonce = acceptedOptions.get(ConnectionOptions.ENCRYPTION);
+					cipher = PacketCipher.create(encryptionKey, clientNonce, serverNonce, false);
+					clientCipher = PacketCipher.create(encryptionKey, clientNonce, serverNonce, true);
+					if(client.getSessionToken() != null)
+						client.setResumeKey(PacketCipher.createResumeKey(encryptionKey, clientNonce, serverNonce));
+				}
+				sendPacket(Packet.createConnectionAcceptedPacket(clientId, acceptedOptions), client);
+
+				//the CONNECTION_ACCEPTED packet itself always goes out in the standard format so the client can read it
+				client.setUsesCompactHeaders(acceptedOptions.has(ConnectionOptions.COMPACT_HEADERS));
+				if(acceptedOptions.has(ConnectionOptions.COMPRESSION))
+					client.setCompressor(compressor.getDictionaryId().equals(acceptedOptions.get(ConnectionOptions.COMPRESSION)) ? compressor : dictionarylessCompressor);
+				if(acceptedOptions.has(ConnectionOptions.PARITY))
+					client.setForwardErrorCorrection(new ForwardErrorCorrection(parityGroupSize));
+
+				//like the options, encryption starts after the CONNECTION_ACCEPTED packet
+				client.setCipher(cipher);
+				packetFilter.setCipher(clientId, clientCipher);
+				client.setChecksum(acceptedOptions.has(ConnectionOptions.CHECKSUM) ? new CRC32() : null);
+				packetFilter.setChecksummed(clientId, client.usesChecksum());
 				clientAccepted = true;
-				clients.put(clientId, client);
+				clients.put(client);
+				packetFilter.addConnectionId(clientId);
 				logger.fine("Client " + clientId + " connected");
-			} catch (UnknownHostException e) {
-				//we'll tell the listener the client disconnected outside of the synchronized block
-				logger.fine("Could not accept client " + clientId + " due to UnknownHostException: " + e.getMessage());
+				NetworkEvents.clientConnected(clientId, client.getAddress(), client.getPort());
 			} catch (CouldNotSendPacketException e) {
 				//we'll tell the listener the client disconnected outside of the synchronized block
 				logger.fine("Could not accept client " + clientId + " due to CouldNotSendPacketException: " + e.getMessage());
+			} catch (GeneralSecurityException e) {
+				logger.fine("Could not accept client " + clientId + " due to GeneralSecurityException: " + e.getMessage());
 			}
 		}
 		if(!clientAccepted)
 			onClientDisconnected(clientId, Server.CLIENT_COULD_NOT_CONNECT);
 	}
 
-	private void rejectClient(int clientId, String address, int port) {
+	private String createSessionToken() {
+		if(sessionTokenRandom == null)
+			sessionTokenRandom = new SecureRandom();
+		byte[] tokenBytes = new byte[Server.SESSION_TOKEN_SIZE];
+		sessionTokenRandom.nextBytes(tokenBytes);
+		StringBuilder token = new StringBuilder(2 * tokenBytes.length);
+		for(byte b : tokenBytes)
+			token.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+		return token.toString();
+	}
+
+	/**
+	 * Gives a client back its suspended session, once the request has a
+	 * cookie and proves it comes from the client that left.
+	 *
+	 * @return the id of the resumed client, or ANONYMOUS_CONNECTION_ID if the request was ignored
+	 */
+	private int resumeClient(Packet packet, InetSocketAddress source, ConnectionOptions requestedOptions) {
+		//a token for a client still connected is ignored rather than refused, since the server may not have noticed it go quiet yet--it keeps asking
+		String sessionToken = requestedOptions.get(ConnectionOptions.RESUME);
+		ClientInfo client = (sessionToken == null ? null : findSession(sessionToken));
+		if(client == null) {
+			logger.finer("Ignoring resume request from " + source + " because no suspended session has the token");
+			NetworkEvents.packetDropped(DropReason.UNKNOWN_CONNECTION, packet.getConnectionId(), source);
+			return Packet.ANONYMOUS_CONNECTION_ID;
+		}
+		if(client.getResumeKey() != null) {
+			if(!hasValidResumeProof(client, requestedOptions)) {
+				logger.finer("Ignoring resume request from " + source + " because it did not prove it holds the session");
+				NetworkEvents.packetDropped(DropReason.NOT_AUTHENTIC, packet.getConnectionId(), source);
+				return Packet.ANONYMOUS_CONNECTION_ID;
+			}
+		}
+		else if(!client.matchesAddress(source)) {
+			//without keys to prove anything with, the address the client left from is all there is to go on
+			logger.finer("Ignoring resume request from " + source + " because the unencrypted session left from " + client.getAddress() + ":" + client.getPort());
+			NetworkEvents.packetDropped(DropReason.UNEXPECTED_ADDRESS, packet.getConnectionId(), source);
+			return Packet.ANONYMOUS_CONNECTION_ID;
+		}
+		int clientId = client.getClientId();
+		suspendedClients.remove(clientId);
+		clients.put(client);
+		packetFilter.addConnectionId(clientId);
+		client.setSocketAddress(source);
+		client.resetTimeout();
+		client.getPacketRecorder().recordIncomingPacket(packet);
+		logger.fine("Client " + clientId + " resumed its session from " + source);
+
+		//the token has been used, so a copy of it is no good to anyone
+		client.setSessionToken(createSessionToken());
+		ConnectionOptions acceptedOptions = new ConnectionOptions();
+		acceptedOptions.set(ConnectionOptions.SESSION, client.getSessionToken());
+		acceptedOptions.set(ConnectionOptions.RESUME);
+		try {
+			sendPacket(Packet.createConnectionAcceptedPacket(clientId, acceptedOptions), client);
+
+			//send again whatever the client didn't acknowledge before it went quiet--as duplicates, so it can tell if it got them after all
+			for(Packet unacknowledgedPacket : client.getPacketRecorder().takeUnacknowledgedPackets(MessageType.APPLICATION)) {
+				Packet resentPacket = Packet.createApplicationPacket(clientId, unacknowledgedPacket.getMessage());
+				resentPacket.setDuplicateSequenceNumber(unacknowledgedPacket.getSequenceNumber());
+				client.getDeliveryTracker().resent(unacknowledgedPacket, resentPacket);
+				sendPacket(resentPacket, client);
+			}
+		} catch (CouldNotSendPacketException e) {
+			//the client keeps asking until it hears back
+			logger.fine("Could not answer client " + clientId + " resuming its session due to CouldNotSendPacketException: " + e.getMessage());
+		}
+		return clientId;
+	}
+
+	private ClientInfo findSession(String sessionToken) {
+		byte[] tokenBytes = sessionToken.getBytes();
+		for(ClientInfo client : suspendedClients.values()) {
+			if(client.getSessionToken() != null && MessageDigest.isEqual(tokenBytes, client.getSessionToken().getBytes()))
+				return client;
+		}
+		return null;
+	}
+
+	private boolean hasValidResumeProof(ClientInfo client, ConnectionOptions requestedOptions) {
+		String proof = requestedOptions.get(ConnectionOptions.PROOF);
+		if(proof == null)
+			return false;
+		try {
+			String expectedProof = PacketCipher.createResumeProof(client.getResumeKey(), client.getSessionToken(), requestedOptions.get(ConnectionOptions.COOKIE));
+			return MessageDigest.isEqual(proof.getBytes(), expectedProof.getBytes());
+		} catch (GeneralSecurityException e) {
+			logger.fine("Could not check resume proof due to GeneralSecurityException: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean hasValidCookie(HandshakeCookies cookies, ConnectionOptions requestedOptions, InetSocketAddress source) {
+		String cookie = requestedOptions.get(ConnectionOptions.COOKIE);
+		return cookie != null && cookies.isValidCookie(cookie, source.getAddress().getAddress(), source.getPort());
+	}
+
+	/**
+	 * Answers a CONNECT_REQUEST with a cookie the client has to echo back.
+	 * Nothing is remembered about the client, and the challenge goes straight
+	 * to the transport since it isn't part of any connection.
+	 */
+	private void challengeClient(HandshakeCookies cookies, Packet packet, InetSocketAddress source) {
+		try {
+			byte[] challengeBytes = Packet.createConnectChallengePacket(cookies.createCookie(source.getAddress().getAddress(), source.getPort())).toByteArray();
+
+			//never answer with more bytes than were sent, so a spoofed source address can't be used to amplify traffic
+			String message = packet.getMessage();
+			if(message == null || message.length() < challengeBytes.length) {
+				logger.finer("Ignoring connect request from " + source + " because it is too short to be challenged");
+				NetworkEvents.packetDropped(DropReason.MALFORMED, packet.getConnectionId(), source);
+				return;
+			}
+			logger.finest("Challenging connect request from " + source);
+			transport.send(new DatagramPacket(challengeBytes, challengeBytes.length, source.getAddress(), source.getPort()));
+		} catch (PacketEncodingException e) {
+			logger.finer("Could not challenge connect request due to PacketEncodingException: " + e.getMessage());
+		} catch (IOException e) {
+			logger.finer("Could not challenge connect request due to IOException: " + e.getMessage());
+		}
+	}
+
+	private ConnectionOptions negotiateOptions(ConnectionOptions requestedOptions) {
+		ConnectionOptions acceptedOptions = new ConnectionOptions();
+		if(isCompactHeadersEnabled && requestedOptions.has(ConnectionOptions.COMPACT_HEADERS))
+			acceptedOptions.set(ConnectionOptions.COMPACT_HEADERS);
+		if(isChecksumEnabled && requestedOptions.has(ConnectionOptions.CHECKSUM))
+			acceptedOptions.set(ConnectionOptions.CHECKSUM);
+
+		//clients with a different dictionary (or none) can still compress without one
+		if(isCompressionEnabled && requestedOptions.has(ConnectionOptions.COMPRESSION)) {
+			if(compressor.getDictionaryId().equals(requestedOptions.get(ConnectionOptions.COMPRESSION)))
+				acceptedOptions.set(ConnectionOptions.COMPRESSION, compressor.getDictionaryId());
+			else
+				acceptedOptions.set(ConnectionOptions.COMPRESSION, PayloadCompressor.NO_DICTIONARY_ID);
+		}
+		if(isForwardErrorCorrectionEnabled && requestedOptions.has(ConnectionOptions.PARITY))
+			acceptedOptions.set(ConnectionOptions.PARITY);
+		if(encryptionKey != null && requestedOptions.get(ConnectionOptions.ENCRYPTION) != null)
+			acceptedOptions.set(ConnectionOptions.ENCRYPTION, PacketCipher.createHandshakeNonce());
+		return acceptedOptions;
+	}
+
+	private void rejectClient(int clientId, InetSocketAddress source) {
 		logger.fine("Client " + clientId + " was refused");
 		synchronized(CONNECTION_LOCK) {
 			try {
-				sendPacket(Packet.createConnectionRefusedPacket(), new ClientInfo(clientId, address, port, InetAddress.getByName(address)));
-			} catch (UnknownHostException e) {
-				//ignore exceptions--we don't need to report that we had trouble rejecting a connection
+				sendPacket(Packet.createConnectionRefusedPacket(), new ClientInfo(clientId, source, activeClock));
 			} catch (CouldNotSendPacketException e) {
 				//ignore exceptions--we don't need to report that we had trouble rejecting a connection
 			}
@@ -402,11 +1480,17 @@ public abstract class Server implements PacketReceiver {
 
 				try {
 					//attempt to send the packet
-					byte[] bytes = packet.toByteArray();
-					DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length, client.getInetAddress(), client.getPort());
-					socket.send(datagramPacket);
+					if(client.usesCompression())
+						packet.compressMessage(client.getCompressor());
+					DatagramPacket datagramPacket = createDatagram(packet, client);
+					if(isTickMode && packet.getMessageType() == MessageType.APPLICATION)
+						outgoingDatagrams.offer(datagramPacket);
+					else
+						transport.send(datagramPacket);
+					NetworkEvents.packetSent(packet.getConnectionId(), sequenceNumber, client.getSocketAddress(), datagramPacket.getLength());
 					if(logger.isLoggable(Level.FINEST))
 						logger.finest("Outgoing packet to " + client.getAddress() + ":" + client.getPort() + ":\n  " + packet.toString().replaceAll("\n", "\n  "));
+					sendParity(packet, client);
 				} catch (PacketEncodingException e) {
 					//encoding issues result when the packet contains connection id or sequence numbers that are out of range.
 					// we would not expect these to occur if everything is functioning as normal
@@ -427,16 +1511,177 @@ public abstract class Server implements PacketReceiver {
 		return sequenceNumber;
 	}
 
+	/**
+	 * Sends every client whose messages have waited too long for something to
+	 * carry their acknowledgement an ACKNOWLEDGEMENT.
+	 */
+	private void acknowledgeClients() {
+		synchronized(CONNECTION_LOCK) {
+			if(!isRunning)
+				return;
+			for(ClientInfo client : clients.getClients())
+				acknowledge(client);
+		}
+	}
+
+	private void acknowledge(int clientId) {
+		synchronized(CONNECTION_LOCK) {
+			ClientInfo client = clients.get(clientId);
+			if(isRunning && client != null)
+				acknowledge(client);
+		}
+	}
+
+	private void acknowledge(ClientInfo client) {
+		synchronized(CONNECTION_LOCK) {
+			synchronized(client.getPacketRecorder()) {
+				if(!client.getPacketRecorder().isAcknowledgementDue(acknowledgementThreshold, acknowledgementDelay))
+					return;
+				try {
+					//like the other replies the protocol makes itself, acknowledgements don't wait for the end of a tick
+					sendUnsequencedPacket(Packet.createAcknowledgementPacket(client.getClientId()), client, false);
+				} catch (PacketEncodingException e) {
+					logger.finest("Could not acknowledge client " + client.getClientId() + ": " + e.getMessage());
+				} catch (IOException e) {
+					//ignore--the next packet carries the same acknowledgements
+					logger.finest("Could not acknowledge client " + client.getClientId() + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a message that was just sent to the client to its parity group,
+	 * sending the group's PARITY packet if that completes it. In tick mode
+	 * the parity is buffered behind the group's messages.
+	 */
+	private void sendParity(Packet packet, ClientInfo client) {
+		if(client.getForwardErrorCorrection() == null || packet.getMessageType() != MessageType.APPLICATION)
+			return;
+		synchronized(client.getPacketRecorder()) {
+			Packet parityPacket = client.getForwardErrorCorrection().addSentPacket(packet, client.getPacketRecorder().getLossRate());
+			client.getPacketRecorder().setLossReportThreshold(client.getForwardErrorCorrection().getLossReportThreshold(client.getPacketRecorder().getLossRate()));
+			if(parityPacket == null)
+				return;
+			try {
+				sendUnsequencedPacket(parityPacket, client, isTickMode);
+			} catch (PacketEncodingException e) {
+				logger.finest("Could not send parity to client " + client.getClientId() + ": " + e.getMessage());
+			} catch (IOException e) {
+				//ignore--the group's messages are still reported lost and can be sent again as usual
+				logger.finest("Could not send parity to client " + client.getClientId() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Sends a packet the recorder doesn't give a sequence number, like an
+	 * ACKNOWLEDGEMENT or PARITY packet. It still carries the client's packet
+	 * history. Only the client's PacketRecorder needs to be locked.
+	 *
+	 * @param isBuffered whether to leave it for endTick() to send
+	 */
+	private void sendUnsequencedPacket(Packet packet, ClientInfo client, boolean isBuffered) throws PacketEncodingException, IOException {
+		synchronized(client.getPacketRecorder()) {
+			client.getPacketRecorder().addReceivedPacketHistoryToOutgoingPacket(packet);
+			DatagramPacket datagramPacket = createDatagram(packet, client);
+			if(isBuffered)
+				outgoingDatagrams.offer(datagramPacket);
+			else
+				transport.send(datagramPacket);
+			NetworkEvents.packetSent(client.getClientId(), Packet.SEQUENCE_NUMBER_NOT_APPLICABLE, client.getSocketAddress(), datagramPacket.getLength());
+			if(logger.isLoggable(Level.FINEST))
+				logger.finest("Outgoing packet to " + client.getAddress() + ":" + client.getPort() + ":\n  " + packet.toString().replaceAll("\n", "\n  "));
+		}
+	}
+
+	/**
+	 * Encodes the packet the way the client expects it, sealed if the
+	 * connection is encrypted and then checksummed if it uses checksums. The
+	 * client's PacketRecorder must be locked.
+	 */
+	private static DatagramPacket createDatagram(Packet packet, ClientInfo client) throws PacketEncodingException {
+		int numSpareBytes = getNumSpareBytes(client);
+		byte[] bytes = packet.encode(client.usesCompactHeaders(), numSpareBytes);
+		int length = finishDatagram(client, bytes, bytes.length - numSpareBytes);
+
+		//the address and port are taken together, since the client could be moving
+		DatagramPacket datagramPacket = new DatagramPacket(bytes, length);
+		datagramPacket.setSocketAddress(client.getSocketAddress());
+		return datagramPacket;
+	}
+
+	/**
+	 * @return the most that sealing and checksumming can add to a packet sent to the client
+	 */
+	private static int getNumSpareBytes(ClientInfo client) {
+		return (client.usesEncryption() ? PacketCipher.MAXIMUM_OVERHEAD : 0) + (client.usesChecksum() ? Packet.CHECKSUM_SIZE : 0);
+	}
+
+	/**
+	 * Seals and checksums an encoded packet in place, as the client's connection requires.
+	 *
+	 * @return the length of the finished packet
+	 */
+	private static int finishDatagram(ClientInfo client, byte[] bytes, int length) {
+		if(client.usesEncryption())
+			length = client.getCipher().seal(bytes, length);
+		if(client.usesChecksum())
+			length = Packet.putChecksum(client.getChecksum(), bytes, length);
+		return length;
+	}
+
+	private void removeClient(int clientId) {
+		synchronized(CONNECTION_LOCK) {
+			ClientInfo client = clients.remove(clientId);
+			if(client == null)
+				client = suspendedClients.remove(clientId);
+			packetFilter.removeConnectionId(clientId);
+			if(client != null) {
+				leaveAllGroups(client);
+				client.getDeliveryTracker().failAll(Server.CLIENT_DISCONNECTED, resolvedDeliveries);
+			}
+		}
+	}
+
+	private void leaveAllGroups(ClientInfo client) {
+		synchronized(CONNECTION_LOCK) {
+			IntSet groupIds = client.getGroupIds();
+			for(int i = 0; i < groupIds.size(); i++) {
+				IntSet group = groups.get(groupIds.get(i));
+				if(group != null)
+					group.remove(client.getClientId());
+			}
+			groupIds.clear();
+		}
+	}
+
+	private int getBroadcastEncoding(ClientInfo client) {
+		if(!client.usesCompression())
+			return Server.UNCOMPRESSED;
+		return (client.getCompressor() == compressor ? Server.COMPRESSED : Server.COMPRESSED_WITHOUT_DICTIONARY);
+	}
+
+	private ExecutorService createBroadcastExecutor() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Nightingale broadcast");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
 	private int getNextClientId() {
 		logger.finest("Getting next client id...");
 		synchronized(CONNECTION_LOCK) {
-			if(clients.size() > Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID) {
+			if(clients.size() + suspendedClients.size() > Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID) {
 				logger.finer("Assigning anonymous connection id of " + Packet.ANONYMOUS_CONNECTION_ID + " to client because server has maximum of " + (Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID) + " connections");
 				return Packet.ANONYMOUS_CONNECTION_ID;
 			}
 			do {
 				lastConnectedClientId = Packet.nextConnectionId(lastConnectedClientId);
-			} while(clients.containsKey(lastConnectedClientId));
+			} while(clients.contains(lastConnectedClientId) || suspendedClients.containsKey(lastConnectedClientId));
 			logger.finest("Next client id is " + lastConnectedClientId);
 			return lastConnectedClientId;
 		}
@@ -445,42 +1690,98 @@ public abstract class Server implements PacketReceiver {
 	private long checkClientTimeouts(int timeout) {
 		//we may need to notify the listener of disconnected clients
 		Set<Integer> disconnectedClientIds = new HashSet<Integer>();
+		Set<Integer> suspendedClientIds = new HashSet<Integer>();
 		long oldestClientCommunicationTime = -1;
+		boolean isReportedOnTick;
 
 		synchronized(CONNECTION_LOCK) {
 			//if the server isn't running just return a sentinel value
 			if(!isRunning)
 				return -1;
+			isReportedOnTick = isTickMode;
 
 			//check to see if any client has timed out
-			long now = System.currentTimeMillis();
+			long now = activeClock.currentTimeMillis();
 			oldestClientCommunicationTime = now; //now is a good default value as it will make the timeout thread wait the full timeout if no clients are connected
-			for(Iterator<Integer> iter = clients.keySet().iterator(); iter.hasNext();) {
-				int clientId = iter.next();
-				ClientInfo client = clients.get(clientId);
+			for(ClientInfo client : clients.getClients()) {
+				int clientId = client.getClientId();
 
-				//if the client has timed out then remove it from the list of clients
+				//if the client has timed out then remove it from the list of clients--the array being iterated isn't changed by removing it
 				if(client.getTimeOfLastCommunication() + timeout <= now) {
-					iter.remove(); //removing client ids from the key set DOES remove clients from the map
-					disconnectedClientIds.add(clientId); 
+					clients.remove(clientId);
+					packetFilter.removeConnectionId(clientId);
+					NetworkEvents.clientTimedOut(clientId, now - client.getTimeOfLastCommunication());
+
+					//clients with a session are kept around in case they come back
+					if(sessionGracePeriod > 0 && client.getSessionToken() != null) {
+						suspendedClients.put(clientId, client);
+						suspendedClientIds.add(clientId);
+					}
+					else {
+						leaveAllGroups(client);
+						client.getDeliveryTracker().failAll(Server.CLIENT_TIMED_OUT, resolvedDeliveries);
+						disconnectedClientIds.add(clientId);
+					}
 				}
 
 				//otherwise this client may be the client closest to timing out
 				else if(client.getTimeOfLastCommunication() < oldestClientCommunicationTime)
 					oldestClientCommunicationTime = client.getTimeOfLastCommunication();
 			}
+
+			//suspended clients that haven't come back by the end of the grace period are gone for good
+			for(Iterator<ClientInfo> iter = suspendedClients.values().iterator(); iter.hasNext();) {
+				ClientInfo client = iter.next();
+				long endOfGracePeriod = client.getTimeOfLastCommunication() + sessionGracePeriod;
+				if(endOfGracePeriod + timeout <= now) {
+					iter.remove();
+					leaveAllGroups(client);
+					client.getDeliveryTracker().failAll(Server.CLIENT_TIMED_OUT, resolvedDeliveries);
+					disconnectedClientIds.add(client.getClientId());
+				}
+				else if(endOfGracePeriod < oldestClientCommunicationTime)
+					oldestClientCommunicationTime = endOfGracePeriod;
+			}
 		}
 
-		//inform the listener of any clients that timed out
+		//inform the listener of any clients that timed out--in tick mode, at the start of the next tick
+		for(int clientId : suspendedClientIds) {
+			if(isReportedOnTick)
+				clientTimeouts.offer(new ClientTimeout(clientId, true));
+			else
+				reportClientTimeout(clientId, true);
+		}
 		for(int clientId : disconnectedClientIds) {
-			logger.fine("Client " + clientId + " timed out");
-			onClientDisconnected(clientId, Server.CLIENT_TIMED_OUT);
+			if(isReportedOnTick)
+				clientTimeouts.offer(new ClientTimeout(clientId, false));
+			else
+				reportClientTimeout(clientId, false);
 		}
+		DeliveryTracker.completeResolvedDeliveries(resolvedDeliveries);
+		inboundMessages.deliver();
 
 		//return the time of last communication of the client who is closest to timing out
 		return oldestClientCommunicationTime;
 	}
 
+	private void reportClientTimeout(int clientId, boolean isSuspended) {
+		if(isSuspended) {
+			logger.fine("Client " + clientId + " timed out and is suspended until it resumes its session");
+			onClientSuspended(clientId);
+		}
+		else {
+			logger.fine("Client " + clientId + " timed out");
+			onClientDisconnected(clientId, Server.CLIENT_TIMED_OUT);
+		}
+	}
+
+	/**
+	 * @see Server#forEachClient(ClientVisitor)
+	 */
+	public static interface ClientVisitor {
+		public void visitClient(ClientInfo client);
+	}
+
 	public static abstract class CouldNotStartServerException extends Exception {
 		private static final long serialVersionUID = -6383721472101600079L;
 
@@ -527,6 +1828,170 @@ public abstract class Server implements PacketReceiver {
 		}
 	}
 
+	/**
+	 * Sends one message to a range of recipients. Each encoding of the
+	 * message is copied once into a buffer with room for the largest header in
+	 * front of it, and then for each recipient only the header is rewritten.
+	 * The buffers belong to the thread and are reused by its next broadcast.
+	 * Only the recipients' PacketRecorders are locked--the thread that splits
+	 * up the broadcast holds CONNECTION_LOCK for all of its tasks.
+	 */
+	private static class BroadcastTask implements Callable<Void> {
+		private static final ThreadLocal<BroadcastBuffers> threadBuffers = new ThreadLocal<BroadcastBuffers>() {
+			protected BroadcastBuffers initialValue() {
+				return new BroadcastBuffers();
+			}
+		};
+		private Server server;
+		private String message;
+		private byte[][] messageBytes;
+		private ClientInfo[] recipients;
+		private int start;
+		private int end;
+		private int[] messageIds;
+
+		public BroadcastTask(Server server, String message, byte[][] messageBytes, ClientInfo[] recipients, int start, int end, int[] messageIds) {
+			this.server = server;
+			this.message = message;
+			this.messageBytes = messageBytes;
+			this.recipients = recipients;
+			this.start = start;
+			this.end = end;
+			this.messageIds = messageIds;
+		}
+
+		public Void call() {
+			BroadcastBuffers buffers = threadBuffers.get();
+			int copiedEncodings = 0;
+			for(int i = start; i < end; i++) {
+				ClientInfo client = recipients[i];
+				if(client == null)
+					continue;
+
+				//fall back to the uncompressed message if compressing it didn't help
+				int encoding = server.getBroadcastEncoding(client);
+				if(messageBytes[encoding] == null)
+					encoding = Server.UNCOMPRESSED;
+				int messageEnd = Packet.MAXIMUM_HEADER_SIZE + (messageBytes[encoding] == null ? 0 : messageBytes[encoding].length);
+				byte[] buffer = buffers.getEncodingBuffer(encoding, messageEnd);
+				if((copiedEncodings & (1 << encoding)) == 0) {
+					if(messageEnd > Packet.MAXIMUM_HEADER_SIZE)
+						System.arraycopy(messageBytes[encoding], 0, buffer, Packet.MAXIMUM_HEADER_SIZE, messageEnd - Packet.MAXIMUM_HEADER_SIZE);
+					copiedEncodings |= 1 << encoding;
+				}
+
+				//the recorder keeps the packet to report it lost or resend it, so each recipient needs its own
+				Packet packet = Packet.createApplicationPacket(client.getClientId(), message);
+				if(encoding != Server.UNCOMPRESSED)
+					packet.setCompressedMessage(messageBytes[encoding]);
+				synchronized(client.getPacketRecorder()) {
+					client.getPacketRecorder().recordAndAddSequenceNumberToOutgoingPacket(packet);
+					client.getPacketRecorder().addReceivedPacketHistoryToOutgoingPacket(packet);
+					try {
+						byte[] bytes = buffer;
+						int offset = packet.putHeaderBefore(buffer, Packet.MAXIMUM_HEADER_SIZE, client.usesCompactHeaders());
+						int length = messageEnd - offset;
+						int numSpareBytes = getNumSpareBytes(client);
+						if(numSpareBytes > 0) {
+							//sealing and checksums are done in place, so they work on a copy that leaves the buffer for the next recipient
+							byte[] sealBuffer = buffers.getSealBuffer(length + numSpareBytes);
+							System.arraycopy(buffer, offset, sealBuffer, 0, length);
+							length = finishDatagram(client, sealBuffer, length);
+							bytes = sealBuffer;
+							offset = 0;
+						}
+						if(server.isTickMode) {
+							//the buffers are reused for the next recipient, so buffered packets need their own copy
+							byte[] copy = new byte[length];
+							System.arraycopy(bytes, offset, copy, 0, length);
+							DatagramPacket bufferedPacket = new DatagramPacket(copy, length);
+							bufferedPacket.setSocketAddress(client.getSocketAddress());
+							server.outgoingDatagrams.offer(bufferedPacket);
+						}
+						else {
+							DatagramPacket datagramPacket = buffers.getDatagramPacket();
+							datagramPacket.setData(bytes, offset, length);
+							datagramPacket.setSocketAddress(client.getSocketAddress());
+							server.transport.send(datagramPacket);
+						}
+						messageIds[i] = packet.getSequenceNumber();
+						NetworkEvents.packetSent(client.getClientId(), messageIds[i], client.getSocketAddress(), length);
+						if(logger.isLoggable(Level.FINEST))
+							logger.finest("Outgoing packet to " + client.getAddress() + ":" + client.getPort() + ":\n  " + packet.toString().replaceAll("\n", "\n  "));
+						server.sendParity(packet, client);
+					} catch (PacketEncodingException e) {
+						client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+						logger.finest("Outgoing packet: could not send to client " + client.getClientId() + " due to PacketEncodingException \"" + e.getMessage() + "\"");
+					} catch (IOException e) {
+						client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+						logger.finest("Outgoing packet: could not send to client " + client.getClientId() + " due to IOException \"" + e.getMessage() + "\"");
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The buffers one thread encodes broadcasts in, sized for the largest
+	 * datagram so they rarely have to grow.
+	 */
+	private static class BroadcastBuffers {
+		private byte[][] encodingBuffers;
+		private byte[] sealBuffer;
+		private DatagramPacket datagramPacket;
+
+		public BroadcastBuffers() {
+			encodingBuffers = new byte[3][];
+			sealBuffer = new byte[Packet.MAXIMUM_DATAGRAM_SIZE];
+			datagramPacket = new DatagramPacket(sealBuffer, 0);
+		}
+
+		public byte[] getEncodingBuffer(int encoding, int length) {
+			if(encodingBuffers[encoding] == null || encodingBuffers[encoding].length < length)
+				encodingBuffers[encoding] = new byte[Math.max(Packet.MAXIMUM_DATAGRAM_SIZE, length)];
+			return encodingBuffers[encoding];
+		}
+
+		public byte[] getSealBuffer(int length) {
+			if(sealBuffer.length < length)
+				sealBuffer = new byte[length];
+			return sealBuffer;
+		}
+
+		public DatagramPacket getDatagramPacket() {
+			return datagramPacket;
+		}
+	}
+
+	public static class GroupNotFoundException extends CouldNotSendPacketException {
+		private static final long serialVersionUID = 5012865307765614223L;
+
+		public GroupNotFoundException(int groupId, Packet packet) {
+			super("Group " + groupId + " does not exist.", packet);
+		}
+	}
+
+	private static class ClientTimeout {
+		private final int clientId;
+		private final boolean isSuspended;
+
+		public ClientTimeout(int clientId, boolean isSuspended) {
+			this.clientId = clientId;
+			this.isSuspended = isSuspended;
+		}
+	}
+
+	private static class QueuedPacket {
+		private final Packet packet;
+		private final InetSocketAddress source;
+
+		public QueuedPacket(Packet packet, InetSocketAddress source) {
+			this.packet = packet;
+			this.source = source;
+		}
+	}
+
 	private static class ServerTimeoutThread extends Thread {
 		private Server server;
 		private int timeout;
@@ -545,10 +2010,10 @@ public abstract class Server implements PacketReceiver {
 				//tell the server to check for clients that have timed out
 				long oldestCommunication = server.checkClientTimeouts(timeout);
 
-				//sleep until the next client is expected to time out
-				long now = System.currentTimeMillis();
+				//sleep until the next client is expected to time out, checking often enough to notice a clock that jumps forward
+				long now = server.activeClock.currentTimeMillis();
 				try {
-					Thread.sleep(Math.max(50, timeout - now + oldestCommunication));
+					Thread.sleep(Math.max(50, Math.min(Server.MAXIMUM_TIMEOUT_CHECK_INTERVAL, timeout - now + oldestCommunication)));
 				} catch (InterruptedException e) {}
 			}
 		}
@@ -557,4 +2022,31 @@ public abstract class Server implements PacketReceiver {
 			isCheckingForTimeouts = false;
 		}
 	}
+
+	private static class ServerAcknowledgementThread extends Thread {
+		private Server server;
+		private int timeBetweenChecks;
+		private boolean isAcknowledging;
+
+		public ServerAcknowledgementThread(Server server, int millisecondsBetweenChecks) {
+			super();
+			this.server = server;
+			timeBetweenChecks = millisecondsBetweenChecks;
+			isAcknowledging = false;
+		}
+
+		public void run() {
+			isAcknowledging = true;
+			while(isAcknowledging) {
+				server.acknowledgeClients();
+				try {
+					Thread.sleep(timeBetweenChecks);
+				} catch (InterruptedException e) {}
+			}
+		}
+
+		public void stopAcknowledging() {
+			isAcknowledging = false;
+		}
+	}
 }
\ No newline at end of file
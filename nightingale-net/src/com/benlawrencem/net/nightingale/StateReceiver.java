@@ -0,0 +1,203 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the state sent by a {@link StateReplicator} on the client side.
+ * Each update is applied on top of the snapshot it was encoded against, so
+ * the receiver keeps the last few snapshots it has seen. Updates older than
+ * the newest snapshot are ignored since UDP may deliver them out of order.
+ * An update split into parts is held back until all of its parts are in,
+ * in whatever order they arrive.
+ */
+public class StateReceiver {
+	private static final Logger logger = Logger.getLogger(StateReceiver.class.getName());
+	public static final int DEFAULT_NUM_SNAPSHOTS_STORED = StateReplicator.DEFAULT_NUM_SNAPSHOTS_STORED;
+	private Map<Integer, Map<String, String>> snapshots;
+	private TreeMap<Integer, PartialSnapshot> partialSnapshots;
+	private int numSnapshotsStored;
+	private int lastSnapshotId;
+
+	public StateReceiver() {
+		this(StateReceiver.DEFAULT_NUM_SNAPSHOTS_STORED);
+	}
+
+	public StateReceiver(int numSnapshotsStored) {
+		snapshots = new HashMap<Integer, Map<String, String>>();
+		partialSnapshots = new TreeMap<Integer, PartialSnapshot>();
+		this.numSnapshotsStored = Math.max(2, numSnapshotsStored);
+		lastSnapshotId = StateReplicator.NO_BASELINE;
+	}
+
+	/**
+	 * Applies a replication message.
+	 *
+	 * @return the complete state after the update, or null if the message isn't a usable update (not a replication message, out of date, its baseline is unknown, or it's a part of an update still missing others)
+	 */
+	public synchronized Map<String, String> receive(String message) {
+		if(!StateReplicator.isReplicationMessage(message))
+			return null;
+		int headerEnd = message.indexOf(StateReplicator.ENTRY_SEPARATOR);
+		if(headerEnd < 0)
+			return null;
+		int snapshotId;
+		int baselineId;
+		int partIndex;
+		int numParts;
+		try {
+			String[] header = message.substring(StateReplicator.MESSAGE_PREFIX.length(), headerEnd).split(" ");
+			snapshotId = Integer.parseInt(header[0]);
+			baselineId = Integer.parseInt(header[1]);
+			partIndex = Integer.parseInt(header[2]);
+			numParts = Integer.parseInt(header[3]);
+		} catch(RuntimeException e) {
+			logger.fine("Ignoring malformed replication message header.");
+			return null;
+		}
+		if(numParts < 1 || numParts > Packet.MAXIMUM_SEQUENCE_NUMBER || partIndex < 0 || partIndex >= numParts) {
+			logger.fine("Ignoring malformed replication message header.");
+			return null;
+		}
+		if(snapshotId <= lastSnapshotId)
+			return null;
+
+		//hold on to the parts of a split update until the last one arrives
+		PartialSnapshot partialSnapshot = null;
+		if(numParts > 1) {
+			partialSnapshot = partialSnapshots.get(snapshotId);
+			if(partialSnapshot == null) {
+				partialSnapshot = new PartialSnapshot(baselineId, numParts);
+				partialSnapshots.put(snapshotId, partialSnapshot);
+				if(partialSnapshots.size() > numSnapshotsStored)
+					partialSnapshots.pollFirstEntry();
+			}
+			else if(partialSnapshot.baselineId != baselineId || partialSnapshot.parts.length != numParts) {
+				logger.fine("Ignoring part of snapshot " + snapshotId + " that doesn't match its other parts.");
+				return null;
+			}
+			if(!partialSnapshot.addPart(partIndex, message.substring(headerEnd + 1)))
+				return null;
+			partialSnapshots.remove(snapshotId);
+		}
+
+		Map<String, String> state;
+		if(baselineId == StateReplicator.NO_BASELINE)
+			state = new HashMap<String, String>();
+		else {
+			Map<String, String> baseline = snapshots.get(baselineId);
+			if(baseline == null) {
+				logger.fine("Ignoring update to snapshot " + snapshotId + " because baseline " + baselineId + " is unknown.");
+				return null;
+			}
+			state = new HashMap<String, String>(baseline);
+		}
+		boolean isWellFormed = true;
+		if(partialSnapshot == null)
+			isWellFormed = applyEntries(message, headerEnd + 1, state);
+		else {
+			for(String part : partialSnapshot.parts)
+				isWellFormed &= applyEntries(part, 0, state);
+		}
+		if(!isWellFormed) {
+			logger.fine("Ignoring malformed replication message for snapshot " + snapshotId + ".");
+			return null;
+		}
+
+		state = Collections.unmodifiableMap(state);
+		snapshots.put(snapshotId, state);
+		snapshots.remove(snapshotId - numSnapshotsStored);
+		lastSnapshotId = snapshotId;
+
+		//parts of older updates can never be used now
+		partialSnapshots.headMap(snapshotId).clear();
+		return state;
+	}
+
+	public synchronized Map<String, String> getState() {
+		Map<String, String> state = snapshots.get(lastSnapshotId);
+		if(state == null)
+			return Collections.emptyMap();
+		return state;
+	}
+
+	public synchronized int getLastSnapshotId() {
+		return lastSnapshotId;
+	}
+
+	/**
+	 * Forgets every snapshot, e.g. after reconnecting to a server.
+	 */
+	public synchronized void reset() {
+		snapshots.clear();
+		partialSnapshots.clear();
+		lastSnapshotId = StateReplicator.NO_BASELINE;
+	}
+
+	private static boolean applyEntries(String message, int start, Map<String, String> state) {
+		StringBuilder key = new StringBuilder();
+		StringBuilder value = new StringBuilder();
+		int i = start;
+		while(i < message.length()) {
+			char operation = message.charAt(i++);
+			if(operation != StateReplicator.PUT && operation != StateReplicator.REMOVE)
+				return false;
+			key.setLength(0);
+			value.setLength(0);
+			StringBuilder current = key;
+			boolean hasValue = false;
+			for(; i < message.length(); i++) {
+				char c = message.charAt(i);
+				if(c == StateReplicator.ESCAPE) {
+					if(++i >= message.length())
+						return false;
+					c = message.charAt(i);
+					current.append(c == 'n' ? StateReplicator.ENTRY_SEPARATOR : c);
+				}
+				else if(c == StateReplicator.VALUE_SEPARATOR && current == key) {
+					current = value;
+					hasValue = true;
+				}
+				else if(c == StateReplicator.ENTRY_SEPARATOR)
+					break;
+				else
+					current.append(c);
+			}
+			i++;
+			if(operation == StateReplicator.PUT) {
+				if(!hasValue)
+					return false;
+				state.put(key.toString(), value.toString());
+			}
+			else
+				state.remove(key.toString());
+		}
+		return true;
+	}
+
+	private static class PartialSnapshot {
+		private int baselineId;
+		private String[] parts;
+		private int numReceived;
+
+		public PartialSnapshot(int baselineId, int numParts) {
+			this.baselineId = baselineId;
+			parts = new String[numParts];
+			numReceived = 0;
+		}
+
+		/**
+		 * @return whether every part has now been received
+		 */
+		public boolean addPart(int partIndex, String entries) {
+			if(parts[partIndex] == null) {
+				parts[partIndex] = entries;
+				numReceived++;
+			}
+			return numReceived == parts.length;
+		}
+	}
+}
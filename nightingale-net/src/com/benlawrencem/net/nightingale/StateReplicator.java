@@ -0,0 +1,310 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
+import com.benlawrencem.net.nightingale.Server.ClientNotConnectedException;
+
+/**
+ * Replicates a key/value world state from a Server to its clients, sending
+ * each client only what changed since the newest snapshot it has
+ * acknowledged receiving. Snapshots a client hasn't acknowledged are never
+ * used as a baseline, so a lost update costs nothing but the next delta
+ * being a little larger. If no acknowledged snapshot is still stored the
+ * client gets the full state instead.
+ *
+ * An update too big for one packet is split between entries into parts
+ * that each fit, and a client only uses it once every part has arrived. A
+ * snapshot only counts as acknowledged when all of its parts are.
+ *
+ * Typical use on the server's simulation thread:
+ *   replicator.put("player1", "12,34");
+ *   replicator.takeSnapshot();
+ *   replicator.replicateToAll();
+ *
+ * Replication messages arrive through the normal onReceive and
+ * onMessageNotDelivered callbacks. Clients should pass them to a
+ * {@link StateReceiver}, and neither end should resend lost ones (see
+ * {@link #isReplicationMessage(String)}), since the next delta covers
+ * whatever was lost.
+ */
+public class StateReplicator {
+	private static final Logger logger = Logger.getLogger(StateReplicator.class.getName());
+	public static final int DEFAULT_NUM_SNAPSHOTS_STORED = 32;
+	private static final int NUM_PENDING_SNAPSHOTS_PER_CLIENT = 8;
+	static final String MESSAGE_PREFIX = "\u001ER";
+	static final int MAXIMUM_MESSAGE_SIZE = Packet.MAXIMUM_PACKET_SIZE - Packet.MAXIMUM_HEADER_SIZE;
+	//room for the prefix and the header's four ints, so a part's entries can be packed before its header is written
+	private static final int MAXIMUM_ENTRIES_SIZE = StateReplicator.MAXIMUM_MESSAGE_SIZE - StateReplicator.MESSAGE_PREFIX.length() - 4 * 12;
+	static final int NO_BASELINE = -1;
+	static final char ENTRY_SEPARATOR = '\n';
+	static final char VALUE_SEPARATOR = '=';
+	static final char ESCAPE = '\\';
+	static final char PUT = '+';
+	static final char REMOVE = '-';
+	private Server server;
+	private Map<String, String> state;
+	private Map<String, String>[] snapshots;
+	private int lastSnapshotId;
+	private Map<Integer, ReplicatedClient> clients;
+
+	public StateReplicator(Server server) {
+		this(server, StateReplicator.DEFAULT_NUM_SNAPSHOTS_STORED);
+	}
+
+	public StateReplicator(Server server, int numSnapshotsStored) {
+		this.server = server;
+		state = new HashMap<String, String>();
+		snapshots = createSnapshotArray(Math.max(2, numSnapshotsStored));
+		lastSnapshotId = StateReplicator.NO_BASELINE;
+		clients = new HashMap<Integer, ReplicatedClient>();
+	}
+
+	/**
+	 * Java can't create an array of a generic type, so the raw array is cast here and nowhere else.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Map<String, String>[] createSnapshotArray(int length) {
+		return new Map[length];
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the key and value are too long to fit in a packet together
+	 */
+	public synchronized void put(String key, String value) {
+		if(key == null)
+			return;
+		if(value == null)
+			value = "";
+		if(getEncodedSize(encodeEntry(StateReplicator.PUT, key, value)) > StateReplicator.MAXIMUM_ENTRIES_SIZE)
+			throw new IllegalArgumentException("The entry for " + key + " is too long to replicate.");
+		state.put(key, value);
+	}
+
+	public synchronized void remove(String key) {
+		state.remove(key);
+	}
+
+	public synchronized String get(String key) {
+		return state.get(key);
+	}
+
+	/**
+	 * Freezes the current state as the next snapshot. Changes made after
+	 * this aren't replicated until the next snapshot is taken.
+	 *
+	 * @return the new snapshot's id
+	 */
+	public synchronized int takeSnapshot() {
+		lastSnapshotId++;
+		snapshots[lastSnapshotId % snapshots.length] = Collections.unmodifiableMap(new HashMap<String, String>(state));
+		return lastSnapshotId;
+	}
+
+	/**
+	 * Sends the latest snapshot to the client as a delta against the newest
+	 * snapshot the client has acknowledged.
+	 *
+	 * @return the message ids of the update's parts, in order
+	 */
+	public synchronized int[] replicate(int clientId) throws CouldNotSendPacketException {
+		if(lastSnapshotId == StateReplicator.NO_BASELINE)
+			takeSnapshot();
+		ReplicatedClient client = clients.get(clientId);
+		if(client == null) {
+			client = new ReplicatedClient();
+			clients.put(clientId, client);
+		}
+
+		//find out which of the snapshots we've sent have been acknowledged since we last checked
+		for(int i = 0; i < client.numPending; i++) {
+			if(client.pendingSnapshotIds[i] > client.acknowledgedSnapshotId && isDelivered(clientId, client.pendingMessageIds[i]))
+				client.acknowledgedSnapshotId = client.pendingSnapshotIds[i];
+		}
+		client.removeAcknowledgedSnapshots();
+
+		//use the acknowledged snapshot as a baseline if we still have it, otherwise send everything
+		int baselineId = client.acknowledgedSnapshotId;
+		if(getSnapshot(baselineId) == null)
+			baselineId = StateReplicator.NO_BASELINE;
+		List<String> parts = encodeDelta(lastSnapshotId, baselineId, getSnapshot(baselineId), getSnapshot(lastSnapshotId));
+		int[] messageIds = new int[parts.size()];
+		try {
+			for(int i = 0; i < messageIds.length; i++)
+				messageIds[i] = server.send(clientId, parts.get(i));
+		} catch (ClientNotConnectedException e) {
+			clients.remove(clientId);
+			throw e;
+		}
+		client.addPendingSnapshot(lastSnapshotId, messageIds);
+		return messageIds;
+	}
+
+	/**
+	 * Sends the latest snapshot to every connected client, and forgets about
+	 * clients that are no longer connected.
+	 */
+	public synchronized void replicateToAll() {
+		List<Integer> clientIds = server.getClientIds();
+		clients.keySet().retainAll(clientIds);
+		for(int clientId : clientIds) {
+			try {
+				replicate(clientId);
+			} catch (CouldNotSendPacketException e) {
+				//the client will get a bigger delta next time
+				logger.finer("Could not replicate state to client " + clientId + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Forgets what the client has acknowledged, e.g. when it disconnects, so a
+	 * client that later connects with the same id starts from a full state.
+	 */
+	public synchronized void removeClient(int clientId) {
+		clients.remove(clientId);
+	}
+
+	public synchronized int getLastSnapshotId() {
+		return lastSnapshotId;
+	}
+
+	public static boolean isReplicationMessage(String message) {
+		return message != null && message.startsWith(StateReplicator.MESSAGE_PREFIX);
+	}
+
+	private boolean isDelivered(int clientId, int[] messageIds) {
+		for(int messageId : messageIds) {
+			if(!server.isMessageDelivered(clientId, messageId))
+				return false;
+		}
+		return true;
+	}
+
+	private Map<String, String> getSnapshot(int snapshotId) {
+		if(snapshotId == StateReplicator.NO_BASELINE || snapshotId > lastSnapshotId || lastSnapshotId - snapshotId >= snapshots.length)
+			return null;
+		return snapshots[snapshotId % snapshots.length];
+	}
+
+	/**
+	 * @return the update's parts, each one message
+	 */
+	private static List<String> encodeDelta(int snapshotId, int baselineId, Map<String, String> baseline, Map<String, String> snapshot) {
+		List<StringBuilder> entries = new ArrayList<StringBuilder>();
+		entries.add(new StringBuilder());
+		int entriesSize = 0;
+		for(Map.Entry<String, String> entry : snapshot.entrySet()) {
+			if(baseline == null || !entry.getValue().equals(baseline.get(entry.getKey())))
+				entriesSize = addEntry(entries, entriesSize, encodeEntry(StateReplicator.PUT, entry.getKey(), entry.getValue()));
+		}
+		if(baseline != null) {
+			for(String key : baseline.keySet()) {
+				if(!snapshot.containsKey(key))
+					entriesSize = addEntry(entries, entriesSize, encodeEntry(StateReplicator.REMOVE, key, null));
+			}
+		}
+
+		List<String> parts = new ArrayList<String>(entries.size());
+		for(int i = 0; i < entries.size(); i++)
+			parts.add(StateReplicator.MESSAGE_PREFIX + snapshotId + ' ' + baselineId + ' ' + i + ' ' + entries.size() + StateReplicator.ENTRY_SEPARATOR + entries.get(i));
+		return parts;
+	}
+
+	/**
+	 * Adds the entry to the last part, or starts a new part if it wouldn't fit--entries are never split, so no part arrives cut off.
+	 *
+	 * @return the size of the last part's entries
+	 */
+	private static int addEntry(List<StringBuilder> entries, int entriesSize, String entry) {
+		int entrySize = getEncodedSize(entry);
+		if(entriesSize > 0 && entriesSize + entrySize > StateReplicator.MAXIMUM_ENTRIES_SIZE) {
+			entries.add(new StringBuilder());
+			entriesSize = 0;
+		}
+		entries.get(entries.size() - 1).append(entry);
+		return entriesSize + entrySize;
+	}
+
+	/**
+	 * @param value the value to put, or null for a REMOVE
+	 */
+	private static String encodeEntry(char operation, String key, String value) {
+		StringBuilder entry = new StringBuilder();
+		entry.append(operation);
+		escape(entry, key);
+		if(value != null) {
+			entry.append(StateReplicator.VALUE_SEPARATOR);
+			escape(entry, value);
+		}
+		entry.append(StateReplicator.ENTRY_SEPARATOR);
+		return entry.toString();
+	}
+
+	/**
+	 * @return how many bytes the string takes up in a packet
+	 */
+	private static int getEncodedSize(String s) {
+		//ASCII is a byte a character in the default charset, so most entries are measured without encoding them
+		for(int i = 0; i < s.length(); i++) {
+			if(s.charAt(i) >= 0x80)
+				return s.getBytes().length;
+		}
+		return s.length();
+	}
+
+	private static void escape(StringBuilder message, String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == StateReplicator.ESCAPE || c == StateReplicator.VALUE_SEPARATOR)
+				message.append(StateReplicator.ESCAPE).append(c);
+			else if(c == StateReplicator.ENTRY_SEPARATOR)
+				message.append(StateReplicator.ESCAPE).append('n');
+			else
+				message.append(c);
+		}
+	}
+
+	private static class ReplicatedClient {
+		private int acknowledgedSnapshotId;
+		private int[] pendingSnapshotIds;
+		private int[][] pendingMessageIds;
+		private int numPending;
+
+		public ReplicatedClient() {
+			acknowledgedSnapshotId = StateReplicator.NO_BASELINE;
+			pendingSnapshotIds = new int[StateReplicator.NUM_PENDING_SNAPSHOTS_PER_CLIENT];
+			pendingMessageIds = new int[StateReplicator.NUM_PENDING_SNAPSHOTS_PER_CLIENT][];
+			numPending = 0;
+		}
+
+		public void removeAcknowledgedSnapshots() {
+			int numKept = 0;
+			for(int i = 0; i < numPending; i++) {
+				if(pendingSnapshotIds[i] > acknowledgedSnapshotId) {
+					pendingSnapshotIds[numKept] = pendingSnapshotIds[i];
+					pendingMessageIds[numKept] = pendingMessageIds[i];
+					numKept++;
+				}
+			}
+			numPending = numKept;
+		}
+
+		public void addPendingSnapshot(int snapshotId, int[] messageIds) {
+			//if too many are unacknowledged, give up on the oldest
+			if(numPending == pendingSnapshotIds.length) {
+				System.arraycopy(pendingSnapshotIds, 1, pendingSnapshotIds, 0, numPending - 1);
+				System.arraycopy(pendingMessageIds, 1, pendingMessageIds, 0, numPending - 1);
+				numPending--;
+			}
+			pendingSnapshotIds[numPending] = snapshotId;
+			pendingMessageIds[numPending] = messageIds;
+			numPending++;
+		}
+	}
+}
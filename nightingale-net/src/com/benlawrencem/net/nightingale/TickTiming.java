@@ -0,0 +1,73 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * How long one tick of a Server in tick mode spent handling network traffic.
+ * All times are in nanoseconds.
+ */
+public class TickTiming {
+	private long tickNumber;
+	private long drainTime;
+	private int numPacketsDrained;
+	private long flushTime;
+	private int numPacketsFlushed;
+	private long tickTime;
+	private long tickDuration;
+
+	TickTiming(long tickNumber, long drainTime, int numPacketsDrained, long flushTime, int numPacketsFlushed, long tickTime, long tickDuration) {
+		this.tickNumber = tickNumber;
+		this.drainTime = drainTime;
+		this.numPacketsDrained = numPacketsDrained;
+		this.flushTime = flushTime;
+		this.numPacketsFlushed = numPacketsFlushed;
+		this.tickTime = tickTime;
+		this.tickDuration = tickDuration;
+	}
+
+	public long getTickNumber() {
+		return tickNumber;
+	}
+
+	/**
+	 * @return time spent handling the packets that arrived since the last tick, including the onReceive callbacks
+	 */
+	public long getDrainTime() {
+		return drainTime;
+	}
+
+	public int getNumPacketsDrained() {
+		return numPacketsDrained;
+	}
+
+	/**
+	 * @return time spent sending the messages buffered during the tick
+	 */
+	public long getFlushTime() {
+		return flushTime;
+	}
+
+	public int getNumPacketsFlushed() {
+		return numPacketsFlushed;
+	}
+
+	/**
+	 * @return time from the start of the tick to the end of the flush
+	 */
+	public long getTickTime() {
+		return tickTime;
+	}
+
+	/**
+	 * @return how far the tick ran past its time budget, or 0 if it finished in time
+	 */
+	public long getOverrun() {
+		return Math.max(0, tickTime - tickDuration);
+	}
+
+	public boolean isOverrun() {
+		return tickTime > tickDuration;
+	}
+
+	public String toString() {
+		return "Tick " + tickNumber + ": drained " + numPacketsDrained + " packets in " + drainTime / 1000 + "us, flushed " + numPacketsFlushed + " packets in " + flushTime / 1000 + "us, tick took " + tickTime / 1000 + "us" + (isOverrun() ? " (overran by " + getOverrun() / 1000 + "us)" : "");
+	}
+}
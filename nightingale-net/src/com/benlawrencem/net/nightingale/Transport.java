@@ -0,0 +1,17 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * The datagram-moving half of a connection. Server and ClientConnection only
+ * ever talk to the network through a Transport, so the same protocol logic
+ * can run over a real socket, over an {@link InMemoryNetwork}, or through an
+ * {@link ImpairedTransport}.
+ */
+public interface Transport {
+	void send(DatagramPacket datagramPacket) throws IOException;
+	void receive(DatagramPacket datagramPacket) throws IOException;
+	int getLocalPort();
+	void close();
+}
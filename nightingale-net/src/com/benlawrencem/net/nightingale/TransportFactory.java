@@ -0,0 +1,10 @@
+package com.benlawrencem.net.nightingale;
+
+import java.net.SocketException;
+
+public interface TransportFactory {
+	/**
+	 * @param port the local port to bind to, or 0 for any available port
+	 */
+	Transport openTransport(int port) throws SocketException;
+}
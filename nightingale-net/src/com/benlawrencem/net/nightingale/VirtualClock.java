@@ -0,0 +1,39 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * A {@link Clock} that only moves when it's told to, for testing timeouts
+ * and round trip times without waiting for them. Threads that check the
+ * time still sleep for real between checks, so a jump forward is noticed
+ * at the next check--within a quarter of a second for timeouts--rather
+ * than straight away.
+ */
+public class VirtualClock implements Clock {
+	private long time;
+
+	public VirtualClock() {
+		this(0);
+	}
+
+	public VirtualClock(long startTime) {
+		time = startTime;
+	}
+
+	public synchronized long currentTimeMillis() {
+		return time;
+	}
+
+	/**
+	 * @param milliseconds how far to move the clock forward
+	 */
+	public synchronized void advance(long milliseconds) {
+		if(milliseconds < 0)
+			throw new IllegalArgumentException("Clock can't go backwards by " + -milliseconds + "ms.");
+		time += milliseconds;
+	}
+
+	public synchronized void setTime(long time) {
+		if(time < this.time)
+			throw new IllegalArgumentException("Clock can't go back from " + this.time + " to " + time + ".");
+		this.time = time;
+	}
+}
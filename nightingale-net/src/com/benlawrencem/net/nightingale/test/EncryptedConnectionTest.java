@@ -0,0 +1,169 @@
+package com.benlawrencem.net.nightingale.test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.ClientConnection;
+import com.benlawrencem.net.nightingale.InMemoryNetwork;
+import com.benlawrencem.net.nightingale.Packet;
+import com.benlawrencem.net.nightingale.Server;
+import com.benlawrencem.net.nightingale.Transport;
+import com.benlawrencem.net.nightingale.TransportFactory;
+import com.benlawrencem.net.nightingale.Packet.PacketIOException;
+
+import junit.framework.TestCase;
+
+public class EncryptedConnectionTest extends TestCase {
+	private static final int PORT = 19500;
+	private static final int TIMEOUT = 2000;
+	private static final int LARGE_SEND_SIZE = 256;
+	private static final byte[] KEY = "a secret shared by every test".getBytes();
+	private BlockingQueue<String> serverMessages;
+	private BlockingQueue<String> clientMessages;
+	private BlockingQueue<Integer> connectedClientIds;
+	private Server server;
+	private ClientConnection client;
+	private volatile boolean isNextLargeSendFailing;
+
+	@Before
+	public void setUp() throws Exception {
+		serverMessages = new LinkedBlockingQueue<String>();
+		clientMessages = new LinkedBlockingQueue<String>();
+		connectedClientIds = new LinkedBlockingQueue<Integer>();
+		final InMemoryNetwork network = new InMemoryNetwork();
+		server = new Server() {
+			protected void onServerStopped() {}
+			protected boolean onClientConnected(int clientId, String address, int port) {
+				connectedClientIds.add(clientId);
+				return true;
+			}
+			protected void onClientDisconnected(int clientId, String reason) {}
+			protected void onReceive(int clientId, String message) {
+				serverMessages.add(message);
+			}
+			protected void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, String message) {}
+		};
+		server.setTransportFactory(network);
+		server.setEncryptionKey(EncryptedConnectionTest.KEY);
+		server.setChecksumEnabled(true);
+		server.startServer(EncryptedConnectionTest.PORT);
+		client = new ClientConnection() {
+			protected void onConnected() {}
+			protected void onCouldNotConnect(String reason) {}
+			protected void onDisconnected(String reason) {}
+			protected void onReceive(String message) {
+				clientMessages.add(message);
+			}
+			protected void onMessageNotDelivered(int messageId, int resendMessageId, String message) {}
+		};
+		client.setTransportFactory(new TransportFactory() {
+			public Transport openTransport(int port) throws SocketException {
+				return new FailingTransport(network.openTransport(port));
+			}
+		});
+		client.setEncryptionKey(EncryptedConnectionTest.KEY);
+		client.setChecksumEnabled(true);
+
+		//standard headers are the biggest, so the message fills the packet
+		client.setCompactHeadersEnabled(false);
+		client.connect(InMemoryNetwork.ADDRESS.getHostAddress(), EncryptedConnectionTest.PORT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.disconnect();
+		server.stopServer();
+	}
+
+	@Test
+	public void testMaximumSizeMessageRoundTrips() throws Exception {
+		Integer clientId = connectedClientIds.poll(EncryptedConnectionTest.TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Client did not connect", clientId);
+		waitUntilConnected();
+		assertTrue(client.usesEncryption());
+		assertTrue(client.usesChecksum());
+
+		String message = createMessage(Packet.MAXIMUM_PACKET_SIZE - Packet.createApplicationPacket(clientId, null).toByteArray().length);
+		assertEquals(Packet.MAXIMUM_PACKET_SIZE, Packet.createApplicationPacket(clientId, message).toByteArray().length);
+		client.send(message);
+		assertEquals(message, serverMessages.poll(EncryptedConnectionTest.TIMEOUT, TimeUnit.MILLISECONDS));
+		server.send(clientId, message);
+		assertEquals(message, clientMessages.poll(EncryptedConnectionTest.TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testFailedSendDoesNotReuseSequenceNumber() throws Exception {
+		assertNotNull("Client did not connect", connectedClientIds.poll(EncryptedConnectionTest.TIMEOUT, TimeUnit.MILLISECONDS));
+		waitUntilConnected();
+
+		//the sequence number is the nonce, so the one the failed packet was sealed with must not be handed out again
+		String lostMessage = createMessage(EncryptedConnectionTest.LARGE_SEND_SIZE);
+		isNextLargeSendFailing = true;
+		int lostMessageId = 0;
+		try {
+			client.send(lostMessage);
+			fail("Send did not fail");
+		} catch(PacketIOException e) {
+			lostMessageId = e.getPacket().getSequenceNumber();
+		}
+		int messageId = client.send("after the failed send");
+		assertTrue(Packet.deltaBetweenSequenceNumbers(lostMessageId, messageId) > 0);
+		assertEquals("after the failed send", serverMessages.poll(EncryptedConnectionTest.TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	private void waitUntilConnected() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + EncryptedConnectionTest.TIMEOUT;
+		while(!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("Client did not connect", client.isConnected());
+	}
+
+	/**
+	 * @return a message that doesn't repeat, so nothing along the way could shrink it
+	 */
+	private static String createMessage(int length) {
+		StringBuilder message = new StringBuilder(length);
+		for(int i = 0; i < length; i++)
+			message.append((char) ('!' + (i * 7919) % 94));
+		return message.toString();
+	}
+
+	/**
+	 * Fails the next large send when asked to--pings and acknowledgements are too small to be mistaken for it.
+	 */
+	private class FailingTransport implements Transport {
+		private final Transport transport;
+
+		public FailingTransport(Transport transport) {
+			this.transport = transport;
+		}
+
+		public void send(DatagramPacket datagramPacket) throws IOException {
+			if(isNextLargeSendFailing && datagramPacket.getLength() >= EncryptedConnectionTest.LARGE_SEND_SIZE) {
+				isNextLargeSendFailing = false;
+				throw new IOException("Send failed on purpose");
+			}
+			transport.send(datagramPacket);
+		}
+
+		public void receive(DatagramPacket datagramPacket) throws IOException {
+			transport.receive(datagramPacket);
+		}
+
+		public int getLocalPort() {
+			return transport.getLocalPort();
+		}
+
+		public void close() {
+			transport.close();
+		}
+	}
+}
\ No newline at end of file
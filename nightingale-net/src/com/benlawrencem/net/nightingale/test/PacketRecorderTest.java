@@ -0,0 +1,145 @@
+package com.benlawrencem.net.nightingale.test;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.Packet;
+import com.benlawrencem.net.nightingale.PacketRecorder;
+import com.benlawrencem.net.nightingale.VirtualClock;
+
+import junit.framework.TestCase;
+
+public class PacketRecorderTest extends TestCase {
+	private VirtualClock clock;
+	private PacketRecorder sender;
+	private PacketRecorder receiver;
+
+	@Before
+	public void setUp() throws Exception {
+		//the sender's packets go to the receiver, whose acknowledgements come back to the sender
+		clock = new VirtualClock(1000);
+		sender = new PacketRecorder(clock);
+		receiver = new PacketRecorder(clock);
+	}
+
+	@Test
+	public void testPacketsReceivedOutOfOrderAreAcknowledged() {
+		Packet[] packets = send(5);
+		receive(packets[0], packets[1], packets[3], packets[4], packets[2]);
+		sender.recordIncomingPacket(acknowledge());
+		for(Packet packet : packets)
+			assertTrue("Packet " + packet.getSequenceNumber() + " not acknowledged", sender.isSentPacketDelivered(packet.getSequenceNumber()));
+	}
+
+	@Test
+	public void testLostPacketIsReported() {
+		//the first acknowledgement anchors the check for lost packets
+		Packet[] first = send(1);
+		receive(first[0]);
+		sender.recordIncomingPacket(acknowledge());
+		assertTrue(sender.getUndeliveredPackets().isEmpty());
+
+		Packet[] packets = send(5);
+		receive(packets[0], packets[1], packets[3], packets[4]);
+		sender.recordIncomingPacket(acknowledge());
+		List<Packet> undeliveredPackets = sender.getUndeliveredPackets();
+		assertEquals(1, undeliveredPackets.size());
+		assertSame(packets[2], undeliveredPackets.get(0));
+		assertTrue(sender.getUndeliveredPackets().isEmpty());
+	}
+
+	@Test
+	public void testOlderAcknowledgementDoesNotMoveAnchorBack() {
+		Packet[] first = send(1);
+		receive(first[0]);
+		sender.recordIncomingPacket(acknowledge());
+		sender.getUndeliveredPackets();
+
+		Packet[] packets = send(5);
+		receive(packets[0], packets[1]);
+		Packet olderAcknowledgement = acknowledge();
+		receive(packets[3], packets[4]);
+		Packet newerAcknowledgement = acknowledge();
+
+		//the acknowledgements arrive in the opposite order they were sent
+		sender.recordIncomingPacket(newerAcknowledgement);
+		sender.recordIncomingPacket(olderAcknowledgement);
+		List<Packet> undeliveredPackets = sender.getUndeliveredPackets();
+		assertEquals(1, undeliveredPackets.size());
+		assertSame(packets[2], undeliveredPackets.get(0));
+	}
+
+	@Test
+	public void testLossReportThresholdWaitsForLaterPackets() {
+		sender.setLossReportThreshold(3);
+		Packet[] first = send(1);
+		receive(first[0]);
+		sender.recordIncomingPacket(acknowledge());
+		sender.getUndeliveredPackets();
+
+		//the gap is too recent to call the packet lost--it may still turn up, or be rebuilt from parity
+		Packet[] packets = send(3);
+		receive(packets[0], packets[2]);
+		sender.recordIncomingPacket(acknowledge());
+		assertTrue(sender.getUndeliveredPackets().isEmpty());
+
+		Packet[] laterPackets = send(2);
+		receive(laterPackets[0], laterPackets[1]);
+		sender.recordIncomingPacket(acknowledge());
+		List<Packet> undeliveredPackets = sender.getUndeliveredPackets();
+		assertEquals(1, undeliveredPackets.size());
+		assertSame(packets[1], undeliveredPackets.get(0));
+	}
+
+	@Test
+	public void testRoundTripTimeIsSampledFromAcknowledgedPacket() {
+		Packet[] packets = send(1);
+		clock.advance(40);
+		packets = send(1);
+		clock.advance(30);
+		receive(packets[0]);
+		sender.recordIncomingPacket(acknowledge());
+		assertEquals(30, sender.takeRoundTripTimeSample());
+		assertEquals(-1, sender.takeRoundTripTimeSample());
+
+		//acknowledging the same packet again says nothing new about the round trip
+		clock.advance(100);
+		sender.recordIncomingPacket(acknowledge());
+		assertEquals(-1, sender.takeRoundTripTimeSample());
+	}
+
+	@Test
+	public void testRoundTripTimeIsNotSampledFromPing() {
+		Packet[] packets = send(1);
+		clock.advance(20);
+		receive(packets[0]);
+		Packet ping = Packet.createPingPacket(1, 0);
+		receiver.recordAndAddSequenceNumberToOutgoingPacket(ping);
+		receiver.addReceivedPacketHistoryToOutgoingPacket(ping);
+		sender.recordIncomingPacket(ping);
+		assertEquals(-1, sender.takeRoundTripTimeSample());
+		assertTrue(sender.isSentPacketDelivered(packets[0].getSequenceNumber()));
+	}
+
+	private Packet[] send(int numPackets) {
+		Packet[] packets = new Packet[numPackets];
+		for(int i = 0; i < numPackets; i++) {
+			packets[i] = Packet.createApplicationPacket(1, "message " + i);
+			sender.recordAndAddSequenceNumberToOutgoingPacket(packets[i]);
+		}
+		return packets;
+	}
+
+	private void receive(Packet... packets) {
+		for(Packet packet : packets)
+			receiver.recordIncomingPacket(packet);
+	}
+
+	private Packet acknowledge() {
+		Packet packet = Packet.createAcknowledgementPacket(1);
+		receiver.addReceivedPacketHistoryToOutgoingPacket(packet);
+		return packet;
+	}
+}
@@ -1,12 +1,14 @@
 package com.benlawrencem.net.nightingale.test;
 
 
+
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.benlawrencem.net.nightingale.Packet;
+import com.benlawrencem.net.nightingale.PayloadCompressor;
 import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
 import com.benlawrencem.net.nightingale.Packet.MessageType;
 import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
@@ -1242,6 +1244,265 @@ public class PacketTest extends TestCase {
 		assertEquals(MessageType.CLIENT_DISCONNECT, Packet.createClientDisconnectPacket(100).getMessageType());
 	}
 
+	@Test
+	public void testCreateAcknowledgementPacket() {
+		assertNotNull(Packet.createAcknowledgementPacket(1));
+		assertNotNull(Packet.createAcknowledgementPacket(255));
+		assertEquals(100, Packet.createAcknowledgementPacket(100).getConnectionId());
+		assertEquals(MessageType.ACKNOWLEDGEMENT, Packet.createAcknowledgementPacket(100).getMessageType());
+		assertFalse(Packet.createAcknowledgementPacket(100).hasSequenceNumber());
+		assertNull(Packet.createAcknowledgementPacket(100).getMessage());
+	}
+
+	@Test
+	public void testAcknowledgementPacket() {
+		Packet packet = Packet.createAcknowledgementPacket(3);
+		packet.setLastReceivedSequenceNumber(9);
+		packet.setReceivedPacketHistory(-1);
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				6, 45, -9, 59,		//Protocol Id:     103675707
+				3,					//Connection Id:   3
+				0, 0,				//Sequence Number: N/A
+				0, 0,				//Duplicate Of:    N/A
+				0, 9,				//Last Received:   9
+				-1, -1, -1, -1,		//Packet History:  -1
+				0,					//Packet Flags:    NOT IMMEDIATE
+				-119				//Message Type:    ACKNOWLEDGEMENT
+									//Message:         null
+			}, packet.toByteArray());
+			assertPacketsEqual(packet, Packet.parsePacket(packet.toByteArray()));
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		//with no sequence number of its own the compact header is only the acknowledgement
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				-95,				//Protocol Tag:    COMPACT + HISTORY FULL
+				3,					//Connection Id:   3
+				26,					//Packet Flags:    HISTORY + Message Type: ACKNOWLEDGEMENT
+				0, 9				//Last Received:   9
+									//Message:         null
+			}, packet.toCompactByteArray());
+			assertPacketsEqual(packet, Packet.parsePacket(packet.toCompactByteArray()));
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		try {
+			packet.setReceivedPacketHistory(34637692);
+			Assert.assertArrayEquals(new byte[] {
+				-96,				//Protocol Tag:    COMPACT
+				3,					//Connection Id:   3
+				26,					//Packet Flags:    HISTORY + Message Type: ACKNOWLEDGEMENT
+				0, 9,				//Last Received:   9
+				2, 16, -121, 124	//Packet History:  34637692
+									//Message:         null
+			}, packet.toCompactByteArray());
+			Packet parsedPacket = Packet.parsePacket(packet.toCompactByteArray());
+			assertPacketsEqual(packet, parsedPacket);
+			assertFalse(parsedPacket.hasSequenceNumber());
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		try {
+			Packet.parsePacket(new byte[] { -96, 3, 26, 0, 9, 2, 16 });
+			fail("Compact acknowledgement missing part of its packet history was parsed");
+		} catch (MalformedPacketException e) {
+			//expected
+		}
+
+		try {
+			Packet.parsePacket(new byte[] { -95, 3, 26, 0 });
+			fail("Compact acknowledgement missing part of its last received sequence number was parsed");
+		} catch (MalformedPacketException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testToCompactByteArray() {
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				-96,				//Protocol Tag:    COMPACT
+				0,					//Connection Id:   ANONYMOUS
+				113,				//Packet Flags:    SEQUENCE, DUPLICATE, HISTORY + Message Type: APPLICATION
+				0, 81,				//Sequence Number: 81
+				-1, -1,				//Duplicate Of:    65535
+				0, 27,				//Last Received:   27
+				2, 16, -121, 124,	//Packet History:  34637692
+									//Message:         "Hello world!"
+				72, 101, 108, 108, 111, 32, 119, 111, 114, 108, 100, 33
+			}, applicationPacketHelloWorld.toCompactByteArray());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				-96,				//Protocol Tag:    COMPACT
+				-2,					//Connection Id:   254
+				82,					//Packet Flags:    SEQUENCE, HISTORY + Message Type: PING
+				0, 1,				//Sequence Number: 1
+				0, 1,				//Last Received:   1
+				10, 54, 121, 31		//Packet History:  171342111
+									//Message:         null
+			}, pingPacket.toCompactByteArray());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				-96,				//Protocol Tag:    COMPACT
+				-56,				//Connection Id:   200
+				23,					//Packet Flags:    HISTORY + Message Type: FORCE_DISCONNECT
+				-1, -1,				//Last Received:   65535
+				3, -85, 85, 119		//Packet History:  61560183
+									//Message:         null
+			}, forceDisconnectPacket.toCompactByteArray());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		try {
+			Assert.assertArrayEquals(new byte[] {
+				-96,				//Protocol Tag:    COMPACT
+				-1,					//Connection Id:   255
+				-29,				//Packet Flags:    IMMEDIATE, SEQUENCE, DUPLICATE + Message Type: PING_RESPONSE
+				0, 4,				//Sequence Number: 4
+				11, -72				//Duplicate Of:    3000
+									//Message:         null
+			}, pingResponsePacket.toCompactByteArray());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		try {
+			Packet packet = Packet.createApplicationPacket(5, "hi");
+			packet.setSequenceNumber(7);
+			packet.setLastReceivedSequenceNumber(6);
+			packet.setReceivedPacketHistory(-1);
+			Assert.assertArrayEquals(new byte[] {
+				-95,				//Protocol Tag:    COMPACT + HISTORY FULL
+				5,					//Connection Id:   5
+				81,					//Packet Flags:    SEQUENCE, HISTORY + Message Type: APPLICATION
+				0, 7,				//Sequence Number: 7
+				0, 6,				//Last Received:   6
+									//Message:         "hi"
+				104, 105
+			}, packet.toCompactByteArray());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		try {
+			assertTrue(applicationPacketHelloWorld.toCompactByteArray().length < applicationPacketHelloWorld.toByteArray().length);
+			assertTrue(pingPacket.toCompactByteArray().length < pingPacket.toByteArray().length);
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParseCompactPacket() {
+		Packet[] packets = new Packet[] { applicationPacketHelloWorld, clientDisconnectPacket, connectionAcceptedPacket, connectionRefusedPacket,
+				connectRequestPacket, forceDisconnectPacket, pingPacket, pingResponsePacket };
+		for(Packet packet : packets) {
+			try {
+				Packet parsedPacket = Packet.parsePacket(packet.toCompactByteArray());
+				if(!packet.hasReceivedPacketHistory()) {
+					//the packet history isn't sent without a last received sequence number
+					assertEquals(0, parsedPacket.getReceivedPacketHistory());
+					parsedPacket.setReceivedPacketHistory(packet.getReceivedPacketHistory());
+				}
+				assertPacketsEqual(packet, parsedPacket);
+			} catch (MalformedPacketException e) {
+				fail(e.getMessage());
+			} catch (PacketEncodingException e) {
+				fail(e.getMessage());
+			}
+		}
+
+		try {
+			Packet packet = Packet.createApplicationPacket(5, "hi");
+			packet.setSequenceNumber(7);
+			packet.setLastReceivedSequenceNumber(6);
+			packet.setReceivedPacketHistory(-1);
+			assertPacketsEqual(packet, Packet.parsePacket(packet.toCompactByteArray()));
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		try {
+			Packet.parsePacket(new byte[] { -96, 1 });
+			fail("Compact packet with too few bytes was parsed");
+		} catch (MalformedPacketException e) {
+			//expected
+		}
+
+		try {
+			Packet.parsePacket(new byte[] { -96, 1, 65, 0 });
+			fail("Compact packet missing its sequence number was parsed");
+		} catch (MalformedPacketException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testCompressMessage() {
+		String message = "{\"entity\":\"player\",\"position\":{\"x\":12,\"y\":34},\"entity\":\"player\",\"position\":{\"x\":56,\"y\":78}}";
+		PayloadCompressor compressor = new PayloadCompressor("{\"entity\":\"player\",\"position\":{\"x\":".getBytes(), PayloadCompressor.DEFAULT_THRESHOLD);
+		try {
+			Packet packet = Packet.createApplicationPacket(5, message);
+			packet.setSequenceNumber(7);
+			assertTrue(packet.compressMessage(compressor));
+			assertTrue(packet.isCompressed());
+			assertEquals(message, packet.getMessage());
+			assertTrue(packet.toByteArray().length < Packet.createApplicationPacket(5, message).toByteArray().length);
+
+			Packet parsedPacket = Packet.parsePacket(packet.toByteArray());
+			assertTrue(parsedPacket.isCompressed());
+			assertNull(parsedPacket.getMessage());
+			parsedPacket.decompressMessage(compressor);
+			assertFalse(parsedPacket.isCompressed());
+			assertEquals(message, parsedPacket.getMessage());
+
+			parsedPacket = Packet.parsePacket(packet.toCompactByteArray());
+			assertTrue(parsedPacket.isCompressed());
+			parsedPacket.decompressMessage(compressor);
+			assertEquals(message, parsedPacket.getMessage());
+		} catch (MalformedPacketException e) {
+			fail(e.getMessage());
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+
+		//short messages aren't worth compressing
+		Packet packet = Packet.createApplicationPacket(5, "short");
+		assertFalse(packet.compressMessage(compressor));
+		assertFalse(packet.isCompressed());
+
+		//a packet compressed with one dictionary can't be decompressed without it
+		try {
+			packet = Packet.createApplicationPacket(5, message);
+			packet.setSequenceNumber(7);
+			packet.compressMessage(compressor);
+			Packet parsedPacket = Packet.parsePacket(packet.toByteArray());
+			parsedPacket.decompressMessage(new PayloadCompressor());
+			fail("Message compressed with a dictionary was decompressed without it");
+		} catch (MalformedPacketException e) {
+			//expected
+		} catch (PacketEncodingException e) {
+			fail(e.getMessage());
+		}
+		compressor.close();
+	}
+
 	private void assertPacketsEqual(Packet packet1, Packet packet2) {
 		if(packet1 == null)
 			assertNull(packet2);
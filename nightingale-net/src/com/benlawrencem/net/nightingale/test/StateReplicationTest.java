@@ -0,0 +1,208 @@
+package com.benlawrencem.net.nightingale.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.ClientConnection;
+import com.benlawrencem.net.nightingale.InMemoryNetwork;
+import com.benlawrencem.net.nightingale.Packet;
+import com.benlawrencem.net.nightingale.Server;
+import com.benlawrencem.net.nightingale.StateReceiver;
+import com.benlawrencem.net.nightingale.StateReplicator;
+
+import junit.framework.TestCase;
+
+public class StateReplicationTest extends TestCase {
+	private static final int PORT = 19600;
+	private static final int TIMEOUT = 2000;
+	private BlockingQueue<String> clientMessages;
+	private BlockingQueue<Integer> connectedClientIds;
+	private Server server;
+	private ClientConnection client;
+	private StateReplicator replicator;
+	private StateReceiver receiver;
+	private int clientId;
+
+	@Before
+	public void setUp() throws Exception {
+		clientMessages = new LinkedBlockingQueue<String>();
+		connectedClientIds = new LinkedBlockingQueue<Integer>();
+		InMemoryNetwork network = new InMemoryNetwork();
+		server = new Server() {
+			protected void onServerStopped() {}
+			protected boolean onClientConnected(int clientId, String address, int port) {
+				connectedClientIds.add(clientId);
+				return true;
+			}
+			protected void onClientDisconnected(int clientId, String reason) {}
+			protected void onReceive(int clientId, String message) {}
+			protected void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, String message) {}
+		};
+		server.setTransportFactory(network);
+		server.startServer(StateReplicationTest.PORT);
+		client = new ClientConnection() {
+			protected void onConnected() {}
+			protected void onCouldNotConnect(String reason) {}
+			protected void onDisconnected(String reason) {}
+			protected void onReceive(String message) {
+				clientMessages.add(message);
+			}
+			protected void onMessageNotDelivered(int messageId, int resendMessageId, String message) {}
+		};
+		client.setTransportFactory(network);
+		client.connect(InMemoryNetwork.ADDRESS.getHostAddress(), StateReplicationTest.PORT);
+		Integer connectedClientId = connectedClientIds.poll(StateReplicationTest.TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Client did not connect", connectedClientId);
+		clientId = connectedClientId;
+
+		//the server asks onClientConnected before it accepts the client, so wait until the client hears it was
+		long deadline = System.currentTimeMillis() + StateReplicationTest.TIMEOUT;
+		while(!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("Client did not connect", client.isConnected());
+		replicator = new StateReplicator(server);
+		receiver = new StateReceiver();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.disconnect();
+		server.stopServer();
+	}
+
+	@Test
+	public void testDeltaOnlyCarriesChanges() throws Exception {
+		replicator.put("unchanged", "1");
+		replicator.put("changed", "2");
+		replicator.put("removed", "3");
+		int baselineId = replicator.takeSnapshot();
+		waitUntilDelivered(replicator.replicate(clientId));
+		receiver.receive(receiveMessage());
+
+		replicator.put("changed", "4");
+		replicator.remove("removed");
+		replicator.put("added", "5");
+		replicator.takeSnapshot();
+		replicator.replicate(clientId);
+		String delta = receiveMessage();
+		assertTrue(delta.contains(" " + baselineId + " "));
+		assertTrue(delta.contains("+changed=4\n"));
+		assertTrue(delta.contains("+added=5\n"));
+		assertTrue(delta.contains("-removed\n"));
+		assertFalse(delta.contains("unchanged"));
+
+		Map<String, String> expectedState = new HashMap<String, String>();
+		expectedState.put("unchanged", "1");
+		expectedState.put("changed", "4");
+		expectedState.put("added", "5");
+		assertEquals(expectedState, receiver.receive(delta));
+	}
+
+	@Test
+	public void testSeparatorsInKeysAndValuesAreEscaped() throws Exception {
+		replicator.put("a=b\\c\nd", "=\\\n\\n");
+		replicator.put("plain", "x=y");
+		replicator.takeSnapshot();
+		replicator.replicate(clientId);
+
+		Map<String, String> state = receiver.receive(receiveMessage());
+		assertNotNull(state);
+		assertEquals(2, state.size());
+		assertEquals("=\\\n\\n", state.get("a=b\\c\nd"));
+		assertEquals("x=y", state.get("plain"));
+	}
+
+	@Test
+	public void testUpdateWithUnknownBaselineIsIgnored() throws Exception {
+		replicator.put("key", "1");
+		replicator.takeSnapshot();
+		waitUntilDelivered(replicator.replicate(clientId));
+		receiveMessage();
+
+		//this receiver never saw the snapshot the delta was encoded against
+		replicator.put("key", "2");
+		replicator.takeSnapshot();
+		replicator.replicate(clientId);
+		assertNull(receiver.receive(receiveMessage()));
+		assertTrue(receiver.getState().isEmpty());
+	}
+
+	@Test
+	public void testOutOfOrderUpdateIsIgnored() throws Exception {
+		replicator.put("key", "old");
+		replicator.takeSnapshot();
+		replicator.replicate(clientId);
+		String olderUpdate = receiveMessage();
+		replicator.put("key", "new");
+		int newerSnapshotId = replicator.takeSnapshot();
+		replicator.replicate(clientId);
+		String newerUpdate = receiveMessage();
+
+		assertEquals("new", receiver.receive(newerUpdate).get("key"));
+		assertNull(receiver.receive(olderUpdate));
+		assertEquals("new", receiver.getState().get("key"));
+		assertEquals(newerSnapshotId, receiver.getLastSnapshotId());
+	}
+
+	@Test
+	public void testLargeSnapshotIsSplitIntoWholePackets() throws Exception {
+		Map<String, String> expectedState = new HashMap<String, String>();
+		for(int i = 0; i < 100; i++) {
+			expectedState.put("entity" + i, "position " + i + "," + (i * 7) + " velocity 0.5,-1.25");
+			replicator.put("entity" + i, expectedState.get("entity" + i));
+		}
+		replicator.takeSnapshot();
+		int numParts = replicator.replicate(clientId).length;
+		assertTrue(numParts > 1);
+
+		List<String> parts = new ArrayList<String>();
+		for(int i = 0; i < numParts; i++) {
+			parts.add(receiveMessage());
+			assertTrue(Packet.createApplicationPacket(clientId, parts.get(i)).toByteArray().length <= Packet.MAXIMUM_PACKET_SIZE);
+		}
+
+		//parts can arrive in any order, and nothing is applied until the last one does
+		for(int i = numParts - 1; i > 0; i--)
+			assertNull(receiver.receive(parts.get(i)));
+		assertTrue(receiver.getState().isEmpty());
+		assertEquals(expectedState, receiver.receive(parts.get(0)));
+	}
+
+	@Test
+	public void testEntryTooLongForPacketIsRejected() {
+		StringBuilder value = new StringBuilder();
+		while(value.length() < Packet.MAXIMUM_PACKET_SIZE)
+			value.append("0123456789");
+		try {
+			replicator.put("key", value.toString());
+			fail("Entry too long for a packet was accepted");
+		} catch(IllegalArgumentException e) {
+			assertNull(replicator.get("key"));
+		}
+	}
+
+	private String receiveMessage() throws InterruptedException {
+		String message = clientMessages.poll(StateReplicationTest.TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Client did not receive an update", message);
+		assertTrue(StateReplicator.isReplicationMessage(message));
+		return message;
+	}
+
+	private void waitUntilDelivered(int[] messageIds) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + StateReplicationTest.TIMEOUT;
+		for(int messageId : messageIds) {
+			while(!server.isMessageDelivered(clientId, messageId) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue("Update was not acknowledged", server.isMessageDelivered(clientId, messageId));
+		}
+	}
+}
\ No newline at end of file